@@ -0,0 +1,362 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import androidx.annotation.Nullable;
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Anchor.CloudAnchorState;
+import com.google.ar.core.Future;
+import com.google.ar.core.codelab.cloudanchor.rendering.Frustum;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps the number of attached anchors within a budget.
+ *
+ * <p>Every attached anchor adds to ARCore's tracking work. Once more anchors than the budget are
+ * attached, the hosted anchors that have been out of view the longest, and among those the
+ * farthest from the camera, are detached. Their Cloud Anchor IDs and last known positions are
+ * kept, and they are resolved again once the camera looks at their position from within a given
+ * distance and the budget has room for them. Anchors that are not hosted yet are never detached,
+ * since they could not be brought back. Anchors attached outside the scene, such as the ones
+ * resolved ahead of a request, count against the budget through {@link #setReservedCount}.
+ *
+ * <p>Each Cloud Anchor is tracked once: recording the Cloud Anchor ID of an anchor drops any other
+ * entry with the same ID. Entries are also dropped when their anchor is removed for good, see
+ * {@link #remove}, and when resolving them fails with an error that retrying cannot fix.
+ *
+ * <p>Visibility is a sphere test against the view frustum, once per frame and anchor. Everything
+ * but the resolve callbacks runs on the thread that updates the scene; resolved anchors are handed
+ * back through a non-blocking queue that {@link #update} drains.
+ */
+public class AnchorBudget {
+
+  /** Receives the anchors that leave and re-enter the scene. Called on the thread that updates the scene. */
+  public interface Listener {
+    /** {@code anchor} is about to be detached and should be removed from the scene. */
+    void onAnchorDetached(Anchor anchor);
+
+    /** A detached anchor was resolved again as {@code anchor} and should be added to the scene. */
+    void onAnchorReresolved(Anchor anchor, String cloudAnchorId);
+  }
+
+  // Delay before a detached anchor whose resolve failed is tried again.
+  private static final long RESOLVE_RETRY_NANOS = 10_000_000_000L;
+
+  /** An anchor placed in the scene, attached or not. */
+  private static final class Entry {
+    // Null while detached.
+    @Nullable Anchor anchor;
+    @Nullable String cloudAnchorId;
+    final float[] position = new float[3];
+    long lastVisibleNanos;
+    @Nullable Future resolveFuture;
+    long nextResolveNanos;
+  }
+
+  private static final class ResolveResult {
+    final Entry entry;
+    final Anchor anchor;
+    final CloudAnchorState cloudState;
+
+    ResolveResult(Entry entry, Anchor anchor, CloudAnchorState cloudState) {
+      this.entry = entry;
+      this.anchor = anchor;
+      this.cloudState = cloudState;
+    }
+  }
+
+  private final int maxLiveAnchors;
+  private final float visibilityRadius;
+  private final float reresolveDistanceSquared;
+  private final BatchResolver.ResolveFunction resolveFunction;
+  private final Listener listener;
+
+  private final List<Entry> entries = new ArrayList<>();
+  private final Map<Anchor, Entry> liveEntries = new HashMap<>();
+  private final ConcurrentLinkedQueue<ResolveResult> resolveResults =
+      new ConcurrentLinkedQueue<>();
+  private int resolvingCount;
+  private int reservedCount;
+
+  private int detachedCount;
+  private int reresolvedCount;
+  private int failedCount;
+  private int droppedCount;
+
+  /**
+   * @param maxLiveAnchors maximum number of attached anchors, counting the ones being resolved.
+   * @param visibilityRadius radius in meters of the sphere tested against the view frustum.
+   * @param reresolveDistance maximum distance in meters from the camera at which detached anchors
+   *     in view are resolved again.
+   * @param resolveFunction resolves detached anchors, typically {@code
+   *     session::resolveCloudAnchorAsync}.
+   * @param listener told about the anchors that are detached and resolved again.
+   */
+  public AnchorBudget(
+      int maxLiveAnchors,
+      float visibilityRadius,
+      float reresolveDistance,
+      BatchResolver.ResolveFunction resolveFunction,
+      Listener listener) {
+    if (maxLiveAnchors < 1) {
+      throw new IllegalArgumentException("maxLiveAnchors must be at least 1: " + maxLiveAnchors);
+    }
+    this.maxLiveAnchors = maxLiveAnchors;
+    this.visibilityRadius = visibilityRadius;
+    this.reresolveDistanceSquared = reresolveDistance * reresolveDistance;
+    this.resolveFunction = resolveFunction;
+    this.listener = listener;
+  }
+
+  /** Starts tracking an anchor that was added to the scene. Does nothing if already tracked. */
+  public void add(Anchor anchor, long nowNanos) {
+    if (liveEntries.containsKey(anchor)) {
+      return;
+    }
+    Entry entry = new Entry();
+    entry.anchor = anchor;
+    entry.lastVisibleNanos = nowNanos;
+    entries.add(entry);
+    liveEntries.put(anchor, entry);
+  }
+
+  /**
+   * Records the Cloud Anchor ID of a hosted or resolved anchor, which makes it eligible for
+   * detaching. Any other entry for the same Cloud Anchor is dropped, and detached first if needed,
+   * so that resolving an anchor again does not track it twice.
+   */
+  public void setCloudAnchorId(Anchor anchor, String cloudAnchorId) {
+    Entry entry = liveEntries.get(anchor);
+    if (entry == null) {
+      return;
+    }
+    entry.cloudAnchorId = cloudAnchorId;
+    for (int i = entries.size() - 1; i >= 0; i--) {
+      Entry other = entries.get(i);
+      if (other != entry && cloudAnchorId.equals(other.cloudAnchorId)) {
+        if (other.anchor != null) {
+          detach(other);
+        }
+        removeEntry(other);
+      }
+    }
+  }
+
+  /**
+   * Stops tracking an anchor that was removed from the scene for good. The anchor is left to the
+   * caller to detach.
+   */
+  public void remove(Anchor anchor) {
+    Entry entry = liveEntries.get(anchor);
+    if (entry != null) {
+      removeEntry(entry);
+    }
+  }
+
+  /**
+   * Sets the number of anchors attached outside the scene, e.g. resolved ahead and not claimed
+   * yet. They count against the budget like the anchors in the scene.
+   */
+  public void setReservedCount(int count) {
+    reservedCount = count;
+  }
+
+  /** Records the pose of a tracked anchor for this frame, as a column-major matrix. */
+  public void setPose(Anchor anchor, float[] poseMatrix) {
+    Entry entry = liveEntries.get(anchor);
+    if (entry != null) {
+      entry.position[0] = poseMatrix[12];
+      entry.position[1] = poseMatrix[13];
+      entry.position[2] = poseMatrix[14];
+    }
+  }
+
+  /**
+   * Hands over the anchors resolved since the last frame, updates the visibility of every anchor,
+   * resolves the detached anchors that came back into view and detaches anchors while over budget.
+   * Does not allocate unless an anchor is added or detached.
+   */
+  public void update(Frustum frustum, float[] cameraPosition, long nowNanos) {
+    ResolveResult result;
+    while ((result = resolveResults.poll()) != null) {
+      onResolveResult(result, nowNanos);
+    }
+
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      float[] position = entry.position;
+      if (!frustum.intersectsSphere(position[0], position[1], position[2], visibilityRadius)) {
+        continue;
+      }
+      if (entry.anchor != null) {
+        entry.lastVisibleNanos = nowNanos;
+      } else if (entry.resolveFuture == null
+          && nowNanos >= entry.nextResolveNanos
+          && liveEntries.size() + resolvingCount + reservedCount < maxLiveAnchors
+          && distanceSquared(position, cameraPosition) <= reresolveDistanceSquared) {
+        startResolve(entry);
+      }
+    }
+
+    while (liveEntries.size() + reservedCount > maxLiveAnchors) {
+      Entry victim = null;
+      float victimDistance = 0;
+      for (int i = 0; i < entries.size(); i++) {
+        Entry entry = entries.get(i);
+        if (entry.anchor == null || entry.cloudAnchorId == null) {
+          continue;
+        }
+        float distance = distanceSquared(entry.position, cameraPosition);
+        if (victim == null
+            || entry.lastVisibleNanos < victim.lastVisibleNanos
+            || (entry.lastVisibleNanos == victim.lastVisibleNanos && distance > victimDistance)) {
+          victim = entry;
+          victimDistance = distance;
+        }
+      }
+      if (victim == null) {
+        // Only anchors that are not hosted yet are left.
+        break;
+      }
+      detach(victim);
+    }
+  }
+
+  /**
+   * Forgets every anchor and cancels the resolves in flight. Attached anchors are left to the
+   * caller to detach.
+   */
+  public void clear() {
+    for (Entry entry : entries) {
+      if (entry.resolveFuture != null) {
+        entry.resolveFuture.cancel();
+        entry.resolveFuture = null;
+      }
+    }
+    entries.clear();
+    liveEntries.clear();
+    resolvingCount = 0;
+    ResolveResult result;
+    while ((result = resolveResults.poll()) != null) {
+      if (result.anchor != null) {
+        result.anchor.detach();
+      }
+    }
+  }
+
+  /** Number of attached anchors. */
+  public int getLiveCount() {
+    return liveEntries.size();
+  }
+
+  /** Number of detached anchors being resolved again. */
+  public int getResolvingCount() {
+    return resolvingCount;
+  }
+
+  /** Returns a one-line summary of the anchors and of the detaches and resolves so far. */
+  public String getStats() {
+    return String.format(
+        Locale.US,
+        "live=%d/%d reserved=%d detached=%d resolving=%d totalDetached=%d reresolved=%d failed=%d"
+            + " dropped=%d",
+        liveEntries.size(),
+        maxLiveAnchors,
+        reservedCount,
+        entries.size() - liveEntries.size(),
+        resolvingCount,
+        detachedCount,
+        reresolvedCount,
+        failedCount,
+        droppedCount);
+  }
+
+  private void detach(Entry entry) {
+    Anchor anchor = entry.anchor;
+    listener.onAnchorDetached(anchor);
+    anchor.detach();
+    liveEntries.remove(anchor);
+    entry.anchor = null;
+    detachedCount++;
+  }
+
+  private void removeEntry(Entry entry) {
+    if (entry.resolveFuture != null) {
+      // A result that still arrives is detached by onResolveResult.
+      entry.resolveFuture.cancel();
+      entry.resolveFuture = null;
+      resolvingCount--;
+    }
+    if (entry.anchor != null) {
+      liveEntries.remove(entry.anchor);
+    }
+    entries.remove(entry);
+    droppedCount++;
+  }
+
+  private void startResolve(Entry entry) {
+    resolvingCount++;
+    entry.resolveFuture =
+        resolveFunction.resolveCloudAnchorAsync(
+            entry.cloudAnchorId,
+            (anchor, cloudState) ->
+                resolveResults.add(new ResolveResult(entry, anchor, cloudState)));
+  }
+
+  private void onResolveResult(ResolveResult result, long nowNanos) {
+    Entry entry = result.entry;
+    if (entry.resolveFuture == null) {
+      // Cleared while the resolve was in flight.
+      if (result.anchor != null) {
+        result.anchor.detach();
+      }
+      return;
+    }
+    entry.resolveFuture = null;
+    resolvingCount--;
+    if (result.cloudState != CloudAnchorState.SUCCESS) {
+      if (result.anchor != null) {
+        result.anchor.detach();
+      }
+      failedCount++;
+      if (CloudAnchorRetrier.isRetryable(result.cloudState)) {
+        entry.nextResolveNanos = nowNanos + RESOLVE_RETRY_NANOS;
+      } else {
+        // E.g. the Cloud Anchor expired; resolving it again would fail the same way.
+        removeEntry(entry);
+      }
+      return;
+    }
+    entry.anchor = result.anchor;
+    entry.lastVisibleNanos = nowNanos;
+    liveEntries.put(result.anchor, entry);
+    reresolvedCount++;
+    listener.onAnchorReresolved(result.anchor, entry.cloudAnchorId);
+  }
+
+  private static float distanceSquared(float[] position, float[] cameraPosition) {
+    float dx = position[0] - cameraPosition[0];
+    float dy = position[1] - cameraPosition[1];
+    float dz = position[2] - cameraPosition[2];
+    return dx * dx + dy * dy + dz * dz;
+  }
+}
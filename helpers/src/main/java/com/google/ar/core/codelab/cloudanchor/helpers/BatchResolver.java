@@ -0,0 +1,434 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Anchor.CloudAnchorState;
+import com.google.ar.core.Future;
+import com.google.ar.core.Session;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.BiConsumer;
+
+/**
+ * Resolves a batch of short codes concurrently, up to a fixed number of resolves at once.
+ *
+ * <p>Short codes are looked up and resolved in priority order, and each anchor is streamed to the
+ * {@link BatchListener} as soon as it resolves. A batch can be started at a camera position, so
+ * that its requests become stale, and are cancelled, once the user walks away from there. A batch
+ * can also be cancelled on its own, e.g. once its anchors are no longer wanted.
+ */
+public class BatchResolver {
+
+  /**
+   * Looks up the Cloud Anchor ID for a short code. Usually {@code
+   * firebaseManager::getCloudAnchorId}.
+   */
+  public interface LookupFunction {
+    void getCloudAnchorId(int shortCode, FirebaseManager.CloudAnchorIdListener listener);
+  }
+
+  /** Starts resolving a Cloud Anchor. Usually {@code session::resolveCloudAnchorAsync}. */
+  public interface ResolveFunction {
+    Future resolveCloudAnchorAsync(
+        String cloudAnchorId, BiConsumer<Anchor, CloudAnchorState> callback);
+  }
+
+  /** Receives the results of a batch as they arrive. Called on the callback thread. */
+  public interface BatchListener {
+    void onAnchorResolved(int shortCode, String cloudAnchorId, Anchor anchor);
+
+    /**
+     * Called when a short code could not be resolved. {@code cloudState} is null if the short code
+     * did not map to a Cloud Anchor ID.
+     */
+    void onResolveFailed(int shortCode, CloudAnchorState cloudState);
+
+    void onBatchComplete(BatchReport report);
+  }
+
+  /** Timing and outcome summary of a finished batch. */
+  public static final class BatchReport {
+    public final int requested;
+    public final int resolved;
+    public final int failed;
+    public final int cancelled;
+    /** Milliseconds from the start of the batch to the first resolved anchor, or -1. */
+    public final long timeToFirstAnchorMs;
+    /** Milliseconds from the start of the batch until every request finished. */
+    public final long timeToAllAnchorsMs;
+
+    BatchReport(
+        int requested,
+        int resolved,
+        int failed,
+        int cancelled,
+        long timeToFirstAnchorMs,
+        long timeToAllAnchorsMs) {
+      this.requested = requested;
+      this.resolved = resolved;
+      this.failed = failed;
+      this.cancelled = cancelled;
+      this.timeToFirstAnchorMs = timeToFirstAnchorMs;
+      this.timeToAllAnchorsMs = timeToAllAnchorsMs;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "requested=%d resolved=%d failed=%d cancelled=%d firstAnchor=%dms allAnchors=%dms",
+          requested, resolved, failed, cancelled, timeToFirstAnchorMs, timeToAllAnchorsMs);
+    }
+  }
+
+  /**
+   * Orders short codes so that the most recently hosted anchors resolve first. Short codes are
+   * handed out in increasing order, so a higher short code means a more recent anchor.
+   */
+  public static Comparator<Integer> byRecency() {
+    return (a, b) -> Integer.compare(b, a);
+  }
+
+  /**
+   * Orders short codes by their expected distance from the user, closest first, e.g. the distance
+   * from the camera to the last known pose of each anchor. Short codes without a distance hint are
+   * resolved last, most recent first.
+   */
+  public static Comparator<Integer> byExpectedDistance(Map<Integer, Float> distanceHints) {
+    return (a, b) -> {
+      Float distanceA = distanceHints.get(a);
+      Float distanceB = distanceHints.get(b);
+      if (distanceA != null && distanceB != null) {
+        return Float.compare(distanceA, distanceB);
+      } else if (distanceA != null) {
+        return -1;
+      } else if (distanceB != null) {
+        return 1;
+      }
+      return Integer.compare(b, a);
+    };
+  }
+
+  private final LookupFunction lookupFunction;
+  private final ResolveFunction resolveFunction;
+  private final int maxConcurrentResolves;
+
+  private final List<Batch> activeBatches = new ArrayList<>();
+
+  /**
+   * @param lookupFunction maps short codes to Cloud Anchor IDs.
+   * @param resolveFunction starts a resolve, typically {@code session::resolveCloudAnchorAsync}.
+   * @param maxConcurrentResolves maximum number of resolves in flight, across all batches.
+   */
+  public BatchResolver(
+      LookupFunction lookupFunction, ResolveFunction resolveFunction, int maxConcurrentResolves) {
+    if (maxConcurrentResolves < 1) {
+      throw new IllegalArgumentException(
+          "maxConcurrentResolves must be at least 1: " + maxConcurrentResolves);
+    }
+    this.lookupFunction = lookupFunction;
+    this.resolveFunction = resolveFunction;
+    this.maxConcurrentResolves = maxConcurrentResolves;
+  }
+
+  /** Convenience constructor for the usual Firebase and ARCore session pairing. */
+  public static BatchResolver forSession(
+      FirebaseManager firebaseManager, Session session, int maxConcurrentResolves) {
+    return new BatchResolver(
+        firebaseManager::getCloudAnchorId, session::resolveCloudAnchorAsync, maxConcurrentResolves);
+  }
+
+  /**
+   * Starts resolving a batch of short codes that is not bound to a place.
+   *
+   * @see #resolve(List, Comparator, float[], BatchListener)
+   */
+  public Batch resolve(
+      List<Integer> shortCodes, Comparator<Integer> priority, BatchListener listener) {
+    return resolve(shortCodes, priority, null, listener);
+  }
+
+  /**
+   * Starts resolving a batch of short codes.
+   *
+   * @param shortCodes the short codes to resolve. Duplicates are ignored.
+   * @param priority order in which the short codes should be resolved, e.g. {@link #byRecency()}.
+   * @param origin camera position the batch is started at, or null if the batch is not bound to a
+   *     place. See {@link #onCameraMoved}.
+   * @param listener receives each anchor as it resolves and a report once the batch is finished.
+   * @return the batch, which can be cancelled on its own.
+   */
+  public Batch resolve(
+      List<Integer> shortCodes,
+      Comparator<Integer> priority,
+      float[] origin,
+      BatchListener listener) {
+    Batch batch = new Batch(origin, priority, listener);
+    synchronized (this) {
+      for (Integer shortCode : shortCodes) {
+        if (!batch.contains(shortCode)) {
+          batch.pending.add(new Request(batch, shortCode));
+          batch.requested++;
+        }
+      }
+      activeBatches.add(batch);
+    }
+    if (batch.requested == 0) {
+      finishBatchIfDone(batch);
+    }
+    startPendingRequests();
+    return batch;
+  }
+
+  /**
+   * Cancels every batch that was started more than {@code staleDistance} meters away from {@code
+   * cameraPosition}, as the anchors it is resolving are likely out of reach by now.
+   */
+  public void onCameraMoved(float[] cameraPosition, float staleDistance) {
+    // Called every frame, so nothing is allocated unless a batch went stale.
+    List<Batch> stale = null;
+    synchronized (this) {
+      for (int i = 0; i < activeBatches.size(); i++) {
+        Batch batch = activeBatches.get(i);
+        if (batch.origin != null
+            && distanceSquared(batch.origin, cameraPosition) > staleDistance * staleDistance) {
+          if (stale == null) {
+            stale = new ArrayList<>();
+          }
+          stale.add(batch);
+        }
+      }
+    }
+    if (stale == null) {
+      return;
+    }
+    for (Batch batch : stale) {
+      batch.cancel();
+    }
+  }
+
+  /** Cancels every active batch. */
+  public void cancelAll() {
+    List<Batch> batches;
+    synchronized (this) {
+      batches = new ArrayList<>(activeBatches);
+    }
+    for (Batch batch : batches) {
+      batch.cancel();
+    }
+  }
+
+  /** Number of batches that still have short codes pending or in flight. */
+  public synchronized int getActiveBatchCount() {
+    return activeBatches.size();
+  }
+
+  private synchronized int countInFlight() {
+    int inFlight = 0;
+    for (Batch batch : activeBatches) {
+      inFlight += batch.inFlight.size();
+    }
+    return inFlight;
+  }
+
+  /** Picks the highest-priority pending request across batches, oldest batch first on ties. */
+  private Request pollNextLocked() {
+    for (Batch batch : activeBatches) {
+      Request request = batch.pending.poll();
+      if (request != null) {
+        return request;
+      }
+    }
+    return null;
+  }
+
+  private void startPendingRequests() {
+    while (true) {
+      Request request;
+      synchronized (this) {
+        if (countInFlight() >= maxConcurrentResolves) {
+          return;
+        }
+        request = pollNextLocked();
+        if (request == null) {
+          return;
+        }
+        request.batch.inFlight.add(request);
+      }
+      lookupFunction.getCloudAnchorId(
+          request.shortCode, cloudAnchorId -> onLookupComplete(request, cloudAnchorId));
+    }
+  }
+
+  private void onLookupComplete(Request request, String cloudAnchorId) {
+    if (cloudAnchorId == null || cloudAnchorId.isEmpty()) {
+      onRequestComplete(request, null, null);
+      return;
+    }
+    synchronized (this) {
+      if (request.cancelled) {
+        return;
+      }
+      request.cloudAnchorId = cloudAnchorId;
+    }
+    Future future =
+        resolveFunction.resolveCloudAnchorAsync(
+            cloudAnchorId, (anchor, cloudState) -> onRequestComplete(request, anchor, cloudState));
+    boolean cancelledWhileStarting;
+    synchronized (this) {
+      request.future = future;
+      cancelledWhileStarting = request.cancelled;
+    }
+    if (cancelledWhileStarting && future != null) {
+      future.cancel();
+    }
+  }
+
+  private void onRequestComplete(Request request, Anchor anchor, CloudAnchorState cloudState) {
+    Batch batch = request.batch;
+    boolean resolved = cloudState == CloudAnchorState.SUCCESS && anchor != null;
+    synchronized (this) {
+      if (request.cancelled || !batch.inFlight.remove(request)) {
+        if (resolved) {
+          // The batch was cancelled, e.g. went stale, while this anchor was resolving; don't leak
+          // it.
+          anchor.detach();
+        }
+        return;
+      }
+      if (resolved) {
+        batch.resolved++;
+        if (batch.firstAnchorTimeNanos == 0) {
+          batch.firstAnchorTimeNanos = System.nanoTime();
+        }
+      } else {
+        batch.failed++;
+      }
+    }
+    if (resolved) {
+      batch.listener.onAnchorResolved(request.shortCode, request.cloudAnchorId, anchor);
+    } else {
+      batch.listener.onResolveFailed(request.shortCode, cloudState);
+    }
+    finishBatchIfDone(batch);
+    startPendingRequests();
+  }
+
+  private void finishBatchIfDone(Batch batch) {
+    BatchReport report;
+    synchronized (this) {
+      if (batch.finished || !batch.pending.isEmpty() || !batch.inFlight.isEmpty()) {
+        return;
+      }
+      batch.finished = true;
+      activeBatches.remove(batch);
+      report = batch.createReport();
+    }
+    batch.listener.onBatchComplete(report);
+  }
+
+  private static float distanceSquared(float[] a, float[] b) {
+    float dx = a[0] - b[0];
+    float dy = a[1] - b[1];
+    float dz = a[2] - b[2];
+    return dx * dx + dy * dy + dz * dz;
+  }
+
+  private static final class Request {
+    final Batch batch;
+    final int shortCode;
+    String cloudAnchorId;
+    Future future;
+    boolean cancelled;
+
+    Request(Batch batch, int shortCode) {
+      this.batch = batch;
+      this.shortCode = shortCode;
+    }
+  }
+
+  /** A group of short codes resolved together. */
+  public final class Batch {
+    private final float[] origin;
+    private final BatchListener listener;
+    private final PriorityQueue<Request> pending;
+    private final List<Request> inFlight = new ArrayList<>();
+    private final long startTimeNanos = System.nanoTime();
+    private long firstAnchorTimeNanos;
+    private int requested;
+    private int resolved;
+    private int failed;
+    private int cancelled;
+    private boolean finished;
+
+    private Batch(float[] origin, Comparator<Integer> priority, BatchListener listener) {
+      this.origin = origin == null ? null : new float[] {origin[0], origin[1], origin[2]};
+      this.listener = listener;
+      this.pending = new PriorityQueue<>(11, (a, b) -> priority.compare(a.shortCode, b.shortCode));
+    }
+
+    /** Cancels every request of this batch that has not finished yet. */
+    public void cancel() {
+      List<Future> futures = new ArrayList<>();
+      synchronized (BatchResolver.this) {
+        if (finished) {
+          return;
+        }
+        for (Request request : inFlight) {
+          request.cancelled = true;
+          if (request.future != null) {
+            futures.add(request.future);
+          }
+        }
+        for (Request request : pending) {
+          request.cancelled = true;
+        }
+        cancelled += inFlight.size() + pending.size();
+        inFlight.clear();
+        pending.clear();
+      }
+      for (Future future : futures) {
+        future.cancel();
+      }
+      finishBatchIfDone(this);
+      startPendingRequests();
+    }
+
+    private boolean contains(int shortCode) {
+      for (Request request : pending) {
+        if (request.shortCode == shortCode) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private BatchReport createReport() {
+      long now = System.nanoTime();
+      return new BatchReport(
+          requested,
+          resolved,
+          failed,
+          cancelled,
+          firstAnchorTimeNanos == 0 ? -1 : (firstAnchorTimeNanos - startTimeNanos) / 1_000_000,
+          (now - startTimeNanos) / 1_000_000);
+    }
+  }
+}
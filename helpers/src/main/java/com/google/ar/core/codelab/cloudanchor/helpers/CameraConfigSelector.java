@@ -0,0 +1,194 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import androidx.annotation.Nullable;
+import com.google.ar.core.CameraConfig;
+import com.google.ar.core.CameraConfig.DepthSensorUsage;
+import com.google.ar.core.CameraConfigFilter;
+import com.google.ar.core.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Picks the camera config that best matches a {@link Policy} instead of ARCore's default, which
+ * on some devices streams CPU images far larger than the app ever reads.
+ *
+ * <p>Each supported config gets a penalty, and the lowest wins, the first one on ties. In order of
+ * weight: using the depth sensor when the policy does not ask for it or the other way around; a
+ * frame rate range that does not contain the target, by how far it misses; a GPU texture larger
+ * or smaller than the target, by the ratio of their long edges; a CPU image larger than the
+ * target, by the same ratio. Ranges that contain the target are preferred narrow, for steady frame
+ * pacing, and CPU images smaller than the target are not penalized.
+ *
+ * <p>Scoring works on {@link Candidate}s, which hold plain numbers, so it can be checked against
+ * synthetic config lists without a session.
+ */
+public class CameraConfigSelector {
+  private static final float DEPTH_MISMATCH_PENALTY = 1000;
+  private static final float FPS_MISS_WEIGHT = 100;
+  private static final float FPS_RANGE_WEIGHT = 10;
+  private static final float TEXTURE_WEIGHT = 10;
+  private static final float CPU_IMAGE_WEIGHT = 10;
+
+  /** What the app wants from the camera. */
+  public static final class Policy {
+    final int targetFps;
+    final int textureLongEdge;
+    final int cpuImageLongEdge;
+    final boolean useDepth;
+
+    /**
+     * @param targetFps the frame rate to run at.
+     * @param textureLongEdge the preferred long edge of the GPU texture, in pixels.
+     * @param cpuImageLongEdge the largest long edge of the CPU image that is not penalized.
+     * @param useDepth whether the depth sensor should be used.
+     */
+    public Policy(int targetFps, int textureLongEdge, int cpuImageLongEdge, boolean useDepth) {
+      this.targetFps = targetFps;
+      this.textureLongEdge = textureLongEdge;
+      this.cpuImageLongEdge = cpuImageLongEdge;
+      this.useDepth = useDepth;
+    }
+  }
+
+  /** The scored properties of a camera config. */
+  public static final class Candidate {
+    public final int imageWidth;
+    public final int imageHeight;
+    public final int textureWidth;
+    public final int textureHeight;
+    public final int minFps;
+    public final int maxFps;
+    public final boolean usesDepth;
+
+    public Candidate(
+        int imageWidth,
+        int imageHeight,
+        int textureWidth,
+        int textureHeight,
+        int minFps,
+        int maxFps,
+        boolean usesDepth) {
+      this.imageWidth = imageWidth;
+      this.imageHeight = imageHeight;
+      this.textureWidth = textureWidth;
+      this.textureHeight = textureHeight;
+      this.minFps = minFps;
+      this.maxFps = maxFps;
+      this.usesDepth = usesDepth;
+    }
+
+    static Candidate of(CameraConfig config) {
+      return new Candidate(
+          config.getImageSize().getWidth(),
+          config.getImageSize().getHeight(),
+          config.getTextureSize().getWidth(),
+          config.getTextureSize().getHeight(),
+          config.getFpsRange().getLower(),
+          config.getFpsRange().getUpper(),
+          config.getDepthSensorUsage() == DepthSensorUsage.REQUIRE_AND_USE);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "cpu=%dx%d texture=%dx%d fps=%d-%d depth=%b",
+          imageWidth, imageHeight, textureWidth, textureHeight, minFps, maxFps, usesDepth);
+    }
+  }
+
+  private final Policy policy;
+
+  public CameraConfigSelector(Policy policy) {
+    this.policy = policy;
+  }
+
+  /** The penalty of {@code candidate} under the policy. Lower is better, 0 is a perfect match. */
+  public float score(Candidate candidate) {
+    float penalty = 0;
+    if (candidate.usesDepth != policy.useDepth) {
+      penalty += DEPTH_MISMATCH_PENALTY;
+    }
+    if (policy.targetFps < candidate.minFps) {
+      penalty += FPS_MISS_WEIGHT * (candidate.minFps - policy.targetFps) / policy.targetFps;
+    } else if (policy.targetFps > candidate.maxFps) {
+      penalty += FPS_MISS_WEIGHT * (policy.targetFps - candidate.maxFps) / policy.targetFps;
+    } else {
+      penalty += FPS_RANGE_WEIGHT * (candidate.maxFps - candidate.minFps) / policy.targetFps;
+    }
+    penalty +=
+        TEXTURE_WEIGHT
+            * Math.abs(
+                log2(
+                    (float) Math.max(candidate.textureWidth, candidate.textureHeight)
+                        / policy.textureLongEdge));
+    penalty +=
+        CPU_IMAGE_WEIGHT
+            * Math.max(
+                0,
+                log2(
+                    (float) Math.max(candidate.imageWidth, candidate.imageHeight)
+                        / policy.cpuImageLongEdge));
+    return penalty;
+  }
+
+  /** Index of the best candidate, the first one on ties, or -1 if there are none. */
+  public int select(List<Candidate> candidates) {
+    int best = -1;
+    float bestScore = Float.POSITIVE_INFINITY;
+    for (int i = 0; i < candidates.size(); i++) {
+      float score = score(candidates.get(i));
+      if (score < bestScore) {
+        best = i;
+        bestScore = score;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Sets the best of the back camera configs of {@code session}, which must be paused, and
+   * returns it. Returns null, keeping the current config, if the session lists none.
+   */
+  @Nullable
+  public CameraConfig apply(Session session) {
+    // The default filter lists the back camera configs.
+    List<CameraConfig> configs = session.getSupportedCameraConfigs(new CameraConfigFilter(session));
+    List<Candidate> candidates = new ArrayList<>(configs.size());
+    for (CameraConfig config : configs) {
+      candidates.add(Candidate.of(config));
+    }
+    int best = select(candidates);
+    if (best < 0) {
+      return null;
+    }
+    session.setCameraConfig(configs.get(best));
+    return configs.get(best);
+  }
+
+  /** A one-line description of the scored properties of {@code config}, for logging. */
+  public static String describe(CameraConfig config) {
+    return Candidate.of(config).toString();
+  }
+
+  private static float log2(float value) {
+    return (float) (Math.log(value) / Math.log(2));
+  }
+}
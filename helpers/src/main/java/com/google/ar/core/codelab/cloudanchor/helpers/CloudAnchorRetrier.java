@@ -0,0 +1,305 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.ar.core.Anchor.CloudAnchorState;
+import com.google.ar.core.Future;
+import com.google.ar.core.FutureState;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Retries Cloud Anchor host and resolve operations that failed with a transient error.
+ *
+ * <p>Error states are classified as retryable or fatal by {@link #isRetryable}. Retryable failures
+ * are retried with exponential backoff and full jitter until they succeed, fail fatally, or the
+ * next attempt would start after the overall deadline. The caller's callback is invoked once,
+ * with the final outcome. Cancelling the returned {@link Future} cancels the running attempt and
+ * any scheduled retry, and the callback is not invoked afterwards.
+ *
+ * <p>An attempt that throws instead of starting ends the operation with {@link
+ * CloudAnchorState#ERROR_INTERNAL}, without retrying, so the callback is still invoked.
+ *
+ * <p>The retrier wraps the same {@link HostingPipeline.HostFunction} and {@link
+ * BatchResolver.ResolveFunction} seams used elsewhere, so a fake session with scripted failures
+ * can be plugged in instead of ARCore. Deadlines are measured on a monotonic clock, which tests can
+ * replace together with the scheduler.
+ */
+public class CloudAnchorRetrier {
+  private static final String TAG = CloudAnchorRetrier.class.getSimpleName();
+
+  /** Starts one attempt of an operation and reports its outcome to {@code callback}. */
+  private interface Attempt<T> {
+    Future start(BiConsumer<T, CloudAnchorState> callback);
+  }
+
+  private final ScheduledExecutorService scheduler;
+  private final boolean ownsScheduler;
+  private final LongSupplier clockMs;
+  private final long initialBackoffMs;
+  private final long maxBackoffMs;
+  private final long deadlineMs;
+  private final Random random;
+
+  // Outcome counters, guarded by this.
+  private final Map<CloudAnchorState, Integer> attemptOutcomes =
+      new EnumMap<>(CloudAnchorState.class);
+  private final Map<CloudAnchorState, Integer> finalOutcomes =
+      new EnumMap<>(CloudAnchorState.class);
+  private int retries;
+  private int deadlineExceeded;
+  private int cancelled;
+
+  /**
+   * Creates a retrier with its own scheduler thread.
+   *
+   * @param initialBackoffMs upper bound of the delay before the first retry.
+   * @param maxBackoffMs upper bound of the delay before any retry.
+   * @param deadlineMs overall time budget of an operation, including all retries.
+   */
+  public CloudAnchorRetrier(long initialBackoffMs, long maxBackoffMs, long deadlineMs) {
+    this(
+        Executors.newSingleThreadScheduledExecutor(),
+        true,
+        SystemClock::elapsedRealtime,
+        initialBackoffMs,
+        maxBackoffMs,
+        deadlineMs,
+        new Random());
+  }
+
+  /**
+   * Creates a retrier that schedules retries on {@code scheduler} and measures deadlines with
+   * {@code clockMs}, e.g. a fake clock in tests. {@code clockMs} must be monotonic.
+   */
+  public CloudAnchorRetrier(
+      ScheduledExecutorService scheduler,
+      LongSupplier clockMs,
+      long initialBackoffMs,
+      long maxBackoffMs,
+      long deadlineMs,
+      Random random) {
+    this(scheduler, false, clockMs, initialBackoffMs, maxBackoffMs, deadlineMs, random);
+  }
+
+  private CloudAnchorRetrier(
+      ScheduledExecutorService scheduler,
+      boolean ownsScheduler,
+      LongSupplier clockMs,
+      long initialBackoffMs,
+      long maxBackoffMs,
+      long deadlineMs,
+      Random random) {
+    this.scheduler = scheduler;
+    this.ownsScheduler = ownsScheduler;
+    this.clockMs = clockMs;
+    this.initialBackoffMs = initialBackoffMs;
+    this.maxBackoffMs = maxBackoffMs;
+    this.deadlineMs = deadlineMs;
+    this.random = random;
+  }
+
+  /**
+   * Returns whether an operation that ended in {@code state} may succeed if it is tried again.
+   * Authorization, missing IDs and SDK version mismatches are fatal; service and quota errors,
+   * internal errors and localization failures are retryable.
+   */
+  public static boolean isRetryable(CloudAnchorState state) {
+    switch (state) {
+      case ERROR_INTERNAL:
+      case ERROR_SERVICE_UNAVAILABLE:
+      case ERROR_RESOURCE_EXHAUSTED:
+      case ERROR_HOSTING_DATASET_PROCESSING_FAILED:
+      case ERROR_HOSTING_SERVICE_UNAVAILABLE:
+      case ERROR_RESOLVING_LOCALIZATION_NO_MATCH:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /** Wraps a host function so that each call is retried by this retrier. */
+  public HostingPipeline.HostFunction wrapHost(HostingPipeline.HostFunction hostFunction) {
+    return (anchor, ttlDays, callback) ->
+        start(attempt -> hostFunction.hostCloudAnchorAsync(anchor, ttlDays, attempt), callback);
+  }
+
+  /** Wraps a resolve function so that each call is retried by this retrier. */
+  public BatchResolver.ResolveFunction wrapResolve(BatchResolver.ResolveFunction resolveFunction) {
+    return (cloudAnchorId, callback) ->
+        start(attempt -> resolveFunction.resolveCloudAnchorAsync(cloudAnchorId, attempt), callback);
+  }
+
+  /** Returns outcome counts per state, plus retry, deadline and cancellation counts. */
+  public synchronized String getStats() {
+    return "attempts=" + attemptOutcomes
+        + " final=" + finalOutcomes
+        + " retries=" + retries
+        + " deadlineExceeded=" + deadlineExceeded
+        + " cancelled=" + cancelled;
+  }
+
+  /** Stops the scheduler thread if this retrier created it. */
+  public void shutdown() {
+    if (ownsScheduler) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  private <T> Future start(Attempt<T> attempt, BiConsumer<T, CloudAnchorState> callback) {
+    RetryingFuture<T> future = new RetryingFuture<>(attempt, callback);
+    future.startAttempt();
+    return future;
+  }
+
+  private synchronized void count(Map<CloudAnchorState, Integer> counts, CloudAnchorState state) {
+    Integer current = counts.get(state);
+    counts.put(state, current == null ? 1 : current + 1);
+  }
+
+  private final class RetryingFuture<T> implements Future {
+    private final Attempt<T> attempt;
+    private final BiConsumer<T, CloudAnchorState> callback;
+    private final long deadlineTimeMs = clockMs.getAsLong() + deadlineMs;
+
+    // Guarded by this.
+    private FutureState state = FutureState.PENDING;
+    private Future currentAttempt;
+    private ScheduledFuture<?> scheduledRetry;
+    private int attemptCount;
+
+    RetryingFuture(Attempt<T> attempt, BiConsumer<T, CloudAnchorState> callback) {
+      this.attempt = attempt;
+      this.callback = callback;
+    }
+
+    @Override
+    public boolean cancel() {
+      Future attemptToCancel;
+      synchronized (this) {
+        if (state != FutureState.PENDING) {
+          return false;
+        }
+        state = FutureState.CANCELLED;
+        attemptToCancel = currentAttempt;
+        currentAttempt = null;
+        if (scheduledRetry != null) {
+          scheduledRetry.cancel(false);
+          scheduledRetry = null;
+        }
+      }
+      synchronized (CloudAnchorRetrier.this) {
+        cancelled++;
+      }
+      if (attemptToCancel != null) {
+        attemptToCancel.cancel();
+      }
+      return true;
+    }
+
+    @Override
+    public synchronized FutureState getState() {
+      return state;
+    }
+
+    void startAttempt() {
+      final int thisAttempt;
+      synchronized (this) {
+        if (state != FutureState.PENDING) {
+          return;
+        }
+        scheduledRetry = null;
+        thisAttempt = ++attemptCount;
+      }
+      // Started outside the lock, since the underlying operation may complete synchronously.
+      Future started;
+      try {
+        started =
+            attempt.start(
+                (result, cloudState) -> onAttemptComplete(thisAttempt, result, cloudState, true));
+      } catch (RuntimeException e) {
+        // Retries run on the scheduler thread, where an exception would be swallowed and the
+        // callback never invoked.
+        Log.e(TAG, "Cloud Anchor operation failed to start", e);
+        onAttemptComplete(thisAttempt, null, CloudAnchorState.ERROR_INTERNAL, false);
+        return;
+      }
+      boolean cancelledWhileStarting;
+      synchronized (this) {
+        cancelledWhileStarting = state == FutureState.CANCELLED;
+        if (!cancelledWhileStarting && attemptCount == thisAttempt) {
+          currentAttempt = started;
+        }
+      }
+      if (cancelledWhileStarting && started != null) {
+        started.cancel();
+      }
+    }
+
+    private void onAttemptComplete(
+        int attemptNumber, T result, CloudAnchorState cloudState, boolean mayRetry) {
+      count(attemptOutcomes, cloudState);
+      boolean retry = false;
+      synchronized (this) {
+        if (state != FutureState.PENDING || attemptNumber != attemptCount) {
+          return;
+        }
+        currentAttempt = null;
+        if (mayRetry && isRetryable(cloudState)) {
+          long delayMs = nextBackoffMs(attemptNumber);
+          if (clockMs.getAsLong() + delayMs < deadlineTimeMs) {
+            retry = true;
+            scheduledRetry = scheduler.schedule(this::startAttempt, delayMs, TimeUnit.MILLISECONDS);
+          } else {
+            synchronized (CloudAnchorRetrier.this) {
+              deadlineExceeded++;
+            }
+          }
+        }
+        if (!retry) {
+          state = FutureState.DONE;
+        }
+      }
+      if (retry) {
+        synchronized (CloudAnchorRetrier.this) {
+          retries++;
+        }
+        return;
+      }
+      count(finalOutcomes, cloudState);
+      callback.accept(result, cloudState);
+    }
+
+    /** Full jitter: a uniformly random delay up to the exponentially growing cap. */
+    private long nextBackoffMs(int attemptNumber) {
+      long cap = initialBackoffMs << Math.min(attemptNumber - 1, 20);
+      cap = Math.min(maxBackoffMs, Math.max(initialBackoffMs, cap));
+      synchronized (random) {
+        return (long) (random.nextDouble() * cap);
+      }
+    }
+  }
+}
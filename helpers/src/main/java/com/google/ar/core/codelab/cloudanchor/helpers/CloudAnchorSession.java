@@ -0,0 +1,59 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Anchor.CloudAnchorState;
+import com.google.ar.core.Future;
+import com.google.ar.core.Session;
+import java.util.function.BiConsumer;
+
+/**
+ * The Cloud Anchor operations of an ARCore {@link Session}.
+ *
+ * <p>Hosting and resolving go through this interface rather than {@link Session} directly, so that
+ * {@link FakeCloudAnchorSession} can stand in for the Cloud Anchor service. Its methods match
+ * {@link HostingPipeline.HostFunction} and {@link BatchResolver.ResolveFunction}, so method
+ * references to an instance can be passed to both.
+ */
+public interface CloudAnchorSession {
+
+  /** See {@link Session#hostCloudAnchorAsync}. */
+  Future hostCloudAnchorAsync(
+      Anchor anchor, int ttlDays, BiConsumer<String, CloudAnchorState> callback);
+
+  /** See {@link Session#resolveCloudAnchorAsync}. */
+  Future resolveCloudAnchorAsync(
+      String cloudAnchorId, BiConsumer<Anchor, CloudAnchorState> callback);
+
+  /** Returns a {@link CloudAnchorSession} that forwards to {@code session}. */
+  static CloudAnchorSession forSession(Session session) {
+    return new CloudAnchorSession() {
+      @Override
+      public Future hostCloudAnchorAsync(
+          Anchor anchor, int ttlDays, BiConsumer<String, CloudAnchorState> callback) {
+        return session.hostCloudAnchorAsync(anchor, ttlDays, callback);
+      }
+
+      @Override
+      public Future resolveCloudAnchorAsync(
+          String cloudAnchorId, BiConsumer<Anchor, CloudAnchorState> callback) {
+        return session.resolveCloudAnchorAsync(cloudAnchorId, callback);
+      }
+    };
+  }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import androidx.annotation.Nullable;
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Anchor.CloudAnchorState;
+import com.google.ar.core.Future;
+import com.google.ar.core.FutureState;
+import com.google.ar.core.Pose;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * A {@link CloudAnchorSession} that simulates the Cloud Anchor service in memory.
+ *
+ * <p>Each operation completes after a random latency within the configured range. Its outcome is
+ * taken from a script of states, or is {@link CloudAnchorState#SUCCESS} once the script is empty.
+ * Operations beyond the concurrency limit fail with {@link
+ * CloudAnchorState#ERROR_RESOURCE_EXHAUSTED}. Hosted anchors are given IDs of the form {@code
+ * fake-N} and can be resolved from the same instance; unknown IDs fail with {@link
+ * CloudAnchorState#ERROR_CLOUD_ID_NOT_FOUND}. Cancelled operations never invoke their callback.
+ *
+ * <p>Callbacks run on the given executor, like ARCore runs them on the main thread. This makes the
+ * host, share and resolve flow usable without a network, both on a device and on the JVM.
+ */
+public class FakeCloudAnchorSession implements CloudAnchorSession {
+  private static final String CLOUD_ANCHOR_ID_PREFIX = "fake-";
+  private static final int MAX_TTL_DAYS = 365;
+
+  /** Creates the anchor returned by a successful resolve. Usually {@code session::createAnchor}. */
+  public interface AnchorFactory {
+    Anchor createAnchor(Pose pose);
+  }
+
+  private static final class HostedAnchor {
+    final Anchor anchor;
+    @Nullable final Pose pose;
+
+    HostedAnchor(Anchor anchor, @Nullable Pose pose) {
+      this.anchor = anchor;
+      this.pose = pose;
+    }
+  }
+
+  private final ScheduledExecutorService scheduler;
+  private final boolean ownsScheduler;
+  private final Executor callbackExecutor;
+  @Nullable private final AnchorFactory anchorFactory;
+  private final Random random;
+
+  // Guarded by this.
+  private long minLatencyMs;
+  private long maxLatencyMs;
+  private int maxConcurrentOperations = Integer.MAX_VALUE;
+  private final Deque<CloudAnchorState> hostScript = new ArrayDeque<>();
+  private final Deque<CloudAnchorState> resolveScript = new ArrayDeque<>();
+  private final Map<String, HostedAnchor> hostedAnchors = new HashMap<>();
+  private int nextCloudAnchorId;
+  private int inFlight;
+  private int maxObservedInFlight;
+  private int hostCalls;
+  private int resolveCalls;
+  private int rejectedCalls;
+  private int cancelledCalls;
+
+  /**
+   * Creates a fake with its own scheduler thread.
+   *
+   * @param callbackExecutor runs the operation callbacks.
+   * @param anchorFactory creates the anchor of a successful resolve at the hosted pose. If null,
+   *     the hosted anchor itself is returned.
+   */
+  public FakeCloudAnchorSession(Executor callbackExecutor, @Nullable AnchorFactory anchorFactory) {
+    this(
+        Executors.newSingleThreadScheduledExecutor(),
+        true,
+        callbackExecutor,
+        anchorFactory,
+        new Random());
+  }
+
+  /** Creates a fake that completes operations on {@code scheduler}, for deterministic runs. */
+  public FakeCloudAnchorSession(
+      ScheduledExecutorService scheduler,
+      Executor callbackExecutor,
+      @Nullable AnchorFactory anchorFactory,
+      Random random) {
+    this(scheduler, false, callbackExecutor, anchorFactory, random);
+  }
+
+  private FakeCloudAnchorSession(
+      ScheduledExecutorService scheduler,
+      boolean ownsScheduler,
+      Executor callbackExecutor,
+      @Nullable AnchorFactory anchorFactory,
+      Random random) {
+    this.scheduler = scheduler;
+    this.ownsScheduler = ownsScheduler;
+    this.callbackExecutor = callbackExecutor;
+    this.anchorFactory = anchorFactory;
+    this.random = random;
+  }
+
+  /** Sets the range from which the latency of each operation is drawn. */
+  public synchronized FakeCloudAnchorSession setLatencyMs(long minLatencyMs, long maxLatencyMs) {
+    if (minLatencyMs < 0 || maxLatencyMs < minLatencyMs) {
+      throw new IllegalArgumentException(
+          "Invalid latency range: " + minLatencyMs + ".." + maxLatencyMs);
+    }
+    this.minLatencyMs = minLatencyMs;
+    this.maxLatencyMs = maxLatencyMs;
+    return this;
+  }
+
+  /** Sets how many host and resolve operations may be in flight at once. */
+  public synchronized FakeCloudAnchorSession setMaxConcurrentOperations(int maxOperations) {
+    if (maxOperations < 1) {
+      throw new IllegalArgumentException("maxOperations must be at least 1: " + maxOperations);
+    }
+    maxConcurrentOperations = maxOperations;
+    return this;
+  }
+
+  /** Appends outcomes for the next host operations, in call order. */
+  public synchronized FakeCloudAnchorSession scriptHostStates(CloudAnchorState... states) {
+    hostScript.addAll(Arrays.asList(states));
+    return this;
+  }
+
+  /** Appends outcomes for the next resolve operations, in call order. */
+  public synchronized FakeCloudAnchorSession scriptResolveStates(CloudAnchorState... states) {
+    resolveScript.addAll(Arrays.asList(states));
+    return this;
+  }
+
+  @Override
+  public Future hostCloudAnchorAsync(
+      Anchor anchor, int ttlDays, BiConsumer<String, CloudAnchorState> callback) {
+    if (ttlDays < 1 || ttlDays > MAX_TTL_DAYS) {
+      throw new IllegalArgumentException("ttlDays must be between 1 and 365: " + ttlDays);
+    }
+    // The pose is taken now, like the service maps the area around the anchor at hosting time.
+    Pose pose = anchor.getPose();
+    synchronized (this) {
+      hostCalls++;
+      if (inFlight >= maxConcurrentOperations) {
+        return reject(callback);
+      }
+      CloudAnchorState state = next(hostScript);
+      if (state != CloudAnchorState.SUCCESS) {
+        return start(() -> null, state, callback);
+      }
+      return start(() -> addHostedAnchor(anchor, pose), state, callback);
+    }
+  }
+
+  private synchronized String addHostedAnchor(Anchor anchor, @Nullable Pose pose) {
+    String cloudAnchorId = CLOUD_ANCHOR_ID_PREFIX + nextCloudAnchorId++;
+    hostedAnchors.put(cloudAnchorId, new HostedAnchor(anchor, pose));
+    return cloudAnchorId;
+  }
+
+  @Override
+  public Future resolveCloudAnchorAsync(
+      String cloudAnchorId, BiConsumer<Anchor, CloudAnchorState> callback) {
+    synchronized (this) {
+      resolveCalls++;
+      if (inFlight >= maxConcurrentOperations) {
+        return reject(callback);
+      }
+      CloudAnchorState state = next(resolveScript);
+      HostedAnchor hosted = hostedAnchors.get(cloudAnchorId);
+      if (state != CloudAnchorState.SUCCESS || hosted == null) {
+        return start(
+            () -> null,
+            state != CloudAnchorState.SUCCESS ? state : CloudAnchorState.ERROR_CLOUD_ID_NOT_FOUND,
+            callback);
+      }
+      // Like ARCore, the resolved anchor is only created once the operation completes.
+      return start(() -> createResolvedAnchor(hosted), state, callback);
+    }
+  }
+
+  private Anchor createResolvedAnchor(HostedAnchor hosted) {
+    if (anchorFactory == null || hosted.pose == null) {
+      return hosted.anchor;
+    }
+    return anchorFactory.createAnchor(hosted.pose);
+  }
+
+  /** Number of operations in flight right now. */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /** The highest number of operations that were in flight at once. */
+  public synchronized int getMaxObservedInFlight() {
+    return maxObservedInFlight;
+  }
+
+  /** Returns call, rejection and cancellation counts. */
+  public synchronized String getStats() {
+    return "hostCalls=" + hostCalls
+        + " resolveCalls=" + resolveCalls
+        + " rejected=" + rejectedCalls
+        + " cancelled=" + cancelledCalls
+        + " maxInFlight=" + maxObservedInFlight;
+  }
+
+  /** Stops the scheduler thread if this fake created it. Pending operations never complete. */
+  public void shutdown() {
+    if (ownsScheduler) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  // Must hold the lock.
+  private <T> Future start(
+      Supplier<T> result, CloudAnchorState state, BiConsumer<T, CloudAnchorState> callback) {
+    inFlight++;
+    maxObservedInFlight = Math.max(maxObservedInFlight, inFlight);
+    FakeFuture<T> future = new FakeFuture<>(result, state, callback);
+    long latencyMs = minLatencyMs;
+    if (maxLatencyMs > minLatencyMs) {
+      latencyMs += (long) (random.nextDouble() * (maxLatencyMs - minLatencyMs));
+    }
+    future.scheduled = scheduler.schedule(future::complete, latencyMs, TimeUnit.MILLISECONDS);
+    return future;
+  }
+
+  // Must hold the lock.
+  private <T> Future reject(BiConsumer<T, CloudAnchorState> callback) {
+    rejectedCalls++;
+    FakeFuture<T> future =
+        new FakeFuture<>(() -> null, CloudAnchorState.ERROR_RESOURCE_EXHAUSTED, callback);
+    future.state = FutureState.DONE;
+    callbackExecutor.execute(future::deliver);
+    return future;
+  }
+
+  private static CloudAnchorState next(Deque<CloudAnchorState> script) {
+    CloudAnchorState state = script.poll();
+    return state == null ? CloudAnchorState.SUCCESS : state;
+  }
+
+  private final class FakeFuture<T> implements Future {
+    private final Supplier<T> result;
+    private final CloudAnchorState cloudAnchorState;
+    private final BiConsumer<T, CloudAnchorState> callback;
+
+    // Guarded by the enclosing FakeCloudAnchorSession.
+    private FutureState state = FutureState.PENDING;
+    private ScheduledFuture<?> scheduled;
+
+    FakeFuture(
+        Supplier<T> result,
+        CloudAnchorState cloudAnchorState,
+        BiConsumer<T, CloudAnchorState> callback) {
+      this.result = result;
+      this.cloudAnchorState = cloudAnchorState;
+      this.callback = callback;
+    }
+
+    @Override
+    public boolean cancel() {
+      synchronized (FakeCloudAnchorSession.this) {
+        if (state != FutureState.PENDING) {
+          return false;
+        }
+        state = FutureState.CANCELLED;
+        inFlight--;
+        cancelledCalls++;
+        scheduled.cancel(false);
+        return true;
+      }
+    }
+
+    @Override
+    public FutureState getState() {
+      synchronized (FakeCloudAnchorSession.this) {
+        return state;
+      }
+    }
+
+    private void complete() {
+      synchronized (FakeCloudAnchorSession.this) {
+        if (state != FutureState.PENDING) {
+          return;
+        }
+        state = FutureState.DONE;
+        inFlight--;
+      }
+      callbackExecutor.execute(this::deliver);
+    }
+
+    private void deliver() {
+      callback.accept(result.get(), cloudAnchorState);
+    }
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Estimates how well the area around a candidate anchor has been mapped, from the feature points
+ * ARCore reported over the last few frames.
+ *
+ * <p>Points are bucketed into cubic cells of a spatial hash. Each cell remembers the last frame it
+ * was seen in, how often it was seen and the best confidence reported for it. Cells that have not
+ * been seen within the frame window expire. A query counts the live cells within a radius and
+ * turns them into a score between 0 and 1, which is used to delay hosting until the area is
+ * likely to host successfully on the first attempt.
+ *
+ * <p>This class has no Android or ARCore dependencies and does not allocate after construction,
+ * so it can be fed recorded point data on the JVM. It is not thread safe.
+ */
+public class FeatureDensityEstimator {
+
+  /** Result of a density query. Reused by the caller to avoid allocation. */
+  public static final class Estimate {
+    /** Number of live cells within the query radius. */
+    public int cells;
+    /** Total number of point observations in those cells. */
+    public int observations;
+    /** Mean of the best confidence of each cell. */
+    public float meanConfidence;
+    /** Combined density and confidence score, between 0 and 1. */
+    public float score;
+  }
+
+  private static final int FLOATS_PER_POINT = 4; // X,Y,Z,confidence.
+  private static final long EMPTY = Long.MIN_VALUE;
+  private static final int COORDINATE_BITS = 21;
+  private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+  private static final float MAX_LOAD_FACTOR = 0.7f;
+
+  private final float cellSize;
+  private final int windowFrames;
+  private final float minPointConfidence;
+  private final int targetCells;
+
+  // Open-addressing hash table from packed cell coordinates to cell statistics.
+  private final int mask;
+  private long[] keys;
+  private int[] lastSeenFrames;
+  private int[] observationCounts;
+  private float[] confidences;
+  // Spare arrays used to compact the table without allocating.
+  private long[] spareKeys;
+  private int[] spareLastSeenFrames;
+  private int[] spareObservationCounts;
+  private float[] spareConfidences;
+  private int size;
+
+  private int frame;
+  private long lastTimestamp = -1;
+
+  /**
+   * @param cellSize edge length of a cell, in meters.
+   * @param windowFrames number of frames a cell stays live after it was last seen.
+   * @param minPointConfidence points with a lower confidence are ignored.
+   * @param targetCells number of live cells within the query radius that gives a full density
+   *     score.
+   * @param capacity maximum number of cells held at once; rounded up to a power of two.
+   */
+  public FeatureDensityEstimator(
+      float cellSize, int windowFrames, float minPointConfidence, int targetCells, int capacity) {
+    this.cellSize = cellSize;
+    this.windowFrames = windowFrames;
+    this.minPointConfidence = minPointConfidence;
+    this.targetCells = targetCells;
+    int tableSize = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+    mask = tableSize - 1;
+    keys = new long[tableSize];
+    lastSeenFrames = new int[tableSize];
+    observationCounts = new int[tableSize];
+    confidences = new float[tableSize];
+    spareKeys = new long[tableSize];
+    spareLastSeenFrames = new int[tableSize];
+    spareObservationCounts = new int[tableSize];
+    spareConfidences = new float[tableSize];
+    Arrays.fill(keys, EMPTY);
+  }
+
+  /**
+   * Adds the points of one point cloud, laid out as X,Y,Z,confidence as returned by {@code
+   * PointCloud.getPoints()}. Repeated calls with the same timestamp are ignored.
+   *
+   * @param points the point buffer; its position is not modified.
+   * @param timestamp the point cloud timestamp.
+   */
+  public void addPoints(FloatBuffer points, long timestamp) {
+    if (timestamp == lastTimestamp) {
+      return;
+    }
+    lastTimestamp = timestamp;
+    frame++;
+    int base = points.position();
+    int count = points.remaining() / FLOATS_PER_POINT;
+    for (int i = 0; i < count; i++) {
+      int offset = base + i * FLOATS_PER_POINT;
+      addPoint(
+          points.get(offset), points.get(offset + 1), points.get(offset + 2),
+          points.get(offset + 3));
+    }
+  }
+
+  /**
+   * Adds {@code count} points from an array laid out as X,Y,Z,confidence, as one frame. Useful for
+   * replaying recorded point data.
+   */
+  public void addPoints(float[] points, int count) {
+    frame++;
+    for (int i = 0; i < count; i++) {
+      int offset = i * FLOATS_PER_POINT;
+      addPoint(points[offset], points[offset + 1], points[offset + 2], points[offset + 3]);
+    }
+  }
+
+  /**
+   * Scores the mapped area within {@code radius} meters of a point.
+   *
+   * @param out receives the estimate.
+   */
+  public void query(float x, float y, float z, float radius, Estimate out) {
+    int cellRadius = (int) Math.ceil(radius / cellSize);
+    int centerX = cellIndex(x);
+    int centerY = cellIndex(y);
+    int centerZ = cellIndex(z);
+    float radiusSquared = radius * radius;
+    int cells = 0;
+    int observations = 0;
+    float confidenceSum = 0;
+    for (int dx = -cellRadius; dx <= cellRadius; dx++) {
+      for (int dy = -cellRadius; dy <= cellRadius; dy++) {
+        for (int dz = -cellRadius; dz <= cellRadius; dz++) {
+          // Distance from the query point to the cell center.
+          float cx = (centerX + dx + 0.5f) * cellSize - x;
+          float cy = (centerY + dy + 0.5f) * cellSize - y;
+          float cz = (centerZ + dz + 0.5f) * cellSize - z;
+          if (cx * cx + cy * cy + cz * cz > radiusSquared) {
+            continue;
+          }
+          int slot = find(pack(centerX + dx, centerY + dy, centerZ + dz));
+          if (slot < 0 || isExpired(lastSeenFrames[slot])) {
+            continue;
+          }
+          cells++;
+          observations += observationCounts[slot];
+          confidenceSum += confidences[slot];
+        }
+      }
+    }
+    out.cells = cells;
+    out.observations = observations;
+    out.meanConfidence = cells == 0 ? 0 : confidenceSum / cells;
+    out.score = Math.min(1f, cells / (float) targetCells) * out.meanConfidence;
+  }
+
+  /** Removes every cell. */
+  public void clear() {
+    Arrays.fill(keys, EMPTY);
+    size = 0;
+    lastTimestamp = -1;
+  }
+
+  /** Number of cells currently held, including expired cells that have not been compacted. */
+  public int size() {
+    return size;
+  }
+
+  private void addPoint(float x, float y, float z, float confidence) {
+    if (confidence < minPointConfidence) {
+      return;
+    }
+    long key = pack(cellIndex(x), cellIndex(y), cellIndex(z));
+    int slot = find(key);
+    if (slot < 0) {
+      if (size + 1 > MAX_LOAD_FACTOR * keys.length) {
+        compact();
+        if (size + 1 > MAX_LOAD_FACTOR * keys.length) {
+          // Every cell is live; drop the point rather than grow.
+          return;
+        }
+      }
+      slot = insertionSlot(keys, key);
+      keys[slot] = key;
+      observationCounts[slot] = 0;
+      confidences[slot] = 0;
+      size++;
+    }
+    lastSeenFrames[slot] = frame;
+    observationCounts[slot]++;
+    confidences[slot] = Math.max(confidences[slot], confidence);
+  }
+
+  /** Moves the live cells into the spare table and swaps the tables. */
+  private void compact() {
+    Arrays.fill(spareKeys, EMPTY);
+    int live = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] == EMPTY || isExpired(lastSeenFrames[i])) {
+        continue;
+      }
+      int slot = insertionSlot(spareKeys, keys[i]);
+      spareKeys[slot] = keys[i];
+      spareLastSeenFrames[slot] = lastSeenFrames[i];
+      spareObservationCounts[slot] = observationCounts[i];
+      spareConfidences[slot] = confidences[i];
+      live++;
+    }
+    long[] swapKeys = keys;
+    keys = spareKeys;
+    spareKeys = swapKeys;
+    int[] swapFrames = lastSeenFrames;
+    lastSeenFrames = spareLastSeenFrames;
+    spareLastSeenFrames = swapFrames;
+    int[] swapCounts = observationCounts;
+    observationCounts = spareObservationCounts;
+    spareObservationCounts = swapCounts;
+    float[] swapConfidences = confidences;
+    confidences = spareConfidences;
+    spareConfidences = swapConfidences;
+    size = live;
+  }
+
+  private boolean isExpired(int lastSeenFrame) {
+    return frame - lastSeenFrame >= windowFrames;
+  }
+
+  private int find(long key) {
+    int slot = hash(key);
+    while (keys[slot] != EMPTY) {
+      if (keys[slot] == key) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  private int insertionSlot(long[] table, long key) {
+    int slot = hash(key);
+    while (table[slot] != EMPTY) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  private int cellIndex(float coordinate) {
+    return (int) Math.floor(coordinate / cellSize);
+  }
+
+  private static long pack(int x, int y, int z) {
+    return ((x & COORDINATE_MASK) << (2 * COORDINATE_BITS))
+        | ((y & COORDINATE_MASK) << COORDINATE_BITS)
+        | (z & COORDINATE_MASK);
+  }
+}
@@ -28,7 +28,7 @@ import com.google.firebase.database.Transaction;
 import com.google.firebase.database.ValueEventListener;
 
 /** Helper class for Firebase storage of cloud anchor IDs. */
-public class FirebaseManager {
+public class FirebaseManager implements ShortCodeStore {
 
   /** Listener for a new Cloud Anchor ID from the Firebase Database. */
   public interface CloudAnchorIdListener {
@@ -55,6 +55,7 @@ public class FirebaseManager {
   }
 
   /** Gets a new short code that can be used to store the anchor ID. */
+  @Override
   public void nextShortCode(ShortCodeListener listener) {
     // Run a transaction on the node containing the next short code available. This increments the
     // value in the database and retrieves it in one atomic all-or-nothing operation.
@@ -87,14 +88,16 @@ public class FirebaseManager {
   }
 
   /** Stores the cloud anchor ID in the configured Firebase Database. */
+  @Override
   public void storeUsingShortCode(int shortCode, String cloudAnchorId) {
     rootRef.child(KEY_PREFIX + shortCode).setValue(cloudAnchorId);
   }
 
   /**
-   * Retrieves the cloud anchor ID using a short code. Returns an empty string if a cloud anchor ID
-   * was not stored for this short code.
+   * Retrieves the cloud anchor ID using a short code. The listener receives null if a cloud anchor
+   * ID was not stored for this short code.
    */
+  @Override
   public void getCloudAnchorId(int shortCode, CloudAnchorIdListener listener) {
     rootRef
         .child(KEY_PREFIX + shortCode)
@@ -103,7 +106,8 @@ public class FirebaseManager {
               @Override
               public void onDataChange(DataSnapshot dataSnapshot) {
                 // Listener invoked when the data is successfully read from Firebase.
-                listener.onCloudAnchorIdAvailable(String.valueOf(dataSnapshot.getValue()));
+                Object value = dataSnapshot.getValue();
+                listener.onCloudAnchorIdAvailable(value == null ? null : String.valueOf(value));
               }
 
               @Override
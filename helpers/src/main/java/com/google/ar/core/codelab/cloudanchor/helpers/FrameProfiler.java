@@ -0,0 +1,314 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import android.util.Log;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Records how long each stage of {@code onDrawFrame} takes and attributes slow frames to the
+ * stage that caused them.
+ *
+ * <p>The GL thread writes nanosecond timings into a fixed-size ring buffer without allocating or
+ * locking. Percentiles are only computed by {@link #snapshot()}, which is meant to be called off
+ * the GL thread, for example by the periodic summary started with {@link #startPeriodicSummary}.
+ */
+public final class FrameProfiler {
+  private static final String TAG = FrameProfiler.class.getSimpleName();
+
+  /** The instrumented stages of a frame, in the order they run. */
+  public enum Stage {
+    /** Waiting for the simulation of the previous frame, see {@link SimulationStage}. */
+    SIMULATION_WAIT,
+    SESSION_UPDATE,
+    BACKGROUND,
+    POINT_CLOUD,
+    PLANES,
+    OBJECTS
+  }
+
+  private static final Stage[] STAGES = Stage.values();
+  private static final int STAGE_COUNT = STAGES.length;
+  private static final int NO_STAGE = -1;
+  // Stages that did not run in a frame, e.g. because tracking was paused.
+  private static final long NOT_RUN = -1;
+
+  private final int capacity;
+  private final long frameBudgetNanos;
+  private final LongSupplier clockNanos;
+
+  // Ring buffer. Slot i holds the frame with sequence number (i mod capacity).
+  private final long[] stageNanos;
+  private final long[] frameNanos;
+  private final int[] blamedStages;
+  private volatile long framesWritten;
+
+  // GL thread only.
+  private long frameStartNanos;
+  private long stageStartNanos;
+  private int currentSlot;
+
+  private ScheduledExecutorService summaryExecutor;
+
+  /**
+   * @param capacity the number of most recent frames that are kept.
+   * @param frameBudgetNanos frames that take longer than this are flagged as over budget.
+   */
+  public FrameProfiler(int capacity, long frameBudgetNanos) {
+    this(capacity, frameBudgetNanos, System::nanoTime);
+  }
+
+  /**
+   * Creates a profiler that times frames with {@code clockNanos}, e.g. a fake clock in tests.
+   * {@code clockNanos} must be monotonic.
+   */
+  public FrameProfiler(int capacity, long frameBudgetNanos, LongSupplier clockNanos) {
+    this.capacity = capacity;
+    this.frameBudgetNanos = frameBudgetNanos;
+    this.clockNanos = clockNanos;
+    stageNanos = new long[capacity * STAGE_COUNT];
+    frameNanos = new long[capacity];
+    blamedStages = new int[capacity];
+  }
+
+  /** Starts a new frame. Must be called on the GL thread. */
+  public void beginFrame() {
+    currentSlot = (int) (framesWritten % capacity);
+    Arrays.fill(stageNanos, currentSlot * STAGE_COUNT, (currentSlot + 1) * STAGE_COUNT, NOT_RUN);
+    frameStartNanos = clockNanos.getAsLong();
+  }
+
+  /** Starts timing a stage of the current frame. */
+  public void beginStage() {
+    stageStartNanos = clockNanos.getAsLong();
+  }
+
+  /** Records the time since the last {@link #beginStage()} as the duration of {@code stage}. */
+  public void endStage(Stage stage) {
+    stageNanos[currentSlot * STAGE_COUNT + stage.ordinal()] =
+        clockNanos.getAsLong() - stageStartNanos;
+  }
+
+  /**
+   * Returns how long {@code stage} took in the current frame, or 0 if it has not run yet. Must be
+   * called on the GL thread.
+   */
+  public long getCurrentStageNanos(Stage stage) {
+    long nanos = stageNanos[currentSlot * STAGE_COUNT + stage.ordinal()];
+    return nanos == NOT_RUN ? 0 : nanos;
+  }
+
+  /** Finishes the current frame and publishes it to readers. */
+  public void endFrame() {
+    long total = clockNanos.getAsLong() - frameStartNanos;
+    frameNanos[currentSlot] = total;
+    int blamed = NO_STAGE;
+    if (total > frameBudgetNanos) {
+      long worst = NOT_RUN;
+      int base = currentSlot * STAGE_COUNT;
+      for (int i = 0; i < STAGE_COUNT; i++) {
+        if (stageNanos[base + i] > worst) {
+          worst = stageNanos[base + i];
+          blamed = i;
+        }
+      }
+    }
+    blamedStages[currentSlot] = blamed;
+    // Volatile write publishes the slot to readers.
+    framesWritten = framesWritten + 1;
+  }
+
+  /**
+   * Computes percentiles over the frames currently held in the ring buffer. Allocates, so it
+   * should not be called on the GL thread.
+   */
+  public Snapshot snapshot() {
+    long end = framesWritten;
+    long start = Math.max(0, end - capacity);
+    int count = (int) (end - start);
+    long[] frames = new long[count];
+    long[][] stages = new long[STAGE_COUNT][count];
+    int[] blamed = new int[count];
+    for (int i = 0; i < count; i++) {
+      int slot = (int) ((start + i) % capacity);
+      frames[i] = frameNanos[slot];
+      blamed[i] = blamedStages[slot];
+      for (int s = 0; s < STAGE_COUNT; s++) {
+        stages[s][i] = stageNanos[slot * STAGE_COUNT + s];
+      }
+    }
+    // Frames that the GL thread overwrote while they were being copied are discarded.
+    long overwritten = Math.max(0, framesWritten + 1 - capacity - start);
+    int first = (int) Math.min(count, overwritten);
+    return new Snapshot(end, frames, stages, blamed, first, frameBudgetNanos);
+  }
+
+  /** Logs a summary of the latest {@link #snapshot()} every {@code intervalMs} milliseconds. */
+  public synchronized void startPeriodicSummary(long intervalMs) {
+    if (summaryExecutor != null) {
+      return;
+    }
+    summaryExecutor = Executors.newSingleThreadScheduledExecutor();
+    summaryExecutor.scheduleWithFixedDelay(
+        () -> Log.i(TAG, snapshot().toString()), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stopPeriodicSummary() {
+    if (summaryExecutor != null) {
+      summaryExecutor.shutdownNow();
+      summaryExecutor = null;
+    }
+  }
+
+  /** Per-stage percentiles and over-budget attribution for a window of recent frames. */
+  public static final class Snapshot {
+    private final long totalFrames;
+    private final int frameCount;
+    private final long[] framePercentiles;
+    private final long[][] stagePercentiles;
+    private final int overBudgetFrames;
+    private final int[] overBudgetByStage;
+
+    private static final int[] PERCENTILES = {50, 90, 99, 100};
+
+    Snapshot(
+        long totalFrames,
+        long[] frames,
+        long[][] stages,
+        int[] blamed,
+        int first,
+        long frameBudgetNanos) {
+      this.totalFrames = totalFrames;
+      frameCount = frames.length - first;
+      framePercentiles = percentiles(Arrays.copyOfRange(frames, first, frames.length));
+      stagePercentiles = new long[STAGE_COUNT][];
+      for (int s = 0; s < STAGE_COUNT; s++) {
+        stagePercentiles[s] = percentiles(ranStages(stages[s], first));
+      }
+      overBudgetByStage = new int[STAGE_COUNT];
+      int overBudget = 0;
+      for (int i = first; i < frames.length; i++) {
+        if (frames[i] > frameBudgetNanos) {
+          overBudget++;
+          if (blamed[i] != NO_STAGE) {
+            overBudgetByStage[blamed[i]]++;
+          }
+        }
+      }
+      overBudgetFrames = overBudget;
+    }
+
+    /** Number of frames in this snapshot. */
+    public int getFrameCount() {
+      return frameCount;
+    }
+
+    /** Number of frames recorded since the profiler was created. */
+    public long getTotalFrames() {
+      return totalFrames;
+    }
+
+    public int getOverBudgetFrames() {
+      return overBudgetFrames;
+    }
+
+    /** Number of over-budget frames in which {@code stage} was the slowest stage. */
+    public int getOverBudgetFrames(Stage stage) {
+      return overBudgetByStage[stage.ordinal()];
+    }
+
+    /**
+     * Returns a percentile of the whole frame time, in nanoseconds.
+     *
+     * @param percentile one of 50, 90, 99 or 100.
+     */
+    public long getFramePercentileNanos(int percentile) {
+      return framePercentiles[percentileIndex(percentile)];
+    }
+
+    /**
+     * Returns a percentile of the time spent in {@code stage}, in nanoseconds. Frames in which the
+     * stage did not run are ignored.
+     *
+     * @param percentile one of 50, 90, 99 or 100.
+     */
+    public long getStagePercentileNanos(Stage stage, int percentile) {
+      return stagePercentiles[stage.ordinal()][percentileIndex(percentile)];
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format(
+          Locale.US,
+          "frames=%d overBudget=%d frame p50/p90/p99/max=%s",
+          frameCount, overBudgetFrames, formatMillis(framePercentiles)));
+      for (Stage stage : STAGES) {
+        sb.append(String.format(
+            Locale.US,
+            "\n  %s p50/p90/p99/max=%s overBudgetBlame=%d",
+            stage, formatMillis(stagePercentiles[stage.ordinal()]),
+            overBudgetByStage[stage.ordinal()]));
+      }
+      return sb.toString();
+    }
+
+    private static long[] ranStages(long[] values, int first) {
+      long[] ran = new long[values.length - first];
+      int count = 0;
+      for (int i = first; i < values.length; i++) {
+        if (values[i] != NOT_RUN) {
+          ran[count++] = values[i];
+        }
+      }
+      return Arrays.copyOf(ran, count);
+    }
+
+    private static long[] percentiles(long[] values) {
+      long[] result = new long[PERCENTILES.length];
+      if (values.length == 0) {
+        return result;
+      }
+      Arrays.sort(values);
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        int index = (int) Math.ceil(PERCENTILES[i] / 100.0 * values.length) - 1;
+        result[i] = values[Math.max(0, Math.min(values.length - 1, index))];
+      }
+      return result;
+    }
+
+    private static int percentileIndex(int percentile) {
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        if (PERCENTILES[i] == percentile) {
+          return i;
+        }
+      }
+      throw new IllegalArgumentException("Unsupported percentile: " + percentile);
+    }
+
+    private static String formatMillis(long[] nanos) {
+      return String.format(
+          Locale.US,
+          "%.1f/%.1f/%.1f/%.1fms", nanos[0] / 1e6, nanos[1] / 1e6, nanos[2] / 1e6, nanos[3] / 1e6);
+    }
+  }
+}
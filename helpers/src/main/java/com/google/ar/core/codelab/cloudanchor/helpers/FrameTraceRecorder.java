@@ -0,0 +1,266 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Camera;
+import com.google.ar.core.Frame;
+import com.google.ar.core.Plane;
+import com.google.ar.core.PointCloud;
+import com.google.ar.core.Pose;
+import com.google.ar.core.TrackingState;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streams what {@code onDrawFrame} consumes from ARCore to a compact binary file, so that the CPU
+ * side of the render loop can be replayed and benchmarked off-device with {@code FrameTraceReader}
+ * and {@code FrameTraceReplay}, which are kept with the JVM tests.
+ *
+ * <p>{@link #record} runs on the GL thread. It encodes the frame into one of a fixed pool of
+ * buffers and hands it to a writer thread, so the GL thread never waits for the disk. If every
+ * buffer is still queued for writing, the frame is dropped and counted instead.
+ */
+public class FrameTraceRecorder implements Closeable {
+  private static final String TAG = FrameTraceRecorder.class.getSimpleName();
+
+  private static final int LENGTH_PREFIX_BYTES = 4;
+  // Handed to the writer thread to make it exit once every queued frame is written.
+  private static final ByteBuffer END_OF_TRACE = ByteBuffer.allocate(0);
+
+  private final FileOutputStream outputStream;
+  private final FileChannel channel;
+  private final BlockingQueue<ByteBuffer> freeBuffers;
+  private final BlockingQueue<ByteBuffer> filledBuffers;
+  private final Thread writerThread;
+
+  // GL thread only.
+  private final TraceFrame traceFrame = new TraceFrame();
+  private final Map<Plane, Integer> planeIds = new HashMap<>();
+  private final Set<Plane> updatedPlanes = new HashSet<>();
+  private final float[] pose = new float[TraceFrame.FLOATS_PER_POSE];
+  private boolean closed;
+
+  private volatile int recordedFrames;
+  private volatile int droppedFrames;
+  private volatile boolean writeFailed;
+
+  /**
+   * Creates {@code file}, replacing any existing trace, and starts the writer thread.
+   *
+   * @param bufferCount number of frames that can be queued for writing.
+   * @param bufferBytes size of each buffer; larger frames are dropped.
+   */
+  public FrameTraceRecorder(File file, int bufferCount, int bufferBytes) throws IOException {
+    outputStream = new FileOutputStream(file);
+    channel = outputStream.getChannel();
+    ByteBuffer header = ByteBuffer.allocate(8);
+    header.putInt(TraceFrame.MAGIC).putInt(TraceFrame.VERSION).flip();
+    writeFully(header);
+
+    freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+    filledBuffers = new ArrayBlockingQueue<>(bufferCount + 1);
+    for (int i = 0; i < bufferCount; i++) {
+      freeBuffers.add(ByteBuffer.allocateDirect(bufferBytes));
+    }
+    writerThread = new Thread(this::writeLoop, TAG);
+    writerThread.start();
+  }
+
+  /**
+   * Records one frame. Must be called on the GL thread, after {@code Session.update()}.
+   *
+   * @param viewMatrix the camera view matrix of this frame.
+   * @param projectionMatrix the camera projection matrix of this frame.
+   * @param pointCloud the point cloud of this frame, or null if it was not acquired.
+   * @param planes the planes drawn in this frame.
+   * @param anchors the anchors drawn in this frame.
+   */
+  public void record(
+      Frame frame,
+      Camera camera,
+      float[] viewMatrix,
+      float[] projectionMatrix,
+      @Nullable PointCloud pointCloud,
+      Collection<Plane> planes,
+      List<Anchor> anchors) {
+    if (closed || writeFailed) {
+      return;
+    }
+    ByteBuffer buffer = freeBuffers.poll();
+    if (buffer == null) {
+      droppedFrames++;
+      return;
+    }
+
+    traceFrame.reset(frame.getTimestamp(), toTraceState(camera.getTrackingState()));
+    System.arraycopy(viewMatrix, 0, traceFrame.getViewMatrix(), 0, 16);
+    System.arraycopy(projectionMatrix, 0, traceFrame.getProjectionMatrix(), 0, 16);
+    if (pointCloud != null) {
+      traceFrame.setPoints(pointCloud.getTimestamp(), pointCloud.getPoints());
+    }
+    updatedPlanes.clear();
+    updatedPlanes.addAll(frame.getUpdatedTrackables(Plane.class));
+    for (Plane plane : planes) {
+      Plane subsumedBy = plane.getSubsumedBy();
+      readPose(plane.getCenterPose());
+      traceFrame.addPlane(
+          planeId(plane),
+          toTraceType(plane.getType()),
+          toTraceState(plane.getTrackingState()),
+          subsumedBy == null ? TraceFrame.NO_PLANE : planeId(subsumedBy),
+          updatedPlanes.contains(plane),
+          pose,
+          plane.getExtentX(),
+          plane.getExtentZ(),
+          plane.getPolygon());
+    }
+    for (int i = 0; i < anchors.size(); i++) {
+      Anchor anchor = anchors.get(i);
+      readPose(anchor.getPose());
+      traceFrame.addAnchor(toTraceState(anchor.getTrackingState()), pose);
+    }
+
+    buffer.clear();
+    buffer.position(LENGTH_PREFIX_BYTES);
+    try {
+      traceFrame.writeTo(buffer);
+    } catch (BufferOverflowException e) {
+      droppedFrames++;
+      freeBuffers.add(buffer);
+      return;
+    }
+    buffer.putInt(0, buffer.position() - LENGTH_PREFIX_BYTES);
+    buffer.flip();
+    filledBuffers.add(buffer);
+    recordedFrames++;
+  }
+
+  /** Number of frames handed to the writer thread. */
+  public int getRecordedFrames() {
+    return recordedFrames;
+  }
+
+  /** Number of frames dropped because no buffer was free or the frame did not fit. */
+  public int getDroppedFrames() {
+    return droppedFrames;
+  }
+
+  /**
+   * Writes the queued frames and closes the file. Must be called on the GL thread, or once the GL
+   * thread no longer calls {@link #record}.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    filledBuffers.add(END_OF_TRACE);
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      outputStream.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close frame trace", e);
+    }
+    Log.i(TAG, "Frame trace closed: recorded=" + recordedFrames + " dropped=" + droppedFrames);
+  }
+
+  private void writeLoop() {
+    while (true) {
+      ByteBuffer buffer;
+      try {
+        buffer = filledBuffers.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (buffer == END_OF_TRACE) {
+        return;
+      }
+      if (!writeFailed) {
+        try {
+          writeFully(buffer);
+        } catch (IOException e) {
+          Log.e(TAG, "Failed to write frame trace, recording stopped", e);
+          writeFailed = true;
+        }
+      }
+      freeBuffers.add(buffer);
+    }
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private int planeId(Plane plane) {
+    Integer id = planeIds.get(plane);
+    if (id == null) {
+      id = planeIds.size();
+      planeIds.put(plane, id);
+    }
+    return id;
+  }
+
+  private void readPose(Pose source) {
+    source.getTranslation(pose, 0);
+    source.getRotationQuaternion(pose, 3);
+  }
+
+  private static int toTraceState(TrackingState state) {
+    switch (state) {
+      case TRACKING:
+        return TraceFrame.TRACKING;
+      case PAUSED:
+        return TraceFrame.PAUSED;
+      default:
+        return TraceFrame.STOPPED;
+    }
+  }
+
+  private static int toTraceType(Plane.Type type) {
+    switch (type) {
+      case HORIZONTAL_UPWARD_FACING:
+        return TraceFrame.HORIZONTAL_UPWARD_FACING;
+      case HORIZONTAL_DOWNWARD_FACING:
+        return TraceFrame.HORIZONTAL_DOWNWARD_FACING;
+      default:
+        return TraceFrame.VERTICAL;
+    }
+  }
+}
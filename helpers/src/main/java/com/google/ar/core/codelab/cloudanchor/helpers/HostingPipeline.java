@@ -0,0 +1,340 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Anchor.CloudAnchorState;
+import com.google.ar.core.Future;
+import com.google.ar.core.Session;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+
+/**
+ * Queues placed anchors for hosting and runs a bounded number of host operations at once.
+ *
+ * <p>Anchors may be enqueued from any thread. Each operation owns its own {@link Future} and
+ * state, so cancelling one operation does not affect the others. Completed operations are handed
+ * back through a non-blocking queue that the GL thread drains with {@link #pollCompleted()}. If
+ * the host function throws, e.g. because the session was paused, the operation fails with {@link
+ * CloudAnchorState#ERROR_INTERNAL} and the next one is started.
+ */
+public class HostingPipeline {
+
+  /** Starts hosting an anchor. Usually {@code session::hostCloudAnchorAsync}. */
+  public interface HostFunction {
+    Future hostCloudAnchorAsync(
+        Anchor anchor, int ttlDays, BiConsumer<String, CloudAnchorState> callback);
+  }
+
+  /** Listener invoked on the callback thread when a host operation finishes. */
+  public interface HostListener {
+    void onHostComplete(HostOperation operation);
+  }
+
+  /** Lifecycle of a single host operation. */
+  public enum State {
+    QUEUED,
+    HOSTING,
+    SUCCESS,
+    FAILED,
+    CANCELLED
+  }
+
+  /** A single anchor making its way through the pipeline. */
+  public static final class HostOperation {
+    private final Anchor anchor;
+    private final long enqueueTimeNanos;
+    private volatile State state = State.QUEUED;
+    private volatile long startTimeNanos;
+    private volatile long endTimeNanos;
+    private Future future;
+    private String cloudAnchorId;
+    private CloudAnchorState cloudAnchorState = CloudAnchorState.NONE;
+
+    private HostOperation(Anchor anchor, long enqueueTimeNanos) {
+      this.anchor = anchor;
+      this.enqueueTimeNanos = enqueueTimeNanos;
+    }
+
+    public Anchor getAnchor() {
+      return anchor;
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    /** The hosted Cloud Anchor ID, or null if hosting did not succeed. */
+    public synchronized String getCloudAnchorId() {
+      return cloudAnchorId;
+    }
+
+    public synchronized CloudAnchorState getCloudAnchorState() {
+      return cloudAnchorState;
+    }
+
+    /** Time spent waiting in the queue plus time spent hosting, in nanoseconds. */
+    public long getTotalLatencyNanos() {
+      return endTimeNanos == 0 ? 0 : endTimeNanos - enqueueTimeNanos;
+    }
+
+    /** Time spent in the host call itself, in nanoseconds. */
+    public long getHostLatencyNanos() {
+      return endTimeNanos == 0 || startTimeNanos == 0 ? 0 : endTimeNanos - startTimeNanos;
+    }
+
+    public boolean isDone() {
+      State current = state;
+      return current == State.SUCCESS || current == State.FAILED || current == State.CANCELLED;
+    }
+  }
+
+  private static final int DEFAULT_TTL_DAYS = 300;
+
+  private final HostFunction hostFunction;
+  private final HostListener listener;
+  private final int maxInFlight;
+  private final int ttlDays;
+
+  private final ArrayDeque<HostOperation> queuedOperations = new ArrayDeque<>();
+  private final List<HostOperation> inFlightOperations = new ArrayList<>();
+  private final ConcurrentLinkedQueue<HostOperation> completedOperations =
+      new ConcurrentLinkedQueue<>();
+
+  // Throughput counters, guarded by this.
+  private long firstEnqueueTimeNanos;
+  private long lastCompletionTimeNanos;
+  private int succeededCount;
+  private int failedCount;
+  private int cancelledCount;
+  private long totalHostLatencyNanos;
+
+  /**
+   * Creates a pipeline that runs at most {@code maxInFlight} host operations at once.
+   *
+   * @param hostFunction the function used to start hosting, typically {@code
+   *     session::hostCloudAnchorAsync}.
+   * @param maxInFlight the maximum number of concurrent host operations.
+   * @param listener notified on the callback thread whenever an operation finishes.
+   */
+  public HostingPipeline(HostFunction hostFunction, int maxInFlight, HostListener listener) {
+    this(hostFunction, maxInFlight, DEFAULT_TTL_DAYS, listener);
+  }
+
+  public HostingPipeline(
+      HostFunction hostFunction, int maxInFlight, int ttlDays, HostListener listener) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1: " + maxInFlight);
+    }
+    this.hostFunction = hostFunction;
+    this.maxInFlight = maxInFlight;
+    this.ttlDays = ttlDays;
+    this.listener = listener;
+  }
+
+  /** Convenience constructor that hosts directly through an ARCore {@link Session}. */
+  public static HostingPipeline forSession(
+      Session session, int maxInFlight, HostListener listener) {
+    return new HostingPipeline(session::hostCloudAnchorAsync, maxInFlight, listener);
+  }
+
+  /** Queues an anchor for hosting. Hosting starts immediately if a slot is free. */
+  public HostOperation enqueue(Anchor anchor) {
+    HostOperation operation = new HostOperation(anchor, System.nanoTime());
+    synchronized (this) {
+      if (firstEnqueueTimeNanos == 0) {
+        firstEnqueueTimeNanos = operation.enqueueTimeNanos;
+      }
+      queuedOperations.add(operation);
+    }
+    startQueuedOperations();
+    return operation;
+  }
+
+  /**
+   * Cancels a single operation, whether it is still queued or already hosting.
+   *
+   * @return true if the operation was cancelled, false if it had already finished.
+   */
+  public boolean cancel(HostOperation operation) {
+    Future future;
+    synchronized (this) {
+      if (operation.isDone()) {
+        return false;
+      }
+      queuedOperations.remove(operation);
+      inFlightOperations.remove(operation);
+      future = operation.future;
+      finishLocked(operation, State.CANCELLED, null, CloudAnchorState.NONE);
+    }
+    if (future != null) {
+      future.cancel();
+    }
+    startQueuedOperations();
+    return true;
+  }
+
+  /** Cancels every queued and in-flight operation. */
+  public void cancelAll() {
+    List<Future> futures = new ArrayList<>();
+    synchronized (this) {
+      for (HostOperation operation : inFlightOperations) {
+        if (operation.future != null) {
+          futures.add(operation.future);
+        }
+        finishLocked(operation, State.CANCELLED, null, CloudAnchorState.NONE);
+      }
+      for (HostOperation operation : queuedOperations) {
+        finishLocked(operation, State.CANCELLED, null, CloudAnchorState.NONE);
+      }
+      inFlightOperations.clear();
+      queuedOperations.clear();
+    }
+    for (Future future : futures) {
+      future.cancel();
+    }
+  }
+
+  /**
+   * Returns the next finished operation, or null if none is waiting. Never blocks, so it is safe to
+   * call from the GL thread every frame.
+   */
+  public HostOperation pollCompleted() {
+    return completedOperations.poll();
+  }
+
+  public synchronized int getQueuedCount() {
+    return queuedOperations.size();
+  }
+
+  public synchronized int getInFlightCount() {
+    return inFlightOperations.size();
+  }
+
+  /** Returns a one-line summary of throughput and latency since the first enqueue. */
+  public synchronized String getStats() {
+    int finished = succeededCount + failedCount;
+    double elapsedSeconds =
+        finished == 0 ? 0 : (lastCompletionTimeNanos - firstEnqueueTimeNanos) / 1e9;
+    return String.format(
+        Locale.US,
+        "hosted=%d failed=%d cancelled=%d queued=%d inFlight=%d throughput=%.2f/s"
+            + " meanHostLatency=%.0fms",
+        succeededCount,
+        failedCount,
+        cancelledCount,
+        queuedOperations.size(),
+        inFlightOperations.size(),
+        elapsedSeconds > 0 ? finished / elapsedSeconds : 0.0,
+        finished > 0 ? totalHostLatencyNanos / 1e6 / finished : 0.0);
+  }
+
+  private void startQueuedOperations() {
+    while (true) {
+      HostOperation operation;
+      synchronized (this) {
+        if (inFlightOperations.size() >= maxInFlight || queuedOperations.isEmpty()) {
+          return;
+        }
+        operation = queuedOperations.poll();
+        inFlightOperations.add(operation);
+        operation.state = State.HOSTING;
+        operation.startTimeNanos = System.nanoTime();
+      }
+      // Start the host call outside of the lock; the callback may arrive on another thread.
+      Future future;
+      try {
+        future =
+            hostFunction.hostCloudAnchorAsync(
+                operation.anchor,
+                ttlDays,
+                (cloudAnchorId, cloudState) ->
+                    onHostComplete(operation, cloudAnchorId, cloudState));
+      } catch (RuntimeException e) {
+        // Finished here rather than through onHostComplete(), which would start the next
+        // operation recursively.
+        if (finishInFlight(operation, null, CloudAnchorState.ERROR_INTERNAL) && listener != null) {
+          listener.onHostComplete(operation);
+        }
+        continue;
+      }
+      boolean cancelledWhileStarting;
+      synchronized (this) {
+        operation.future = future;
+        cancelledWhileStarting = operation.state == State.CANCELLED;
+      }
+      if (cancelledWhileStarting && future != null) {
+        future.cancel();
+      }
+    }
+  }
+
+  private void onHostComplete(
+      HostOperation operation, String cloudAnchorId, CloudAnchorState cloudState) {
+    if (!finishInFlight(operation, cloudAnchorId, cloudState)) {
+      return;
+    }
+    if (listener != null) {
+      listener.onHostComplete(operation);
+    }
+    startQueuedOperations();
+  }
+
+  /** Finishes an in-flight operation, returning false if it was already cancelled. */
+  private synchronized boolean finishInFlight(
+      HostOperation operation, String cloudAnchorId, CloudAnchorState cloudState) {
+    if (!inFlightOperations.remove(operation)) {
+      return false;
+    }
+    State state = cloudState == CloudAnchorState.SUCCESS ? State.SUCCESS : State.FAILED;
+    finishLocked(operation, state, cloudAnchorId, cloudState);
+    return true;
+  }
+
+  private void finishLocked(
+      HostOperation operation, State state, String cloudAnchorId, CloudAnchorState cloudState) {
+    long now = System.nanoTime();
+    synchronized (operation) {
+      operation.cloudAnchorId = cloudAnchorId;
+      operation.cloudAnchorState = cloudState;
+    }
+    operation.endTimeNanos = now;
+    operation.state = state;
+    switch (state) {
+      case SUCCESS:
+        succeededCount++;
+        totalHostLatencyNanos += operation.getHostLatencyNanos();
+        lastCompletionTimeNanos = now;
+        break;
+      case FAILED:
+        failedCount++;
+        totalHostLatencyNanos += operation.getHostLatencyNanos();
+        lastCompletionTimeNanos = now;
+        break;
+      case CANCELLED:
+        cancelledCount++;
+        break;
+      default:
+        break;
+    }
+    completedOperations.add(operation);
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link ShortCodeStore} that keeps short codes in memory. Listeners are called synchronously.
+ * Like {@link FirebaseManager}, unknown short codes resolve to null.
+ */
+public class InMemoryShortCodeStore implements ShortCodeStore {
+  private static final int INITIAL_SHORT_CODE = 142;
+
+  private final Map<Integer, String> cloudAnchorIds = new HashMap<>();
+  private int nextShortCode = INITIAL_SHORT_CODE;
+
+  @Override
+  public void nextShortCode(FirebaseManager.ShortCodeListener listener) {
+    int shortCode;
+    synchronized (this) {
+      shortCode = nextShortCode++;
+    }
+    listener.onShortCodeAvailable(shortCode);
+  }
+
+  @Override
+  public synchronized void storeUsingShortCode(int shortCode, String cloudAnchorId) {
+    cloudAnchorIds.put(shortCode, cloudAnchorId);
+  }
+
+  @Override
+  public void getCloudAnchorId(int shortCode, FirebaseManager.CloudAnchorIdListener listener) {
+    String cloudAnchorId;
+    synchronized (this) {
+      cloudAnchorId = cloudAnchorIds.get(shortCode);
+    }
+    listener.onCloudAnchorIdAvailable(cloudAnchorId);
+  }
+}
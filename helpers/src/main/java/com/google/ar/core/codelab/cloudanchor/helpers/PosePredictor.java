@@ -0,0 +1,362 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import java.util.Locale;
+
+/**
+ * Extrapolates the camera view matrix to a time shortly after the latest camera frame.
+ *
+ * <p>Recent camera poses are kept in a ring buffer of primitive arrays, as the camera position and
+ * rotation quaternion in world space. The linear and angular velocities are the differences
+ * between the newest pose and the oldest one within a window, which smooths out tracking jitter,
+ * and the newest pose is moved along them for the requested lead time.
+ *
+ * <p>Prediction degrades to the newest pose instead of guessing: the history is dropped when
+ * tracking is lost ({@link #reset()}), on gaps between frames and on jumps faster than a person
+ * can move the phone, e.g. when ARCore relocalizes. The lead time ramps up over the first frames
+ * of a new history and is capped.
+ *
+ * <p>Not thread safe. Does not allocate after construction. Has no Android or ARCore dependencies,
+ * so it can be run against recorded traces by {@code PosePredictionReplay}, a tool kept with the
+ * JVM tests.
+ */
+public class PosePredictor {
+  // Frames of history before the full lead time is used.
+  private static final int WARMUP_SAMPLES = 4;
+  private static final int FLOATS_PER_SAMPLE = 7;
+
+  private final int capacity;
+  private final long velocityWindowNanos;
+  private final long maxPredictionNanos;
+  private final long maxGapNanos;
+  private final float maxLinearSpeed;
+  private final float maxAngularSpeed;
+
+  // Ring buffer of camera poses in world space: position x, y, z then quaternion x, y, z, w.
+  private final long[] timestamps;
+  private final float[] samples;
+  private int newest = -1;
+  private int count;
+
+  private final float[] predicted = new float[FLOATS_PER_SAMPLE];
+
+  private long predictions;
+  private long unpredicted;
+  private long resets;
+  private long jumps;
+
+  /**
+   * @param capacity number of poses kept. Must cover {@code velocityWindowNanos} at the camera
+   *     frame rate.
+   * @param velocityWindowNanos time span over which velocities are measured. Longer windows smooth
+   *     out jitter but react later to changes in motion.
+   * @param maxPredictionNanos the longest lead time that is extrapolated.
+   * @param maxGapNanos the longest time between two frames before the history is dropped.
+   * @param maxLinearSpeed speed in m/s above which a pose is treated as a jump.
+   * @param maxAngularSpeed rotation speed in radians per second above which a pose is treated as a
+   *     jump.
+   */
+  public PosePredictor(
+      int capacity,
+      long velocityWindowNanos,
+      long maxPredictionNanos,
+      long maxGapNanos,
+      float maxLinearSpeed,
+      float maxAngularSpeed) {
+    if (capacity < 2) {
+      throw new IllegalArgumentException("capacity must be at least 2: " + capacity);
+    }
+    this.capacity = capacity;
+    this.velocityWindowNanos = velocityWindowNanos;
+    this.maxPredictionNanos = maxPredictionNanos;
+    this.maxGapNanos = maxGapNanos;
+    this.maxLinearSpeed = maxLinearSpeed;
+    this.maxAngularSpeed = maxAngularSpeed;
+    timestamps = new long[capacity];
+    samples = new float[capacity * FLOATS_PER_SAMPLE];
+  }
+
+  /** Drops the history, e.g. when tracking is lost. */
+  public void reset() {
+    if (count > 0) {
+      resets++;
+    }
+    newest = -1;
+    count = 0;
+  }
+
+  /**
+   * Adds the view matrix of a tracked camera frame.
+   *
+   * @param timestampNanos the camera frame timestamp.
+   * @param viewMatrix the camera view matrix, column-major.
+   */
+  public void addViewMatrix(long timestampNanos, float[] viewMatrix) {
+    if (count > 0) {
+      long gap = timestampNanos - timestamps[newest];
+      if (gap <= 0) {
+        // The same camera frame drawn again.
+        return;
+      }
+      if (gap > maxGapNanos) {
+        reset();
+      }
+    }
+    newest = (newest + 1) % capacity;
+    timestamps[newest] = timestampNanos;
+    viewToPose(viewMatrix, samples, newest * FLOATS_PER_SAMPLE);
+    count = Math.min(count + 1, capacity);
+
+    if (count > 1) {
+      int previous = (newest + capacity - 1) % capacity;
+      float seconds = (timestampNanos - timestamps[previous]) / 1e9f;
+      int a = previous * FLOATS_PER_SAMPLE;
+      int b = newest * FLOATS_PER_SAMPLE;
+      if (distance(samples, a, b) > maxLinearSpeed * seconds
+          || angle(samples, a + 3, samples, b + 3) > maxAngularSpeed * seconds) {
+        // Keep only the new pose: whatever happened in between is not motion to extrapolate.
+        jumps++;
+        System.arraycopy(samples, b, samples, 0, FLOATS_PER_SAMPLE);
+        timestamps[0] = timestampNanos;
+        newest = 0;
+        count = 1;
+      }
+    }
+  }
+
+  /**
+   * Writes the view matrix extrapolated to {@code targetNanos} into {@code out}. Falls back to the
+   * newest view matrix when there is not enough history. Returns false if nothing was added since
+   * the last reset, in which case {@code out} is unchanged.
+   */
+  public boolean predictViewMatrix(long targetNanos, float[] out) {
+    if (count == 0) {
+      return false;
+    }
+    int b = newest * FLOATS_PER_SAMPLE;
+    int oldest = findWindowStart();
+    if (oldest == newest) {
+      unpredicted++;
+      poseToView(samples, b, out);
+      return true;
+    }
+    long lead = Math.max(0, Math.min(targetNanos - timestamps[newest], maxPredictionNanos));
+    lead = lead * Math.min(count - 1, WARMUP_SAMPLES) / WARMUP_SAMPLES;
+    float t = (float) lead / (timestamps[newest] - timestamps[oldest]);
+    int a = oldest * FLOATS_PER_SAMPLE;
+
+    for (int i = 0; i < 3; i++) {
+      predicted[i] = samples[b + i] + (samples[b + i] - samples[a + i]) * t;
+    }
+    // The rotation from the oldest to the newest pose, scaled by t and applied again.
+    float dx;
+    float dy;
+    float dz;
+    float dw;
+    {
+      // d = q_b * conjugate(q_a)
+      float ax = -samples[a + 3];
+      float ay = -samples[a + 4];
+      float az = -samples[a + 5];
+      float aw = samples[a + 6];
+      float bx = samples[b + 3];
+      float by = samples[b + 4];
+      float bz = samples[b + 5];
+      float bw = samples[b + 6];
+      dx = bw * ax + bx * aw + by * az - bz * ay;
+      dy = bw * ay - bx * az + by * aw + bz * ax;
+      dz = bw * az + bx * ay - by * ax + bz * aw;
+      dw = bw * aw - bx * ax - by * ay - bz * az;
+    }
+    if (dw < 0) {
+      // The shorter way around.
+      dx = -dx;
+      dy = -dy;
+      dz = -dz;
+      dw = -dw;
+    }
+    float sinHalf = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    float halfAngle = (float) Math.atan2(sinHalf, dw) * t;
+    float ex = 0;
+    float ey = 0;
+    float ez = 0;
+    float ew = 1;
+    if (sinHalf > 1e-9f) {
+      float scale = (float) Math.sin(halfAngle) / sinHalf;
+      ex = dx * scale;
+      ey = dy * scale;
+      ez = dz * scale;
+      ew = (float) Math.cos(halfAngle);
+    }
+    multiplyQuaternions(ex, ey, ez, ew, samples, b + 3, predicted, 3);
+    predictions++;
+    poseToView(predicted, 0, out);
+    return true;
+  }
+
+  /** Returns a one-line summary of the predictions since construction. */
+  public String getStats() {
+    return String.format(
+        Locale.US,
+        "predicted=%d unpredicted=%d resets=%d jumps=%d history=%d",
+        predictions, unpredicted, resets, jumps, count);
+  }
+
+  /** The oldest sample within the velocity window of the newest one. */
+  private int findWindowStart() {
+    int oldest = newest;
+    for (int i = 1; i < count; i++) {
+      int candidate = (newest + capacity - i) % capacity;
+      if (timestamps[newest] - timestamps[candidate] > velocityWindowNanos) {
+        break;
+      }
+      oldest = candidate;
+    }
+    if (oldest == newest && count > 1) {
+      // Frames further apart than the window: use the previous one.
+      oldest = (newest + capacity - 1) % capacity;
+    }
+    return oldest;
+  }
+
+  /**
+   * Converts a view matrix [R t] to the camera pose in world space: the rotation R^T as a
+   * quaternion and the position -R^T t.
+   */
+  static void viewToPose(float[] view, float[] out, int offset) {
+    float tx = view[12];
+    float ty = view[13];
+    float tz = view[14];
+    out[offset] = -(view[0] * tx + view[1] * ty + view[2] * tz);
+    out[offset + 1] = -(view[4] * tx + view[5] * ty + view[6] * tz);
+    out[offset + 2] = -(view[8] * tx + view[9] * ty + view[10] * tz);
+    // Element (row, column) of R^T is view[row * 4 + column].
+    float m00 = view[0];
+    float m01 = view[1];
+    float m02 = view[2];
+    float m10 = view[4];
+    float m11 = view[5];
+    float m12 = view[6];
+    float m20 = view[8];
+    float m21 = view[9];
+    float m22 = view[10];
+    float trace = m00 + m11 + m22;
+    float x;
+    float y;
+    float z;
+    float w;
+    if (trace > 0) {
+      float s = (float) Math.sqrt(trace + 1) * 2;
+      w = s / 4;
+      x = (m21 - m12) / s;
+      y = (m02 - m20) / s;
+      z = (m10 - m01) / s;
+    } else if (m00 > m11 && m00 > m22) {
+      float s = (float) Math.sqrt(1 + m00 - m11 - m22) * 2;
+      w = (m21 - m12) / s;
+      x = s / 4;
+      y = (m01 + m10) / s;
+      z = (m02 + m20) / s;
+    } else if (m11 > m22) {
+      float s = (float) Math.sqrt(1 + m11 - m00 - m22) * 2;
+      w = (m02 - m20) / s;
+      x = (m01 + m10) / s;
+      y = s / 4;
+      z = (m12 + m21) / s;
+    } else {
+      float s = (float) Math.sqrt(1 + m22 - m00 - m11) * 2;
+      w = (m10 - m01) / s;
+      x = (m02 + m20) / s;
+      y = (m12 + m21) / s;
+      z = s / 4;
+    }
+    float length = (float) Math.sqrt(x * x + y * y + z * z + w * w);
+    out[offset + 3] = x / length;
+    out[offset + 4] = y / length;
+    out[offset + 5] = z / length;
+    out[offset + 6] = w / length;
+  }
+
+  /** The inverse of {@link #viewToPose}. */
+  static void poseToView(float[] pose, int offset, float[] view) {
+    float x = pose[offset + 3];
+    float y = pose[offset + 4];
+    float z = pose[offset + 5];
+    float w = pose[offset + 6];
+    // Rows of the camera rotation become the columns of the view rotation.
+    float r00 = 1 - 2 * (y * y + z * z);
+    float r01 = 2 * (x * y - z * w);
+    float r02 = 2 * (x * z + y * w);
+    float r10 = 2 * (x * y + z * w);
+    float r11 = 1 - 2 * (x * x + z * z);
+    float r12 = 2 * (y * z - x * w);
+    float r20 = 2 * (x * z - y * w);
+    float r21 = 2 * (y * z + x * w);
+    float r22 = 1 - 2 * (x * x + y * y);
+    view[0] = r00;
+    view[1] = r01;
+    view[2] = r02;
+    view[3] = 0;
+    view[4] = r10;
+    view[5] = r11;
+    view[6] = r12;
+    view[7] = 0;
+    view[8] = r20;
+    view[9] = r21;
+    view[10] = r22;
+    view[11] = 0;
+    float px = pose[offset];
+    float py = pose[offset + 1];
+    float pz = pose[offset + 2];
+    view[12] = -(r00 * px + r10 * py + r20 * pz);
+    view[13] = -(r01 * px + r11 * py + r21 * pz);
+    view[14] = -(r02 * px + r12 * py + r22 * pz);
+    view[15] = 1;
+  }
+
+  /** Angle in radians between two rotation quaternions. */
+  static float angle(float[] a, int aOffset, float[] b, int bOffset) {
+    float dot =
+        Math.abs(
+            a[aOffset] * b[bOffset]
+                + a[aOffset + 1] * b[bOffset + 1]
+                + a[aOffset + 2] * b[bOffset + 2]
+                + a[aOffset + 3] * b[bOffset + 3]);
+    return 2 * (float) Math.acos(Math.min(1, dot));
+  }
+
+  private static float distance(float[] samples, int a, int b) {
+    float dx = samples[b] - samples[a];
+    float dy = samples[b + 1] - samples[a + 1];
+    float dz = samples[b + 2] - samples[a + 2];
+    return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+  }
+
+  /** Writes the product of (x, y, z, w) and the quaternion at {@code q[qOffset]} to {@code out}. */
+  private static void multiplyQuaternions(
+      float x, float y, float z, float w, float[] q, int qOffset, float[] out, int outOffset) {
+    float qx = q[qOffset];
+    float qy = q[qOffset + 1];
+    float qz = q[qOffset + 2];
+    float qw = q[qOffset + 3];
+    out[outOffset] = w * qx + x * qw + y * qz - z * qy;
+    out[outOffset + 1] = w * qy - x * qz + y * qw + z * qx;
+    out[outOffset + 2] = w * qz + x * qy - y * qx + z * qw;
+    out[outOffset + 3] = w * qw - x * qx - y * qy - z * qz;
+  }
+}
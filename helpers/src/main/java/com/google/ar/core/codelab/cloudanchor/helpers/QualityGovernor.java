@@ -0,0 +1,236 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import java.util.Locale;
+
+/**
+ * Lowers rendering quality in stages when frames take too long or the device heats up, and raises
+ * it again once there is headroom.
+ *
+ * <p>Frame times are averaged over windows of a fixed number of frames. A window over the budget
+ * steps quality down by one {@link Level}. Quality only steps back up after several consecutive
+ * windows well under the budget, so that a level that is barely fast enough does not flip back
+ * and forth. The thermal status sets a floor: while the device is hot, quality is lowered at once
+ * and never raised above what the status allows.
+ *
+ * <p>{@link #onFrame} is called on the GL thread and does not allocate. {@link
+ * #setThermalStatus} and the getters can be called from any thread. This class has no Android
+ * dependencies; thermal statuses use the values of {@code PowerManager.THERMAL_STATUS_*}.
+ */
+public final class QualityGovernor {
+  /** Quality levels, from best to cheapest. Each level includes the savings of the ones above. */
+  public enum Level {
+    FULL,
+    NO_POINT_CLOUD,
+    REDUCED_PLANES,
+    REDUCED_RESOLUTION
+  }
+
+  /** Why the level last changed. */
+  public enum Reason {
+    NONE,
+    FRAME_TIME,
+    THERMAL,
+    RECOVERED
+  }
+
+  // Same values as PowerManager.THERMAL_STATUS_*.
+  public static final int THERMAL_STATUS_NONE = 0;
+  public static final int THERMAL_STATUS_MODERATE = 2;
+  public static final int THERMAL_STATUS_SEVERE = 3;
+  public static final int THERMAL_STATUS_CRITICAL = 4;
+
+  private static final Level[] LEVELS = Level.values();
+  private static final long NOT_STARTED = -1;
+
+  private final long frameBudgetNanos;
+  private final int windowFrames;
+  private final long stepUpNanos;
+  private final int stepUpWindows;
+
+  private volatile int thermalStatus = THERMAL_STATUS_NONE;
+  private volatile Level level = Level.FULL;
+  private volatile long lastFrameNanos;
+
+  // GL thread only.
+  private long windowSumNanos;
+  private int windowCount;
+  private int goodWindows;
+
+  // Guarded by this. Only written when the level changes, so the GL thread rarely locks.
+  private final long[] nanosAtLevel = new long[LEVELS.length];
+  private long levelStartNanos = NOT_STARTED;
+  private Reason lastReason = Reason.NONE;
+  private int stepDowns;
+  private int thermalStepDowns;
+  private int stepUps;
+
+  /**
+   * @param frameBudgetNanos the average frame time above which quality is lowered.
+   * @param windowFrames number of frames averaged for each decision.
+   * @param stepUpRatio quality is raised when the average is below this fraction of the budget.
+   * @param stepUpWindows number of consecutive windows below the step-up threshold needed to
+   *     raise quality by one level.
+   */
+  public QualityGovernor(
+      long frameBudgetNanos, int windowFrames, float stepUpRatio, int stepUpWindows) {
+    if (windowFrames < 1 || stepUpWindows < 1 || stepUpRatio <= 0 || stepUpRatio >= 1) {
+      throw new IllegalArgumentException("Invalid governor parameters");
+    }
+    this.frameBudgetNanos = frameBudgetNanos;
+    this.windowFrames = windowFrames;
+    this.stepUpNanos = (long) (frameBudgetNanos * stepUpRatio);
+    this.stepUpWindows = stepUpWindows;
+  }
+
+  /**
+   * Records the time spent on one frame and updates the level.
+   *
+   * @param frameNanos the time the frame took, excluding time spent waiting for the camera.
+   * @param nowNanos a monotonic timestamp, used to measure the time spent at each level.
+   */
+  public void onFrame(long frameNanos, long nowNanos) {
+    if (levelStartNanos == NOT_STARTED) {
+      synchronized (this) {
+        levelStartNanos = nowNanos;
+      }
+    }
+    lastFrameNanos = nowNanos;
+
+    Level floor = thermalFloor(thermalStatus);
+    if (level.ordinal() < floor.ordinal()) {
+      changeLevel(floor, Reason.THERMAL, nowNanos);
+      return;
+    }
+
+    windowSumNanos += frameNanos;
+    windowCount++;
+    if (windowCount < windowFrames) {
+      return;
+    }
+    long averageNanos = windowSumNanos / windowCount;
+    resetWindow();
+
+    if (averageNanos > frameBudgetNanos) {
+      goodWindows = 0;
+      if (level.ordinal() < LEVELS.length - 1) {
+        changeLevel(LEVELS[level.ordinal() + 1], Reason.FRAME_TIME, nowNanos);
+      }
+    } else if (averageNanos < stepUpNanos && level.ordinal() > floor.ordinal()) {
+      if (++goodWindows >= stepUpWindows) {
+        changeLevel(LEVELS[level.ordinal() - 1], Reason.RECOVERED, nowNanos);
+      }
+    } else {
+      goodWindows = 0;
+    }
+  }
+
+  /** Sets the current thermal status, one of {@code PowerManager.THERMAL_STATUS_*}. */
+  public void setThermalStatus(int status) {
+    thermalStatus = status;
+  }
+
+  public int getThermalStatus() {
+    return thermalStatus;
+  }
+
+  /** The current level. */
+  public Level getLevel() {
+    return level;
+  }
+
+  /** Whether the current level is at least as cheap as {@code other}. */
+  public boolean isAtLeast(Level other) {
+    return level.ordinal() >= other.ordinal();
+  }
+
+  /** Time spent at {@code level}, up to the last recorded frame. */
+  public synchronized long getNanosAtLevel(Level level) {
+    long nanos = nanosAtLevel[level.ordinal()];
+    if (level == this.level && levelStartNanos != NOT_STARTED) {
+      nanos += lastFrameNanos - levelStartNanos;
+    }
+    return nanos;
+  }
+
+  public synchronized Reason getLastReason() {
+    return lastReason;
+  }
+
+  /** Number of times quality was lowered, including for thermal reasons. */
+  public synchronized int getStepDowns() {
+    return stepDowns;
+  }
+
+  /** Number of times quality was lowered because of the thermal status. */
+  public synchronized int getThermalStepDowns() {
+    return thermalStepDowns;
+  }
+
+  public synchronized int getStepUps() {
+    return stepUps;
+  }
+
+  /** Returns the current level, the decisions taken so far and the time spent at each level. */
+  public synchronized String getStats() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(
+        Locale.US, "level=%s reason=%s thermal=%d stepDowns=%d (thermal=%d) stepUps=%d",
+        level, lastReason, thermalStatus, stepDowns, thermalStepDowns, stepUps));
+    for (Level l : LEVELS) {
+      sb.append(String.format(Locale.US, " %s=%.1fs", l, getNanosAtLevel(l) / 1e9));
+    }
+    return sb.toString();
+  }
+
+  private void changeLevel(Level newLevel, Reason reason, long nowNanos) {
+    synchronized (this) {
+      nanosAtLevel[level.ordinal()] += nowNanos - levelStartNanos;
+      levelStartNanos = nowNanos;
+      lastReason = reason;
+      if (newLevel.ordinal() > level.ordinal()) {
+        stepDowns++;
+        if (reason == Reason.THERMAL) {
+          thermalStepDowns++;
+        }
+      } else {
+        stepUps++;
+      }
+      level = newLevel;
+    }
+    // Measure the new level from scratch.
+    resetWindow();
+    goodWindows = 0;
+  }
+
+  private void resetWindow() {
+    windowSumNanos = 0;
+    windowCount = 0;
+  }
+
+  private static Level thermalFloor(int thermalStatus) {
+    if (thermalStatus >= THERMAL_STATUS_CRITICAL) {
+      return Level.REDUCED_RESOLUTION;
+    } else if (thermalStatus >= THERMAL_STATUS_SEVERE) {
+      return Level.REDUCED_PLANES;
+    } else if (thermalStatus >= THERMAL_STATUS_MODERATE) {
+      return Level.NO_POINT_CLOUD;
+    }
+    return Level.FULL;
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import android.opengl.GLSurfaceView;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+import com.google.ar.core.Config;
+import com.google.ar.core.TrackingState;
+import java.util.Locale;
+
+/**
+ * Decides when the {@link GLSurfaceView} should draw a frame.
+ *
+ * <p>In {@link Mode#CONTINUOUS} mode the view redraws as fast as {@code Session.update()} allows,
+ * which is the default behavior of the codelab. In {@link Mode#ON_DEMAND} mode the session runs
+ * with {@link Config.UpdateMode#LATEST_CAMERA_IMAGE} and the view only redraws when a new camera
+ * image is expected or the scene changed, and drops to a low-rate heartbeat while tracking is lost.
+ *
+ * <p>Both modes record frames rendered per second and process CPU time per minute so that they
+ * can be compared on the same device.
+ */
+public final class RenderScheduler implements Choreographer.FrameCallback {
+  private static final String TAG = RenderScheduler.class.getSimpleName();
+
+  /** How the surface view is driven. */
+  public enum Mode {
+    CONTINUOUS,
+    ON_DEMAND
+  }
+
+  // Redraw rate while tracking is lost, so that the camera preview keeps moving.
+  private static final long HEARTBEAT_INTERVAL_NANOS = 250_000_000L;
+  // Assumed camera frame interval until enough camera timestamps have been seen.
+  private static final long DEFAULT_CAMERA_FRAME_INTERVAL_NANOS = 33_333_333L;
+  // Request a redraw slightly early so that the next camera image is picked up on time.
+  private static final long SCHEDULING_SLACK_NANOS = 4_000_000L;
+  private static final long STATS_LOG_INTERVAL_MS = 10_000L;
+
+  private final GLSurfaceView surfaceView;
+  private final Mode mode;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final Runnable logStatsRunnable = this::logStats;
+
+  // Written by the GL thread and any thread that changes the scene, read on the main thread.
+  private volatile boolean sceneDirty = true;
+  private volatile boolean tracking;
+  private volatile long cameraFrameIntervalNanos = DEFAULT_CAMERA_FRAME_INTERVAL_NANOS;
+
+  // Main thread only.
+  private long lastRequestNanos;
+  private boolean running;
+
+  // Written on the GL thread only.
+  private long lastCameraTimestamp;
+  private volatile long framesRendered;
+  private volatile long redundantFrames;
+
+  // Statistics window, reset on resume.
+  private long statsStartRealtimeMs;
+  private long statsStartCpuMs;
+
+  public RenderScheduler(GLSurfaceView surfaceView, Mode mode) {
+    this.surfaceView = surfaceView;
+    this.mode = mode;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  /** The session update mode to configure for the selected render mode. */
+  public Config.UpdateMode getUpdateMode() {
+    return mode == Mode.ON_DEMAND
+        ? Config.UpdateMode.LATEST_CAMERA_IMAGE
+        : Config.UpdateMode.BLOCKING;
+  }
+
+  /**
+   * Applies the render mode to the surface view and starts scheduling. Should be called from
+   * {@code onResume()} after {@link GLSurfaceView#onResume()}.
+   */
+  public void onResume() {
+    surfaceView.setRenderMode(
+        mode == Mode.ON_DEMAND
+            ? GLSurfaceView.RENDERMODE_WHEN_DIRTY
+            : GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+    running = true;
+    sceneDirty = true;
+    resetStats();
+    if (mode == Mode.ON_DEMAND) {
+      Choreographer.getInstance().postFrameCallback(this);
+    }
+    mainHandler.postDelayed(logStatsRunnable, STATS_LOG_INTERVAL_MS);
+  }
+
+  /** Stops scheduling. Should be called from {@code onPause()}. */
+  public void onPause() {
+    running = false;
+    Choreographer.getInstance().removeFrameCallback(this);
+    mainHandler.removeCallbacks(logStatsRunnable);
+    logStats();
+  }
+
+  /** Marks the scene as changed so that the next vsync redraws it. Safe to call from any thread. */
+  public void requestRedraw() {
+    sceneDirty = true;
+  }
+
+  /**
+   * Records a drawn frame. Must be called on the GL thread right after {@code Session.update()}
+   * in every {@code onDrawFrame}.
+   *
+   * @param cameraTimestamp the timestamp of the frame returned by {@code Session.update()}.
+   * @param trackingState the camera tracking state of that frame.
+   */
+  public void onFrameRendered(long cameraTimestamp, TrackingState trackingState) {
+    framesRendered++;
+    tracking = trackingState == TrackingState.TRACKING;
+    if (cameraTimestamp == lastCameraTimestamp) {
+      // Nothing new from the camera; this frame only redrew what was already on screen.
+      redundantFrames++;
+      return;
+    }
+    if (lastCameraTimestamp != 0) {
+      long delta = cameraTimestamp - lastCameraTimestamp;
+      if (delta > 0 && delta < HEARTBEAT_INTERVAL_NANOS) {
+        // Exponential moving average to smooth out camera jitter.
+        cameraFrameIntervalNanos = (cameraFrameIntervalNanos * 7 + delta) / 8;
+      }
+    }
+    lastCameraTimestamp = cameraTimestamp;
+  }
+
+  @Override
+  public void doFrame(long frameTimeNanos) {
+    if (!running) {
+      return;
+    }
+    long interval = tracking ? cameraFrameIntervalNanos : HEARTBEAT_INTERVAL_NANOS;
+    if (sceneDirty || frameTimeNanos - lastRequestNanos >= interval - SCHEDULING_SLACK_NANOS) {
+      sceneDirty = false;
+      lastRequestNanos = frameTimeNanos;
+      surfaceView.requestRender();
+    }
+    if (tracking) {
+      Choreographer.getInstance().postFrameCallback(this);
+    } else {
+      // Avoid waking up on every vsync while only the heartbeat is running.
+      Choreographer.getInstance()
+          .postFrameCallbackDelayed(this, HEARTBEAT_INTERVAL_NANOS / 2_000_000L);
+    }
+  }
+
+  /** Returns frames per second, redundant frames and CPU time per minute since the last resume. */
+  public String getStats() {
+    long elapsedMs = Math.max(1, SystemClock.elapsedRealtime() - statsStartRealtimeMs);
+    long cpuMs = Process.getElapsedCpuTime() - statsStartCpuMs;
+    return String.format(
+        Locale.US,
+        "mode=%s fps=%.1f redundantFrames=%d cpu=%.0fms/min",
+        mode,
+        framesRendered * 1000.0 / elapsedMs,
+        redundantFrames,
+        cpuMs * 60_000.0 / elapsedMs);
+  }
+
+  private void resetStats() {
+    statsStartRealtimeMs = SystemClock.elapsedRealtime();
+    statsStartCpuMs = Process.getElapsedCpuTime();
+    surfaceView.queueEvent(() -> {
+      framesRendered = 0;
+      redundantFrames = 0;
+    });
+  }
+
+  private void logStats() {
+    Log.i(TAG, getStats());
+    if (running) {
+      mainHandler.postDelayed(logStatsRunnable, STATS_LOG_INTERVAL_MS);
+    }
+  }
+}
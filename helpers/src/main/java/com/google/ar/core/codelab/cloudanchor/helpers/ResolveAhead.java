@@ -0,0 +1,235 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Anchor.CloudAnchorState;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the short codes the user is likely to ask for before they ask, so that their content
+ * appears as soon as it is requested.
+ *
+ * <p>The guessed short codes are resolved in the background by a {@link BatchResolver} of their
+ * own, so that they never hold up the resolves the user asked for. Resolved anchors are kept out
+ * of the scene until {@link #claim} hands them over. A short code that is claimed while it is
+ * still resolving is handed over when the resolve finishes. Anchors that are never claimed are
+ * detached by {@link #release()}, since ARCore keeps tracking every attached anchor. Until then,
+ * {@link #getHeldAnchorCount()} tells how many anchors are held, e.g. to count them against an
+ * {@link AnchorBudget}.
+ */
+public class ResolveAhead {
+
+  /** Receives the anchors of claimed short codes. Called on the caller's or callback thread. */
+  public interface Listener {
+    void onAnchorResolved(int shortCode, String cloudAnchorId, Anchor anchor);
+
+    /**
+     * Called when a claimed short code could not be resolved ahead. {@code cloudState} is null if
+     * the short code did not map to a Cloud Anchor ID.
+     */
+    void onResolveFailed(int shortCode, CloudAnchorState cloudState);
+  }
+
+  private static final class Entry {
+    String cloudAnchorId;
+    Anchor anchor;
+    boolean finished;
+    Listener claimant;
+  }
+
+  private final BatchResolver resolver;
+  private final Map<Integer, Entry> entries = new HashMap<>();
+  private BatchResolver.Batch batch;
+  private boolean started;
+  private int requested;
+  private int resolved;
+  private int claimedReady;
+  private int claimedInFlight;
+  private int released;
+  // Written under the lock, read without it by the thread that updates the scene.
+  private volatile int heldAnchorCount;
+
+  /** @param resolver resolves the guessed short codes; its concurrency caps the work done ahead. */
+  public ResolveAhead(BatchResolver resolver) {
+    this.resolver = resolver;
+  }
+
+  /**
+   * Starts resolving {@code shortCodes}, best guess first. Only the first call has an effect, so
+   * that the same guesses are not resolved again after {@link #release()}.
+   */
+  public void start(List<Integer> shortCodes) {
+    synchronized (this) {
+      if (started || shortCodes.isEmpty()) {
+        return;
+      }
+      started = true;
+      for (Integer shortCode : shortCodes) {
+        entries.put(shortCode, new Entry());
+      }
+      requested = entries.size();
+    }
+    // The list is in priority order, so resolve in the order of the indices.
+    List<Integer> order = new ArrayList<>(shortCodes);
+    BatchResolver.Batch newBatch =
+        resolver.resolve(
+            shortCodes,
+            (a, b) -> Integer.compare(order.indexOf(a), order.indexOf(b)),
+            new BatchResolver.BatchListener() {
+              @Override
+              public void onAnchorResolved(int shortCode, String cloudAnchorId, Anchor anchor) {
+                onFinished(shortCode, cloudAnchorId, anchor, null);
+              }
+
+              @Override
+              public void onResolveFailed(int shortCode, CloudAnchorState cloudState) {
+                onFinished(shortCode, null, null, cloudState);
+              }
+
+              @Override
+              public void onBatchComplete(BatchResolver.BatchReport report) {}
+            });
+    synchronized (this) {
+      batch = newBatch;
+    }
+  }
+
+  /**
+   * Takes over the short codes that are resolved or resolving ahead. {@code listener} receives the
+   * anchors that are ready right away, and the others when they finish.
+   *
+   * @return the short codes that were not resolved ahead and must be resolved as usual.
+   */
+  public List<Integer> claim(List<Integer> shortCodes, Listener listener) {
+    List<Integer> remaining = new ArrayList<>();
+    List<Integer> ready = new ArrayList<>();
+    List<Entry> readyEntries = new ArrayList<>();
+    synchronized (this) {
+      for (Integer shortCode : shortCodes) {
+        Entry entry = entries.get(shortCode);
+        if (entry == null || entry.claimant != null) {
+          remaining.add(shortCode);
+        } else if (entry.finished) {
+          entries.remove(shortCode);
+          if (entry.anchor != null) {
+            ready.add(shortCode);
+            readyEntries.add(entry);
+            claimedReady++;
+            heldAnchorCount--;
+          } else {
+            // Failed ahead; the failure may have been transient, so try again.
+            remaining.add(shortCode);
+          }
+        } else {
+          entry.claimant = listener;
+          claimedInFlight++;
+        }
+      }
+    }
+    for (int i = 0; i < ready.size(); i++) {
+      Entry entry = readyEntries.get(i);
+      listener.onAnchorResolved(ready.get(i), entry.cloudAnchorId, entry.anchor);
+    }
+    return remaining;
+  }
+
+  /**
+   * Detaches the resolved anchors that were not claimed, and stops resolving the short codes that
+   * were not claimed. Short codes claimed while resolving are still handed over.
+   */
+  public void release() {
+    List<Anchor> unclaimed = new ArrayList<>();
+    BatchResolver.Batch toCancel;
+    synchronized (this) {
+      for (Entry entry : entries.values()) {
+        if (entry.anchor != null) {
+          unclaimed.add(entry.anchor);
+        }
+      }
+      released += unclaimed.size();
+      heldAnchorCount -= unclaimed.size();
+      entries.values().removeIf(entry -> entry.claimant == null);
+      // Cancelling the batch would also cancel the claimed resolves. If there are any, the
+      // unclaimed ones are left to finish instead, and detached by onFinished().
+      toCancel = entries.isEmpty() ? batch : null;
+      batch = null;
+    }
+    if (toCancel != null) {
+      toCancel.cancel();
+    }
+    for (Anchor anchor : unclaimed) {
+      anchor.detach();
+    }
+  }
+
+  private void onFinished(
+      int shortCode, String cloudAnchorId, Anchor anchor, CloudAnchorState failedState) {
+    Listener claimant;
+    synchronized (this) {
+      Entry entry = entries.get(shortCode);
+      if (entry == null) {
+        // Released while resolving.
+        claimant = null;
+        if (anchor != null) {
+          released++;
+        }
+      } else {
+        if (anchor != null) {
+          resolved++;
+        }
+        claimant = entry.claimant;
+        if (claimant == null) {
+          entry.cloudAnchorId = cloudAnchorId;
+          entry.anchor = anchor;
+          entry.finished = true;
+          if (anchor != null) {
+            heldAnchorCount++;
+          }
+          return;
+        }
+        entries.remove(shortCode);
+      }
+    }
+    if (claimant == null) {
+      if (anchor != null) {
+        anchor.detach();
+      }
+    } else if (anchor != null) {
+      claimant.onAnchorResolved(shortCode, cloudAnchorId, anchor);
+    } else {
+      claimant.onResolveFailed(shortCode, failedState);
+    }
+  }
+
+  /** Number of resolved anchors that are attached and not claimed yet. Does not lock. */
+  public int getHeldAnchorCount() {
+    return heldAnchorCount;
+  }
+
+  /** A one-line summary of what was resolved ahead and how much of it was used. */
+  public synchronized String getStats() {
+    return "requested=" + requested
+        + " resolved=" + resolved
+        + " claimedReady=" + claimedReady
+        + " claimedInFlight=" + claimedInFlight
+        + " released=" + released;
+  }
+}
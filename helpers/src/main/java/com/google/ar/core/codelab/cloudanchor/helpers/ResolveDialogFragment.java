@@ -27,12 +27,16 @@ import android.text.InputType;
 import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.LinearLayout.LayoutParams;
+import java.util.ArrayList;
+import java.util.List;
 
 /** A DialogFragment for the Resolve Dialog Box. */
 public class ResolveDialogFragment extends DialogFragment {
 
   // The maximum number of characters that can be entered in the EditText.
   private static final int MAX_FIELD_LENGTH = 6;
+  // The maximum number of characters when several short codes can be entered.
+  private static final int MAX_BATCH_FIELD_LENGTH = 64;
 
   /** Functional interface for getting the value entered in this DialogFragment. */
   public interface OkListener {
@@ -44,14 +48,32 @@ public class ResolveDialogFragment extends DialogFragment {
     void onOkPressed(int dialogValue);
   }
 
+  /** Functional interface for getting several short codes entered in this DialogFragment. */
+  public interface BatchOkListener {
+    /**
+     * This method is called by the dialog box when its OK button is pressed.
+     *
+     * @param shortCodes the short codes from the dialog box, in the order they were entered
+     */
+    void onOkPressed(List<Integer> shortCodes);
+  }
+
   public static ResolveDialogFragment createWithOkListener(OkListener listener) {
     ResolveDialogFragment frag = new ResolveDialogFragment();
     frag.okListener = listener;
     return frag;
   }
 
+  /** Creates a dialog that accepts a list of short codes separated by commas or spaces. */
+  public static ResolveDialogFragment createWithBatchOkListener(BatchOkListener listener) {
+    ResolveDialogFragment frag = new ResolveDialogFragment();
+    frag.batchOkListener = listener;
+    return frag;
+  }
+
   private EditText shortCodeField;
   private OkListener okListener;
+  private BatchOkListener batchOkListener;
 
   @Override
   public Dialog onCreateDialog(Bundle savedInstanceState) {
@@ -68,12 +90,21 @@ public class ResolveDialogFragment extends DialogFragment {
     Context context = getContext();
     LinearLayout layout = new LinearLayout(context);
     shortCodeField = new EditText(context);
-    // Only allow numeric input.
-    shortCodeField.setInputType(InputType.TYPE_CLASS_NUMBER);
     shortCodeField.setLayoutParams(
         new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT));
-    // Set a max length for the input text to avoid overflows when parsing.
-    shortCodeField.setFilters(new InputFilter[] {new InputFilter.LengthFilter(MAX_FIELD_LENGTH)});
+    if (batchOkListener != null) {
+      // Allow separators between the short codes.
+      shortCodeField.setInputType(InputType.TYPE_CLASS_TEXT);
+      shortCodeField.setHint("e.g. 142, 143, 150");
+      shortCodeField.setFilters(
+          new InputFilter[] {new InputFilter.LengthFilter(MAX_BATCH_FIELD_LENGTH)});
+    } else {
+      // Only allow numeric input.
+      shortCodeField.setInputType(InputType.TYPE_CLASS_NUMBER);
+      // Set a max length for the input text to avoid overflows when parsing.
+      shortCodeField.setFilters(
+          new InputFilter[] {new InputFilter.LengthFilter(MAX_FIELD_LENGTH)});
+    }
     layout.addView(shortCodeField);
     layout.setLayoutParams(new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT));
     return layout;
@@ -81,9 +112,29 @@ public class ResolveDialogFragment extends DialogFragment {
 
   private void onResolvePressed() {
     Editable roomCodeText = shortCodeField.getText();
-    if (okListener != null && roomCodeText != null && roomCodeText.length() > 0) {
+    if (roomCodeText == null || roomCodeText.length() == 0) {
+      return;
+    }
+    if (okListener != null) {
       int longVal = Integer.parseInt(roomCodeText.toString());
       okListener.onOkPressed(longVal);
     }
+    if (batchOkListener != null) {
+      List<Integer> shortCodes = parseShortCodes(roomCodeText.toString());
+      if (!shortCodes.isEmpty()) {
+        batchOkListener.onOkPressed(shortCodes);
+      }
+    }
+  }
+
+  private static List<Integer> parseShortCodes(String text) {
+    List<Integer> shortCodes = new ArrayList<>();
+    for (String token : text.split("[^0-9]+")) {
+      // Skip empty tokens and values that would overflow when parsing.
+      if (!token.isEmpty() && token.length() <= MAX_FIELD_LENGTH) {
+        shortCodes.add(Integer.parseInt(token));
+      }
+    }
+    return shortCodes;
   }
 }
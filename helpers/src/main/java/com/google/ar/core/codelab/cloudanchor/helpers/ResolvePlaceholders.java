@@ -0,0 +1,301 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import com.google.ar.core.Anchor.CloudAnchorState;
+import com.google.ar.core.Future;
+import com.google.ar.core.FutureState;
+import com.google.ar.core.Pose;
+import com.google.ar.core.codelab.cloudanchor.rendering.SceneGraph;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Shows a placeholder at the last known pose of a Cloud Anchor while it is being resolved, and
+ * moves the resolved content smoothly from there.
+ *
+ * <p>The pose of every hosted or resolved anchor in view is remembered by Cloud Anchor ID. Poses
+ * are in the world frame of the session, so they only help for anchors seen earlier in the same
+ * session: anchors detached to stay within the anchor budget, and short codes resolved again after
+ * the scene was cleared. When a resolve of a remembered anchor starts, a placeholder node is added
+ * to the scene at its pose. When the resolved anchor is added, the placeholder is removed and the
+ * anchor's node is drawn at a pose blended from the placeholder pose to the resolved one over
+ * {@code blendNanos}, or snapped to the resolved pose if the two are more than {@code
+ * snapDistance} apart. A placeholder is removed if its resolve fails or is cancelled, or after
+ * {@code timeoutNanos} if no anchor adopted it.
+ *
+ * <p>Everything but the resolve function returned by {@link #wrapResolve} runs on the thread that
+ * updates the scene; resolve starts, failures and cancellations are handed over through a
+ * non-blocking queue that {@link #update} drains.
+ */
+public class ResolvePlaceholders {
+
+  private static final class Event {
+    final String cloudAnchorId;
+    final boolean started;
+
+    Event(String cloudAnchorId, boolean started) {
+      this.cloudAnchorId = cloudAnchorId;
+      this.started = started;
+    }
+  }
+
+  private static final class Placeholder {
+    final int node;
+    final Pose pose;
+    final long shownNanos;
+
+    Placeholder(int node, Pose pose, long shownNanos) {
+      this.node = node;
+      this.pose = pose;
+      this.shownNanos = shownNanos;
+    }
+  }
+
+  /** A resolved anchor's node moving from its placeholder pose. */
+  private static final class Blend {
+    final Pose from;
+    // Set on the first frame the anchor is drawn, 0 before.
+    long startNanos;
+
+    Blend(Pose from) {
+      this.from = from;
+    }
+  }
+
+  private final int renderableId;
+  private final long blendNanos;
+  private final float snapDistance;
+  private final long timeoutNanos;
+  private final Map<String, Pose> lastKnownPoses;
+  private final Map<String, Placeholder> placeholders = new HashMap<>();
+  private final Map<Integer, Blend> blends = new HashMap<>();
+  private final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<>();
+  private final float[] matrix = new float[16];
+
+  private int shownCount;
+  private int adoptedCount;
+  private int snappedCount;
+  private int droppedCount;
+
+  /**
+   * @param renderableId renderable of the placeholder nodes.
+   * @param maxPoses number of Cloud Anchor poses to remember, least recently seen dropped first.
+   * @param blendNanos time to move the resolved content from the placeholder pose.
+   * @param snapDistance distance in meters beyond which the content snaps instead of blending.
+   * @param timeoutNanos time after which a placeholder that was not adopted is removed.
+   */
+  public ResolvePlaceholders(
+      int renderableId, int maxPoses, long blendNanos, float snapDistance, long timeoutNanos) {
+    this.renderableId = renderableId;
+    this.blendNanos = blendNanos;
+    this.snapDistance = snapDistance;
+    this.timeoutNanos = timeoutNanos;
+    lastKnownPoses =
+        new LinkedHashMap<String, Pose>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Pose> eldest) {
+            return size() > maxPoses;
+          }
+        };
+  }
+
+  /**
+   * Returns a resolve function that reports the resolves of {@code resolveFunction} to this
+   * object. Wrap the outermost function, e.g. around the retries, so that a placeholder lasts
+   * until the last attempt. The returned function can be called on any thread.
+   */
+  public BatchResolver.ResolveFunction wrapResolve(BatchResolver.ResolveFunction resolveFunction) {
+    return (cloudAnchorId, callback) -> {
+      events.add(new Event(cloudAnchorId, true));
+      Future future =
+          resolveFunction.resolveCloudAnchorAsync(
+              cloudAnchorId,
+              (anchor, cloudState) -> {
+                if (cloudState != CloudAnchorState.SUCCESS) {
+                  events.add(new Event(cloudAnchorId, false));
+                }
+                callback.accept(anchor, cloudState);
+              });
+      return future == null ? null : new CancelReportingFuture(future, cloudAnchorId);
+    };
+  }
+
+  /** Records the pose of a hosted or resolved anchor that is being tracked. */
+  public void remember(String cloudAnchorId, Pose pose) {
+    lastKnownPoses.put(cloudAnchorId, pose);
+  }
+
+  /**
+   * Returns the last known pose of a hosted or resolved anchor, or null if it was not seen in this
+   * session or was forgotten since.
+   */
+  public Pose getLastKnownPose(String cloudAnchorId) {
+    return lastKnownPoses.get(cloudAnchorId);
+  }
+
+  /** Adds and removes placeholders for the resolves that started or failed since the last call. */
+  public void update(SceneGraph scene, long nowNanos) {
+    Event event;
+    while ((event = events.poll()) != null) {
+      if (!event.started) {
+        removePlaceholder(scene, event.cloudAnchorId);
+        continue;
+      }
+      Pose pose = lastKnownPoses.get(event.cloudAnchorId);
+      if (pose == null || placeholders.containsKey(event.cloudAnchorId)) {
+        continue;
+      }
+      int node = scene.createNode(SceneGraph.NO_NODE, renderableId);
+      pose.toMatrix(matrix, 0);
+      scene.setLocalTransform(node, matrix, 0);
+      placeholders.put(event.cloudAnchorId, new Placeholder(node, pose, nowNanos));
+      shownCount++;
+    }
+    if (placeholders.isEmpty()) {
+      return;
+    }
+    Iterator<Placeholder> iterator = placeholders.values().iterator();
+    while (iterator.hasNext()) {
+      Placeholder placeholder = iterator.next();
+      if (nowNanos - placeholder.shownNanos > timeoutNanos) {
+        scene.removeNode(placeholder.node);
+        iterator.remove();
+        droppedCount++;
+      }
+    }
+  }
+
+  /**
+   * Replaces the placeholder of {@code cloudAnchorId}, if one is shown, with {@code node}, the node
+   * of the resolved anchor. The node then moves from the placeholder pose, see {@link
+   * #getDisplayMatrix}.
+   */
+  public void adopt(SceneGraph scene, String cloudAnchorId, int node) {
+    Placeholder placeholder = placeholders.remove(cloudAnchorId);
+    if (placeholder == null) {
+      return;
+    }
+    scene.removeNode(placeholder.node);
+    blends.put(node, new Blend(placeholder.pose));
+    adoptedCount++;
+  }
+
+  /**
+   * Writes the matrix at which the node of an anchor with the given pose should be drawn: the pose
+   * itself, or a blend from the placeholder pose while the node is moving from it.
+   */
+  public void getDisplayMatrix(int node, Pose pose, long nowNanos, float[] out) {
+    Blend blend = blends.isEmpty() ? null : blends.get(node);
+    if (blend == null) {
+      pose.toMatrix(out, 0);
+      return;
+    }
+    if (blend.startNanos == 0) {
+      float dx = pose.tx() - blend.from.tx();
+      float dy = pose.ty() - blend.from.ty();
+      float dz = pose.tz() - blend.from.tz();
+      if (dx * dx + dy * dy + dz * dz > snapDistance * snapDistance) {
+        // The content would visibly fly across the room; the placeholder was just wrong.
+        blends.remove(node);
+        snappedCount++;
+        pose.toMatrix(out, 0);
+        return;
+      }
+      blend.startNanos = nowNanos;
+    }
+    float t = (float) (nowNanos - blend.startNanos) / blendNanos;
+    if (t >= 1f) {
+      blends.remove(node);
+      pose.toMatrix(out, 0);
+      return;
+    }
+    // Ease in and out, so that the content neither jumps into motion nor stops abruptly.
+    float eased = t * t * (3 - 2 * t);
+    Pose.makeInterpolated(blend.from, pose, eased).toMatrix(out, 0);
+  }
+
+  /** Stops blending {@code node}, e.g. because its anchor was removed. */
+  public void forget(int node) {
+    blends.remove(node);
+  }
+
+  /** Removes every placeholder and blend. The remembered poses are kept. */
+  public void clear(SceneGraph scene) {
+    for (Placeholder placeholder : placeholders.values()) {
+      if (scene.isAlive(placeholder.node)) {
+        scene.removeNode(placeholder.node);
+      }
+    }
+    placeholders.clear();
+    blends.clear();
+  }
+
+  /** Number of placeholders shown at the moment. */
+  public int getPlaceholderCount() {
+    return placeholders.size();
+  }
+
+  /** Returns a one-line summary of the placeholders shown so far and what became of them. */
+  public String getStats() {
+    return "poses=" + lastKnownPoses.size()
+        + " showing=" + placeholders.size()
+        + " shown=" + shownCount
+        + " adopted=" + adoptedCount
+        + " snapped=" + snappedCount
+        + " dropped=" + droppedCount;
+  }
+
+  private void removePlaceholder(SceneGraph scene, String cloudAnchorId) {
+    Placeholder placeholder = placeholders.remove(cloudAnchorId);
+    if (placeholder != null) {
+      scene.removeNode(placeholder.node);
+      droppedCount++;
+    }
+  }
+
+  /**
+   * A cancelled resolve never calls back, so its cancellation is reported here instead, or the
+   * placeholder would stay until it times out.
+   */
+  private final class CancelReportingFuture implements Future {
+    private final Future future;
+    private final String cloudAnchorId;
+
+    CancelReportingFuture(Future future, String cloudAnchorId) {
+      this.future = future;
+      this.cloudAnchorId = cloudAnchorId;
+    }
+
+    @Override
+    public boolean cancel() {
+      if (!future.cancel()) {
+        return false;
+      }
+      events.add(new Event(cloudAnchorId, false));
+      return true;
+    }
+
+    @Override
+    public FutureState getState() {
+      return future.getState();
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import androidx.annotation.Nullable;
+import com.google.ar.core.Session;
+import com.google.ar.core.TrackingState;
+import com.google.ar.core.exceptions.CameraNotAvailableException;
+import java.util.Locale;
+
+/**
+ * Owns the AR session of a fragment that is retained across configuration changes, like a {@code
+ * ViewModel}, and measures the time to tracking each time the fragment's view is created.
+ *
+ * <p>A rotation, a multi-window resize or a theme change recreates the activity and the view, but
+ * not the retained owner, so the session is neither created nor configured again, and the anchors
+ * and the host and resolve operations in flight survive. When told that the activity is changing
+ * configurations, {@link #pause(boolean)} also keeps the session running: the camera stays open
+ * and ARCore keeps tracking while the new view is created, instead of relocalizing after a resume.
+ * {@link #close()} closes the session once the owner is destroyed for good.
+ *
+ * <p>The time to tracking is from {@link #markViewCreated} to the first tracking frame recorded
+ * after it, and is kept separately for the first view and for recreated ones. The session methods
+ * run on the main thread, {@link #recordFrame} on the GL thread.
+ */
+public class RetainedSession {
+  private static final long UNSET = -1;
+
+  private final boolean keepRunningOnConfigurationChange;
+  // Main thread only.
+  @Nullable private Session session;
+  private boolean resumed;
+
+  // Guarded by this.
+  private long viewCreatedNanos = UNSET;
+  private boolean viewRecreated;
+  private long lastNanos = UNSET;
+  private int firstViews;
+  private long firstViewNanos;
+  private int recreatedViews;
+  private long recreatedViewNanos;
+  private long maxRecreatedViewNanos;
+  // Checked every frame without locking while no view is waiting for tracking.
+  private volatile boolean waitingForTracking;
+
+  /**
+   * @param keepRunningOnConfigurationChange whether to keep the session running across a
+   *     configuration change. False pauses it like any other pause, to compare the time to
+   *     tracking.
+   */
+  public RetainedSession(boolean keepRunningOnConfigurationChange) {
+    this.keepRunningOnConfigurationChange = keepRunningOnConfigurationChange;
+  }
+
+  /** Takes ownership of a new, paused session, closing the previous one if any. */
+  public void setSession(Session session) {
+    close();
+    this.session = session;
+  }
+
+  /**
+   * Resumes the session. Returns false if it was still running, i.e. kept running across a
+   * configuration change.
+   */
+  public boolean resume() throws CameraNotAvailableException {
+    if (resumed) {
+      return false;
+    }
+    session.resume();
+    resumed = true;
+    return true;
+  }
+
+  /**
+   * Pauses the session, unless the activity is only changing configurations and the session is
+   * kept running. Returns whether the session was paused.
+   */
+  public boolean pause(boolean changingConfigurations) {
+    if (!resumed || (changingConfigurations && keepRunningOnConfigurationChange)) {
+      return false;
+    }
+    session.pause();
+    resumed = false;
+    return true;
+  }
+
+  /** Pauses and closes the session, if any. */
+  public void close() {
+    if (session == null) {
+      return;
+    }
+    if (resumed) {
+      session.pause();
+      resumed = false;
+    }
+    session.close();
+    session = null;
+  }
+
+  /**
+   * Starts measuring the time to tracking for a new view.
+   *
+   * @param recreated whether the view replaces one destroyed by a configuration change.
+   */
+  public synchronized void markViewCreated(boolean recreated) {
+    viewCreatedNanos = System.nanoTime();
+    viewRecreated = recreated;
+    waitingForTracking = true;
+  }
+
+  /**
+   * Records the tracking state of a frame. Returns true for the first tracking frame after a view
+   * was created, so the caller can report {@link #getStats()} once per view. Does not allocate.
+   */
+  public boolean recordFrame(TrackingState trackingState, long nowNanos) {
+    if (!waitingForTracking || trackingState != TrackingState.TRACKING) {
+      return false;
+    }
+    synchronized (this) {
+      if (!waitingForTracking) {
+        return false;
+      }
+      waitingForTracking = false;
+      lastNanos = nowNanos - viewCreatedNanos;
+      if (viewRecreated) {
+        recreatedViews++;
+        recreatedViewNanos += lastNanos;
+        maxRecreatedViewNanos = Math.max(maxRecreatedViewNanos, lastNanos);
+      } else {
+        firstViews++;
+        firstViewNanos += lastNanos;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Returns a one-line summary of the last time to tracking, and of the mean for first views and
+   * the mean and maximum for recreated ones.
+   */
+  public synchronized String getStats() {
+    return String.format(
+        Locale.US,
+        "keepRunning=%b last=%.0fms first=%d/%.0fms recreated=%d/%.0fms/max %.0fms",
+        keepRunningOnConfigurationChange,
+        lastNanos == UNSET ? 0 : lastNanos / 1e6,
+        firstViews,
+        firstViewNanos / 1e6 / Math.max(1, firstViews),
+        recreatedViews,
+        recreatedViewNanos / 1e6 / Math.max(1, recreatedViews),
+        maxRecreatedViewNanos / 1e6);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable view of the anchors in the scene, published through a {@link SceneStateHandoff} by
+ * the thread that updates the scene, i.e. the simulation thread, for the other threads such as the
+ * UI.
+ */
+public final class SceneSnapshot {
+  /** The snapshot of a scene without anchors. */
+  public static final SceneSnapshot EMPTY =
+      new SceneSnapshot(0, 0, 0, Collections.<String>emptyList());
+
+  private final int version;
+  private final int anchorCount;
+  private final int pendingHostCount;
+  private final List<String> cloudAnchorIds;
+
+  private SceneSnapshot(
+      int version, int anchorCount, int pendingHostCount, List<String> cloudAnchorIds) {
+    this.version = version;
+    this.anchorCount = anchorCount;
+    this.pendingHostCount = pendingHostCount;
+    this.cloudAnchorIds = cloudAnchorIds;
+  }
+
+  /**
+   * Creates a snapshot, copying {@code cloudAnchorIds}.
+   *
+   * @param version incremented by the thread that updates the scene on every change to it.
+   */
+  public static SceneSnapshot create(
+      int version, int anchorCount, int pendingHostCount, Collection<String> cloudAnchorIds) {
+    return new SceneSnapshot(
+        version,
+        anchorCount,
+        pendingHostCount,
+        Collections.unmodifiableList(new ArrayList<>(cloudAnchorIds)));
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  /** Number of anchors in the scene. */
+  public int getAnchorCount() {
+    return anchorCount;
+  }
+
+  /** Number of placed anchors waiting for their surroundings to be mapped before hosting. */
+  public int getPendingHostCount() {
+    return pendingHostCount;
+  }
+
+  /** Cloud Anchor IDs of the hosted and resolved anchors in the scene. */
+  public List<String> getCloudAnchorIds() {
+    return cloudAnchorIds;
+  }
+
+  @Override
+  public String toString() {
+    return "version=" + version
+        + " anchors=" + anchorCount
+        + " pendingHosts=" + pendingHostCount
+        + " cloudAnchors=" + cloudAnchorIds.size();
+  }
+}
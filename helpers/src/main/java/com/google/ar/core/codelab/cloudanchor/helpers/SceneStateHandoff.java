@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands scene mutations from any thread to the scene thread, and an immutable snapshot of the
+ * scene back, without locks.
+ *
+ * <p>The scene belongs to one thread at a time, the scene thread: the thread simulating the frame
+ * on a {@link SimulationStage}, or the GL thread when frames are not simulated separately. Button
+ * handlers and host and resolve callbacks {@link #post} commands to a non-blocking multi-producer
+ * queue, which the scene thread runs at one point of each frame with {@link #drain()}. Neither side
+ * ever waits for the other, unlike {@code GLSurfaceView.queueEvent}, which shares a monitor with
+ * the GL thread's render loop. After changing the scene, the scene thread {@link #publish}es an
+ * immutable snapshot, which any thread can read with {@link #getSnapshot()}.
+ *
+ * @param <S> the snapshot type. Must be immutable.
+ */
+public class SceneStateHandoff<S> {
+  private final ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pendingCount = new AtomicInteger();
+  private final AtomicReference<S> snapshot;
+
+  /** @param initialSnapshot returned by {@link #getSnapshot()} until the first publish. */
+  public SceneStateHandoff(S initialSnapshot) {
+    snapshot = new AtomicReference<>(initialSnapshot);
+  }
+
+  /** Queues a command to run on the scene thread during the next {@link #drain()}. Any thread. */
+  public void post(Runnable command) {
+    // Counted first, so that the count never drops below zero while draining.
+    pendingCount.incrementAndGet();
+    commands.add(command);
+  }
+
+  /**
+   * Runs the commands posted so far, in order. Commands posted while draining, including by the
+   * commands themselves, run during the next drain, so that a busy producer cannot stall a frame.
+   * Returns the number of commands run. Scene thread only.
+   */
+  public int drain() {
+    int limit = pendingCount.get();
+    int count = 0;
+    Runnable command;
+    while (count < limit && (command = commands.poll()) != null) {
+      pendingCount.decrementAndGet();
+      count++;
+      command.run();
+    }
+    return count;
+  }
+
+  /** Number of commands waiting for the next {@link #drain()}. */
+  public int getPendingCount() {
+    return pendingCount.get();
+  }
+
+  /** Replaces the published snapshot. Scene thread only. */
+  public void publish(S newSnapshot) {
+    snapshot.set(newSnapshot);
+  }
+
+  /** The latest published snapshot. Any thread; never blocks. */
+  public S getSnapshot() {
+    return snapshot.get();
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.ar.core.Config;
+import com.google.ar.core.Config.LightEstimationMode;
+import com.google.ar.core.Config.PlaneFindingMode;
+import com.google.ar.core.Session;
+import com.google.ar.core.exceptions.UnsupportedConfigurationException;
+import java.util.Locale;
+
+/**
+ * Reconfigures the session as the app moves between phases, so that ARCore only runs the features
+ * the current phase needs.
+ *
+ * <p>Plane finding is only needed until the user has placed or resolved anchors, and light
+ * estimation only while there are anchors to draw. The Cloud Anchor mode and the update mode of
+ * the initial config are never changed, so hosting and resolving can start in any phase.
+ *
+ * <p>{@link #update} is called every frame with the phase the app is in, and batches the changes:
+ * {@code Session.configure()} is only called once a phase has lasted for a settle time, at most
+ * once per minimum interval, and only if the features actually differ. A phase that flips back
+ * and forth, e.g. while an anchor is handed from one pipeline to another, costs nothing.
+ *
+ * <p>Process CPU time is attributed to the phase whose config is in effect. {@link #getStats()}
+ * reports CPU per minute for each phase, and the savings compared to the phases that run every
+ * feature. Everything but {@link #onPause()}, {@link #onResume()} and {@link #getStats()} must be
+ * called on the GL thread.
+ */
+public class SessionConfigController {
+  private static final String TAG = SessionConfigController.class.getSimpleName();
+
+  /** What the user is doing, in the usual order of a session. */
+  public enum Phase {
+    // Looking for a surface to place an anchor on.
+    SCANNING(PlaneFindingMode.HORIZONTAL, LightEstimationMode.DISABLED),
+    // Planes were found, the user can tap to place an anchor.
+    PLACING(PlaneFindingMode.HORIZONTAL, LightEstimationMode.DISABLED),
+    // Anchors are waiting to be hosted. The user may keep placing anchors meanwhile.
+    HOSTING(PlaneFindingMode.HORIZONTAL, LightEstimationMode.AMBIENT_INTENSITY),
+    // Anchors are being resolved.
+    RESOLVING(PlaneFindingMode.DISABLED, LightEstimationMode.AMBIENT_INTENSITY),
+    // Every anchor is hosted or resolved and only needs to be drawn.
+    VIEWING(PlaneFindingMode.DISABLED, LightEstimationMode.AMBIENT_INTENSITY);
+
+    final PlaneFindingMode planeFindingMode;
+    final LightEstimationMode lightEstimationMode;
+
+    Phase(PlaneFindingMode planeFindingMode, LightEstimationMode lightEstimationMode) {
+      this.planeFindingMode = planeFindingMode;
+      this.lightEstimationMode = lightEstimationMode;
+    }
+  }
+
+  private static final Phase[] PHASES = Phase.values();
+
+  private final Session session;
+  private final Config config;
+  private final long settleNanos;
+  private final long minIntervalNanos;
+  private final boolean adaptive;
+
+  // GL thread only.
+  private Phase requestedPhase = Phase.SCANNING;
+  private long requestedSinceNanos;
+  private long lastConfigureNanos;
+  // Written on the GL thread only.
+  private volatile Phase appliedPhase = Phase.SCANNING;
+
+  // Guarded by this. Only written when the applied phase changes, so the GL thread rarely locks.
+  private final long[] realtimeMsInPhase = new long[PHASES.length];
+  private final long[] cpuMsInPhase = new long[PHASES.length];
+  private Phase accountedPhase = Phase.SCANNING;
+  private long accountStartRealtimeMs;
+  private long accountStartCpuMs;
+  private boolean accounting;
+  private int phaseChanges;
+  private int configures;
+  private int failedConfigures;
+
+  /**
+   * Configures {@code session} for {@link Phase#SCANNING}, starting from {@code config}.
+   *
+   * @param config the initial config, e.g. with the Cloud Anchor mode set. It is kept and only its
+   *     plane finding and light estimation modes are changed afterwards.
+   * @param settleNanos how long a phase must last before the session is reconfigured for it.
+   * @param minIntervalNanos minimum time between two calls to {@code Session.configure()}.
+   * @param adaptive false to keep every feature enabled in all phases, so that the CPU use of each
+   *     phase can be compared with and without adapting the config.
+   */
+  public SessionConfigController(
+      Session session, Config config, long settleNanos, long minIntervalNanos, boolean adaptive) {
+    this.session = session;
+    this.config = config;
+    this.settleNanos = settleNanos;
+    this.minIntervalNanos = minIntervalNanos;
+    this.adaptive = adaptive;
+    setModes(Phase.SCANNING);
+    session.configure(config);
+  }
+
+  /**
+   * Records the phase of the current frame and reconfigures the session if that phase has settled.
+   * Call before {@code Session.update()}. Returns whether the session was reconfigured.
+   */
+  public boolean update(Phase phase, long nowNanos) {
+    if (phase != requestedPhase) {
+      requestedPhase = phase;
+      requestedSinceNanos = nowNanos;
+      synchronized (this) {
+        phaseChanges++;
+      }
+    }
+    if (phase == appliedPhase
+        || nowNanos - requestedSinceNanos < settleNanos
+        || (lastConfigureNanos != 0 && nowNanos - lastConfigureNanos < minIntervalNanos)) {
+      return false;
+    }
+    Phase previousPhase = appliedPhase;
+    appliedPhase = phase;
+    if (planeFindingMode(phase) == planeFindingMode(previousPhase)
+        && lightEstimationMode(phase) == lightEstimationMode(previousPhase)) {
+      // Same features, the session already runs the right config.
+      switchAccounting(phase);
+      return false;
+    }
+    setModes(phase);
+    lastConfigureNanos = nowNanos;
+    try {
+      session.configure(config);
+    } catch (UnsupportedConfigurationException e) {
+      Log.w(TAG, "Failed to configure the session for " + phase, e);
+      // Keep the previous config and try again after the minimum interval.
+      appliedPhase = previousPhase;
+      setModes(previousPhase);
+      synchronized (this) {
+        failedConfigures++;
+      }
+      return false;
+    }
+    synchronized (this) {
+      configures++;
+    }
+    switchAccounting(phase);
+    return true;
+  }
+
+  /** The phase whose config is in effect. */
+  public Phase getAppliedPhase() {
+    return appliedPhase;
+  }
+
+  /** Starts attributing CPU time to the applied phase. Call when the session is resumed. */
+  public synchronized void onResume() {
+    accountStartRealtimeMs = SystemClock.elapsedRealtime();
+    accountStartCpuMs = Process.getElapsedCpuTime();
+    accounting = true;
+  }
+
+  /** Stops attributing CPU time while the session is paused. */
+  public synchronized void onPause() {
+    closeAccountingPeriod();
+    accounting = false;
+  }
+
+  /**
+   * Returns the number of phase changes and of configure calls, and for each phase the time spent
+   * in it, the process CPU time per minute and how much less that is than with every feature on.
+   */
+  public synchronized String getStats() {
+    closeAccountingPeriod();
+    long fullRealtimeMs = 0;
+    long fullCpuMs = 0;
+    for (Phase phase : PHASES) {
+      if (usesEveryFeature(phase)) {
+        fullRealtimeMs += realtimeMsInPhase[phase.ordinal()];
+        fullCpuMs += cpuMsInPhase[phase.ordinal()];
+      }
+    }
+    double fullCpuMsPerMinute = fullRealtimeMs == 0 ? 0 : fullCpuMs * 60_000.0 / fullRealtimeMs;
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(
+        Locale.US, "phase=%s phaseChanges=%d configures=%d failed=%d",
+        appliedPhase, phaseChanges, configures, failedConfigures));
+    for (Phase phase : PHASES) {
+      long realtimeMs = realtimeMsInPhase[phase.ordinal()];
+      if (realtimeMs == 0) {
+        continue;
+      }
+      double cpuMsPerMinute = cpuMsInPhase[phase.ordinal()] * 60_000.0 / realtimeMs;
+      sb.append(String.format(
+          Locale.US, " %s=%.1fs,%.0fcpuMs/min", phase, realtimeMs / 1e3, cpuMsPerMinute));
+      if (!usesEveryFeature(phase) && fullCpuMsPerMinute > 0) {
+        sb.append(String.format(
+            Locale.US, ",saved=%.0f%%", 100 * (1 - cpuMsPerMinute / fullCpuMsPerMinute)));
+      }
+    }
+    return sb.toString();
+  }
+
+  private void setModes(Phase phase) {
+    config.setPlaneFindingMode(planeFindingMode(phase));
+    config.setLightEstimationMode(lightEstimationMode(phase));
+  }
+
+  private PlaneFindingMode planeFindingMode(Phase phase) {
+    return adaptive ? phase.planeFindingMode : PlaneFindingMode.HORIZONTAL;
+  }
+
+  private LightEstimationMode lightEstimationMode(Phase phase) {
+    return adaptive ? phase.lightEstimationMode : LightEstimationMode.AMBIENT_INTENSITY;
+  }
+
+  private boolean usesEveryFeature(Phase phase) {
+    return planeFindingMode(phase) != PlaneFindingMode.DISABLED
+        && lightEstimationMode(phase) != LightEstimationMode.DISABLED;
+  }
+
+  private synchronized void switchAccounting(Phase phase) {
+    closeAccountingPeriod();
+    accountedPhase = phase;
+  }
+
+  /** Adds the time since the last call to the accounted phase. */
+  private void closeAccountingPeriod() {
+    if (!accounting) {
+      return;
+    }
+    long realtimeMs = SystemClock.elapsedRealtime();
+    long cpuMs = Process.getElapsedCpuTime();
+    realtimeMsInPhase[accountedPhase.ordinal()] += realtimeMs - accountStartRealtimeMs;
+    cpuMsInPhase[accountedPhase.ordinal()] += cpuMs - accountStartCpuMs;
+    accountStartRealtimeMs = realtimeMs;
+    accountStartCpuMs = cpuMs;
+  }
+}
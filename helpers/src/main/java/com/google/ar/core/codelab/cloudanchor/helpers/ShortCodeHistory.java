@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-device history of the short codes the user resolved, used to guess which ones will be
+ * requested next.
+ *
+ * <p>Each short code keeps a use count and the time of its last use. Short codes are ranked by
+ * their count, halved for every {@code halfLifeMillis} since the last use, so that a code used
+ * often last month ranks below one used a few times today. At most {@code maxEntries} codes are
+ * kept: recording a new one evicts the worst ranked of the others, so the latest code is always
+ * remembered.
+ */
+public class ShortCodeHistory {
+  private static final String SHARED_PREFS_NAME = "cloud_anchor_codelab_history";
+  private static final String KEY_PREFIX = "use;";
+
+  private static final class Entry {
+    int count;
+    long lastUsedMillis;
+
+    Entry(int count, long lastUsedMillis) {
+      this.count = count;
+      this.lastUsedMillis = lastUsedMillis;
+    }
+  }
+
+  private final SharedPreferences sharedPrefs;
+  private final int maxEntries;
+  private final long halfLifeMillis;
+  private final Map<Integer, Entry> entries = new HashMap<>();
+
+  /**
+   * Loads the history stored in the app's SharedPreferences.
+   *
+   * @param maxEntries number of short codes to remember.
+   * @param halfLifeMillis time after which a use counts half.
+   */
+  public static ShortCodeHistory load(Context context, int maxEntries, long halfLifeMillis) {
+    return new ShortCodeHistory(
+        context.getSharedPreferences(SHARED_PREFS_NAME, Context.MODE_PRIVATE),
+        maxEntries,
+        halfLifeMillis);
+  }
+
+  ShortCodeHistory(SharedPreferences sharedPrefs, int maxEntries, long halfLifeMillis) {
+    this.sharedPrefs = sharedPrefs;
+    this.maxEntries = maxEntries;
+    this.halfLifeMillis = halfLifeMillis;
+    for (Map.Entry<String, ?> stored : sharedPrefs.getAll().entrySet()) {
+      if (!stored.getKey().startsWith(KEY_PREFIX) || !(stored.getValue() instanceof String)) {
+        continue;
+      }
+      try {
+        int shortCode = Integer.parseInt(stored.getKey().substring(KEY_PREFIX.length()));
+        String[] fields = ((String) stored.getValue()).split(",");
+        entries.put(shortCode, new Entry(Integer.parseInt(fields[0]), Long.parseLong(fields[1])));
+      } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+        // Written by another version of the app; forget it.
+      }
+    }
+  }
+
+  /** Records that {@code shortCode} was resolved at {@code nowMillis}. */
+  public synchronized void recordUse(int shortCode, long nowMillis) {
+    SharedPreferences.Editor editor = sharedPrefs.edit();
+    Entry entry = entries.get(shortCode);
+    if (entry == null) {
+      // Make room among the other codes first: a new code has a single use and would otherwise
+      // often rank last and evict itself.
+      while (!entries.isEmpty() && entries.size() >= maxEntries) {
+        int worst = rank(entries.size(), nowMillis).get(entries.size() - 1);
+        entries.remove(worst);
+        editor.remove(KEY_PREFIX + worst);
+      }
+      entry = new Entry(0, nowMillis);
+      entries.put(shortCode, entry);
+    }
+    entry.count++;
+    entry.lastUsedMillis = nowMillis;
+    editor.putString(KEY_PREFIX + shortCode, entry.count + "," + entry.lastUsedMillis);
+    editor.apply();
+  }
+
+  /** The {@code count} best ranked short codes at {@code nowMillis}, best first. */
+  public synchronized List<Integer> getTopShortCodes(int count, long nowMillis) {
+    return rank(count, nowMillis);
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private List<Integer> rank(int count, long nowMillis) {
+    List<Integer> shortCodes = new ArrayList<>(entries.keySet());
+    Map<Integer, Double> scores = new HashMap<>();
+    for (Integer shortCode : shortCodes) {
+      Entry entry = entries.get(shortCode);
+      double halfLives = (double) Math.max(0, nowMillis - entry.lastUsedMillis) / halfLifeMillis;
+      scores.put(shortCode, entry.count * Math.pow(0.5, halfLives));
+    }
+    // Higher score first; the most recent short code, i.e. the higher one, on ties.
+    shortCodes.sort(
+        (a, b) -> {
+          int byScore = Double.compare(scores.get(b), scores.get(a));
+          return byScore != 0 ? byScore : Integer.compare(b, a);
+        });
+    return new ArrayList<>(shortCodes.subList(0, Math.min(count, shortCodes.size())));
+  }
+}
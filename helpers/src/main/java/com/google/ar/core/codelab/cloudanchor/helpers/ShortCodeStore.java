@@ -0,0 +1,36 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+/**
+ * Shares Cloud Anchor IDs under short codes. Implemented by {@link FirebaseManager}, and by {@link
+ * InMemoryShortCodeStore} for running without a network.
+ */
+public interface ShortCodeStore {
+
+  /** Gets a new short code that can be used to store the anchor ID. */
+  void nextShortCode(FirebaseManager.ShortCodeListener listener);
+
+  /** Stores the cloud anchor ID under a short code. */
+  void storeUsingShortCode(int shortCode, String cloudAnchorId);
+
+  /**
+   * Retrieves the cloud anchor ID stored under a short code. The listener receives null if the
+   * lookup failed.
+   */
+  void getCloudAnchorId(int shortCode, FirebaseManager.CloudAnchorIdListener listener);
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import android.util.Log;
+import com.google.ar.core.codelab.cloudanchor.rendering.RenderCommandList;
+import java.util.Locale;
+
+/**
+ * Runs the CPU work of a frame on a thread of its own, so that it overlaps with the GL thread's
+ * draw calls instead of preceding them.
+ *
+ * <p>Each frame, the GL thread calls {@link #submit()}, which starts a {@link Simulation} that
+ * records its draw commands into one of two {@link RenderCommandList}s and returns the other,
+ * recorded during the previous frame, for the GL thread to replay. Before touching any state the
+ * simulation uses, e.g. before the next {@code Session.update()}, the GL thread calls {@link
+ * #awaitIdle()}. Between the two calls the simulation owns that state; at every other time the GL
+ * thread does. Submitting and waiting hand the state over with a happens-before edge.
+ *
+ * <p>The replayed commands are a frame old. They only hold world transforms, and the GL thread
+ * draws them from the current camera, so this only delays changes to the scene by a frame.
+ *
+ * <p>When not threaded, {@link #submit()} runs the simulation inline and returns the commands it
+ * just recorded, which is the serial frame loop to compare against.
+ *
+ * <p>A simulation that throws a {@link RuntimeException} on the thread loses its frame: the error
+ * is logged and nothing is drawn for it. An {@link Error} ends the thread; the stage is then idle
+ * and {@link #submit()} fails until {@link #start()} is called again, so the GL thread never waits
+ * for a thread that is gone.
+ */
+public class SimulationStage {
+  private static final String TAG = SimulationStage.class.getSimpleName();
+
+  /** The simulation of one frame. */
+  public interface Simulation {
+    /**
+     * Updates the scene and records its draw commands into {@code commands}. Should not throw, see
+     * {@link SimulationStage} for what happens if it does.
+     */
+    void simulate(RenderCommandList commands);
+  }
+
+  private final Simulation simulation;
+  private final boolean threaded;
+  private final RenderCommandList[] commandLists = {
+    new RenderCommandList(), new RenderCommandList()
+  };
+
+  // Guarded by this.
+  private Thread thread;
+  private boolean busy;
+  private boolean stopping;
+
+  // Written by the simulating thread while busy, read by the GL thread while idle.
+  private int writeIndex;
+  private long frames;
+  private long simulateNanos;
+  // GL thread only.
+  private long waitNanos;
+
+  /** @param threaded whether to run the simulation on its own thread, or inline. */
+  public SimulationStage(Simulation simulation, boolean threaded) {
+    this.simulation = simulation;
+    this.threaded = threaded;
+  }
+
+  /** Starts the simulation thread, if threaded and not started yet. */
+  public synchronized void start() {
+    if (!threaded || thread != null) {
+      return;
+    }
+    stopping = false;
+    thread = new Thread(this::simulateLoop, TAG);
+    thread.start();
+  }
+
+  /** Waits for the current frame, if any, then stops the simulation thread. */
+  public void stop() {
+    Thread stopped;
+    synchronized (this) {
+      if (thread == null) {
+        return;
+      }
+      stopping = true;
+      notifyAll();
+      stopped = thread;
+      thread = null;
+    }
+    try {
+      stopped.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Starts simulating a frame and returns the commands to draw this frame. The stage must be idle,
+   * see {@link #awaitIdle()}. GL thread only.
+   */
+  public RenderCommandList submit() {
+    int readIndex = writeIndex;
+    if (!threaded) {
+      simulateFrame(commandLists[readIndex]);
+      return commandLists[readIndex];
+    }
+    synchronized (this) {
+      if (thread == null) {
+        throw new IllegalStateException("Simulation thread not running");
+      }
+      writeIndex = 1 - readIndex;
+      busy = true;
+      notifyAll();
+    }
+    return commandLists[readIndex];
+  }
+
+  /** Waits until the frame submitted last, if any, is simulated. GL thread only. */
+  public void awaitIdle() {
+    if (!threaded) {
+      return;
+    }
+    long start = System.nanoTime();
+    boolean interrupted = false;
+    synchronized (this) {
+      while (busy) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    waitNanos += System.nanoTime() - start;
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * A one-line summary of the mean time per frame spent simulating and, on the GL thread, waiting
+   * for the simulation. Only while idle.
+   */
+  public String getStats() {
+    long count = Math.max(1, frames);
+    return String.format(
+        Locale.US,
+        "threaded=%b frames=%d simulate=%.2fms wait=%.2fms",
+        threaded, frames, simulateNanos / 1e6 / count, waitNanos / 1e6 / count);
+  }
+
+  private void simulateLoop() {
+    while (true) {
+      synchronized (this) {
+        while (!busy && !stopping) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (!busy) {
+          return;
+        }
+      }
+      try {
+        simulateFrame(commandLists[writeIndex]);
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Simulation failed, dropping the frame", e);
+        commandLists[writeIndex].clear();
+      } catch (Error e) {
+        synchronized (this) {
+          if (thread == Thread.currentThread()) {
+            thread = null;
+          }
+        }
+        throw e;
+      } finally {
+        synchronized (this) {
+          busy = false;
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  private void simulateFrame(RenderCommandList commands) {
+    long start = System.nanoTime();
+    simulation.simulate(commands);
+    simulateNanos += System.nanoTime() - start;
+    frames++;
+  }
+}
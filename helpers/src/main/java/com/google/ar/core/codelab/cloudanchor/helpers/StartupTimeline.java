@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Records when each startup phase ran, relative to {@link #start()}, up to the first camera frame.
+ *
+ * <p>Phases run on different threads and may overlap. A phase that is begun several times, e.g.
+ * by parallel decoding tasks, spans from its earliest begin to its latest end. Once the first
+ * camera frame is marked, {@link #toString()} shows each phase as an interval, and names the phase
+ * that finished last as the one that gated the first frame.
+ */
+public final class StartupTimeline {
+  /** The phases of startup. */
+  public enum Phase {
+    SESSION_CREATE,
+    ASSET_DECODE,
+    SHADER_COMPILE,
+    SESSION_RESUME,
+    GPU_UPLOAD
+  }
+
+  private static final Phase[] PHASES = Phase.values();
+  private static final long UNSET = -1;
+
+  private final long[] beginNanos = new long[PHASES.length];
+  private final long[] endNanos = new long[PHASES.length];
+  private long startNanos = UNSET;
+  private long firstFrameNanos = UNSET;
+  // Checked every frame without locking until the first frame is marked.
+  private volatile boolean complete;
+
+  public StartupTimeline() {
+    Arrays.fill(beginNanos, UNSET);
+    Arrays.fill(endNanos, UNSET);
+  }
+
+  /** Starts a new timeline, forgetting the previous one. */
+  public synchronized void start() {
+    Arrays.fill(beginNanos, UNSET);
+    Arrays.fill(endNanos, UNSET);
+    startNanos = System.nanoTime();
+    firstFrameNanos = UNSET;
+    complete = false;
+  }
+
+  public synchronized void begin(Phase phase) {
+    long now = System.nanoTime();
+    int i = phase.ordinal();
+    if (beginNanos[i] == UNSET || now < beginNanos[i]) {
+      beginNanos[i] = now;
+    }
+  }
+
+  public synchronized void end(Phase phase) {
+    endNanos[phase.ordinal()] = Math.max(endNanos[phase.ordinal()], System.nanoTime());
+  }
+
+  /**
+   * Marks the first camera frame. Returns true the first time it is called after {@link
+   * #start()}, so the caller can report the timeline once.
+   */
+  public boolean markFirstCameraFrame() {
+    if (complete) {
+      return false;
+    }
+    synchronized (this) {
+      if (complete || startNanos == UNSET) {
+        return false;
+      }
+      firstFrameNanos = System.nanoTime();
+      complete = true;
+      return true;
+    }
+  }
+
+  /** Time from {@link #start()} to the first camera frame, or -1 if there was none yet. */
+  public synchronized long getTimeToFirstFrameNanos() {
+    return firstFrameNanos == UNSET ? UNSET : firstFrameNanos - startNanos;
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(
+        Locale.US, "time to first camera frame=%.0fms", getTimeToFirstFrameNanos() / 1e6));
+    Phase last = null;
+    for (Phase phase : PHASES) {
+      int i = phase.ordinal();
+      if (beginNanos[i] == UNSET || endNanos[i] == UNSET) {
+        sb.append(String.format(Locale.US, "\n  %s not run", phase));
+        continue;
+      }
+      sb.append(String.format(
+          Locale.US, "\n  %s %.0f-%.0fms (%.0fms)", phase,
+          (beginNanos[i] - startNanos) / 1e6, (endNanos[i] - startNanos) / 1e6,
+          (endNanos[i] - beginNanos[i]) / 1e6));
+      if (last == null || endNanos[i] > endNanos[last.ordinal()]) {
+        last = phase;
+      }
+    }
+    if (last != null) {
+      sb.append("\n  finished last: ").append(last);
+    }
+    return sb.toString();
+  }
+}
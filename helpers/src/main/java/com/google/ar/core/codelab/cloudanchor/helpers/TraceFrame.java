@@ -0,0 +1,393 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * One frame of a frame trace: what {@code onDrawFrame} consumed from ARCore, held in primitive
+ * arrays.
+ *
+ * <p>A single instance is reused for every frame by both {@link FrameTraceRecorder} and {@code
+ * FrameTraceReader}; arrays grow on demand and are never shrunk. Poses are stored as seven floats,
+ * the translation followed by the rotation quaternion (tx, ty, tz, qx, qy, qz, qw). Tracking states
+ * and plane types are stored as the small integer constants below rather than ARCore enums, so
+ * this class can be used on the JVM.
+ *
+ * <p>A trace file starts with {@link #MAGIC} and {@link #VERSION} as ints, followed by one
+ * record per frame. Each record is an int length prefix and the frame, laid out as follows,
+ * big-endian:
+ *
+ * <pre>
+ *   long timestamp, byte cameraTrackingState, float[16] viewMatrix, float[16] projectionMatrix,
+ *   long pointCloudTimestamp, int pointCount, float[pointCount * 4] points (X,Y,Z,confidence),
+ *   int planeCount, planeCount * {int id, byte type, byte trackingState, byte updated,
+ *       int subsumedById, float[7] centerPose, float extentX, float extentZ,
+ *       int polygonLength, float[] polygon},
+ *   int anchorCount, anchorCount * {byte trackingState, float[7] pose}
+ * </pre>
+ */
+public final class TraceFrame {
+  /** "ARFT", the first four bytes of a trace file. */
+  public static final int MAGIC = 0x41524654;
+  public static final int VERSION = 2;
+
+  public static final int TRACKING = 0;
+  public static final int PAUSED = 1;
+  public static final int STOPPED = 2;
+
+  public static final int HORIZONTAL_UPWARD_FACING = 0;
+  public static final int HORIZONTAL_DOWNWARD_FACING = 1;
+  public static final int VERTICAL = 2;
+
+  /** Value of {@link #getPlaneSubsumedBy} for planes that are not subsumed. */
+  public static final int NO_PLANE = -1;
+
+  public static final int FLOATS_PER_POSE = 7;
+  public static final int FLOATS_PER_POINT = 4;
+
+  private long timestamp;
+  private int cameraTrackingState;
+  private final float[] viewMatrix = new float[16];
+  private final float[] projectionMatrix = new float[16];
+
+  private long pointCloudTimestamp;
+  private int pointCount;
+  private float[] points = new float[256 * FLOATS_PER_POINT];
+
+  private int planeCount;
+  private int[] planeIds = new int[8];
+  private int[] planeTypes = new int[8];
+  private int[] planeTrackingStates = new int[8];
+  private int[] planeSubsumedBy = new int[8];
+  private boolean[] planeUpdated = new boolean[8];
+  private float[] planePoses = new float[8 * FLOATS_PER_POSE];
+  private float[] planeExtents = new float[8 * 2];
+  // Polygon of plane i is polygons[polygonOffsets[i]] to polygons[polygonOffsets[i + 1]].
+  private int[] polygonOffsets = new int[8 + 1];
+  private float[] polygons = new float[8 * 32];
+
+  private int anchorCount;
+  private int[] anchorTrackingStates = new int[8];
+  private float[] anchorPoses = new float[8 * FLOATS_PER_POSE];
+
+  /** Starts a new frame, dropping the point cloud, planes and anchors of the previous one. */
+  public void reset(long timestamp, int cameraTrackingState) {
+    this.timestamp = timestamp;
+    this.cameraTrackingState = cameraTrackingState;
+    pointCloudTimestamp = 0;
+    pointCount = 0;
+    planeCount = 0;
+    anchorCount = 0;
+  }
+
+  /** Copies the points between the position and the limit of {@code source}. */
+  public void setPoints(long timestamp, FloatBuffer source) {
+    pointCloudTimestamp = timestamp;
+    int floats = source.remaining() - source.remaining() % FLOATS_PER_POINT;
+    points = ensureCapacity(points, floats);
+    int start = source.position();
+    for (int i = 0; i < floats; i++) {
+      points[i] = source.get(start + i);
+    }
+    pointCount = floats / FLOATS_PER_POINT;
+  }
+
+  /**
+   * Adds a plane.
+   *
+   * @param updated whether the plane was in {@code Frame.getUpdatedTrackables()} of this frame.
+   * @param pose the center pose, as seven floats starting at index 0.
+   * @param polygon the boundary polygon as X,Z pairs, between its position and its limit.
+   */
+  public void addPlane(
+      int id,
+      int type,
+      int trackingState,
+      int subsumedById,
+      boolean updated,
+      float[] pose,
+      float extentX,
+      float extentZ,
+      FloatBuffer polygon) {
+    growPlanes(planeCount + 1);
+    int polygonStart = polygonOffsets[planeCount];
+    int polygonLength = polygon == null ? 0 : polygon.remaining();
+    polygons = ensureCapacity(polygons, polygonStart + polygonLength);
+    for (int i = 0; i < polygonLength; i++) {
+      polygons[polygonStart + i] = polygon.get(polygon.position() + i);
+    }
+    planeIds[planeCount] = id;
+    planeTypes[planeCount] = type;
+    planeTrackingStates[planeCount] = trackingState;
+    planeSubsumedBy[planeCount] = subsumedById;
+    planeUpdated[planeCount] = updated;
+    System.arraycopy(pose, 0, planePoses, planeCount * FLOATS_PER_POSE, FLOATS_PER_POSE);
+    planeExtents[planeCount * 2] = extentX;
+    planeExtents[planeCount * 2 + 1] = extentZ;
+    polygonOffsets[planeCount + 1] = polygonStart + polygonLength;
+    planeCount++;
+  }
+
+  /**
+   * Adds an anchor.
+   *
+   * @param pose the anchor pose, as seven floats starting at index 0.
+   */
+  public void addAnchor(int trackingState, float[] pose) {
+    growAnchors(anchorCount + 1);
+    anchorTrackingStates[anchorCount] = trackingState;
+    System.arraycopy(pose, 0, anchorPoses, anchorCount * FLOATS_PER_POSE, FLOATS_PER_POSE);
+    anchorCount++;
+  }
+
+  /** Writes this frame at the position of {@code out}, without a length prefix. */
+  public void writeTo(ByteBuffer out) {
+    out.putLong(timestamp);
+    out.put((byte) cameraTrackingState);
+    putFloats(out, viewMatrix, 0, 16);
+    putFloats(out, projectionMatrix, 0, 16);
+
+    out.putLong(pointCloudTimestamp);
+    out.putInt(pointCount);
+    putFloats(out, points, 0, pointCount * FLOATS_PER_POINT);
+
+    out.putInt(planeCount);
+    for (int i = 0; i < planeCount; i++) {
+      out.putInt(planeIds[i]);
+      out.put((byte) planeTypes[i]);
+      out.put((byte) planeTrackingStates[i]);
+      out.put((byte) (planeUpdated[i] ? 1 : 0));
+      out.putInt(planeSubsumedBy[i]);
+      putFloats(out, planePoses, i * FLOATS_PER_POSE, FLOATS_PER_POSE);
+      out.putFloat(planeExtents[i * 2]);
+      out.putFloat(planeExtents[i * 2 + 1]);
+      int polygonLength = polygonOffsets[i + 1] - polygonOffsets[i];
+      out.putInt(polygonLength);
+      putFloats(out, polygons, polygonOffsets[i], polygonLength);
+    }
+
+    out.putInt(anchorCount);
+    for (int i = 0; i < anchorCount; i++) {
+      out.put((byte) anchorTrackingStates[i]);
+      putFloats(out, anchorPoses, i * FLOATS_PER_POSE, FLOATS_PER_POSE);
+    }
+  }
+
+  /** Replaces this frame with one read from the position of {@code in}. */
+  public void readFrom(ByteBuffer in) {
+    reset(in.getLong(), in.get());
+    getFloats(in, viewMatrix, 0, 16);
+    getFloats(in, projectionMatrix, 0, 16);
+
+    pointCloudTimestamp = in.getLong();
+    pointCount = in.getInt();
+    points = ensureCapacity(points, pointCount * FLOATS_PER_POINT);
+    getFloats(in, points, 0, pointCount * FLOATS_PER_POINT);
+
+    int planes = in.getInt();
+    growPlanes(planes);
+    for (int i = 0; i < planes; i++) {
+      planeIds[i] = in.getInt();
+      planeTypes[i] = in.get();
+      planeTrackingStates[i] = in.get();
+      planeUpdated[i] = in.get() != 0;
+      planeSubsumedBy[i] = in.getInt();
+      getFloats(in, planePoses, i * FLOATS_PER_POSE, FLOATS_PER_POSE);
+      planeExtents[i * 2] = in.getFloat();
+      planeExtents[i * 2 + 1] = in.getFloat();
+      int polygonLength = in.getInt();
+      polygons = ensureCapacity(polygons, polygonOffsets[i] + polygonLength);
+      getFloats(in, polygons, polygonOffsets[i], polygonLength);
+      polygonOffsets[i + 1] = polygonOffsets[i] + polygonLength;
+    }
+    planeCount = planes;
+
+    int anchors = in.getInt();
+    growAnchors(anchors);
+    for (int i = 0; i < anchors; i++) {
+      anchorTrackingStates[i] = in.get();
+      getFloats(in, anchorPoses, i * FLOATS_PER_POSE, FLOATS_PER_POSE);
+    }
+    anchorCount = anchors;
+  }
+
+  /** The camera image timestamp, in nanoseconds. */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public int getCameraTrackingState() {
+    return cameraTrackingState;
+  }
+
+  /** The camera view matrix, in column-major order. Writable by the recorder. */
+  public float[] getViewMatrix() {
+    return viewMatrix;
+  }
+
+  /** The camera projection matrix, in column-major order. Writable by the recorder. */
+  public float[] getProjectionMatrix() {
+    return projectionMatrix;
+  }
+
+  /** Writes the camera position in world space into {@code out} as {x, y, z}. */
+  public void getCameraPosition(float[] out) {
+    // The view matrix is [R t], so the camera sits at -R^T * t in world space.
+    float tx = viewMatrix[12];
+    float ty = viewMatrix[13];
+    float tz = viewMatrix[14];
+    out[0] = -(viewMatrix[0] * tx + viewMatrix[1] * ty + viewMatrix[2] * tz);
+    out[1] = -(viewMatrix[4] * tx + viewMatrix[5] * ty + viewMatrix[6] * tz);
+    out[2] = -(viewMatrix[8] * tx + viewMatrix[9] * ty + viewMatrix[10] * tz);
+  }
+
+  public long getPointCloudTimestamp() {
+    return pointCloudTimestamp;
+  }
+
+  public int getPointCount() {
+    return pointCount;
+  }
+
+  /** The points as X,Y,Z,confidence; only the first {@code getPointCount() * 4} are valid. */
+  public float[] getPoints() {
+    return points;
+  }
+
+  public int getPlaneCount() {
+    return planeCount;
+  }
+
+  /** A stable ID of the plane, assigned by the recorder. */
+  public int getPlaneId(int plane) {
+    return planeIds[plane];
+  }
+
+  public int getPlaneType(int plane) {
+    return planeTypes[plane];
+  }
+
+  public int getPlaneTrackingState(int plane) {
+    return planeTrackingStates[plane];
+  }
+
+  /** The ID of the plane that subsumed this one, or {@link #NO_PLANE}. */
+  public int getPlaneSubsumedBy(int plane) {
+    return planeSubsumedBy[plane];
+  }
+
+  /** Whether the plane changed in this frame, i.e. ARCore reported it as updated. */
+  public boolean isPlaneUpdated(int plane) {
+    return planeUpdated[plane];
+  }
+
+  /** The center poses of all planes; plane i starts at index {@code i * FLOATS_PER_POSE}. */
+  public float[] getPlanePoses() {
+    return planePoses;
+  }
+
+  public float getPlaneExtentX(int plane) {
+    return planeExtents[plane * 2];
+  }
+
+  public float getPlaneExtentZ(int plane) {
+    return planeExtents[plane * 2 + 1];
+  }
+
+  /** The boundary polygons of all planes, as X,Z pairs. */
+  public float[] getPolygons() {
+    return polygons;
+  }
+
+  /** Index of the first polygon float of a plane in {@link #getPolygons()}. */
+  public int getPolygonOffset(int plane) {
+    return polygonOffsets[plane];
+  }
+
+  /** Number of polygon floats of a plane. */
+  public int getPolygonLength(int plane) {
+    return polygonOffsets[plane + 1] - polygonOffsets[plane];
+  }
+
+  public int getAnchorCount() {
+    return anchorCount;
+  }
+
+  public int getAnchorTrackingState(int anchor) {
+    return anchorTrackingStates[anchor];
+  }
+
+  /** The poses of all anchors; anchor i starts at index {@code i * FLOATS_PER_POSE}. */
+  public float[] getAnchorPoses() {
+    return anchorPoses;
+  }
+
+  private void growPlanes(int planes) {
+    if (planes <= planeIds.length) {
+      return;
+    }
+    int capacity = Math.max(planes, planeIds.length * 2);
+    planeIds = copyOf(planeIds, capacity);
+    planeTypes = copyOf(planeTypes, capacity);
+    planeTrackingStates = copyOf(planeTrackingStates, capacity);
+    planeSubsumedBy = copyOf(planeSubsumedBy, capacity);
+    boolean[] grownUpdated = new boolean[capacity];
+    System.arraycopy(planeUpdated, 0, grownUpdated, 0, planeUpdated.length);
+    planeUpdated = grownUpdated;
+    planePoses = ensureCapacity(planePoses, capacity * FLOATS_PER_POSE);
+    planeExtents = ensureCapacity(planeExtents, capacity * 2);
+    polygonOffsets = copyOf(polygonOffsets, capacity + 1);
+  }
+
+  private void growAnchors(int anchors) {
+    if (anchors <= anchorTrackingStates.length) {
+      return;
+    }
+    int capacity = Math.max(anchors, anchorTrackingStates.length * 2);
+    anchorTrackingStates = copyOf(anchorTrackingStates, capacity);
+    anchorPoses = ensureCapacity(anchorPoses, capacity * FLOATS_PER_POSE);
+  }
+
+  private static int[] copyOf(int[] array, int length) {
+    int[] copy = new int[length];
+    System.arraycopy(array, 0, copy, 0, array.length);
+    return copy;
+  }
+
+  private static float[] ensureCapacity(float[] array, int length) {
+    if (length <= array.length) {
+      return array;
+    }
+    float[] copy = new float[Math.max(length, array.length * 2)];
+    System.arraycopy(array, 0, copy, 0, array.length);
+    return copy;
+  }
+
+  private static void putFloats(ByteBuffer out, float[] values, int offset, int length) {
+    for (int i = 0; i < length; i++) {
+      out.putFloat(values[offset + i]);
+    }
+  }
+
+  private static void getFloats(ByteBuffer in, float[] values, int offset, int length) {
+    for (int i = 0; i < length; i++) {
+      values[offset + i] = in.getFloat();
+    }
+  }
+}
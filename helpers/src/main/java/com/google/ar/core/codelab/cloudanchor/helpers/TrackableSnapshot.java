@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import com.google.ar.core.Frame;
+import com.google.ar.core.Plane;
+import com.google.ar.core.Pose;
+import com.google.ar.core.TrackingState;
+import com.google.ar.core.codelab.cloudanchor.rendering.PlaneSnapshot;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The trackables of the session as of the latest frame, shared by every consumer of the render
+ * loop.
+ *
+ * <p>{@link #update(Frame)} only visits the planes returned by {@code
+ * Frame.getUpdatedTrackables(Plane.class)}, so a plane that did not change in a frame costs
+ * nothing: its state, matrices and tessellated geometry stay cached in the {@link PlaneSnapshot}.
+ * Planes that stop tracking are dropped. Must be used on the GL thread only.
+ */
+public class TrackableSnapshot {
+  private final PlaneSnapshot planes = new PlaneSnapshot();
+  private final Map<Plane, Integer> planeIds = new HashMap<>();
+  private final float[] pose = new float[7];
+  private int nextPlaneId;
+
+  /** Applies the plane changes of {@code frame}. Call once per frame, after Session.update(). */
+  public void update(Frame frame) {
+    for (Plane plane : frame.getUpdatedTrackables(Plane.class)) {
+      TrackingState state = plane.getTrackingState();
+      if (state == TrackingState.STOPPED) {
+        Integer id = planeIds.remove(plane);
+        if (id != null) {
+          planes.removePlane(id);
+        }
+        continue;
+      }
+      Integer id = planeIds.get(plane);
+      if (id == null) {
+        id = nextPlaneId++;
+        planeIds.put(plane, id);
+      }
+      Pose centerPose = plane.getCenterPose();
+      centerPose.getTranslation(pose, 0);
+      centerPose.getRotationQuaternion(pose, 3);
+      planes.updatePlane(
+          id,
+          state == TrackingState.TRACKING,
+          plane.getSubsumedBy() != null,
+          pose,
+          plane.getExtentX(),
+          plane.getExtentZ(),
+          plane.getPolygon());
+    }
+  }
+
+  /** The planes of the latest frame. */
+  public PlaneSnapshot getPlanes() {
+    return planes;
+  }
+
+  /** Whether any plane is tracking. */
+  public boolean hasTrackingPlane() {
+    return planes.hasTrackingPlane();
+  }
+
+  /** Forgets every trackable, e.g. when the session is replaced. */
+  public void clear() {
+    planes.clear();
+    planeIds.clear();
+  }
+}
@@ -19,8 +19,24 @@ import android.view.WindowManager;
 import com.google.ar.core.Camera;
 import com.google.ar.core.TrackingFailureReason;
 import com.google.ar.core.TrackingState;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 
-/** Gets human readibly tracking failure reasons and suggested actions. */
+/**
+ * Gets human readibly tracking failure reasons and suggested actions, and records how tracking
+ * went.
+ *
+ * <p>The telemetry counts, per tracking state and per failure reason while paused, the time spent,
+ * how often the state was entered, the longest stretch in it, and the camera frames that arrived
+ * late. A frame is late when the camera timestamp advanced by more than {@link #DROP_RATIO} times
+ * the usual frame interval, which is learned from the frames that were on time, so it works at any
+ * camera frame rate. Pauses that start within {@link #DROP_CORRELATION_NANOS} of a late frame are
+ * counted separately, to tell pauses caused by a struggling device from those caused by the
+ * scene. {@link #recordFrame} does not allocate; {@link #getTelemetrySnapshot()} aggregates the
+ * counters into an immutable snapshot that can be logged or uploaded.
+ */
 public final class TrackingStateHelper {
   private static final String INSUFFICIENT_FEATURES_MESSAGE =
       "Can't find anything. Aim device at a surface with more texture or color.";
@@ -32,14 +48,56 @@ public final class TrackingStateHelper {
   private static final String CAMERA_UNAVAILABLE_MESSAGE =
       "Another app is using the camera. Tap on this app or try closing the other one.";
 
-  private final Activity activity;
+  private static final float DROP_RATIO = 1.5f;
+  private static final long DROP_CORRELATION_NANOS = 1_000_000_000L;
+  // Weight of each on-time frame in the usual frame interval.
+  private static final float INTERVAL_SMOOTHING = 1f / 32;
+
+  private static final TrackingFailureReason[] REASONS = TrackingFailureReason.values();
+  // Telemetry buckets: tracking, stopped, then paused for each failure reason.
+  private static final int TRACKING_BUCKET = 0;
+  private static final int STOPPED_BUCKET = 1;
+  private static final int PAUSED_BUCKETS = 2;
+  private static final String[] BUCKET_NAMES = new String[PAUSED_BUCKETS + REASONS.length];
+
+  static {
+    BUCKET_NAMES[TRACKING_BUCKET] = "TRACKING";
+    BUCKET_NAMES[STOPPED_BUCKET] = "STOPPED";
+    for (TrackingFailureReason reason : REASONS) {
+      BUCKET_NAMES[PAUSED_BUCKETS + reason.ordinal()] = "PAUSED_" + reason;
+    }
+  }
+
+  // Written on the main thread, read on the GL thread.
+  private volatile Activity activity;
+  private volatile TrackingState previousTrackingState;
 
-  private TrackingState previousTrackingState;
+  // Telemetry, guarded by this.
+  private final long[] bucketNanos = new long[BUCKET_NAMES.length];
+  private final long[] longestNanos = new long[BUCKET_NAMES.length];
+  private final int[] entries = new int[BUCKET_NAMES.length];
+  private final int[] frames = new int[BUCKET_NAMES.length];
+  private final int[] lateFrames = new int[BUCKET_NAMES.length];
+  private int currentBucket = -1;
+  private long currentSinceNanos;
+  private long lastTimestampNanos;
+  private long lastLateFrameNanos = Long.MIN_VALUE / 2;
+  private float usualIntervalNanos;
+  private int pausesAfterLateFrames;
 
   public TrackingStateHelper(Activity activity) {
     this.activity = activity;
   }
 
+  /**
+   * Rebinds the helper to a new activity, e.g. after a configuration change recreated it, keeping
+   * the telemetry. The keep-screen-on flag is applied to the new window on the next update.
+   */
+  public void setActivity(Activity activity) {
+    this.activity = activity;
+    previousTrackingState = null;
+  }
+
   /** Keep the screen unlocked while tracking, but allow it to lock when tracking stops. */
   public void updateKeepScreenOnFlag(TrackingState trackingState) {
     if (trackingState == previousTrackingState) {
@@ -47,6 +105,7 @@ public final class TrackingStateHelper {
     }
 
     previousTrackingState = trackingState;
+    Activity activity = this.activity;
     switch (trackingState) {
       case PAUSED:
       case STOPPED:
@@ -60,6 +119,182 @@ public final class TrackingStateHelper {
     }
   }
 
+  /**
+   * Records the tracking state of a camera frame. Frames with the same timestamp as the previous
+   * one are ignored, so it can be called for every drawn frame. Does not allocate.
+   *
+   * @param reason the failure reason, only used while {@code trackingState} is PAUSED.
+   * @param timestampNanos the camera frame timestamp.
+   */
+  public synchronized void recordFrame(
+      TrackingState trackingState, TrackingFailureReason reason, long timestampNanos) {
+    if (timestampNanos <= lastTimestampNanos) {
+      return;
+    }
+    int bucket;
+    if (trackingState == TrackingState.TRACKING) {
+      bucket = TRACKING_BUCKET;
+    } else if (trackingState == TrackingState.STOPPED) {
+      bucket = STOPPED_BUCKET;
+    } else {
+      bucket = PAUSED_BUCKETS + reason.ordinal();
+    }
+
+    if (currentBucket >= 0) {
+      // The time since the previous frame belongs to the state of the previous frame.
+      long interval = timestampNanos - lastTimestampNanos;
+      bucketNanos[currentBucket] += interval;
+      if (usualIntervalNanos > 0 && interval > DROP_RATIO * usualIntervalNanos) {
+        lateFrames[currentBucket]++;
+        lastLateFrameNanos = timestampNanos;
+      } else if (usualIntervalNanos == 0) {
+        usualIntervalNanos = interval;
+      } else {
+        usualIntervalNanos += (interval - usualIntervalNanos) * INTERVAL_SMOOTHING;
+      }
+    }
+    frames[bucket]++;
+    if (bucket != currentBucket) {
+      if (currentBucket >= 0) {
+        longestNanos[currentBucket] =
+            Math.max(longestNanos[currentBucket], timestampNanos - currentSinceNanos);
+      }
+      entries[bucket]++;
+      if (bucket >= PAUSED_BUCKETS
+          && timestampNanos - lastLateFrameNanos <= DROP_CORRELATION_NANOS) {
+        pausesAfterLateFrames++;
+      }
+      currentBucket = bucket;
+      currentSinceNanos = timestampNanos;
+    }
+    lastTimestampNanos = timestampNanos;
+  }
+
+  /** Aggregates the telemetry recorded since construction or the last reset. */
+  public synchronized TelemetrySnapshot getTelemetrySnapshot() {
+    long[] longest = longestNanos.clone();
+    if (currentBucket >= 0) {
+      longest[currentBucket] =
+          Math.max(longest[currentBucket], lastTimestampNanos - currentSinceNanos);
+    }
+    return new TelemetrySnapshot(
+        bucketNanos.clone(), longest, entries.clone(), frames.clone(), lateFrames.clone(),
+        pausesAfterLateFrames, usualIntervalNanos);
+  }
+
+  /** Clears the telemetry, e.g. after uploading a snapshot. */
+  public synchronized void resetTelemetry() {
+    Arrays.fill(bucketNanos, 0);
+    Arrays.fill(longestNanos, 0);
+    Arrays.fill(entries, 0);
+    Arrays.fill(frames, 0);
+    Arrays.fill(lateFrames, 0);
+    pausesAfterLateFrames = 0;
+    // The current state counts as entered again.
+    if (currentBucket >= 0) {
+      entries[currentBucket] = 1;
+      currentSinceNanos = lastTimestampNanos;
+    }
+  }
+
+  /** Immutable tracking telemetry, per tracking state and failure reason. */
+  public static final class TelemetrySnapshot {
+    private final long[] bucketNanos;
+    private final long[] longestNanos;
+    private final int[] entries;
+    private final int[] frames;
+    private final int[] lateFrames;
+    private final int pausesAfterLateFrames;
+    private final float usualIntervalNanos;
+
+    private TelemetrySnapshot(
+        long[] bucketNanos,
+        long[] longestNanos,
+        int[] entries,
+        int[] frames,
+        int[] lateFrames,
+        int pausesAfterLateFrames,
+        float usualIntervalNanos) {
+      this.bucketNanos = bucketNanos;
+      this.longestNanos = longestNanos;
+      this.entries = entries;
+      this.frames = frames;
+      this.lateFrames = lateFrames;
+      this.pausesAfterLateFrames = pausesAfterLateFrames;
+      this.usualIntervalNanos = usualIntervalNanos;
+    }
+
+    /** Time spent tracking, in milliseconds. */
+    public long getTrackingMillis() {
+      return bucketNanos[TRACKING_BUCKET] / 1_000_000;
+    }
+
+    /** Time spent paused for {@code reason}, in milliseconds. */
+    public long getPausedMillis(TrackingFailureReason reason) {
+      return bucketNanos[PAUSED_BUCKETS + reason.ordinal()] / 1_000_000;
+    }
+
+    /** Number of times tracking paused for {@code reason}. */
+    public int getPauseCount(TrackingFailureReason reason) {
+      return entries[PAUSED_BUCKETS + reason.ordinal()];
+    }
+
+    /** Number of pauses that started within a second of a late camera frame. */
+    public int getPausesAfterLateFrames() {
+      return pausesAfterLateFrames;
+    }
+
+    /**
+     * The telemetry as nested maps of strings and numbers, keyed by state and failure reason, e.g.
+     * for {@code DatabaseReference.setValue}. States that were never entered are left out.
+     */
+    public Map<String, Object> toMap() {
+      Map<String, Object> map = new HashMap<>();
+      for (int bucket = 0; bucket < BUCKET_NAMES.length; bucket++) {
+        if (entries[bucket] == 0 && frames[bucket] == 0) {
+          continue;
+        }
+        Map<String, Object> values = new HashMap<>();
+        values.put("millis", bucketNanos[bucket] / 1_000_000);
+        values.put("longestMillis", longestNanos[bucket] / 1_000_000);
+        values.put("entries", entries[bucket]);
+        values.put("frames", frames[bucket]);
+        values.put("lateFrames", lateFrames[bucket]);
+        map.put(BUCKET_NAMES[bucket], values);
+      }
+      map.put("pausesAfterLateFrames", pausesAfterLateFrames);
+      map.put("usualFrameIntervalMillis", usualIntervalNanos / 1e6);
+      return map;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder builder =
+          new StringBuilder(
+              String.format(
+                  Locale.US,
+                  "frameInterval=%.1fms pausesAfterLateFrames=%d",
+                  usualIntervalNanos / 1e6,
+                  pausesAfterLateFrames));
+      for (int bucket = 0; bucket < BUCKET_NAMES.length; bucket++) {
+        if (entries[bucket] == 0 && frames[bucket] == 0) {
+          continue;
+        }
+        builder.append(
+            String.format(
+                Locale.US,
+                " %s={%.1fs entered=%d longest=%.1fs late=%d/%d}",
+                BUCKET_NAMES[bucket],
+                bucketNanos[bucket] / 1e9,
+                entries[bucket],
+                longestNanos[bucket] / 1e9,
+                lateFrames[bucket],
+                frames[bucket]));
+      }
+      return builder.toString();
+    }
+  }
+
   public static String getTrackingFailureReasonString(Camera camera) {
     TrackingFailureReason reason = camera.getTrackingFailureReason();
     switch (reason) {
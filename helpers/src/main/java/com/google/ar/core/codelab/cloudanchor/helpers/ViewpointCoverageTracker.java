@@ -0,0 +1,120 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+/**
+ * Keeps a history of recent camera positions and measures from how many directions a point in
+ * the world has been observed.
+ *
+ * <p>Cloud Anchors host faster and more reliably when the anchor has been seen from several
+ * angles. The history is a ring buffer of primitive arrays, so no {@code Pose} objects are
+ * retained. Coverage is measured around the vertical axis: the bearing from the anchor to each
+ * recorded camera position is put into one of {@code binCount} sectors, and the coverage is the
+ * number of distinct sectors times the sector width.
+ *
+ * <p>This class has no Android dependencies and does not allocate after construction. It is not
+ * thread safe.
+ */
+public class ViewpointCoverageTracker {
+  // Bins are tracked in a single long bit mask.
+  private static final int MAX_BINS = 64;
+
+  private final int capacity;
+  private final float minMoveMetersSquared;
+  private final float maxDistanceMetersSquared;
+  private final int binCount;
+  private final float binWidthDegrees;
+
+  private final float[] positions;
+  private final long[] timestamps;
+  private int count;
+  private int next;
+
+  /**
+   * @param capacity number of camera positions kept.
+   * @param minMoveMeters a new position is only recorded once the camera moved this far.
+   * @param maxDistanceMeters camera positions farther than this from the anchor are ignored.
+   * @param binCount number of bearing sectors around the vertical axis, at most 64.
+   */
+  public ViewpointCoverageTracker(
+      int capacity, float minMoveMeters, float maxDistanceMeters, int binCount) {
+    if (binCount < 1 || binCount > MAX_BINS) {
+      throw new IllegalArgumentException("binCount must be between 1 and 64: " + binCount);
+    }
+    this.capacity = capacity;
+    this.minMoveMetersSquared = minMoveMeters * minMoveMeters;
+    this.maxDistanceMetersSquared = maxDistanceMeters * maxDistanceMeters;
+    this.binCount = binCount;
+    this.binWidthDegrees = 360f / binCount;
+    positions = new float[capacity * 3];
+    timestamps = new long[capacity];
+  }
+
+  /** Records a camera position, unless the camera has not moved far enough since the last one. */
+  public void addCameraPosition(float x, float y, float z, long timestampNanos) {
+    if (count > 0) {
+      int last = ((next - 1 + capacity) % capacity) * 3;
+      float dx = x - positions[last];
+      float dy = y - positions[last + 1];
+      float dz = z - positions[last + 2];
+      if (dx * dx + dy * dy + dz * dz < minMoveMetersSquared) {
+        return;
+      }
+    }
+    positions[next * 3] = x;
+    positions[next * 3 + 1] = y;
+    positions[next * 3 + 2] = z;
+    timestamps[next] = timestampNanos;
+    next = (next + 1) % capacity;
+    count = Math.min(count + 1, capacity);
+  }
+
+  /** Returns the angular coverage of a world point, in degrees, over the whole history. */
+  public float getCoverageDegrees(float x, float y, float z) {
+    return getCoverageDegrees(x, y, z, Long.MIN_VALUE);
+  }
+
+  /**
+   * Returns the angular coverage of a world point, in degrees, only counting camera positions
+   * recorded at or after {@code sinceTimestampNanos}.
+   */
+  public float getCoverageDegrees(float x, float y, float z, long sinceTimestampNanos) {
+    long coveredBins = 0;
+    for (int i = 0; i < count; i++) {
+      if (timestamps[i] < sinceTimestampNanos) {
+        continue;
+      }
+      float dx = positions[i * 3] - x;
+      float dy = positions[i * 3 + 1] - y;
+      float dz = positions[i * 3 + 2] - z;
+      float horizontalSquared = dx * dx + dz * dz;
+      if (horizontalSquared + dy * dy > maxDistanceMetersSquared || horizontalSquared < 1e-6f) {
+        continue;
+      }
+      double bearing = Math.toDegrees(Math.atan2(dz, dx)) + 180.0;
+      int bin = Math.min(binCount - 1, (int) (bearing / binWidthDegrees));
+      coveredBins |= 1L << bin;
+    }
+    return Long.bitCount(coveredBins) * binWidthDegrees;
+  }
+
+  /** Forgets every recorded camera position. */
+  public void clear() {
+    count = 0;
+    next = 0;
+  }
+}
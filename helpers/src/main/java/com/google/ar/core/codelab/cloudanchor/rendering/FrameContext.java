@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+import com.google.ar.core.Camera;
+import com.google.ar.core.Frame;
+import com.google.ar.core.LightEstimate;
+
+/**
+ * Per-frame camera and lighting state shared by the renderers.
+ *
+ * <p>One instance is allocated up front and refilled by {@link #update(Frame, Camera)} every
+ * frame, so the render loop does not allocate matrices in the steady state.
+ */
+public class FrameContext {
+  private static final float Z_NEAR = 0.1f;
+  private static final float Z_FAR = 100.0f;
+  // Middle gray in gamma space, the intensity at which the object shader leaves colors unchanged.
+  private static final float NEUTRAL_PIXEL_INTENSITY = 0.466f;
+
+  private final float[] viewMatrix = new float[16];
+  private final float[] projectionMatrix = new float[16];
+  private final float[] colorCorrectionRgba = new float[4];
+  private final float[] cameraPosition = new float[3];
+  private long timestamp;
+
+  /** Refills the context from the frame returned by the latest {@code Session.update()}. */
+  public void update(Frame frame, Camera camera) {
+    camera.getProjectionMatrix(projectionMatrix, 0, Z_NEAR, Z_FAR);
+    camera.getViewMatrix(viewMatrix, 0);
+
+    // Compute lighting from average intensity of the image.
+    // The first three components are color scaling factors.
+    // The last one is the average pixel intensity in gamma space.
+    LightEstimate lightEstimate = frame.getLightEstimate();
+    boolean lightEstimateValid = lightEstimate.getState() == LightEstimate.State.VALID;
+    if (lightEstimateValid) {
+      lightEstimate.getColorCorrection(colorCorrectionRgba, 0);
+    }
+    update(frame.getTimestamp(), lightEstimateValid);
+  }
+
+  /**
+   * Derives the rest of the context once the matrices and the color correction are filled in.
+   * Package-private so that the JVM tests can run it without ARCore.
+   */
+  void update(long timestamp, boolean lightEstimateValid) {
+    this.timestamp = timestamp;
+
+    // The view matrix is [R t], so the camera sits at -R^T * t in world space. Computing it here
+    // avoids the Pose allocated by Camera.getPose().
+    float tx = viewMatrix[12];
+    float ty = viewMatrix[13];
+    float tz = viewMatrix[14];
+    cameraPosition[0] = -(viewMatrix[0] * tx + viewMatrix[1] * ty + viewMatrix[2] * tz);
+    cameraPosition[1] = -(viewMatrix[4] * tx + viewMatrix[5] * ty + viewMatrix[6] * tz);
+    cameraPosition[2] = -(viewMatrix[8] * tx + viewMatrix[9] * ty + viewMatrix[10] * tz);
+
+    if (!lightEstimateValid) {
+      // Light estimation is off or not ready yet. Use a neutral correction rather than black.
+      colorCorrectionRgba[0] = 1f;
+      colorCorrectionRgba[1] = 1f;
+      colorCorrectionRgba[2] = 1f;
+      colorCorrectionRgba[3] = NEUTRAL_PIXEL_INTENSITY;
+    }
+  }
+
+  /** The camera view matrix, in column-major order. */
+  public float[] getViewMatrix() {
+    return viewMatrix;
+  }
+
+  /** The camera projection matrix, in column-major order. */
+  public float[] getProjectionMatrix() {
+    return projectionMatrix;
+  }
+
+  /** The light estimate color correction, as returned by {@code LightEstimate}. */
+  public float[] getColorCorrectionRgba() {
+    return colorCorrectionRgba;
+  }
+
+  /** The camera position in world space, as {x, y, z}. */
+  public float[] getCameraPosition() {
+    return cameraPosition;
+  }
+
+  /** The timestamp of the camera image, in nanoseconds. */
+  public long getTimestamp() {
+    return timestamp;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+/**
+ * The view frustum of a camera, as six planes in world space, for cheap visibility tests.
+ *
+ * <p>The planes are extracted from the rows of the view-projection matrix and normalized, so that
+ * a sphere test is six dot products. Updated once per frame; does not allocate. This class has no
+ * GL dependencies.
+ */
+public class Frustum {
+  private static final int PLANES = 6;
+
+  // 4 floats per plane: the normal, pointing inwards, then the offset.
+  private final float[] planes = new float[PLANES * 4];
+  private final float[] viewProjectionMatrix = new float[16];
+
+  /** Sets the frustum from the camera matrices of the current frame, both column-major. */
+  public void set(float[] viewMatrix, float[] projectionMatrix) {
+    SceneGraph.multiplyMM(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+    float[] m = viewProjectionMatrix;
+    // Left, right, bottom, top, near and far: the last row plus or minus each of the others.
+    for (int row = 0; row < 3; row++) {
+      for (int sign = 0; sign < 2; sign++) {
+        float s = sign == 0 ? 1 : -1;
+        int p = (row * 2 + sign) * 4;
+        planes[p] = m[3] + s * m[row];
+        planes[p + 1] = m[7] + s * m[4 + row];
+        planes[p + 2] = m[11] + s * m[8 + row];
+        planes[p + 3] = m[15] + s * m[12 + row];
+        float length =
+            (float)
+                Math.sqrt(
+                    planes[p] * planes[p]
+                        + planes[p + 1] * planes[p + 1]
+                        + planes[p + 2] * planes[p + 2]);
+        if (length > 0) {
+          for (int i = 0; i < 4; i++) {
+            planes[p + i] /= length;
+          }
+        }
+      }
+    }
+  }
+
+  /** Returns whether any part of the sphere may be inside the frustum. */
+  public boolean intersectsSphere(float x, float y, float z, float radius) {
+    for (int p = 0; p < PLANES * 4; p += 4) {
+      if (planes[p] * x + planes[p + 1] * y + planes[p + 2] * z + planes[p + 3] < -radius) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * A bounding volume hierarchy over the triangles of a mesh, in model space, for ray picking.
+ *
+ * <p>Built once when the mesh is loaded. Each node is an axis-aligned box; inner nodes split their
+ * triangles at the median along the longest axis of the triangle centroids, and leaves hold at
+ * most {@link #MAX_LEAF_TRIANGLES} triangles. The triangles are copied in leaf order, so a leaf
+ * reads its vertices from one contiguous range.
+ *
+ * <p>Queries do not allocate and use a preallocated traversal stack, so an instance must only be
+ * queried from one thread at a time. This class has no GL dependencies.
+ */
+public final class MeshBvh {
+  /** Returned by {@link #raycast} when the ray misses. */
+  public static final float NO_HIT = Float.POSITIVE_INFINITY;
+
+  private static final int MAX_LEAF_TRIANGLES = 4;
+  private static final int MAX_DEPTH = 64;
+  private static final float EPSILON = 1e-7f;
+
+  // 9 floats per triangle, in leaf order.
+  private final float[] triangles;
+  // 6 floats per node: min x, y, z, then max x, y, z.
+  private final float[] bounds;
+  // For leaves, the first triangle. For inner nodes, the left child; the right child follows it.
+  private final int[] nodeStart;
+  // Number of triangles of a leaf, 0 for inner nodes.
+  private final int[] nodeTriangles;
+  private int nodeCount;
+  private final int[] stack = new int[MAX_DEPTH];
+
+  // Only used while building.
+  private float[] centroids;
+  private int[] order;
+
+  /**
+   * @param positions vertex positions, 3 floats per vertex.
+   * @param indices 3 vertex indices per triangle.
+   */
+  public MeshBvh(float[] positions, int[] indices) {
+    int triangleCount = indices.length / 3;
+    triangles = new float[triangleCount * 9];
+    int maxNodes = Math.max(1, 2 * triangleCount - 1);
+    bounds = new float[maxNodes * 6];
+    nodeStart = new int[maxNodes];
+    nodeTriangles = new int[maxNodes];
+
+    float[] unordered = new float[triangleCount * 9];
+    centroids = new float[triangleCount * 3];
+    order = new int[triangleCount];
+    for (int t = 0; t < triangleCount; t++) {
+      for (int v = 0; v < 3; v++) {
+        int vertex = indices[t * 3 + v] * 3;
+        for (int axis = 0; axis < 3; axis++) {
+          unordered[t * 9 + v * 3 + axis] = positions[vertex + axis];
+          centroids[t * 3 + axis] += positions[vertex + axis] / 3;
+        }
+      }
+      order[t] = t;
+    }
+
+    nodeCount = 1;
+    if (triangleCount > 0) {
+      build(0, 0, triangleCount, 0, unordered);
+    }
+    for (int t = 0; t < triangleCount; t++) {
+      System.arraycopy(unordered, order[t] * 9, triangles, t * 9, 9);
+    }
+    centroids = null;
+    order = null;
+  }
+
+  /** Builds the hierarchy of the vertex and index buffers of a loaded model. */
+  public static MeshBvh fromBuffers(FloatBuffer vertices, ShortBuffer indices) {
+    float[] positions = new float[vertices.limit()];
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = vertices.get(i);
+    }
+    int[] triangleIndices = new int[indices.limit()];
+    for (int i = 0; i < triangleIndices.length; i++) {
+      triangleIndices[i] = indices.get(i) & 0xFFFF;
+    }
+    return new MeshBvh(positions, triangleIndices);
+  }
+
+  /** Number of triangles. */
+  public int getTriangleCount() {
+    return triangles.length / 9;
+  }
+
+  /** Copies the bounds of the whole mesh to {@code out}, as min x, y, z, max x, y, z. */
+  public void getBounds(float[] out, int offset) {
+    System.arraycopy(bounds, 0, out, offset, 6);
+  }
+
+  /**
+   * Returns the distance along the ray to the closest triangle, in units of the direction's length,
+   * or {@link #NO_HIT} if there is no triangle closer than {@code maxDistance}. Triangles are hit
+   * from both sides.
+   */
+  public float raycast(
+      float originX, float originY, float originZ,
+      float directionX, float directionY, float directionZ,
+      float maxDistance) {
+    if (getTriangleCount() == 0) {
+      return NO_HIT;
+    }
+    float inverseX = 1 / directionX;
+    float inverseY = 1 / directionY;
+    float inverseZ = 1 / directionZ;
+    float closest = maxDistance;
+    boolean hit = false;
+    int top = 0;
+    stack[top++] = 0;
+    while (top > 0) {
+      int node = stack[--top];
+      if (intersectBox(bounds, node * 6, originX, originY, originZ, inverseX, inverseY, inverseZ,
+          closest) == NO_HIT) {
+        continue;
+      }
+      int count = nodeTriangles[node];
+      if (count == 0) {
+        stack[top++] = nodeStart[node];
+        stack[top++] = nodeStart[node] + 1;
+        continue;
+      }
+      int end = nodeStart[node] + count;
+      for (int t = nodeStart[node]; t < end; t++) {
+        float distance =
+            intersectTriangle(
+                triangles, t * 9, originX, originY, originZ, directionX, directionY, directionZ);
+        if (distance < closest) {
+          closest = distance;
+          hit = true;
+        }
+      }
+    }
+    return hit ? closest : NO_HIT;
+  }
+
+  /**
+   * Same result as {@link #raycast}, testing every triangle. Used to check and benchmark the
+   * hierarchy.
+   */
+  public float raycastLinear(
+      float originX, float originY, float originZ,
+      float directionX, float directionY, float directionZ,
+      float maxDistance) {
+    float closest = maxDistance;
+    boolean hit = false;
+    for (int t = 0; t < getTriangleCount(); t++) {
+      float distance =
+          intersectTriangle(
+              triangles, t * 9, originX, originY, originZ, directionX, directionY, directionZ);
+      if (distance < closest) {
+        closest = distance;
+        hit = true;
+      }
+    }
+    return hit ? closest : NO_HIT;
+  }
+
+  /**
+   * Slab test of a ray against the box starting at {@code offset}. Returns the entry distance,
+   * clamped to 0 if the origin is inside, or {@link #NO_HIT} if the box is missed or farther than
+   * {@code maxDistance}.
+   */
+  static float intersectBox(
+      float[] box, int offset,
+      float originX, float originY, float originZ,
+      float inverseX, float inverseY, float inverseZ,
+      float maxDistance) {
+    float t1 = (box[offset] - originX) * inverseX;
+    float t2 = (box[offset + 3] - originX) * inverseX;
+    float near = Math.min(t1, t2);
+    float far = Math.max(t1, t2);
+    t1 = (box[offset + 1] - originY) * inverseY;
+    t2 = (box[offset + 4] - originY) * inverseY;
+    near = Math.max(near, Math.min(t1, t2));
+    far = Math.min(far, Math.max(t1, t2));
+    t1 = (box[offset + 2] - originZ) * inverseZ;
+    t2 = (box[offset + 5] - originZ) * inverseZ;
+    near = Math.max(near, Math.min(t1, t2));
+    far = Math.min(far, Math.max(t1, t2));
+    if (far < Math.max(near, 0) || near >= maxDistance) {
+      return NO_HIT;
+    }
+    return Math.max(near, 0);
+  }
+
+  /** Moeller-Trumbore intersection. Returns the distance along the ray, or {@link #NO_HIT}. */
+  private static float intersectTriangle(
+      float[] triangles, int offset,
+      float originX, float originY, float originZ,
+      float directionX, float directionY, float directionZ) {
+    float ax = triangles[offset];
+    float ay = triangles[offset + 1];
+    float az = triangles[offset + 2];
+    float e1x = triangles[offset + 3] - ax;
+    float e1y = triangles[offset + 4] - ay;
+    float e1z = triangles[offset + 5] - az;
+    float e2x = triangles[offset + 6] - ax;
+    float e2y = triangles[offset + 7] - ay;
+    float e2z = triangles[offset + 8] - az;
+    float px = directionY * e2z - directionZ * e2y;
+    float py = directionZ * e2x - directionX * e2z;
+    float pz = directionX * e2y - directionY * e2x;
+    float determinant = e1x * px + e1y * py + e1z * pz;
+    if (determinant > -EPSILON && determinant < EPSILON) {
+      return NO_HIT;
+    }
+    float inverseDeterminant = 1 / determinant;
+    float sx = originX - ax;
+    float sy = originY - ay;
+    float sz = originZ - az;
+    float u = (sx * px + sy * py + sz * pz) * inverseDeterminant;
+    if (u < 0 || u > 1) {
+      return NO_HIT;
+    }
+    float qx = sy * e1z - sz * e1y;
+    float qy = sz * e1x - sx * e1z;
+    float qz = sx * e1y - sy * e1x;
+    float v = (directionX * qx + directionY * qy + directionZ * qz) * inverseDeterminant;
+    if (v < 0 || u + v > 1) {
+      return NO_HIT;
+    }
+    float distance = (e2x * qx + e2y * qy + e2z * qz) * inverseDeterminant;
+    return distance > EPSILON ? distance : NO_HIT;
+  }
+
+  private void build(int node, int start, int end, int depth, float[] unordered) {
+    computeBounds(node, start, end, unordered);
+    int count = end - start;
+    if (count <= MAX_LEAF_TRIANGLES || depth >= MAX_DEPTH / 2) {
+      nodeStart[node] = start;
+      nodeTriangles[node] = count;
+      return;
+    }
+    // Split at the median centroid along the longest axis of the centroid bounds.
+    float[] extent = new float[6];
+    centroidBounds(start, end, extent);
+    int axis = 0;
+    for (int a = 1; a < 3; a++) {
+      if (extent[a + 3] - extent[a] > extent[axis + 3] - extent[axis]) {
+        axis = a;
+      }
+    }
+    int middle = (start + end) >>> 1;
+    selectMedian(start, end - 1, middle, axis);
+
+    int left = nodeCount;
+    nodeCount += 2;
+    nodeStart[node] = left;
+    nodeTriangles[node] = 0;
+    build(left, start, middle, depth + 1, unordered);
+    build(left + 1, middle, end, depth + 1, unordered);
+  }
+
+  private void computeBounds(int node, int start, int end, float[] unordered) {
+    int b = node * 6;
+    bounds[b] = bounds[b + 1] = bounds[b + 2] = Float.POSITIVE_INFINITY;
+    bounds[b + 3] = bounds[b + 4] = bounds[b + 5] = Float.NEGATIVE_INFINITY;
+    for (int i = start; i < end; i++) {
+      int t = order[i] * 9;
+      for (int v = 0; v < 9; v += 3) {
+        for (int axis = 0; axis < 3; axis++) {
+          float value = unordered[t + v + axis];
+          bounds[b + axis] = Math.min(bounds[b + axis], value);
+          bounds[b + 3 + axis] = Math.max(bounds[b + 3 + axis], value);
+        }
+      }
+    }
+  }
+
+  private void centroidBounds(int start, int end, float[] out) {
+    out[0] = out[1] = out[2] = Float.POSITIVE_INFINITY;
+    out[3] = out[4] = out[5] = Float.NEGATIVE_INFINITY;
+    for (int i = start; i < end; i++) {
+      for (int axis = 0; axis < 3; axis++) {
+        float value = centroids[order[i] * 3 + axis];
+        out[axis] = Math.min(out[axis], value);
+        out[3 + axis] = Math.max(out[3 + axis], value);
+      }
+    }
+  }
+
+  /** Quickselect on {@code order[low..high]}, so that index {@code k} holds the median. */
+  private void selectMedian(int low, int high, int k, int axis) {
+    while (low < high) {
+      float pivot = centroids[order[(low + high) >>> 1] * 3 + axis];
+      int i = low;
+      int j = high;
+      while (i <= j) {
+        while (centroids[order[i] * 3 + axis] < pivot) {
+          i++;
+        }
+        while (centroids[order[j] * 3 + axis] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int swap = order[i];
+          order[i] = order[j];
+          order[j] = swap;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        high = j;
+      } else if (k >= i) {
+        low = i;
+      } else {
+        return;
+      }
+    }
+  }
+}
@@ -100,6 +100,8 @@ public class ObjectRenderer {
   private final float[] modelMatrix = new float[16];
   private final float[] modelViewMatrix = new float[16];
   private final float[] modelViewProjectionMatrix = new float[16];
+  private final float[] viewProjectionMatrix = new float[16];
+  private final float[] scaleMatrix = new float[16];
 
   // Set some default material properties to use for lighting.
   private float ambient = 0.3f;
@@ -109,6 +111,42 @@ public class ObjectRenderer {
 
   public ObjectRenderer() {}
 
+  /**
+   * The decoded geometry and texture of a model, ready to be uploaded by {@link #uploadOnGlThread}.
+   */
+  public static final class Assets {
+    private final FloatBuffer vertices;
+    private final FloatBuffer texCoords;
+    private final FloatBuffer normals;
+    private final ShortBuffer indices;
+    private final Bitmap texture;
+    private final MeshBvh bvh;
+
+    private Assets(
+        FloatBuffer vertices,
+        FloatBuffer texCoords,
+        FloatBuffer normals,
+        ShortBuffer indices,
+        Bitmap texture) {
+      this.vertices = vertices;
+      this.texCoords = texCoords;
+      this.normals = normals;
+      this.indices = indices;
+      this.texture = texture;
+      this.bvh = MeshBvh.fromBuffers(vertices, indices);
+    }
+
+    /** The bounding volume hierarchy of the model's triangles, for picking. */
+    public MeshBvh getBvh() {
+      return bvh;
+    }
+
+    /** Frees the decoded texture. The assets cannot be uploaded afterwards. */
+    public void recycle() {
+      texture.recycle();
+    }
+  }
+
   /**
    * Creates and initializes OpenGL resources needed for rendering the model.
    *
@@ -118,6 +156,67 @@ public class ObjectRenderer {
    */
   public void createOnGlThread(Context context, String objAssetName, String diffuseTextureAssetName)
       throws IOException {
+    createProgramOnGlThread(context);
+    Assets assets = loadAssets(context, objAssetName, diffuseTextureAssetName);
+    uploadOnGlThread(assets);
+    assets.recycle();
+  }
+
+  /**
+   * Reads and decodes the model geometry and texture. Does not touch OpenGL, so it can run on a
+   * background thread while the GL thread compiles shaders.
+   *
+   * @param context Context for loading the below-named model and texture assets.
+   * @param objAssetName Name of the OBJ file containing the model geometry.
+   * @param diffuseTextureAssetName Name of the PNG file containing the diffuse texture map.
+   */
+  public static Assets loadAssets(
+      Context context, String objAssetName, String diffuseTextureAssetName) throws IOException {
+    // Read the texture.
+    Bitmap textureBitmap =
+        BitmapFactory.decodeStream(context.getAssets().open(diffuseTextureAssetName));
+
+    // Read the obj file.
+    InputStream objInputStream = context.getAssets().open(objAssetName);
+    Obj obj = ObjReader.read(objInputStream);
+
+    // Prepare the Obj so that its structure is suitable for
+    // rendering with OpenGL:
+    // 1. Triangulate it
+    // 2. Make sure that texture coordinates are not ambiguous
+    // 3. Make sure that normals are not ambiguous
+    // 4. Convert it to single-indexed data
+    obj = ObjUtils.convertToRenderable(obj);
+
+    // OpenGL does not use Java arrays. ByteBuffers are used instead to provide data in a format
+    // that OpenGL understands.
+
+    // Obtain the data from the OBJ, as direct buffers:
+    IntBuffer wideIndices = ObjData.getFaceVertexIndices(obj, 3);
+    FloatBuffer vertices = ObjData.getVertices(obj);
+    FloatBuffer texCoords = ObjData.getTexCoords(obj, 2);
+    FloatBuffer normals = ObjData.getNormals(obj);
+
+    // Convert int indices to shorts for GL ES 2.0 compatibility
+    ShortBuffer indices =
+        ByteBuffer.allocateDirect(2 * wideIndices.limit())
+            .order(ByteOrder.nativeOrder())
+            .asShortBuffer();
+    while (wideIndices.hasRemaining()) {
+      indices.put((short) wideIndices.get());
+    }
+    indices.rewind();
+
+    return new Assets(vertices, texCoords, normals, indices, textureBitmap);
+  }
+
+  /**
+   * Compiles and links the shaders. Must be called on the OpenGL thread before {@link
+   * #uploadOnGlThread}.
+   *
+   * @param context Context for loading the shader.
+   */
+  public void createProgramOnGlThread(Context context) throws IOException {
     final int vertexShader =
         ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
     final int fragmentShader =
@@ -148,10 +247,14 @@ public class ObjectRenderer {
 
     ShaderUtil.checkGLError(TAG, "Program parameters");
 
-    // Read the texture.
-    Bitmap textureBitmap =
-        BitmapFactory.decodeStream(context.getAssets().open(diffuseTextureAssetName));
+    Matrix.setIdentityM(modelMatrix, 0);
+  }
 
+  /**
+   * Uploads decoded assets to the GPU. Must be called on the OpenGL thread. The assets are not
+   * recycled, so they can be uploaded again if the GL context is lost.
+   */
+  public void uploadOnGlThread(Assets assets) {
     GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
     GLES20.glGenTextures(textures.length, textures, 0);
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
@@ -159,44 +262,16 @@ public class ObjectRenderer {
     GLES20.glTexParameteri(
         GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
     GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
+    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, assets.texture, 0);
     GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
 
-    textureBitmap.recycle();
-
     ShaderUtil.checkGLError(TAG, "Texture loading");
 
-    // Read the obj file.
-    InputStream objInputStream = context.getAssets().open(objAssetName);
-    Obj obj = ObjReader.read(objInputStream);
-
-    // Prepare the Obj so that its structure is suitable for
-    // rendering with OpenGL:
-    // 1. Triangulate it
-    // 2. Make sure that texture coordinates are not ambiguous
-    // 3. Make sure that normals are not ambiguous
-    // 4. Convert it to single-indexed data
-    obj = ObjUtils.convertToRenderable(obj);
-
-    // OpenGL does not use Java arrays. ByteBuffers are used instead to provide data in a format
-    // that OpenGL understands.
-
-    // Obtain the data from the OBJ, as direct buffers:
-    IntBuffer wideIndices = ObjData.getFaceVertexIndices(obj, 3);
-    FloatBuffer vertices = ObjData.getVertices(obj);
-    FloatBuffer texCoords = ObjData.getTexCoords(obj, 2);
-    FloatBuffer normals = ObjData.getNormals(obj);
-
-    // Convert int indices to shorts for GL ES 2.0 compatibility
-    ShortBuffer indices =
-        ByteBuffer.allocateDirect(2 * wideIndices.limit())
-            .order(ByteOrder.nativeOrder())
-            .asShortBuffer();
-    while (wideIndices.hasRemaining()) {
-      indices.put((short) wideIndices.get());
-    }
-    indices.rewind();
+    FloatBuffer vertices = assets.vertices;
+    FloatBuffer texCoords = assets.texCoords;
+    FloatBuffer normals = assets.normals;
+    ShortBuffer indices = assets.indices;
 
     int[] buffers = new int[2];
     GLES20.glGenBuffers(2, buffers, 0);
@@ -227,8 +302,6 @@ public class ObjectRenderer {
     GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
 
     ShaderUtil.checkGLError(TAG, "OBJ buffer load");
-
-    Matrix.setIdentityM(modelMatrix, 0);
   }
 
   /**
@@ -248,7 +321,6 @@ public class ObjectRenderer {
    * @see Matrix
    */
   public void updateModelMatrix(float[] modelMatrix, float scaleFactor) {
-    float[] scaleMatrix = new float[16];
     Matrix.setIdentityM(scaleMatrix, 0);
     scaleMatrix[0] = scaleFactor;
     scaleMatrix[5] = scaleFactor;
@@ -294,25 +366,24 @@ public class ObjectRenderer {
       float[] cameraPerspective,
       float[] colorCorrectionRgba,
       float[] objColor) {
+    Matrix.multiplyMM(viewProjectionMatrix, 0, cameraPerspective, 0, cameraView, 0);
+    beginDraw(colorCorrectionRgba, objColor);
+    drawModel(modelMatrix, 0, cameraView, viewProjectionMatrix);
+    endDraw();
+  }
 
+  /**
+   * Sets up the state shared by every copy of the model drawn until {@link #endDraw()}, so that
+   * several placements can be drawn with one renderer by calling {@link #drawModel} for each.
+   *
+   * @param colorCorrectionRgba The light estimate color correction, see {@code LightEstimate}.
+   * @param objColor The object color, applied to the grayscale texture if its alpha is 255.
+   */
+  public void beginDraw(float[] colorCorrectionRgba, float[] objColor) {
     ShaderUtil.checkGLError(TAG, "Before draw");
 
-    // Build the ModelView and ModelViewProjection matrices
-    // for calculating object position and light.
-    Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
-    Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
-
     GLES20.glUseProgram(program);
 
-    // Set the lighting environment properties.
-    Matrix.multiplyMV(viewLightDirection, 0, modelViewMatrix, 0, LIGHT_DIRECTION, 0);
-    normalizeVec3(viewLightDirection);
-    GLES20.glUniform4f(
-        lightingParametersUniform,
-        viewLightDirection[0],
-        viewLightDirection[1],
-        viewLightDirection[2],
-        1.f);
     GLES20.glUniform4fv(colorCorrectionParameterUniform, 1, colorCorrectionRgba, 0);
 
     // Set the object color property.
@@ -337,10 +408,6 @@ public class ObjectRenderer {
 
     GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
-    // Set the ModelViewProjection matrix in the shader.
-    GLES20.glUniformMatrix4fv(modelViewUniform, 1, false, modelViewMatrix, 0);
-    GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
-
     // Enable vertex arrays
     GLES20.glEnableVertexAttribArray(positionAttribute);
     GLES20.glEnableVertexAttribArray(normalAttribute);
@@ -362,7 +429,43 @@ public class ObjectRenderer {
     }
 
     GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+  }
+
+  /**
+   * Draws one copy of the model. Must be called between {@link #beginDraw} and {@link #endDraw()}.
+   *
+   * @param modelMatrix A 4x4 model-to-world matrix, in column-major order, starting at {@code
+   *     modelOffset}.
+   * @param cameraView A 4x4 view matrix, in column-major order.
+   * @param viewProjection The projection matrix multiplied by the view matrix, computed once per
+   *     frame by the caller.
+   */
+  public void drawModel(
+      float[] modelMatrix, int modelOffset, float[] cameraView, float[] viewProjection) {
+    // Build the ModelView and ModelViewProjection matrices
+    // for calculating object position and light.
+    Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, modelOffset);
+    Matrix.multiplyMM(modelViewProjectionMatrix, 0, viewProjection, 0, modelMatrix, modelOffset);
+
+    // Set the lighting environment properties.
+    Matrix.multiplyMV(viewLightDirection, 0, modelViewMatrix, 0, LIGHT_DIRECTION, 0);
+    normalizeVec3(viewLightDirection);
+    GLES20.glUniform4f(
+        lightingParametersUniform,
+        viewLightDirection[0],
+        viewLightDirection[1],
+        viewLightDirection[2],
+        1.f);
+
+    // Set the ModelViewProjection matrix in the shader.
+    GLES20.glUniformMatrix4fv(modelViewUniform, 1, false, modelViewMatrix, 0);
+    GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
+
     GLES20.glDrawElements(GLES20.GL_TRIANGLES, indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
+  }
+
+  /** Restores the state changed by {@link #beginDraw}. */
+  public void endDraw() {
     GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
 
     if (blendMode != null) {
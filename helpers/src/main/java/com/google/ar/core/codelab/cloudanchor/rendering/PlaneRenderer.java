@@ -26,17 +26,13 @@ import com.google.ar.core.Plane;
 import com.google.ar.core.Pose;
 import com.google.ar.core.TrackingState;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 
 /** Renders the detected AR planes. */
 public class PlaneRenderer {
@@ -47,23 +43,8 @@ public class PlaneRenderer {
   private static final String FRAGMENT_SHADER_NAME = "shaders/plane.frag";
 
   private static final int BYTES_PER_FLOAT = Float.SIZE / 8;
-  private static final int BYTES_PER_SHORT = Short.SIZE / 8;
-  private static final int COORDS_PER_VERTEX = 3; // x, z, alpha
+  private static final int COORDS_PER_VERTEX = PlaneTessellator.COORDS_PER_VERTEX;
 
-  private static final int VERTS_PER_BOUNDARY_VERT = 2;
-  private static final int INDICES_PER_BOUNDARY_VERT = 3;
-  private static final int INITIAL_BUFFER_BOUNDARY_VERTS = 64;
-
-  private static final int INITIAL_VERTEX_BUFFER_SIZE_BYTES =
-      BYTES_PER_FLOAT * COORDS_PER_VERTEX * VERTS_PER_BOUNDARY_VERT * INITIAL_BUFFER_BOUNDARY_VERTS;
-
-  private static final int INITIAL_INDEX_BUFFER_SIZE_BYTES =
-      BYTES_PER_SHORT
-          * INDICES_PER_BOUNDARY_VERT
-          * INDICES_PER_BOUNDARY_VERT
-          * INITIAL_BUFFER_BOUNDARY_VERTS;
-
-  private static final float FADE_RADIUS_M = 0.25f;
   private static final float DOTS_PER_METER = 10.0f;
   private static final float EQUILATERAL_TRIANGLE_SCALE = (float) (1 / Math.sqrt(3));
 
@@ -88,14 +69,7 @@ public class PlaneRenderer {
   private int gridControlUniform;
   private int planeUvMatrixUniform;
 
-  private FloatBuffer vertexBuffer =
-      ByteBuffer.allocateDirect(INITIAL_VERTEX_BUFFER_SIZE_BYTES)
-          .order(ByteOrder.nativeOrder())
-          .asFloatBuffer();
-  private ShortBuffer indexBuffer =
-      ByteBuffer.allocateDirect(INITIAL_INDEX_BUFFER_SIZE_BYTES)
-          .order(ByteOrder.nativeOrder())
-          .asShortBuffer();
+  private final PlaneTessellator tessellator = new PlaneTessellator();
 
   // Temporary lists/matrices allocated here to reduce number of allocations for each frame.
   private final float[] modelMatrix = new float[16];
@@ -104,11 +78,31 @@ public class PlaneRenderer {
   private final float[] planeColor = new float[] {1f, 1f, 1f, 1f};
   private final float[] planeAngleUvMatrix =
       new float[4]; // 2x2 rotation matrix applied to uv coords.
+  private final float[] planeMatrix = new float[16];
+  private final float[] planeNormal = new float[3];
+  private final float[] cameraViewMatrix = new float[16];
+
+  // Planes and center poses of this frame, indexed by the entries of the sorter. Grown on demand
+  // and reused every frame.
+  private final PlaneSorter planeSorter = new PlaneSorter();
+  private Plane[] framePlanes = new Plane[8];
+  private Pose[] frameCenterPoses = new Pose[8];
+  private int framePlaneCount;
 
   private final Map<Plane, Integer> planeIndexMap = new HashMap<>();
 
+  private int maxPlanes = Integer.MAX_VALUE;
+
   public PlaneRenderer() {}
 
+  /**
+   * Limits how many planes are drawn per frame. Only the planes closest to the camera are drawn,
+   * which reduces the blended fill when many large planes are visible.
+   */
+  public void setMaxPlanes(int maxPlanes) {
+    this.maxPlanes = maxPlanes;
+  }
+
   /**
    * Allocates and initializes OpenGL resources needed by the plane renderer. Must be called on the
    * OpenGL thread, typically in {@link GLSurfaceView.Renderer#onSurfaceCreated(GL10, EGLConfig)}.
@@ -117,6 +111,28 @@ public class PlaneRenderer {
    * @param gridDistanceTextureName Name of the PNG file containing the grid texture.
    */
   public void createOnGlThread(Context context, String gridDistanceTextureName) throws IOException {
+    createProgramOnGlThread(context);
+    uploadOnGlThread(loadGridTexture(context, gridDistanceTextureName));
+  }
+
+  /**
+   * Decodes the grid texture. Does not touch OpenGL, so it can run on a background thread.
+   *
+   * @param context Needed to access the texture PNG.
+   * @param gridDistanceTextureName Name of the PNG file containing the grid texture.
+   */
+  public static Bitmap loadGridTexture(Context context, String gridDistanceTextureName)
+      throws IOException {
+    return BitmapFactory.decodeStream(context.getAssets().open(gridDistanceTextureName));
+  }
+
+  /**
+   * Compiles and links the shaders. Must be called on the OpenGL thread before {@link
+   * #uploadOnGlThread}.
+   *
+   * @param context Needed to access shader source.
+   */
+  public void createProgramOnGlThread(Context context) throws IOException {
     int vertexShader =
         ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
     int passthroughShader =
@@ -130,23 +146,6 @@ public class PlaneRenderer {
 
     ShaderUtil.checkGLError(TAG, "Program creation");
 
-    // Read the texture.
-    Bitmap textureBitmap =
-        BitmapFactory.decodeStream(context.getAssets().open(gridDistanceTextureName));
-
-    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-    GLES20.glGenTextures(textures.length, textures, 0);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-
-    GLES20.glTexParameteri(
-        GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
-    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
-    GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-
-    ShaderUtil.checkGLError(TAG, "Texture loading");
-
     planeXZPositionAlphaAttribute = GLES20.glGetAttribLocation(planeProgram, "a_XZPositionAlpha");
 
     planeModelUniform = GLES20.glGetUniformLocation(planeProgram, "u_Model");
@@ -162,96 +161,48 @@ public class PlaneRenderer {
     ShaderUtil.checkGLError(TAG, "Program parameters");
   }
 
+  /**
+   * Uploads the decoded grid texture to the GPU. Must be called on the OpenGL thread.
+   *
+   * @param gridTexture The grid texture, as returned by {@link #loadGridTexture}.
+   */
+  public void uploadOnGlThread(Bitmap gridTexture) {
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glGenTextures(textures.length, textures, 0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+
+    GLES20.glTexParameteri(
+        GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, gridTexture, 0);
+    GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+    ShaderUtil.checkGLError(TAG, "Texture loading");
+  }
+
   /** Updates the plane model transform matrix and extents. */
   private void updatePlaneParameters(
       float[] planeMatrix, float extentX, float extentZ, FloatBuffer boundary) {
     System.arraycopy(planeMatrix, 0, modelMatrix, 0, 16);
-    if (boundary == null) {
-      vertexBuffer.limit(0);
-      indexBuffer.limit(0);
-      return;
-    }
-
-    // Generate a new set of vertices and a corresponding triangle strip index set so that
-    // the plane boundary polygon has a fading edge. This is done by making a copy of the
-    // boundary polygon vertices and scaling it down around center to push it inwards. Then
-    // the index buffer is setup accordingly.
-    boundary.rewind();
-    int boundaryVertices = boundary.limit() / 2;
-    int numVertices;
-    int numIndices;
-
-    numVertices = boundaryVertices * VERTS_PER_BOUNDARY_VERT;
-    // drawn as GL_TRIANGLE_STRIP with 3n-2 triangles (n-2 for fill, 2n for perimeter).
-    numIndices = boundaryVertices * INDICES_PER_BOUNDARY_VERT;
-
-    if (vertexBuffer.capacity() < numVertices * COORDS_PER_VERTEX) {
-      int size = vertexBuffer.capacity();
-      while (size < numVertices * COORDS_PER_VERTEX) {
-        size *= 2;
-      }
-      vertexBuffer =
-          ByteBuffer.allocateDirect(BYTES_PER_FLOAT * size)
-              .order(ByteOrder.nativeOrder())
-              .asFloatBuffer();
-    }
-    vertexBuffer.rewind();
-    vertexBuffer.limit(numVertices * COORDS_PER_VERTEX);
-
-    if (indexBuffer.capacity() < numIndices) {
-      int size = indexBuffer.capacity();
-      while (size < numIndices) {
-        size *= 2;
-      }
-      indexBuffer =
-          ByteBuffer.allocateDirect(BYTES_PER_SHORT * size)
-              .order(ByteOrder.nativeOrder())
-              .asShortBuffer();
-    }
-    indexBuffer.rewind();
-    indexBuffer.limit(numIndices);
-
-    // Note: when either dimension of the bounding box is smaller than 2*FADE_RADIUS_M we
-    // generate a bunch of 0-area triangles.  These don't get rendered though so it works
-    // out ok.
-    float xScale = Math.max((extentX - 2 * FADE_RADIUS_M) / extentX, 0.0f);
-    float zScale = Math.max((extentZ - 2 * FADE_RADIUS_M) / extentZ, 0.0f);
-
-    while (boundary.hasRemaining()) {
-      float x = boundary.get();
-      float z = boundary.get();
-      vertexBuffer.put(x);
-      vertexBuffer.put(z);
-      vertexBuffer.put(0.0f);
-      vertexBuffer.put(x * xScale);
-      vertexBuffer.put(z * zScale);
-      vertexBuffer.put(1.0f);
-    }
-
-    // step 1, perimeter
-    indexBuffer.put((short) ((boundaryVertices - 1) * 2));
-    for (int i = 0; i < boundaryVertices; ++i) {
-      indexBuffer.put((short) (i * 2));
-      indexBuffer.put((short) (i * 2 + 1));
-    }
-    indexBuffer.put((short) 1);
-    // This leaves us on the interior edge of the perimeter between the inset vertices
-    // for boundary verts n-1 and 0.
-
-    // step 2, interior:
-    for (int i = 1; i < boundaryVertices / 2; ++i) {
-      indexBuffer.put((short) ((boundaryVertices - 1 - i) * 2 + 1));
-      indexBuffer.put((short) (i * 2 + 1));
-    }
-    if (boundaryVertices % 2 != 0) {
-      indexBuffer.put((short) ((boundaryVertices / 2) * 2 + 1));
+    if (boundary != null) {
+      boundary.rewind();
     }
+    tessellator.tessellate(extentX, extentZ, boundary);
   }
 
-  private void draw(float[] cameraView, float[] cameraPerspective, float[] planeNormal) {
+  private void draw(
+      float[] cameraView,
+      float[] cameraPerspective,
+      float[] modelMatrix,
+      int modelMatrixOffset,
+      float[] planeNormal,
+      int planeNormalOffset,
+      FloatBuffer vertexBuffer,
+      ShortBuffer indexBuffer) {
     // Build the ModelView and ModelViewProjection matrices
     // for calculating cube position and light.
-    Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
+    Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, modelMatrixOffset);
     Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
 
     // Set the position of the plane
@@ -265,8 +216,12 @@ public class PlaneRenderer {
         vertexBuffer);
 
     // Set the Model and ModelViewProjection matrices in the shader.
-    GLES20.glUniformMatrix4fv(planeModelUniform, 1, false, modelMatrix, 0);
-    GLES20.glUniform3f(planeNormalUniform, planeNormal[0], planeNormal[1], planeNormal[2]);
+    GLES20.glUniformMatrix4fv(planeModelUniform, 1, false, modelMatrix, modelMatrixOffset);
+    GLES20.glUniform3f(
+        planeNormalUniform,
+        planeNormal[planeNormalOffset],
+        planeNormal[planeNormalOffset + 1],
+        planeNormal[planeNormalOffset + 2]);
     GLES20.glUniformMatrix4fv(
         planeModelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
 
@@ -276,52 +231,147 @@ public class PlaneRenderer {
     ShaderUtil.checkGLError(TAG, "Drawing plane");
   }
 
-  static class SortablePlane {
-    final float distance;
-    final Plane plane;
-
-    SortablePlane(float distance, Plane plane) {
-      this.distance = distance;
-      this.plane = plane;
-    }
-  }
-
   /**
    * Draws the collection of tracked planes, with closer planes hiding more distant ones.
    *
+   * <p>This variant derives the view matrix from {@code cameraPose}, which allocates. Prefer
+   * {@link #drawPlanes(Collection, Pose, float[], float[])} in the render loop.
+   *
    * @param allPlanes The collection of planes to draw.
    * @param cameraPose The pose of the camera, as returned by {@link Camera#getPose()}
    * @param cameraPerspective The projection matrix, as returned by {@link
    *     Camera#getProjectionMatrix(float[], int, float, float)}
    */
   public void drawPlanes(Collection<Plane> allPlanes, Pose cameraPose, float[] cameraPerspective) {
+    cameraPose.inverse().toMatrix(cameraViewMatrix, 0);
+    drawPlanes(allPlanes, cameraPose, cameraViewMatrix, cameraPerspective);
+  }
+
+  /**
+   * Draws the collection of tracked planes, with closer planes hiding more distant ones. Does not
+   * allocate once the internal sort pool has grown to the number of visible planes.
+   *
+   * @param allPlanes The collection of planes to draw.
+   * @param cameraPose The pose of the camera, as returned by {@link
+   *     Camera#getDisplayOrientedPose()}
+   * @param cameraView The view matrix matching {@code cameraPose}, as returned by {@link
+   *     Camera#getViewMatrix(float[], int)}
+   * @param cameraPerspective The projection matrix, as returned by {@link
+   *     Camera#getProjectionMatrix(float[], int, float, float)}
+   */
+  public void drawPlanes(
+      Collection<Plane> allPlanes, Pose cameraPose, float[] cameraView, float[] cameraPerspective) {
     // Planes must be sorted by distance from camera so that we draw closer planes first, and
     // they occlude the farther planes.
-    List<SortablePlane> sortedPlanes = new ArrayList<>();
+    planeSorter.clear();
+    framePlaneCount = 0;
+    if (allPlanes instanceof List && allPlanes instanceof RandomAccess) {
+      // Index the list directly to avoid allocating an iterator every frame.
+      List<Plane> planeList = (List<Plane>) allPlanes;
+      for (int i = 0; i < planeList.size(); i++) {
+        addSortablePlane(planeList.get(i), cameraPose);
+      }
+    } else {
+      for (Plane plane : allPlanes) {
+        addSortablePlane(plane, cameraPose);
+      }
+    }
+    planeSorter.sort();
 
-    for (Plane plane : allPlanes) {
-      if (plane.getTrackingState() != TrackingState.TRACKING || plane.getSubsumedBy() != null) {
-        continue;
+    beginDrawingPlanes();
+
+    int drawnPlanes = Math.min(planeSorter.size(), maxPlanes);
+    for (int i = 0; i < drawnPlanes; i++) {
+      Plane plane = framePlanes[planeSorter.getIndex(i)];
+      Pose centerPose = frameCenterPoses[planeSorter.getIndex(i)];
+      centerPose.toMatrix(planeMatrix, 0);
+
+      // Get transformed Y axis of plane's coordinate system.
+      centerPose.getTransformedAxis(1, 1.0f, planeNormal, 0);
+
+      updatePlaneParameters(
+          planeMatrix, plane.getExtentX(), plane.getExtentZ(), plane.getPolygon());
+
+      // Get plane index. Keep a map to assign same indices to same planes.
+      Integer planeIndex = planeIndexMap.get(plane);
+      if (planeIndex == null) {
+        planeIndex = planeIndexMap.size();
+        planeIndexMap.put(plane, planeIndex);
       }
 
-      float distance = calculateDistanceToPlane(plane.getCenterPose(), cameraPose);
+      setPlaneUniforms(planeIndex);
+      draw(
+          cameraView,
+          cameraPerspective,
+          modelMatrix,
+          0,
+          planeNormal,
+          0,
+          tessellator.getVertexBuffer(),
+          tessellator.getIndexBuffer());
+    }
+
+    // Drop references so that the pool does not keep stale planes alive.
+    for (int i = 0; i < framePlaneCount; i++) {
+      framePlanes[i] = null;
+      frameCenterPoses[i] = null;
+    }
+
+    endDrawingPlanes();
+  }
+
+  /**
+   * Draws the planes of a {@link PlaneSnapshot}, with closer planes hiding more distant ones.
+   *
+   * <p>Uses the matrices and geometry cached in the snapshot, so planes that did not change since
+   * the last frame are neither queried from ARCore nor tessellated again. Does not allocate.
+   *
+   * @param planes The planes to draw.
+   * @param cameraPosition The position of the camera in world space, as {x, y, z}.
+   * @param cameraView The view matrix, as returned by {@link Camera#getViewMatrix(float[], int)}
+   * @param cameraPerspective The projection matrix, as returned by {@link
+   *     Camera#getProjectionMatrix(float[], int, float, float)}
+   */
+  public void drawPlanes(
+      PlaneSnapshot planes, float[] cameraPosition, float[] cameraView, float[] cameraPerspective) {
+    float[] poses = planes.getPoses();
+    planeSorter.clear();
+    for (int slot = 0; slot < planes.size(); slot++) {
+      if (!planes.isDrawable(slot)) {
+        continue;
+      }
+      int p = slot * 7;
+      float distance =
+          PlaneSorter.distanceToPlane(
+              poses[p], poses[p + 1], poses[p + 2],
+              poses[p + 3], poses[p + 4], poses[p + 5], poses[p + 6],
+              cameraPosition[0], cameraPosition[1], cameraPosition[2]);
       if (distance < 0) { // Plane is back-facing.
         continue;
       }
-      sortedPlanes.add(new SortablePlane(distance, plane));
+      planeSorter.add(slot, distance);
     }
-    Collections.sort(
-        sortedPlanes,
-        new Comparator<SortablePlane>() {
-          @Override
-          public int compare(SortablePlane a, SortablePlane b) {
-            return Float.compare(a.distance, b.distance);
-          }
-        });
-
-    float[] cameraView = new float[16];
-    cameraPose.inverse().toMatrix(cameraView, 0);
+    planeSorter.sort();
+
+    beginDrawingPlanes();
+    int drawnPlanes = Math.min(planeSorter.size(), maxPlanes);
+    for (int i = 0; i < drawnPlanes; i++) {
+      int slot = planeSorter.getIndex(i);
+      setPlaneUniforms(planes.getId(slot));
+      draw(
+          cameraView,
+          cameraPerspective,
+          planes.getModelMatrices(),
+          slot * 16,
+          planes.getNormals(),
+          slot * 3,
+          planes.getVertexBuffer(slot),
+          planes.getIndexBuffer(slot));
+    }
+    endDrawingPlanes();
+  }
 
+  private void beginDrawingPlanes() {
     // Planes are drawn with additive blending, masked by the alpha channel for occlusion.
 
     // Start by clearing the alpha channel of the color buffer to 1.0.
@@ -354,44 +404,26 @@ public class PlaneRenderer {
     GLES20.glEnableVertexAttribArray(planeXZPositionAlphaAttribute);
 
     ShaderUtil.checkGLError(TAG, "Setting up to draw planes");
+  }
 
-    for (SortablePlane sortedPlane : sortedPlanes) {
-      Plane plane = sortedPlane.plane;
-      float[] planeMatrix = new float[16];
-      plane.getCenterPose().toMatrix(planeMatrix, 0);
-
-      float[] normal = new float[3];
-      // Get transformed Y axis of plane's coordinate system.
-      plane.getCenterPose().getTransformedAxis(1, 1.0f, normal, 0);
-
-      updatePlaneParameters(
-          planeMatrix, plane.getExtentX(), plane.getExtentZ(), plane.getPolygon());
-
-      // Get plane index. Keep a map to assign same indices to same planes.
-      Integer planeIndex = planeIndexMap.get(plane);
-      if (planeIndex == null) {
-        planeIndex = planeIndexMap.size();
-        planeIndexMap.put(plane, planeIndex);
-      }
-
-      // Set plane color.
-      GLES20.glUniform4fv(lineColorUniform, 1, planeColor, 0);
-      GLES20.glUniform4fv(dotColorUniform, 1, planeColor, 0);
-
-      // Each plane will have its own angle offset from others, to make them easier to
-      // distinguish. Compute a 2x2 rotation matrix from the angle.
-      float angleRadians = planeIndex * 0.144f;
-      float uScale = DOTS_PER_METER;
-      float vScale = DOTS_PER_METER * EQUILATERAL_TRIANGLE_SCALE;
-      planeAngleUvMatrix[0] = +(float) Math.cos(angleRadians) * uScale;
-      planeAngleUvMatrix[1] = -(float) Math.sin(angleRadians) * vScale;
-      planeAngleUvMatrix[2] = +(float) Math.sin(angleRadians) * uScale;
-      planeAngleUvMatrix[3] = +(float) Math.cos(angleRadians) * vScale;
-      GLES20.glUniformMatrix2fv(planeUvMatrixUniform, 1, false, planeAngleUvMatrix, 0);
-
-      draw(cameraView, cameraPerspective, normal);
-    }
+  private void setPlaneUniforms(int planeIndex) {
+    // Set plane color.
+    GLES20.glUniform4fv(lineColorUniform, 1, planeColor, 0);
+    GLES20.glUniform4fv(dotColorUniform, 1, planeColor, 0);
+
+    // Each plane will have its own angle offset from others, to make them easier to
+    // distinguish. Compute a 2x2 rotation matrix from the angle.
+    float angleRadians = planeIndex * 0.144f;
+    float uScale = DOTS_PER_METER;
+    float vScale = DOTS_PER_METER * EQUILATERAL_TRIANGLE_SCALE;
+    planeAngleUvMatrix[0] = +(float) Math.cos(angleRadians) * uScale;
+    planeAngleUvMatrix[1] = -(float) Math.sin(angleRadians) * vScale;
+    planeAngleUvMatrix[2] = +(float) Math.sin(angleRadians) * uScale;
+    planeAngleUvMatrix[3] = +(float) Math.cos(angleRadians) * vScale;
+    GLES20.glUniformMatrix2fv(planeUvMatrixUniform, 1, false, planeAngleUvMatrix, 0);
+  }
 
+  private void endDrawingPlanes() {
     // Clean up the state we set
     GLES20.glDisableVertexAttribArray(planeXZPositionAlphaAttribute);
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
@@ -402,18 +434,43 @@ public class PlaneRenderer {
     ShaderUtil.checkGLError(TAG, "Cleaning up after drawing planes");
   }
 
+  private void addSortablePlane(Plane plane, Pose cameraPose) {
+    if (plane.getTrackingState() != TrackingState.TRACKING || plane.getSubsumedBy() != null) {
+      return;
+    }
+
+    Pose centerPose = plane.getCenterPose();
+    float distance = calculateDistanceToPlane(centerPose, cameraPose);
+    if (distance < 0) { // Plane is back-facing.
+      return;
+    }
+    if (framePlaneCount == framePlanes.length) {
+      Plane[] grownPlanes = new Plane[framePlaneCount * 2];
+      Pose[] grownPoses = new Pose[framePlaneCount * 2];
+      System.arraycopy(framePlanes, 0, grownPlanes, 0, framePlaneCount);
+      System.arraycopy(frameCenterPoses, 0, grownPoses, 0, framePlaneCount);
+      framePlanes = grownPlanes;
+      frameCenterPoses = grownPoses;
+    }
+    framePlanes[framePlaneCount] = plane;
+    frameCenterPoses[framePlaneCount] = centerPose;
+    planeSorter.add(framePlaneCount, distance);
+    framePlaneCount++;
+  }
+
   // Calculate the normal distance to plane from cameraPose, the given planePose should have y axis
   // parallel to plane's normal, for example plane's center pose or hit test pose.
   public static float calculateDistanceToPlane(Pose planePose, Pose cameraPose) {
-    float[] normal = new float[3];
-    float cameraX = cameraPose.tx();
-    float cameraY = cameraPose.ty();
-    float cameraZ = cameraPose.tz();
-    // Get transformed Y axis of plane's coordinate system.
-    planePose.getTransformedAxis(1, 1.0f, normal, 0);
-    // Compute dot product of plane's normal with vector from camera to plane center.
-    return (cameraX - planePose.tx()) * normal[0]
-        + (cameraY - planePose.ty()) * normal[1]
-        + (cameraZ - planePose.tz()) * normal[2];
+    return PlaneSorter.distanceToPlane(
+        planePose.tx(),
+        planePose.ty(),
+        planePose.tz(),
+        planePose.qx(),
+        planePose.qy(),
+        planePose.qz(),
+        planePose.qw(),
+        cameraPose.tx(),
+        cameraPose.ty(),
+        cameraPose.tz());
   }
 }
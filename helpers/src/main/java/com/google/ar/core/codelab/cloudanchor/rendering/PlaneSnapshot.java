@@ -0,0 +1,249 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * The planes of the session as of the latest frame, kept up to date incrementally.
+ *
+ * <p>Only planes that changed in a frame are passed to {@link #updatePlane}. Their state, model
+ * matrix, normal and tessellated geometry are cached in a slot, so unchanged planes cost nothing
+ * to keep and consumers such as {@link PlaneRenderer} read everything from here instead of calling
+ * into ARCore for every plane every frame.
+ *
+ * <p>Planes are identified by small non-negative IDs chosen by the caller, for example in the
+ * order in which they were first seen. Slots are dense, so consumers iterate {@code 0..size()-1};
+ * removing a plane moves the last slot into its place. This class has no GL or ARCore dependencies
+ * and is not thread safe.
+ */
+public class PlaneSnapshot {
+  private static final int FLOATS_PER_POSE = 7;
+  private static final int NO_SLOT = -1;
+
+  private int[] slotOfId = new int[0];
+  private int size;
+  private int trackingPlaneCount;
+
+  private int[] ids = new int[0];
+  private boolean[] tracking = new boolean[0];
+  private boolean[] subsumed = new boolean[0];
+  private float[] poses = new float[0];
+  private float[] modelMatrices = new float[0];
+  private float[] normals = new float[0];
+  private PlaneTessellator[] tessellators = new PlaneTessellator[0];
+
+  private long updates;
+
+  /**
+   * Adds a plane or refreshes a plane that changed in this frame.
+   *
+   * @param id the caller-chosen ID of the plane.
+   * @param isTracking whether the plane's tracking state is {@code TRACKING}.
+   * @param isSubsumed whether the plane was subsumed by another plane.
+   * @param pose the center pose as tx, ty, tz, qx, qy, qz, qw, starting at index 0.
+   * @param polygon the boundary polygon as X,Z pairs, between its position and its limit.
+   */
+  public void updatePlane(
+      int id,
+      boolean isTracking,
+      boolean isSubsumed,
+      float[] pose,
+      float extentX,
+      float extentZ,
+      FloatBuffer polygon) {
+    int slot = id < slotOfId.length ? slotOfId[id] : NO_SLOT;
+    if (slot == NO_SLOT) {
+      slot = addSlot(id);
+    } else if (tracking[slot]) {
+      trackingPlaneCount--;
+    }
+    tracking[slot] = isTracking;
+    subsumed[slot] = isSubsumed;
+    if (isTracking) {
+      trackingPlaneCount++;
+    }
+    System.arraycopy(pose, 0, poses, slot * FLOATS_PER_POSE, FLOATS_PER_POSE);
+    updateMatrixAndNormal(slot);
+    tessellators[slot].tessellate(extentX, extentZ, polygon);
+    updates++;
+  }
+
+  /** Removes a plane, e.g. because it stopped tracking. Unknown IDs are ignored. */
+  public void removePlane(int id) {
+    int slot = id < slotOfId.length ? slotOfId[id] : NO_SLOT;
+    if (slot == NO_SLOT) {
+      return;
+    }
+    if (tracking[slot]) {
+      trackingPlaneCount--;
+    }
+    slotOfId[id] = NO_SLOT;
+    int last = --size;
+    if (slot != last) {
+      ids[slot] = ids[last];
+      tracking[slot] = tracking[last];
+      subsumed[slot] = subsumed[last];
+      System.arraycopy(
+          poses, last * FLOATS_PER_POSE, poses, slot * FLOATS_PER_POSE, FLOATS_PER_POSE);
+      System.arraycopy(modelMatrices, last * 16, modelMatrices, slot * 16, 16);
+      System.arraycopy(normals, last * 3, normals, slot * 3, 3);
+      // Swap rather than copy, so both slots keep their own buffers.
+      PlaneTessellator removed = tessellators[slot];
+      tessellators[slot] = tessellators[last];
+      tessellators[last] = removed;
+      slotOfId[ids[slot]] = slot;
+    }
+  }
+
+  /** Removes every plane. */
+  public void clear() {
+    for (int i = 0; i < size; i++) {
+      slotOfId[ids[i]] = NO_SLOT;
+    }
+    size = 0;
+    trackingPlaneCount = 0;
+  }
+
+  /** Number of planes held. */
+  public int size() {
+    return size;
+  }
+
+  /** Whether any plane is tracking, including planes that were subsumed. */
+  public boolean hasTrackingPlane() {
+    return trackingPlaneCount > 0;
+  }
+
+  /** Total number of {@link #updatePlane} calls, to measure how much work was incremental. */
+  public long getUpdateCount() {
+    return updates;
+  }
+
+  public int getId(int slot) {
+    return ids[slot];
+  }
+
+  /** Whether the plane in {@code slot} should be drawn: tracking and not subsumed. */
+  public boolean isDrawable(int slot) {
+    return tracking[slot] && !subsumed[slot];
+  }
+
+  /** The center poses; the plane in slot i starts at index {@code i * 7}. */
+  public float[] getPoses() {
+    return poses;
+  }
+
+  /** The model matrices, column-major; the plane in slot i starts at index {@code i * 16}. */
+  public float[] getModelMatrices() {
+    return modelMatrices;
+  }
+
+  /** The plane normals in world space; the plane in slot i starts at index {@code i * 3}. */
+  public float[] getNormals() {
+    return normals;
+  }
+
+  /** The tessellated vertices of the plane in {@code slot}, see {@link PlaneTessellator}. */
+  public FloatBuffer getVertexBuffer(int slot) {
+    return tessellators[slot].getVertexBuffer();
+  }
+
+  /** The tessellated triangle strip indices of the plane in {@code slot}. */
+  public ShortBuffer getIndexBuffer(int slot) {
+    return tessellators[slot].getIndexBuffer();
+  }
+
+  private int addSlot(int id) {
+    if (id >= slotOfId.length) {
+      int oldLength = slotOfId.length;
+      int[] grown = new int[Math.max(id + 1, oldLength * 2)];
+      System.arraycopy(slotOfId, 0, grown, 0, oldLength);
+      for (int i = oldLength; i < grown.length; i++) {
+        grown[i] = NO_SLOT;
+      }
+      slotOfId = grown;
+    }
+    if (size == ids.length) {
+      growSlots(Math.max(8, size * 2));
+    }
+    int slot = size++;
+    ids[slot] = id;
+    tracking[slot] = false;
+    slotOfId[id] = slot;
+    return slot;
+  }
+
+  private void growSlots(int capacity) {
+    int[] grownIds = new int[capacity];
+    boolean[] grownTracking = new boolean[capacity];
+    boolean[] grownSubsumed = new boolean[capacity];
+    float[] grownPoses = new float[capacity * FLOATS_PER_POSE];
+    float[] grownMatrices = new float[capacity * 16];
+    float[] grownNormals = new float[capacity * 3];
+    PlaneTessellator[] grownTessellators = new PlaneTessellator[capacity];
+    System.arraycopy(ids, 0, grownIds, 0, size);
+    System.arraycopy(tracking, 0, grownTracking, 0, size);
+    System.arraycopy(subsumed, 0, grownSubsumed, 0, size);
+    System.arraycopy(poses, 0, grownPoses, 0, size * FLOATS_PER_POSE);
+    System.arraycopy(modelMatrices, 0, grownMatrices, 0, size * 16);
+    System.arraycopy(normals, 0, grownNormals, 0, size * 3);
+    System.arraycopy(tessellators, 0, grownTessellators, 0, tessellators.length);
+    for (int i = tessellators.length; i < capacity; i++) {
+      grownTessellators[i] = new PlaneTessellator();
+    }
+    ids = grownIds;
+    tracking = grownTracking;
+    subsumed = grownSubsumed;
+    poses = grownPoses;
+    modelMatrices = grownMatrices;
+    normals = grownNormals;
+    tessellators = grownTessellators;
+  }
+
+  /** Same matrix as {@code Pose.toMatrix()}, computed from the cached pose. */
+  private void updateMatrixAndNormal(int slot) {
+    int p = slot * FLOATS_PER_POSE;
+    float tx = poses[p];
+    float ty = poses[p + 1];
+    float tz = poses[p + 2];
+    float qx = poses[p + 3];
+    float qy = poses[p + 4];
+    float qz = poses[p + 5];
+    float qw = poses[p + 6];
+    int m = slot * 16;
+    modelMatrices[m] = 1 - 2 * (qy * qy + qz * qz);
+    modelMatrices[m + 1] = 2 * (qx * qy + qz * qw);
+    modelMatrices[m + 2] = 2 * (qx * qz - qy * qw);
+    modelMatrices[m + 3] = 0;
+    modelMatrices[m + 4] = 2 * (qx * qy - qz * qw);
+    modelMatrices[m + 5] = 1 - 2 * (qx * qx + qz * qz);
+    modelMatrices[m + 6] = 2 * (qy * qz + qx * qw);
+    modelMatrices[m + 7] = 0;
+    modelMatrices[m + 8] = 2 * (qx * qz + qy * qw);
+    modelMatrices[m + 9] = 2 * (qy * qz - qx * qw);
+    modelMatrices[m + 10] = 1 - 2 * (qx * qx + qy * qy);
+    modelMatrices[m + 11] = 0;
+    modelMatrices[m + 12] = tx;
+    modelMatrices[m + 13] = ty;
+    modelMatrices[m + 14] = tz;
+    modelMatrices[m + 15] = 1;
+    // The normal is the transformed Y axis, i.e. the second column.
+    normals[slot * 3] = modelMatrices[m + 4];
+    normals[slot * 3 + 1] = modelMatrices[m + 5];
+    normals[slot * 3 + 2] = modelMatrices[m + 6];
+  }
+}
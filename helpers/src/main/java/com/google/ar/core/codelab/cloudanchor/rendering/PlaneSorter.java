@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+/**
+ * Orders planes front to back by their distance from the camera, so that closer planes are drawn
+ * first and occlude farther ones.
+ *
+ * <p>Planes are identified by a caller-chosen index, for example into a pool of {@code Plane}
+ * references. The sorter only holds primitive arrays, grown on demand and reused every frame, and
+ * has no GL or ARCore dependencies.
+ */
+public class PlaneSorter {
+  private int[] indices = new int[8];
+  private float[] distances = new float[8];
+  private int size;
+
+  /** Removes every entry. */
+  public void clear() {
+    size = 0;
+  }
+
+  /** Adds a plane with the given caller-chosen index and distance from the camera. */
+  public void add(int index, float distance) {
+    if (size == indices.length) {
+      int[] grownIndices = new int[size * 2];
+      float[] grownDistances = new float[size * 2];
+      System.arraycopy(indices, 0, grownIndices, 0, size);
+      System.arraycopy(distances, 0, grownDistances, 0, size);
+      indices = grownIndices;
+      distances = grownDistances;
+    }
+    indices[size] = index;
+    distances[size] = distance;
+    size++;
+  }
+
+  /** Sorts the entries by increasing distance. */
+  public void sort() {
+    // Insertion sort: the plane count is small and the order is stable between frames, so this is
+    // close to linear and, unlike Arrays.sort, needs no comparator or temporary array.
+    for (int i = 1; i < size; i++) {
+      int index = indices[i];
+      float distance = distances[i];
+      int j = i - 1;
+      while (j >= 0 && distances[j] > distance) {
+        indices[j + 1] = indices[j];
+        distances[j + 1] = distances[j];
+        j--;
+      }
+      indices[j + 1] = index;
+      distances[j + 1] = distance;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** The caller-chosen index of the i-th entry. */
+  public int getIndex(int i) {
+    return indices[i];
+  }
+
+  /** The distance of the i-th entry. */
+  public float getDistance(int i) {
+    return distances[i];
+  }
+
+  /**
+   * Calculates the normal distance to a plane from a camera position. The plane pose should have
+   * its y axis parallel to the plane's normal, for example a plane's center pose or a hit test
+   * pose. Negative distances mean the plane is back-facing.
+   */
+  public static float distanceToPlane(
+      float planeX,
+      float planeY,
+      float planeZ,
+      float qx,
+      float qy,
+      float qz,
+      float qw,
+      float cameraX,
+      float cameraY,
+      float cameraZ) {
+    // Transformed Y axis of plane's coordinate system, computed from the rotation quaternion so
+    // that no temporary array is needed.
+    float normalX = 2 * (qx * qy - qw * qz);
+    float normalY = 1 - 2 * (qx * qx + qz * qz);
+    float normalZ = 2 * (qy * qz + qw * qx);
+    // Compute dot product of plane's normal with vector from camera to plane center.
+    return (cameraX - planeX) * normalX
+        + (cameraY - planeY) * normalY
+        + (cameraZ - planeZ) * normalZ;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+import java.util.Arrays;
+
+/**
+ * The draw calls of one frame of a {@link SceneGraph}, recorded so that another thread can replay
+ * them with {@link SceneRenderer#draw(RenderCommandList, float[], float[], float[])}.
+ *
+ * <p>Each command is a renderable and the world transform to draw it at, copied out of the scene
+ * in draw list order, so entries with the same renderable stay adjacent. The camera matrices are
+ * not part of the list: they are supplied at replay time, so that content anchored in the world is
+ * drawn from the camera pose of the frame being displayed even if the list was recorded a frame
+ * earlier. Storage grows to the largest scene recorded and is reused after that; recording does
+ * not allocate otherwise.
+ *
+ * <p>This class has no GL or ARCore dependencies and is not thread safe. A list must be handed
+ * between the recording and the replaying thread with a happens-before edge.
+ */
+public class RenderCommandList {
+  private int count;
+  private int[] renderables = new int[0];
+  private float[] modelMatrices = new float[0];
+
+  /** Replaces the commands with the draw list of {@code scene}, which must be up to date. */
+  public void record(SceneGraph scene) {
+    count = scene.getDrawCount();
+    if (renderables.length < count) {
+      int capacity = Math.max(count, renderables.length * 2);
+      renderables = Arrays.copyOf(renderables, capacity);
+      modelMatrices = Arrays.copyOf(modelMatrices, capacity * 16);
+    }
+    float[] worldTransforms = scene.getWorldTransforms();
+    for (int i = 0; i < count; i++) {
+      renderables[i] = scene.getDrawRenderable(i);
+      System.arraycopy(worldTransforms, scene.getDrawNode(i) * 16, modelMatrices, i * 16, 16);
+    }
+  }
+
+  public void clear() {
+    count = 0;
+  }
+
+  /** Number of draw commands. */
+  public int getCount() {
+    return count;
+  }
+
+  public int getRenderable(int i) {
+    return renderables[i];
+  }
+
+  /** The model matrices, column-major; command i starts at index {@code i * 16}. */
+  public float[] getModelMatrices() {
+    return modelMatrices;
+  }
+}
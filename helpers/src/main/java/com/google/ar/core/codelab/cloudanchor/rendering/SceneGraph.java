@@ -0,0 +1,432 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+import java.util.Arrays;
+
+/**
+ * A hierarchy of transforms, typically one root per anchor with the models placed relative to it.
+ *
+ * <p>Nodes are small integer handles into flat arrays: the local and world transforms of node i
+ * are the 16 floats starting at {@code i * 16} of one pool each. Setting a local transform that
+ * differs from the current one marks the node dirty, and {@link #update()} only recomputes the
+ * world transforms of the dirty subtrees. Nodes are kept in depth-first order so that a subtree is
+ * a contiguous range that is recomputed parents first.
+ *
+ * <p>{@link #update()} also keeps a flattened draw list of the visible nodes that have a
+ * renderable, grouped by renderable so that each renderer sets up its state once per frame. The
+ * order and the draw list are only rebuilt when nodes are added or removed, or their visibility
+ * changes. Renderables are small non-negative IDs chosen by the caller, see {@link SceneRenderer}.
+ *
+ * <p>This class has no GL or ARCore dependencies and is not thread safe.
+ */
+public class SceneGraph {
+  public static final int NO_NODE = -1;
+  public static final int NO_RENDERABLE = -1;
+
+  private static final float[] IDENTITY = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+
+  // Per node. Removed nodes are recycled through freeNodes.
+  private int[] parent = new int[0];
+  private int[] firstChild = new int[0];
+  private int[] nextSibling = new int[0];
+  private int[] renderable = new int[0];
+  private boolean[] alive = new boolean[0];
+  private boolean[] visible = new boolean[0];
+  private boolean[] visibleInTree = new boolean[0];
+  private boolean[] dirty = new boolean[0];
+  private float[] localTransforms = new float[0];
+  private float[] worldTransforms = new float[0];
+  // Number of slots handed out so far, including free ones.
+  private int slotCount;
+  private int nodeCount;
+  private int firstRoot = NO_NODE;
+  private int[] freeNodes = new int[0];
+  private int freeNodeCount;
+
+  // Depth-first order, rebuilt when the hierarchy changes.
+  private int[] order = new int[0];
+  private int[] positionOf = new int[0];
+  private int[] subtreeSize = new int[0];
+  private int[] stack = new int[0];
+  private boolean orderDirty;
+
+  // Nodes whose local transform changed since the last update, as positions once sorted.
+  private int[] dirtyNodes = new int[0];
+  private int dirtyNodeCount;
+
+  private int[] drawNodes = new int[0];
+  private int[] drawRenderables = new int[0];
+  private int[] renderableCounts = new int[0];
+  private int drawCount;
+  private boolean drawListDirty;
+  private int drawListVersion;
+
+  private long recomputedTransforms;
+  private final float[] scratch = new float[16];
+
+  /**
+   * Adds a node with an identity local transform.
+   *
+   * @param parentNode the parent, or {@link #NO_NODE} for a root whose local transform is in world
+   *     space, e.g. the pose of an anchor.
+   * @param renderableId what to draw at this node, or {@link #NO_RENDERABLE}.
+   * @return the handle of the node, valid until it is removed.
+   */
+  public int createNode(int parentNode, int renderableId) {
+    if (parentNode != NO_NODE && !isAlive(parentNode)) {
+      throw new IllegalArgumentException("Unknown parent node: " + parentNode);
+    }
+    int node;
+    if (freeNodeCount > 0) {
+      node = freeNodes[--freeNodeCount];
+    } else {
+      if (slotCount == parent.length) {
+        grow(Math.max(16, slotCount * 2));
+      }
+      node = slotCount++;
+    }
+    nodeCount++;
+    alive[node] = true;
+    visible[node] = true;
+    renderable[node] = renderableId;
+    parent[node] = parentNode;
+    firstChild[node] = NO_NODE;
+    if (parentNode == NO_NODE) {
+      nextSibling[node] = firstRoot;
+      firstRoot = node;
+    } else {
+      nextSibling[node] = firstChild[parentNode];
+      firstChild[parentNode] = node;
+    }
+    System.arraycopy(IDENTITY, 0, localTransforms, node * 16, 16);
+    orderDirty = true;
+    return node;
+  }
+
+  /** Removes a node and all of its descendants. */
+  public void removeNode(int node) {
+    if (!isAlive(node)) {
+      return;
+    }
+    unlink(node);
+    // Free the subtree, using the stack since the order may be out of date.
+    int top = 0;
+    stack[top++] = node;
+    while (top > 0) {
+      int n = stack[--top];
+      for (int child = firstChild[n]; child != NO_NODE; child = nextSibling[child]) {
+        stack[top++] = child;
+      }
+      // A dirty flag stays set until the next update, so the node is not listed twice if reused.
+      alive[n] = false;
+      freeNodes[freeNodeCount++] = n;
+      nodeCount--;
+    }
+    orderDirty = true;
+  }
+
+  /** Removes every node. */
+  public void clear() {
+    for (int node = 0; node < slotCount; node++) {
+      alive[node] = false;
+      dirty[node] = false;
+    }
+    slotCount = 0;
+    nodeCount = 0;
+    freeNodeCount = 0;
+    firstRoot = NO_NODE;
+    dirtyNodeCount = 0;
+    orderDirty = true;
+  }
+
+  /**
+   * Sets the transform of a node relative to its parent, as a column-major 4x4 matrix starting at
+   * {@code offset}. The node is only marked dirty if the transform changed.
+   */
+  public void setLocalTransform(int node, float[] matrix, int offset) {
+    int base = node * 16;
+    boolean changed = false;
+    for (int i = 0; i < 16; i++) {
+      if (localTransforms[base + i] != matrix[offset + i]) {
+        localTransforms[base + i] = matrix[offset + i];
+        changed = true;
+      }
+    }
+    if (changed) {
+      markDirty(node);
+    }
+  }
+
+  /** Sets the local transform of a node to a uniform scale. */
+  public void setLocalScale(int node, float scale) {
+    System.arraycopy(IDENTITY, 0, scratch, 0, 16);
+    scratch[0] = scale;
+    scratch[5] = scale;
+    scratch[10] = scale;
+    setLocalTransform(node, scratch, 0);
+  }
+
+  /** Changes what is drawn at a node, e.g. to highlight it. */
+  public void setRenderable(int node, int renderableId) {
+    if (renderable[node] != renderableId) {
+      renderable[node] = renderableId;
+      drawListDirty = true;
+    }
+  }
+
+  /** Shows or hides a node and its descendants. */
+  public void setVisible(int node, boolean isVisible) {
+    if (visible[node] != isVisible) {
+      visible[node] = isVisible;
+      drawListDirty = true;
+    }
+  }
+
+  /**
+   * Brings the world transforms and the draw list up to date. Call once per frame, after the local
+   * transforms were set and before drawing.
+   */
+  public void update() {
+    if (orderDirty) {
+      rebuildOrder();
+      // The hierarchy changed, so recompute everything. This is rare compared to moves.
+      recomputeRange(0, nodeCount);
+      clearDirtyNodes();
+      drawListDirty = true;
+    } else if (dirtyNodeCount > 0) {
+      for (int i = 0; i < dirtyNodeCount; i++) {
+        int node = dirtyNodes[i];
+        dirty[node] = false;
+        dirtyNodes[i] = positionOf[node];
+      }
+      Arrays.sort(dirtyNodes, 0, dirtyNodeCount);
+      // Positions are in depth-first order, so a dirty node inside the range of an earlier one is
+      // already recomputed with it.
+      int coveredEnd = 0;
+      for (int i = 0; i < dirtyNodeCount; i++) {
+        int start = dirtyNodes[i];
+        if (start < coveredEnd) {
+          continue;
+        }
+        coveredEnd = start + subtreeSize[order[start]];
+        recomputeRange(start, coveredEnd);
+      }
+      dirtyNodeCount = 0;
+    }
+    if (drawListDirty) {
+      rebuildDrawList();
+    }
+  }
+
+  /** Number of live nodes. */
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  /** The parent of a node, or {@link #NO_NODE} for a root. */
+  public int getParent(int node) {
+    return parent[node];
+  }
+
+  public int getRenderable(int node) {
+    return renderable[node];
+  }
+
+  public boolean isAlive(int node) {
+    return node >= 0 && node < slotCount && alive[node];
+  }
+
+  /** The world transforms, column-major; node i starts at index {@code i * 16}. */
+  public float[] getWorldTransforms() {
+    return worldTransforms;
+  }
+
+  /** Number of entries in the draw list. */
+  public int getDrawCount() {
+    return drawCount;
+  }
+
+  /** The node of the i-th entry of the draw list. Entries with the same renderable are adjacent. */
+  public int getDrawNode(int i) {
+    return drawNodes[i];
+  }
+
+  public int getDrawRenderable(int i) {
+    return drawRenderables[i];
+  }
+
+  /** Incremented every time the draw list is rebuilt, so that consumers can cache derived data. */
+  public int getDrawListVersion() {
+    return drawListVersion;
+  }
+
+  /** Total number of world transforms computed, to measure how much work dirty flags save. */
+  public long getRecomputedTransforms() {
+    return recomputedTransforms;
+  }
+
+  /**
+   * Multiplies two column-major 4x4 matrices, {@code result = lhs * rhs}. Same as {@code
+   * android.opengl.Matrix.multiplyMM()}; {@code result} must not overlap the inputs.
+   */
+  public static void multiplyMM(
+      float[] result, int resultOffset, float[] lhs, int lhsOffset, float[] rhs, int rhsOffset) {
+    for (int column = 0; column < 4; column++) {
+      float r0 = rhs[rhsOffset + column * 4];
+      float r1 = rhs[rhsOffset + column * 4 + 1];
+      float r2 = rhs[rhsOffset + column * 4 + 2];
+      float r3 = rhs[rhsOffset + column * 4 + 3];
+      for (int row = 0; row < 4; row++) {
+        result[resultOffset + column * 4 + row] =
+            lhs[lhsOffset + row] * r0
+                + lhs[lhsOffset + 4 + row] * r1
+                + lhs[lhsOffset + 8 + row] * r2
+                + lhs[lhsOffset + 12 + row] * r3;
+      }
+    }
+  }
+
+  private void markDirty(int node) {
+    if (!dirty[node]) {
+      dirty[node] = true;
+      dirtyNodes[dirtyNodeCount++] = node;
+    }
+  }
+
+  private void clearDirtyNodes() {
+    for (int i = 0; i < dirtyNodeCount; i++) {
+      dirty[dirtyNodes[i]] = false;
+    }
+    dirtyNodeCount = 0;
+  }
+
+  private void unlink(int node) {
+    int parentNode = parent[node];
+    int first = parentNode == NO_NODE ? firstRoot : firstChild[parentNode];
+    if (first == node) {
+      if (parentNode == NO_NODE) {
+        firstRoot = nextSibling[node];
+      } else {
+        firstChild[parentNode] = nextSibling[node];
+      }
+      return;
+    }
+    for (int sibling = first; sibling != NO_NODE; sibling = nextSibling[sibling]) {
+      if (nextSibling[sibling] == node) {
+        nextSibling[sibling] = nextSibling[node];
+        return;
+      }
+    }
+  }
+
+  private void rebuildOrder() {
+    int count = 0;
+    int top = 0;
+    for (int root = firstRoot; root != NO_NODE; root = nextSibling[root]) {
+      stack[top++] = root;
+    }
+    while (top > 0) {
+      int node = stack[--top];
+      positionOf[node] = count;
+      order[count++] = node;
+      for (int child = firstChild[node]; child != NO_NODE; child = nextSibling[child]) {
+        stack[top++] = child;
+      }
+    }
+    // Subtree sizes, children before parents.
+    for (int position = count - 1; position >= 0; position--) {
+      int node = order[position];
+      int size = 1;
+      for (int child = firstChild[node]; child != NO_NODE; child = nextSibling[child]) {
+        size += subtreeSize[child];
+      }
+      subtreeSize[node] = size;
+    }
+    orderDirty = false;
+  }
+
+  private void recomputeRange(int start, int end) {
+    for (int position = start; position < end; position++) {
+      int node = order[position];
+      int parentNode = parent[node];
+      if (parentNode == NO_NODE) {
+        System.arraycopy(localTransforms, node * 16, worldTransforms, node * 16, 16);
+      } else {
+        multiplyMM(worldTransforms, node * 16, worldTransforms, parentNode * 16,
+            localTransforms, node * 16);
+      }
+    }
+    recomputedTransforms += end - start;
+  }
+
+  private void rebuildDrawList() {
+    Arrays.fill(renderableCounts, 0);
+    int maxRenderable = NO_RENDERABLE;
+    for (int position = 0; position < nodeCount; position++) {
+      int node = order[position];
+      int parentNode = parent[node];
+      visibleInTree[node] = visible[node] && (parentNode == NO_NODE || visibleInTree[parentNode]);
+      int id = renderable[node];
+      if (visibleInTree[node] && id != NO_RENDERABLE) {
+        if (id >= renderableCounts.length) {
+          renderableCounts = Arrays.copyOf(renderableCounts, id + 1);
+        }
+        renderableCounts[id]++;
+        maxRenderable = Math.max(maxRenderable, id);
+      }
+    }
+    // Counting sort by renderable, keeping the depth-first order within each renderable.
+    int offset = 0;
+    for (int id = 0; id <= maxRenderable; id++) {
+      int count = renderableCounts[id];
+      renderableCounts[id] = offset;
+      offset += count;
+    }
+    drawCount = offset;
+    for (int position = 0; position < nodeCount; position++) {
+      int node = order[position];
+      int id = renderable[node];
+      if (visibleInTree[node] && id != NO_RENDERABLE) {
+        int entry = renderableCounts[id]++;
+        drawNodes[entry] = node;
+        drawRenderables[entry] = id;
+      }
+    }
+    drawListDirty = false;
+    drawListVersion++;
+  }
+
+  private void grow(int newSize) {
+    parent = Arrays.copyOf(parent, newSize);
+    firstChild = Arrays.copyOf(firstChild, newSize);
+    nextSibling = Arrays.copyOf(nextSibling, newSize);
+    renderable = Arrays.copyOf(renderable, newSize);
+    alive = Arrays.copyOf(alive, newSize);
+    visible = Arrays.copyOf(visible, newSize);
+    visibleInTree = Arrays.copyOf(visibleInTree, newSize);
+    dirty = Arrays.copyOf(dirty, newSize);
+    localTransforms = Arrays.copyOf(localTransforms, newSize * 16);
+    worldTransforms = Arrays.copyOf(worldTransforms, newSize * 16);
+    freeNodes = Arrays.copyOf(freeNodes, newSize);
+    order = Arrays.copyOf(order, newSize);
+    positionOf = Arrays.copyOf(positionOf, newSize);
+    subtreeSize = Arrays.copyOf(subtreeSize, newSize);
+    stack = Arrays.copyOf(stack, newSize);
+    dirtyNodes = Arrays.copyOf(dirtyNodes, newSize);
+    drawNodes = Arrays.copyOf(drawNodes, newSize);
+    drawRenderables = Arrays.copyOf(drawRenderables, newSize);
+  }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+import java.util.Arrays;
+
+/**
+ * Finds the placed object under a tap, by casting a ray through the models of a {@link
+ * SceneGraph}.
+ *
+ * <p>Each pickable renderable has a {@link MeshBvh} in model space. On top of those, this class
+ * keeps a hierarchy of world-space boxes over the drawn instances. Its topology is rebuilt when
+ * the draw list of the scene changes, and {@link #update} refits the boxes in one pass after
+ * instances moved. A pick only visits the instances whose box the ray crosses, and only transforms
+ * the ray into model space for those.
+ *
+ * <p>This class has no GL or ARCore dependencies and is not thread safe.
+ */
+public class ScenePicker {
+  private static final int MAX_DEPTH = 64;
+
+  /** The result of a pick. */
+  public static final class Hit {
+    /** The picked node, or {@link SceneGraph#NO_NODE}. */
+    public int node = SceneGraph.NO_NODE;
+    /** Distance from the ray origin, in units of the ray direction's length. */
+    public float distance;
+  }
+
+  private MeshBvh[] meshes = new MeshBvh[0];
+
+  // Instances, i.e. draw list entries with a mesh, with their world boxes.
+  private int[] instanceNodes = new int[0];
+  private int[] instanceRenderables = new int[0];
+  private float[] instanceBounds = new float[0];
+  private int instanceCount;
+
+  // Hierarchy over the instances, same layout as MeshBvh. Children have higher indices than their
+  // parent, so refitting in reverse index order visits children first.
+  private float[] bounds = new float[0];
+  private int[] nodeStart = new int[0];
+  private int[] nodeInstances = new int[0];
+  private int nodeCount;
+  private int[] order = new int[0];
+  private final int[] stack = new int[MAX_DEPTH];
+
+  private int builtDrawListVersion = -1;
+  private long refitRecomputedTransforms = -1;
+
+  private final float[] meshBounds = new float[6];
+  private final float[] inverse = new float[16];
+  private final float[] ray = new float[6];
+
+  /** Makes the instances of {@code renderableId} pickable with the triangles of {@code mesh}. */
+  public void setMesh(int renderableId, MeshBvh mesh) {
+    if (renderableId >= meshes.length) {
+      meshes = Arrays.copyOf(meshes, renderableId + 1);
+    }
+    meshes[renderableId] = mesh;
+    // Force a rebuild, the set of pickable instances changed.
+    builtDrawListVersion = -1;
+  }
+
+  /**
+   * Brings the instance hierarchy up to date with the scene. Call after {@link
+   * SceneGraph#update()}; does nothing if no transform and no draw list entry changed.
+   */
+  public void update(SceneGraph scene) {
+    if (scene.getDrawListVersion() != builtDrawListVersion) {
+      collectInstances(scene);
+      computeInstanceBounds(scene);
+      rebuild();
+      builtDrawListVersion = scene.getDrawListVersion();
+      refitRecomputedTransforms = scene.getRecomputedTransforms();
+    } else if (scene.getRecomputedTransforms() != refitRecomputedTransforms) {
+      computeInstanceBounds(scene);
+      refit();
+      refitRecomputedTransforms = scene.getRecomputedTransforms();
+    }
+  }
+
+  /** Number of pickable instances. */
+  public int getInstanceCount() {
+    return instanceCount;
+  }
+
+  /**
+   * Finds the closest instance hit by a ray in world space. Returns whether an instance was hit.
+   */
+  public boolean pick(
+      SceneGraph scene,
+      float originX, float originY, float originZ,
+      float directionX, float directionY, float directionZ,
+      Hit hit) {
+    hit.node = SceneGraph.NO_NODE;
+    hit.distance = MeshBvh.NO_HIT;
+    if (instanceCount == 0) {
+      return false;
+    }
+    float inverseX = 1 / directionX;
+    float inverseY = 1 / directionY;
+    float inverseZ = 1 / directionZ;
+    float[] worldTransforms = scene.getWorldTransforms();
+    int top = 0;
+    stack[top++] = 0;
+    while (top > 0) {
+      int node = stack[--top];
+      if (MeshBvh.intersectBox(bounds, node * 6, originX, originY, originZ,
+          inverseX, inverseY, inverseZ, hit.distance) == MeshBvh.NO_HIT) {
+        continue;
+      }
+      int count = nodeInstances[node];
+      if (count == 0) {
+        stack[top++] = nodeStart[node];
+        stack[top++] = nodeStart[node] + 1;
+        continue;
+      }
+      int end = nodeStart[node] + count;
+      for (int i = nodeStart[node]; i < end; i++) {
+        int instance = order[i];
+        int sceneNode = instanceNodes[instance];
+        // Same parametrization as the world ray, since the direction is transformed without
+        // being normalized.
+        invertAffine(worldTransforms, sceneNode * 16, inverse);
+        transformRay(inverse, originX, originY, originZ, directionX, directionY, directionZ, ray);
+        float distance =
+            meshes[instanceRenderables[instance]].raycast(
+                ray[0], ray[1], ray[2], ray[3], ray[4], ray[5], hit.distance);
+        if (distance < hit.distance) {
+          hit.distance = distance;
+          hit.node = sceneNode;
+        }
+      }
+    }
+    return hit.node != SceneGraph.NO_NODE;
+  }
+
+  /**
+   * Same as {@link #pick}, for a point on the screen.
+   *
+   * @param x the horizontal position in pixels, from the left of the viewport.
+   * @param y the vertical position in pixels, from the top of the viewport.
+   * @param viewMatrix the camera view matrix, column-major.
+   * @param projectionMatrix the camera projection matrix, column-major.
+   */
+  public boolean pickScreen(
+      SceneGraph scene,
+      float x, float y, int viewportWidth, int viewportHeight,
+      float[] viewMatrix, float[] projectionMatrix,
+      Hit hit) {
+    // Direction through the pixel in camera space, on the z = -1 plane.
+    float ndcX = 2 * x / viewportWidth - 1;
+    float ndcY = 1 - 2 * y / viewportHeight;
+    float cameraX = (ndcX + projectionMatrix[8]) / projectionMatrix[0];
+    float cameraY = (ndcY + projectionMatrix[9]) / projectionMatrix[5];
+    float cameraZ = -1;
+    // The view matrix is [R t]: the direction in world space is R^T times the camera space one,
+    // and the camera sits at -R^T * t.
+    float[] v = viewMatrix;
+    float directionX = v[0] * cameraX + v[1] * cameraY + v[2] * cameraZ;
+    float directionY = v[4] * cameraX + v[5] * cameraY + v[6] * cameraZ;
+    float directionZ = v[8] * cameraX + v[9] * cameraY + v[10] * cameraZ;
+    float originX = -(v[0] * v[12] + v[1] * v[13] + v[2] * v[14]);
+    float originY = -(v[4] * v[12] + v[5] * v[13] + v[6] * v[14]);
+    float originZ = -(v[8] * v[12] + v[9] * v[13] + v[10] * v[14]);
+    return pick(scene, originX, originY, originZ, directionX, directionY, directionZ, hit);
+  }
+
+  private void collectInstances(SceneGraph scene) {
+    int drawCount = scene.getDrawCount();
+    if (instanceNodes.length < drawCount) {
+      int size = Math.max(16, drawCount * 2);
+      instanceNodes = new int[size];
+      instanceRenderables = new int[size];
+      instanceBounds = new float[size * 6];
+      order = new int[size];
+      bounds = new float[size * 2 * 6];
+      nodeStart = new int[size * 2];
+      nodeInstances = new int[size * 2];
+    }
+    instanceCount = 0;
+    for (int i = 0; i < drawCount; i++) {
+      int renderable = scene.getDrawRenderable(i);
+      if (renderable < meshes.length && meshes[renderable] != null) {
+        instanceNodes[instanceCount] = scene.getDrawNode(i);
+        instanceRenderables[instanceCount] = renderable;
+        instanceCount++;
+      }
+    }
+  }
+
+  /** Transforms the corners of each mesh box to world space and bounds them. */
+  private void computeInstanceBounds(SceneGraph scene) {
+    float[] worldTransforms = scene.getWorldTransforms();
+    for (int i = 0; i < instanceCount; i++) {
+      meshes[instanceRenderables[i]].getBounds(meshBounds, 0);
+      int m = instanceNodes[i] * 16;
+      int b = i * 6;
+      // Per axis, the extremes of a transformed box are reached by picking, for each column of
+      // the matrix, the smaller or larger product.
+      for (int row = 0; row < 3; row++) {
+        float min = worldTransforms[m + 12 + row];
+        float max = min;
+        for (int column = 0; column < 3; column++) {
+          float scale = worldTransforms[m + column * 4 + row];
+          float a = scale * meshBounds[column];
+          float c = scale * meshBounds[column + 3];
+          min += Math.min(a, c);
+          max += Math.max(a, c);
+        }
+        instanceBounds[b + row] = min;
+        instanceBounds[b + 3 + row] = max;
+      }
+    }
+  }
+
+  private void rebuild() {
+    for (int i = 0; i < instanceCount; i++) {
+      order[i] = i;
+    }
+    nodeCount = 1;
+    if (instanceCount > 0) {
+      build(0, 0, instanceCount, 0);
+    }
+  }
+
+  private void build(int node, int start, int end, int depth) {
+    int count = end - start;
+    if (count <= 2 || depth >= MAX_DEPTH / 2) {
+      nodeStart[node] = start;
+      nodeInstances[node] = count;
+      fitLeaf(node);
+      return;
+    }
+    // Split at the median center along the longest axis of the centers.
+    float[] extent = new float[6];
+    Arrays.fill(extent, 0, 3, Float.POSITIVE_INFINITY);
+    Arrays.fill(extent, 3, 6, Float.NEGATIVE_INFINITY);
+    for (int i = start; i < end; i++) {
+      for (int axis = 0; axis < 3; axis++) {
+        float center = center(order[i], axis);
+        extent[axis] = Math.min(extent[axis], center);
+        extent[axis + 3] = Math.max(extent[axis + 3], center);
+      }
+    }
+    int axis = 0;
+    for (int a = 1; a < 3; a++) {
+      if (extent[a + 3] - extent[a] > extent[axis + 3] - extent[axis]) {
+        axis = a;
+      }
+    }
+    int middle = (start + end) >>> 1;
+    selectMedian(start, end - 1, middle, axis);
+
+    int left = nodeCount;
+    nodeCount += 2;
+    nodeStart[node] = left;
+    nodeInstances[node] = 0;
+    build(left, start, middle, depth + 1);
+    build(left + 1, middle, end, depth + 1);
+    fitInner(node);
+  }
+
+  private void refit() {
+    for (int node = nodeCount - 1; node >= 0; node--) {
+      if (nodeInstances[node] > 0) {
+        fitLeaf(node);
+      } else if (instanceCount > 0) {
+        fitInner(node);
+      }
+    }
+  }
+
+  private void fitLeaf(int node) {
+    int b = node * 6;
+    Arrays.fill(bounds, b, b + 3, Float.POSITIVE_INFINITY);
+    Arrays.fill(bounds, b + 3, b + 6, Float.NEGATIVE_INFINITY);
+    int end = nodeStart[node] + nodeInstances[node];
+    for (int i = nodeStart[node]; i < end; i++) {
+      int instance = order[i] * 6;
+      for (int axis = 0; axis < 3; axis++) {
+        bounds[b + axis] = Math.min(bounds[b + axis], instanceBounds[instance + axis]);
+        bounds[b + 3 + axis] = Math.max(bounds[b + 3 + axis], instanceBounds[instance + 3 + axis]);
+      }
+    }
+  }
+
+  private void fitInner(int node) {
+    int b = node * 6;
+    int left = nodeStart[node] * 6;
+    int right = left + 6;
+    for (int axis = 0; axis < 3; axis++) {
+      bounds[b + axis] = Math.min(bounds[left + axis], bounds[right + axis]);
+      bounds[b + 3 + axis] = Math.max(bounds[left + 3 + axis], bounds[right + 3 + axis]);
+    }
+  }
+
+  private float center(int instance, int axis) {
+    return instanceBounds[instance * 6 + axis] + instanceBounds[instance * 6 + 3 + axis];
+  }
+
+  /** Quickselect on {@code order[low..high]}, so that index {@code k} holds the median. */
+  private void selectMedian(int low, int high, int k, int axis) {
+    while (low < high) {
+      float pivot = center(order[(low + high) >>> 1], axis);
+      int i = low;
+      int j = high;
+      while (i <= j) {
+        while (center(order[i], axis) < pivot) {
+          i++;
+        }
+        while (center(order[j], axis) > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int swap = order[i];
+          order[i] = order[j];
+          order[j] = swap;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        high = j;
+      } else if (k >= i) {
+        low = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  /** Inverts a matrix made of a rotation, a scale and a translation. */
+  private static void invertAffine(float[] m, int offset, float[] out) {
+    float a = m[offset];
+    float b = m[offset + 1];
+    float c = m[offset + 2];
+    float d = m[offset + 4];
+    float e = m[offset + 5];
+    float f = m[offset + 6];
+    float g = m[offset + 8];
+    float h = m[offset + 9];
+    float i = m[offset + 10];
+    // Column-major: the 3x3 part is [a d g; b e h; c f i].
+    float cofactor00 = e * i - f * h;
+    float cofactor10 = f * g - d * i;
+    float cofactor20 = d * h - e * g;
+    float inverseDeterminant = 1 / (a * cofactor00 + b * cofactor10 + c * cofactor20);
+    out[0] = cofactor00 * inverseDeterminant;
+    out[1] = (c * h - b * i) * inverseDeterminant;
+    out[2] = (b * f - c * e) * inverseDeterminant;
+    out[3] = 0;
+    out[4] = cofactor10 * inverseDeterminant;
+    out[5] = (a * i - c * g) * inverseDeterminant;
+    out[6] = (c * d - a * f) * inverseDeterminant;
+    out[7] = 0;
+    out[8] = cofactor20 * inverseDeterminant;
+    out[9] = (b * g - a * h) * inverseDeterminant;
+    out[10] = (a * e - b * d) * inverseDeterminant;
+    out[11] = 0;
+    float tx = m[offset + 12];
+    float ty = m[offset + 13];
+    float tz = m[offset + 14];
+    out[12] = -(out[0] * tx + out[4] * ty + out[8] * tz);
+    out[13] = -(out[1] * tx + out[5] * ty + out[9] * tz);
+    out[14] = -(out[2] * tx + out[6] * ty + out[10] * tz);
+    out[15] = 1;
+  }
+
+  /** Transforms a ray by {@code m}, writing the origin then the direction to {@code out}. */
+  private static void transformRay(
+      float[] m,
+      float originX, float originY, float originZ,
+      float directionX, float directionY, float directionZ,
+      float[] out) {
+    out[0] = m[0] * originX + m[4] * originY + m[8] * originZ + m[12];
+    out[1] = m[1] * originX + m[5] * originY + m[9] * originZ + m[13];
+    out[2] = m[2] * originX + m[6] * originY + m[10] * originZ + m[14];
+    out[3] = m[0] * directionX + m[4] * directionY + m[8] * directionZ;
+    out[4] = m[1] * directionX + m[5] * directionY + m[9] * directionZ;
+    out[5] = m[2] * directionX + m[6] * directionY + m[10] * directionZ;
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+import android.opengl.Matrix;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Draws the draw list of a {@link SceneGraph} with one {@link ObjectRenderer} per renderable.
+ *
+ * <p>The view-projection matrix is computed once per frame, and each renderer sets up its program,
+ * texture and buffers once for all the nodes that use it.
+ */
+public class SceneRenderer {
+  private final List<ObjectRenderer> renderers = new ArrayList<>();
+  private final List<float[]> colors = new ArrayList<>();
+  private final float[] viewProjectionMatrix = new float[16];
+
+  /**
+   * Registers a renderer and returns its renderable ID, to be passed to {@link
+   * SceneGraph#createNode}. IDs are assigned in order, starting at 0.
+   *
+   * @param color the object color passed to {@link ObjectRenderer#beginDraw}.
+   */
+  public int addRenderable(ObjectRenderer renderer, float[] color) {
+    renderers.add(renderer);
+    colors.add(color);
+    return renderers.size() - 1;
+  }
+
+  /**
+   * Draws every visible node of {@code scene} that has a renderable. {@link SceneGraph#update()}
+   * must have been called for this frame.
+   */
+  public void draw(
+      SceneGraph scene, float[] cameraView, float[] cameraPerspective,
+      float[] colorCorrectionRgba) {
+    int drawCount = scene.getDrawCount();
+    if (drawCount == 0) {
+      return;
+    }
+    Matrix.multiplyMM(viewProjectionMatrix, 0, cameraPerspective, 0, cameraView, 0);
+    float[] worldTransforms = scene.getWorldTransforms();
+    ObjectRenderer current = null;
+    int currentRenderable = SceneGraph.NO_RENDERABLE;
+    for (int i = 0; i < drawCount; i++) {
+      int renderable = scene.getDrawRenderable(i);
+      if (renderable != currentRenderable) {
+        if (current != null) {
+          current.endDraw();
+        }
+        currentRenderable = renderable;
+        current = renderers.get(renderable);
+        current.beginDraw(colorCorrectionRgba, colors.get(renderable));
+      }
+      current.drawModel(
+          worldTransforms, scene.getDrawNode(i) * 16, cameraView, viewProjectionMatrix);
+    }
+    current.endDraw();
+  }
+
+  /**
+   * Replays recorded draw commands from the given camera. Unlike {@link #draw(SceneGraph, float[],
+   * float[], float[])}, this does not read the scene, so the scene may be changed by another
+   * thread meanwhile.
+   */
+  public void draw(
+      RenderCommandList commands, float[] cameraView, float[] cameraPerspective,
+      float[] colorCorrectionRgba) {
+    int count = commands.getCount();
+    if (count == 0) {
+      return;
+    }
+    Matrix.multiplyMM(viewProjectionMatrix, 0, cameraPerspective, 0, cameraView, 0);
+    float[] modelMatrices = commands.getModelMatrices();
+    ObjectRenderer current = null;
+    int currentRenderable = SceneGraph.NO_RENDERABLE;
+    for (int i = 0; i < count; i++) {
+      int renderable = commands.getRenderable(i);
+      if (renderable != currentRenderable) {
+        if (current != null) {
+          current.endDraw();
+        }
+        currentRenderable = renderable;
+        current = renderers.get(renderable);
+        current.beginDraw(colorCorrectionRgba, colors.get(renderable));
+      }
+      current.drawModel(modelMatrices, i * 16, cameraView, viewProjectionMatrix);
+    }
+    current.endDraw();
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.ar.core.codelab.cloudanchor.helpers.CameraConfigSelector.Candidate;
+import com.google.ar.core.codelab.cloudanchor.helpers.CameraConfigSelector.Policy;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+/** Runs {@link CameraConfigSelector} on synthetic candidate lists. */
+public class CameraConfigSelectorTest {
+  // The app's policy: 30 fps, a 1080p texture, the smallest CPU image and no depth sensor.
+  private static final Policy POLICY = new Policy(30, 1920, 640, false);
+
+  private final CameraConfigSelector selector = new CameraConfigSelector(POLICY);
+
+  @Test
+  public void perfectMatch_scoresZero() {
+    assertEquals(0, selector.score(new Candidate(640, 480, 1920, 1080, 30, 30, false)), 1e-6f);
+  }
+
+  @Test
+  public void noCandidates_selectsNone() {
+    assertEquals(-1, selector.select(Collections.emptyList()));
+  }
+
+  @Test
+  public void typicalPhoneList_picksTheSmallestCpuImage() {
+    // The first config is ARCore's default, with a full HD CPU image.
+    int best =
+        selector.select(
+            Arrays.asList(
+                new Candidate(1920, 1080, 1920, 1080, 30, 30, false),
+                new Candidate(1280, 720, 1920, 1080, 30, 30, false),
+                new Candidate(640, 480, 1920, 1080, 30, 30, false),
+                new Candidate(640, 480, 1920, 1080, 30, 30, true)));
+    assertEquals(2, best);
+  }
+
+  @Test
+  public void cpuImage_isPenalizedByTheRatioOfLongEdgesOnlyWhenLarger() {
+    float larger = selector.score(new Candidate(1280, 720, 1920, 1080, 30, 30, false));
+    float muchLarger = selector.score(new Candidate(2560, 1440, 1920, 1080, 30, 30, false));
+    float smaller = selector.score(new Candidate(320, 240, 1920, 1080, 30, 30, false));
+
+    assertEquals(10, larger, 1e-4f);
+    assertEquals(20, muchLarger, 1e-4f);
+    assertEquals(0, smaller, 1e-6f);
+  }
+
+  @Test
+  public void texture_isPenalizedWhetherLargerOrSmaller() {
+    float larger = selector.score(new Candidate(640, 480, 3840, 2160, 30, 30, false));
+    float smaller = selector.score(new Candidate(640, 480, 960, 540, 30, 30, false));
+
+    assertEquals(10, larger, 1e-4f);
+    assertEquals(larger, smaller, 1e-4f);
+    // The long edge counts, whatever the orientation.
+    assertEquals(0, selector.score(new Candidate(480, 640, 1080, 1920, 30, 30, false)), 1e-6f);
+  }
+
+  @Test
+  public void fpsRange_containingTheTargetIsPreferredNarrow() {
+    float fixed = selector.score(new Candidate(640, 480, 1920, 1080, 30, 30, false));
+    float wide = selector.score(new Candidate(640, 480, 1920, 1080, 15, 30, false));
+    float tooFast = selector.score(new Candidate(640, 480, 1920, 1080, 60, 60, false));
+    float tooSlow = selector.score(new Candidate(640, 480, 1920, 1080, 15, 15, false));
+
+    assertTrue(fixed < wide);
+    // Missing the target costs more than any range that contains it.
+    assertTrue(wide < tooSlow);
+    assertTrue(tooSlow < tooFast);
+    assertEquals(
+        1,
+        selector.select(
+            Arrays.asList(
+                new Candidate(640, 480, 1920, 1080, 60, 60, false),
+                new Candidate(640, 480, 1920, 1080, 15, 30, false),
+                new Candidate(640, 480, 1920, 1080, 15, 15, false))));
+  }
+
+  @Test
+  public void depthSensorMismatch_outweighsEverythingElse() {
+    Candidate depth = new Candidate(640, 480, 1920, 1080, 30, 30, true);
+    // Every other property is off.
+    Candidate noDepth = new Candidate(3840, 2160, 960, 540, 60, 60, false);
+
+    assertEquals(1, selector.select(Arrays.asList(depth, noDepth)));
+    CameraConfigSelector depthSelector = new CameraConfigSelector(new Policy(30, 1920, 640, true));
+    assertEquals(0, depthSelector.select(Arrays.asList(depth, noDepth)));
+  }
+
+  @Test
+  public void ties_goToTheFirstCandidate() {
+    // The last two CPU images are small enough, so both score zero.
+    int best =
+        selector.select(
+            Arrays.asList(
+                new Candidate(1280, 720, 1920, 1080, 30, 30, false),
+                new Candidate(320, 240, 1920, 1080, 30, 30, false),
+                new Candidate(640, 480, 1920, 1080, 30, 30, false)));
+    assertEquals(1, best);
+  }
+}
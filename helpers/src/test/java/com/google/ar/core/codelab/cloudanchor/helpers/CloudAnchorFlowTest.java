@@ -0,0 +1,386 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Anchor.CloudAnchorState;
+import com.google.ar.core.codelab.cloudanchor.helpers.BatchResolver.BatchReport;
+import com.google.ar.core.codelab.cloudanchor.helpers.HostingPipeline.HostOperation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives the host, share and resolve flow through {@link HostingPipeline}, {@link
+ * InMemoryShortCodeStore} and {@link BatchResolver} against a {@link FakeCloudAnchorSession} on a
+ * virtual clock.
+ */
+public class CloudAnchorFlowTest {
+  private static final long MIN_LATENCY_MS = 1_000;
+  private static final long MAX_LATENCY_MS = 4_000;
+  private static final long STEP_MS = 50;
+
+  private ManualScheduler scheduler;
+  private FakeCloudAnchorSession fake;
+  private InMemoryShortCodeStore store;
+  // Virtual time from the start to the end of each host or resolve call, in call order.
+  private final List<Long> hostLatenciesMs = new ArrayList<>();
+  private final List<Long> resolveLatenciesMs = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    scheduler = new ManualScheduler();
+    // Callbacks are posted to the same clock, like ARCore posts them to the main thread.
+    fake =
+        new FakeCloudAnchorSession(scheduler, scheduler, null, new Random(42))
+            .setLatencyMs(MIN_LATENCY_MS, MAX_LATENCY_MS);
+    store = new InMemoryShortCodeStore();
+  }
+
+  @Test
+  public void hostShareResolve_respectsLatencyAndInFlightCaps() {
+    List<Anchor> anchors = createAnchors(5);
+    HostingPipeline pipeline = createPipeline(2, null);
+    List<HostOperation> operations = new ArrayList<>();
+    for (Anchor anchor : anchors) {
+      operations.add(pipeline.enqueue(anchor));
+    }
+    assertEquals(2, pipeline.getInFlightCount());
+    assertEquals(3, pipeline.getQueuedCount());
+
+    long hostedAtMs = advanceUntil(() -> allDone(operations), 2);
+    // Three rounds at most, each within the latency range.
+    assertTrue("hosted at " + hostedAtMs, hostedAtMs <= 3 * MAX_LATENCY_MS);
+    assertLatenciesInRange(hostLatenciesMs, 5);
+    assertEquals(2, fake.getMaxObservedInFlight());
+
+    // Share every hosted anchor under a new short code.
+    Map<Integer, Anchor> anchorsByShortCode = new HashMap<>();
+    for (HostOperation operation : operations) {
+      assertEquals(HostingPipeline.State.SUCCESS, operation.getState());
+      assertNotNull(operation.getCloudAnchorId());
+      store.nextShortCode(
+          shortCode -> {
+            store.storeUsingShortCode(shortCode, operation.getCloudAnchorId());
+            anchorsByShortCode.put(shortCode, operation.getAnchor());
+          });
+    }
+
+    RecordingListener listener = new RecordingListener();
+    BatchResolver resolver = createResolver(3);
+    resolver.resolve(
+        new ArrayList<>(anchorsByShortCode.keySet()), BatchResolver.byRecency(), listener);
+    long resolvedAtMs = advanceUntil(() -> listener.report != null, 3);
+    assertTrue("resolved at " + resolvedAtMs, resolvedAtMs - hostedAtMs <= 2 * MAX_LATENCY_MS);
+    assertLatenciesInRange(resolveLatenciesMs, 5);
+    assertEquals(3, fake.getMaxObservedInFlight());
+
+    assertEquals(5, listener.report.requested);
+    assertEquals(5, listener.report.resolved);
+    assertEquals(0, listener.report.failed);
+    for (Map.Entry<Integer, Anchor> resolved : listener.resolved.entrySet()) {
+      // Without an anchor factory, the fake resolves to the hosted anchor itself.
+      assertSame(anchorsByShortCode.get(resolved.getKey()), resolved.getValue());
+    }
+  }
+
+  @Test
+  public void scriptedFailures_reachTheirOperations() {
+    fake.scriptHostStates(
+        CloudAnchorState.SUCCESS,
+        CloudAnchorState.ERROR_HOSTING_SERVICE_UNAVAILABLE,
+        CloudAnchorState.SUCCESS);
+    List<HostOperation> completed = new ArrayList<>();
+    HostingPipeline pipeline = createPipeline(3, completed::add);
+    List<HostOperation> operations = new ArrayList<>();
+    for (Anchor anchor : createAnchors(3)) {
+      operations.add(pipeline.enqueue(anchor));
+    }
+    advanceUntil(() -> allDone(operations), 3);
+
+    assertEquals(3, completed.size());
+    assertEquals(HostingPipeline.State.SUCCESS, operations.get(0).getState());
+    assertEquals(HostingPipeline.State.FAILED, operations.get(1).getState());
+    assertEquals(
+        CloudAnchorState.ERROR_HOSTING_SERVICE_UNAVAILABLE,
+        operations.get(1).getCloudAnchorState());
+    assertNull(operations.get(1).getCloudAnchorId());
+    assertEquals(HostingPipeline.State.SUCCESS, operations.get(2).getState());
+
+    store.storeUsingShortCode(1, operations.get(0).getCloudAnchorId());
+    store.storeUsingShortCode(2, "unknown-id");
+    store.storeUsingShortCode(3, operations.get(2).getCloudAnchorId());
+    fake.scriptResolveStates(CloudAnchorState.ERROR_RESOLVING_LOCALIZATION_NO_MATCH);
+
+    RecordingListener listener = new RecordingListener();
+    // Short code 4 was never shared.
+    createResolver(4).resolve(Arrays.asList(1, 2, 3, 4), BatchResolver.byRecency(), listener);
+    advanceUntil(() -> listener.report != null, 4);
+
+    assertEquals(4, listener.report.requested);
+    assertEquals(1, listener.report.resolved);
+    assertEquals(3, listener.report.failed);
+    // Short code 4 fails its lookup. The most recent of the others, short code 3, is resolved
+    // first and gets the scripted localization failure. Short code 2 fails because its ID is
+    // unknown to the fake.
+    assertTrue(listener.failures.containsKey(4));
+    assertNull(listener.failures.get(4));
+    assertEquals(
+        CloudAnchorState.ERROR_RESOLVING_LOCALIZATION_NO_MATCH, listener.failures.get(3));
+    assertEquals(CloudAnchorState.ERROR_CLOUD_ID_NOT_FOUND, listener.failures.get(2));
+    assertSame(operations.get(0).getAnchor(), listener.resolved.get(1));
+  }
+
+  @Test
+  public void throwingHostFunction_failsTheOperationAndStartsTheNext() {
+    List<Anchor> anchors = createAnchors(3);
+    List<HostOperation> completed = new ArrayList<>();
+    HostingPipeline pipeline =
+        new HostingPipeline(
+            (anchor, ttlDays, callback) -> {
+              if (anchor == anchors.get(0)) {
+                throw new IllegalStateException("Session paused");
+              }
+              return fake.hostCloudAnchorAsync(anchor, ttlDays, callback);
+            },
+            1,
+            completed::add);
+    List<HostOperation> operations = new ArrayList<>();
+    for (Anchor anchor : anchors) {
+      operations.add(pipeline.enqueue(anchor));
+    }
+
+    // The failed operation is finished at once and does not hold its slot.
+    assertEquals(HostingPipeline.State.FAILED, operations.get(0).getState());
+    assertEquals(CloudAnchorState.ERROR_INTERNAL, operations.get(0).getCloudAnchorState());
+    assertEquals(Arrays.asList(operations.get(0)), completed);
+    assertSame(operations.get(0), pipeline.pollCompleted());
+    assertEquals(1, pipeline.getInFlightCount());
+    assertEquals(1, pipeline.getQueuedCount());
+
+    advanceUntil(() -> allDone(operations), 1);
+    assertEquals(HostingPipeline.State.SUCCESS, operations.get(1).getState());
+    assertEquals(HostingPipeline.State.SUCCESS, operations.get(2).getState());
+    assertEquals(3, completed.size());
+    assertTrue(pipeline.getStats(), pipeline.getStats().startsWith("hosted=2 failed=1 "));
+  }
+
+  @Test
+  public void serviceConcurrencyLimit_rejectsExcessOperationsImmediately() {
+    fake.setMaxConcurrentOperations(2);
+    HostingPipeline pipeline = createPipeline(4, null);
+    List<HostOperation> operations = new ArrayList<>();
+    for (Anchor anchor : createAnchors(4)) {
+      operations.add(pipeline.enqueue(anchor));
+    }
+    // Rejections are delivered at once, before any operation could have completed.
+    scheduler.advanceBy(0);
+    int rejected = 0;
+    for (HostOperation operation : operations) {
+      if (operation.getCloudAnchorState() == CloudAnchorState.ERROR_RESOURCE_EXHAUSTED) {
+        rejected++;
+      }
+    }
+    assertEquals(2, rejected);
+
+    advanceUntil(() -> allDone(operations), 4);
+    assertEquals(2, fake.getMaxObservedInFlight());
+  }
+
+  @Test
+  public void cancelledBatch_deliversNothingAndFreesTheService() {
+    HostingPipeline pipeline = createPipeline(3, null);
+    List<HostOperation> operations = new ArrayList<>();
+    for (Anchor anchor : createAnchors(3)) {
+      operations.add(pipeline.enqueue(anchor));
+    }
+    advanceUntil(() -> allDone(operations), 3);
+    for (int i = 0; i < operations.size(); i++) {
+      store.storeUsingShortCode(i, operations.get(i).getCloudAnchorId());
+    }
+
+    RecordingListener listener = new RecordingListener();
+    BatchResolver resolver = createResolver(2);
+    BatchResolver.Batch batch =
+        resolver.resolve(Arrays.asList(0, 1, 2), BatchResolver.byRecency(), listener);
+    scheduler.advanceBy(MIN_LATENCY_MS / 2);
+    assertEquals(2, fake.getInFlight());
+
+    batch.cancel();
+    assertEquals(0, fake.getInFlight());
+    assertNotNull(listener.report);
+    assertEquals(3, listener.report.cancelled);
+    assertEquals(0, resolver.getActiveBatchCount());
+
+    scheduler.runAll();
+    assertTrue(listener.resolved.isEmpty());
+    assertTrue(listener.failures.isEmpty());
+  }
+
+  @Test
+  public void cameraMovingAway_cancelsTheBatchesStartedThere() {
+    HostingPipeline pipeline = createPipeline(3, null);
+    List<HostOperation> operations = new ArrayList<>();
+    for (Anchor anchor : createAnchors(3)) {
+      operations.add(pipeline.enqueue(anchor));
+    }
+    advanceUntil(() -> allDone(operations), 3);
+    for (int i = 0; i < operations.size(); i++) {
+      store.storeUsingShortCode(i, operations.get(i).getCloudAnchorId());
+    }
+
+    RecordingListener placed = new RecordingListener();
+    RecordingListener unbound = new RecordingListener();
+    BatchResolver resolver = createResolver(3);
+    resolver.resolve(Arrays.asList(0, 1), BatchResolver.byRecency(), new float[] {0, 0, 0}, placed);
+    resolver.resolve(Arrays.asList(2), BatchResolver.byRecency(), unbound);
+    scheduler.advanceBy(MIN_LATENCY_MS / 2);
+    assertEquals(3, fake.getInFlight());
+
+    // Still within reach.
+    resolver.onCameraMoved(new float[] {1, 0, 1}, 2);
+    assertNull(placed.report);
+
+    resolver.onCameraMoved(new float[] {3, 0, 0}, 2);
+    assertNotNull(placed.report);
+    assertEquals(2, placed.report.cancelled);
+    assertEquals(1, fake.getInFlight());
+    assertEquals(1, resolver.getActiveBatchCount());
+
+    advanceUntil(() -> unbound.report != null, 1);
+    assertEquals(1, unbound.report.resolved);
+    assertTrue(placed.resolved.isEmpty());
+  }
+
+  @Test
+  public void byExpectedDistance_ordersClosestFirstThenMostRecent() {
+    Map<Integer, Float> distanceHints = new HashMap<>();
+    distanceHints.put(1, 4f);
+    distanceHints.put(2, 0.5f);
+    List<Integer> shortCodes = new ArrayList<>(Arrays.asList(1, 2, 3, 4));
+    shortCodes.sort(BatchResolver.byExpectedDistance(distanceHints));
+
+    assertEquals(Arrays.asList(2, 1, 4, 3), shortCodes);
+  }
+
+  private List<Anchor> createAnchors(int count) {
+    List<Anchor> anchors = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      anchors.add(mock(Anchor.class));
+    }
+    return anchors;
+  }
+
+  private HostingPipeline createPipeline(int maxInFlight, HostingPipeline.HostListener listener) {
+    return new HostingPipeline(
+        (anchor, ttlDays, callback) -> {
+          long startMs = scheduler.nowMs();
+          return fake.hostCloudAnchorAsync(
+              anchor,
+              ttlDays,
+              (cloudAnchorId, cloudState) -> {
+                hostLatenciesMs.add(scheduler.nowMs() - startMs);
+                callback.accept(cloudAnchorId, cloudState);
+              });
+        },
+        maxInFlight,
+        listener);
+  }
+
+  private BatchResolver createResolver(int maxConcurrentResolves) {
+    return new BatchResolver(
+        store::getCloudAnchorId,
+        (cloudAnchorId, callback) -> {
+          long startMs = scheduler.nowMs();
+          return fake.resolveCloudAnchorAsync(
+              cloudAnchorId,
+              (anchor, cloudState) -> {
+                resolveLatenciesMs.add(scheduler.nowMs() - startMs);
+                callback.accept(anchor, cloudState);
+              });
+        },
+        maxConcurrentResolves);
+  }
+
+  /**
+   * Advances the clock in small steps until {@code done} holds, checking that the fake never has
+   * more than {@code maxInFlight} operations in flight. Returns the time at which it held.
+   */
+  private long advanceUntil(Condition done, int maxInFlight) {
+    long limitMs = scheduler.nowMs() + 100 * MAX_LATENCY_MS;
+    while (!done.holds()) {
+      assertTrue("Timed out", scheduler.nowMs() < limitMs);
+      scheduler.advanceBy(STEP_MS);
+      assertTrue("In flight: " + fake.getInFlight(), fake.getInFlight() <= maxInFlight);
+    }
+    return scheduler.nowMs();
+  }
+
+  private static void assertLatenciesInRange(List<Long> latenciesMs, int expectedCount) {
+    assertEquals(expectedCount, latenciesMs.size());
+    for (long latencyMs : latenciesMs) {
+      assertTrue("latency " + latencyMs, latencyMs >= MIN_LATENCY_MS);
+      assertTrue("latency " + latencyMs, latencyMs <= MAX_LATENCY_MS);
+    }
+  }
+
+  private static boolean allDone(List<HostOperation> operations) {
+    for (HostOperation operation : operations) {
+      if (!operation.isDone()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private interface Condition {
+    boolean holds();
+  }
+
+  private static final class RecordingListener implements BatchResolver.BatchListener {
+    final Map<Integer, Anchor> resolved = new HashMap<>();
+    final Map<Integer, CloudAnchorState> failures = new HashMap<>();
+    BatchReport report;
+
+    @Override
+    public void onAnchorResolved(int shortCode, String cloudAnchorId, Anchor anchor) {
+      resolved.put(shortCode, anchor);
+    }
+
+    @Override
+    public void onResolveFailed(int shortCode, CloudAnchorState cloudState) {
+      failures.put(shortCode, cloudState);
+    }
+
+    @Override
+    public void onBatchComplete(BatchReport report) {
+      this.report = report;
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Anchor.CloudAnchorState;
+import com.google.ar.core.Future;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs {@link CloudAnchorRetrier} against scripted failures of a {@link FakeCloudAnchorSession}, on
+ * a virtual clock shared by the retrier's scheduler, its deadline clock and the fake.
+ */
+public class CloudAnchorRetrierTest {
+  private static final long LATENCY_MS = 1_000;
+  private static final long INITIAL_BACKOFF_MS = 500;
+  private static final long MAX_BACKOFF_MS = 4_000;
+  private static final long DEADLINE_MS = 15_000;
+
+  private ManualScheduler scheduler;
+  private FakeCloudAnchorSession fake;
+  private CloudAnchorRetrier retrier;
+  private final List<CloudAnchorState> outcomes = new ArrayList<>();
+  private final List<Object> results = new ArrayList<>();
+  private int hostCalls;
+  private int resolveCalls;
+
+  @Before
+  public void setUp() {
+    scheduler = new ManualScheduler();
+    fake =
+        new FakeCloudAnchorSession(scheduler, scheduler, null, new Random(42))
+            .setLatencyMs(LATENCY_MS, LATENCY_MS);
+    retrier =
+        new CloudAnchorRetrier(
+            scheduler,
+            scheduler::nowMs,
+            INITIAL_BACKOFF_MS,
+            MAX_BACKOFF_MS,
+            DEADLINE_MS,
+            new Random(7));
+  }
+
+  @Test
+  public void retryableHostFailures_areRetriedUntilSuccess() {
+    fake.scriptHostStates(
+        CloudAnchorState.ERROR_HOSTING_SERVICE_UNAVAILABLE,
+        CloudAnchorState.ERROR_RESOURCE_EXHAUSTED,
+        CloudAnchorState.SUCCESS);
+    host(mock(Anchor.class));
+    long doneAtMs = scheduler.runAll();
+
+    assertEquals(3, hostCalls);
+    assertEquals(1, outcomes.size());
+    assertEquals(CloudAnchorState.SUCCESS, outcomes.get(0));
+    assertNotNull(results.get(0));
+    // Three attempts, and two backoffs no longer than their caps.
+    assertTrue("done at " + doneAtMs, doneAtMs >= 3 * LATENCY_MS);
+    assertTrue(
+        "done at " + doneAtMs, doneAtMs <= 3 * LATENCY_MS + INITIAL_BACKOFF_MS * (1 + 2));
+    assertTrue(retrier.getStats(), retrier.getStats().contains("retries=2"));
+  }
+
+  @Test
+  public void fatalFailure_isNotRetried() {
+    fake.scriptHostStates(CloudAnchorState.ERROR_NOT_AUTHORIZED);
+    host(mock(Anchor.class));
+    scheduler.runAll();
+
+    assertEquals(1, hostCalls);
+    assertEquals(1, outcomes.size());
+    assertEquals(CloudAnchorState.ERROR_NOT_AUTHORIZED, outcomes.get(0));
+    assertNull(results.get(0));
+  }
+
+  @Test
+  public void retryableResolveFailures_stopAtTheDeadline() {
+    host(mock(Anchor.class));
+    scheduler.runAll();
+    String cloudAnchorId = (String) results.get(0);
+    outcomes.clear();
+    results.clear();
+
+    CloudAnchorState[] failures = new CloudAnchorState[100];
+    Arrays.fill(failures, CloudAnchorState.ERROR_RESOLVING_LOCALIZATION_NO_MATCH);
+    fake.scriptResolveStates(failures);
+    long startMs = scheduler.nowMs();
+    resolve(cloudAnchorId);
+    long doneAtMs = scheduler.runAll();
+
+    assertEquals(1, outcomes.size());
+    assertEquals(CloudAnchorState.ERROR_RESOLVING_LOCALIZATION_NO_MATCH, outcomes.get(0));
+    // No attempt starts after the deadline, so the last one ends within one latency of it.
+    long elapsedMs = doneAtMs - startMs;
+    assertTrue("done after " + elapsedMs, elapsedMs <= DEADLINE_MS + LATENCY_MS);
+    assertTrue("attempts " + resolveCalls, resolveCalls > 1);
+    assertTrue(retrier.getStats(), retrier.getStats().contains("deadlineExceeded=1"));
+  }
+
+  @Test
+  public void cancelDuringBackoff_stopsRetriesAndCallback() {
+    fake.scriptHostStates(CloudAnchorState.ERROR_SERVICE_UNAVAILABLE);
+    Future future = host(mock(Anchor.class));
+    // The first attempt has failed and a retry is scheduled.
+    scheduler.advanceBy(LATENCY_MS);
+    assertEquals(1, hostCalls);
+    assertEquals(1, scheduler.getPendingCount());
+
+    assertTrue(future.cancel());
+    assertFalse(future.cancel());
+    scheduler.runAll();
+    assertEquals(1, hostCalls);
+    assertTrue(outcomes.isEmpty());
+    assertTrue(retrier.getStats(), retrier.getStats().contains("cancelled=1"));
+  }
+
+  @Test
+  public void attemptThatThrowsOnTheScheduler_completesWithInternalError() {
+    fake.scriptHostStates(CloudAnchorState.ERROR_SERVICE_UNAVAILABLE);
+    HostingPipeline.HostFunction host =
+        retrier.wrapHost(
+            (anchor, ttlDays, callback) -> {
+              hostCalls++;
+              if (hostCalls > 1) {
+                throw new IllegalStateException("Session closed");
+              }
+              return fake.hostCloudAnchorAsync(anchor, ttlDays, callback);
+            });
+    Future future = host.hostCloudAnchorAsync(mock(Anchor.class), 1, this::record);
+    scheduler.runAll();
+
+    assertEquals(2, hostCalls);
+    assertEquals(1, outcomes.size());
+    assertEquals(CloudAnchorState.ERROR_INTERNAL, outcomes.get(0));
+    assertFalse(future.cancel());
+  }
+
+  private Future host(Anchor anchor) {
+    return retrier
+        .wrapHost(
+            (a, ttlDays, callback) -> {
+              hostCalls++;
+              return fake.hostCloudAnchorAsync(a, ttlDays, callback);
+            })
+        .hostCloudAnchorAsync(anchor, 1, this::record);
+  }
+
+  private Future resolve(String cloudAnchorId) {
+    return retrier
+        .wrapResolve(
+            (id, callback) -> {
+              resolveCalls++;
+              return fake.resolveCloudAnchorAsync(id, callback);
+            })
+        .resolveCloudAnchorAsync(cloudAnchorId, this::record);
+  }
+
+  private void record(Object result, CloudAnchorState cloudState) {
+    results.add(result);
+    outcomes.add(cloudState);
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.FloatBuffer;
+import org.junit.Test;
+
+/** Runs {@link FeatureDensityEstimator} on synthetic point sets. */
+public class FeatureDensityEstimatorTest {
+  private static final float CELL_SIZE = 0.1f;
+  private static final int WINDOW_FRAMES = 5;
+  private static final float MIN_CONFIDENCE = 0.3f;
+  private static final int TARGET_CELLS = 10;
+  private static final float RADIUS = 0.25f;
+
+  private final FeatureDensityEstimator.Estimate estimate = new FeatureDensityEstimator.Estimate();
+
+  @Test
+  public void noPoints_scoresZero() {
+    FeatureDensityEstimator estimator = newEstimator(1024);
+    estimator.query(0, 0, 0, RADIUS, estimate);
+
+    assertEquals(0, estimate.cells);
+    assertEquals(0, estimate.observations);
+    assertEquals(0, estimate.meanConfidence, 0);
+    assertEquals(0, estimate.score, 0);
+  }
+
+  @Test
+  public void denseCluster_scoresOne() {
+    FeatureDensityEstimator estimator = newEstimator(1024);
+    // One point at the center of every cell of a 5x5x5 block around the origin.
+    float[] points = new float[5 * 5 * 5 * 4];
+    int count = 0;
+    for (int x = -2; x <= 2; x++) {
+      for (int y = -2; y <= 2; y++) {
+        for (int z = -2; z <= 2; z++) {
+          setPoint(points, count++, cellCenter(x), cellCenter(y), cellCenter(z), 1);
+        }
+      }
+    }
+    estimator.addPoints(points, count);
+    estimator.query(cellCenter(0), cellCenter(0), cellCenter(0), RADIUS, estimate);
+
+    assertTrue("cells " + estimate.cells, estimate.cells >= TARGET_CELLS);
+    assertEquals(estimate.cells, estimate.observations);
+    assertEquals(1, estimate.meanConfidence, 1e-6f);
+    assertEquals(1, estimate.score, 1e-6f);
+  }
+
+  @Test
+  public void sparsePoints_scoreByCellCountAndConfidence() {
+    FeatureDensityEstimator estimator = newEstimator(1024);
+    // Four cells next to the query point, one of them seen twice.
+    float[] points = new float[5 * 4];
+    setPoint(points, 0, cellCenter(0), cellCenter(0), cellCenter(0), 0.8f);
+    setPoint(points, 1, cellCenter(1), cellCenter(0), cellCenter(0), 0.8f);
+    setPoint(points, 2, cellCenter(0), cellCenter(1), cellCenter(0), 0.4f);
+    setPoint(points, 3, cellCenter(0), cellCenter(0), cellCenter(-1), 0.4f);
+    setPoint(points, 4, cellCenter(0), cellCenter(0), cellCenter(-1), 0.6f);
+    estimator.addPoints(points, 5);
+    estimator.query(cellCenter(0), cellCenter(0), cellCenter(0), RADIUS, estimate);
+
+    assertEquals(4, estimate.cells);
+    assertEquals(5, estimate.observations);
+    // Each cell keeps its best confidence.
+    float meanConfidence = (0.8f + 0.8f + 0.4f + 0.6f) / 4;
+    assertEquals(meanConfidence, estimate.meanConfidence, 1e-6f);
+    assertEquals(4f / TARGET_CELLS * meanConfidence, estimate.score, 1e-6f);
+  }
+
+  @Test
+  public void lowConfidencePoints_areIgnored() {
+    FeatureDensityEstimator estimator = newEstimator(1024);
+    float[] points = new float[2 * 4];
+    setPoint(points, 0, cellCenter(0), cellCenter(0), cellCenter(0), MIN_CONFIDENCE / 2);
+    setPoint(points, 1, cellCenter(1), cellCenter(0), cellCenter(0), MIN_CONFIDENCE);
+    estimator.addPoints(points, 2);
+    estimator.query(cellCenter(0), cellCenter(0), cellCenter(0), RADIUS, estimate);
+
+    assertEquals(1, estimate.cells);
+    assertEquals(1, estimator.size());
+  }
+
+  @Test
+  public void pointsOutsideTheRadius_areNotCounted() {
+    FeatureDensityEstimator estimator = newEstimator(1024);
+    float[] points = new float[2 * 4];
+    // Three cells away from the query point, beyond the radius.
+    setPoint(points, 0, cellCenter(3), cellCenter(0), cellCenter(0), 1);
+    // Far away, on the negative side of every axis.
+    setPoint(points, 1, cellCenter(-40), cellCenter(-40), cellCenter(-40), 1);
+    estimator.addPoints(points, 2);
+
+    estimator.query(cellCenter(0), cellCenter(0), cellCenter(0), RADIUS, estimate);
+    assertEquals(0, estimate.cells);
+    estimator.query(cellCenter(-40), cellCenter(-40), cellCenter(-40), RADIUS, estimate);
+    assertEquals(1, estimate.cells);
+  }
+
+  @Test
+  public void cells_expireAfterTheWindow() {
+    FeatureDensityEstimator estimator = newEstimator(1024);
+    float[] points = new float[4];
+    setPoint(points, 0, cellCenter(0), cellCenter(0), cellCenter(0), 1);
+    estimator.addPoints(points, 1);
+
+    for (int frame = 1; frame < WINDOW_FRAMES; frame++) {
+      estimator.addPoints(points, 0);
+    }
+    estimator.query(cellCenter(0), cellCenter(0), cellCenter(0), RADIUS, estimate);
+    assertEquals(1, estimate.cells);
+
+    estimator.addPoints(points, 0);
+    estimator.query(cellCenter(0), cellCenter(0), cellCenter(0), RADIUS, estimate);
+    assertEquals(0, estimate.cells);
+  }
+
+  @Test
+  public void repeatedTimestamp_isAddedOnce() {
+    FeatureDensityEstimator estimator = newEstimator(1024);
+    float[] points = new float[4];
+    setPoint(points, 0, cellCenter(0), cellCenter(0), cellCenter(0), 1);
+    FloatBuffer buffer = FloatBuffer.wrap(points);
+
+    estimator.addPoints(buffer, 100);
+    estimator.addPoints(buffer, 100);
+    estimator.query(cellCenter(0), cellCenter(0), cellCenter(0), RADIUS, estimate);
+    assertEquals(1, estimate.observations);
+    assertEquals(0, buffer.position());
+
+    estimator.addPoints(buffer, 133);
+    estimator.query(cellCenter(0), cellCenter(0), cellCenter(0), RADIUS, estimate);
+    assertEquals(2, estimate.observations);
+  }
+
+  @Test
+  public void fullTable_makesRoomByDroppingExpiredCells() {
+    // 16 slots, of which at most 11 are used.
+    FeatureDensityEstimator estimator = newEstimator(16);
+    float[] points = new float[11 * 4];
+    for (int i = 0; i < 11; i++) {
+      setPoint(points, i, cellCenter(10 * i), cellCenter(0), cellCenter(0), 1);
+    }
+    estimator.addPoints(points, 11);
+    assertEquals(11, estimator.size());
+
+    // While every cell is live, new cells are dropped.
+    float[] newPoints = new float[11 * 4];
+    for (int i = 0; i < 11; i++) {
+      setPoint(newPoints, i, cellCenter(10 * i), cellCenter(10), cellCenter(0), 1);
+    }
+    estimator.addPoints(newPoints, 11);
+    assertEquals(11, estimator.size());
+    estimator.query(cellCenter(0), cellCenter(10), cellCenter(0), RADIUS, estimate);
+    assertEquals(0, estimate.cells);
+
+    // Once the old cells expire, they make room for the new ones.
+    for (int frame = 0; frame < WINDOW_FRAMES; frame++) {
+      estimator.addPoints(newPoints, 0);
+    }
+    estimator.addPoints(newPoints, 11);
+    assertEquals(11, estimator.size());
+    for (int i = 0; i < 11; i++) {
+      estimator.query(cellCenter(10 * i), cellCenter(10), cellCenter(0), RADIUS, estimate);
+      assertEquals(1, estimate.cells);
+    }
+    estimator.query(cellCenter(0), cellCenter(0), cellCenter(0), RADIUS, estimate);
+    assertEquals(0, estimate.cells);
+  }
+
+  @Test
+  public void clear_removesEveryCell() {
+    FeatureDensityEstimator estimator = newEstimator(1024);
+    float[] points = new float[4];
+    setPoint(points, 0, cellCenter(0), cellCenter(0), cellCenter(0), 1);
+    FloatBuffer buffer = FloatBuffer.wrap(points);
+    estimator.addPoints(buffer, 100);
+
+    estimator.clear();
+    assertEquals(0, estimator.size());
+    estimator.query(cellCenter(0), cellCenter(0), cellCenter(0), RADIUS, estimate);
+    assertEquals(0, estimate.cells);
+
+    // The timestamp is forgotten too, so the same point cloud can be added again.
+    estimator.addPoints(buffer, 100);
+    assertEquals(1, estimator.size());
+  }
+
+  private static FeatureDensityEstimator newEstimator(int capacity) {
+    return new FeatureDensityEstimator(
+        CELL_SIZE, WINDOW_FRAMES, MIN_CONFIDENCE, TARGET_CELLS, capacity);
+  }
+
+  /** The center of cell {@code index} along one axis, away from cell boundaries. */
+  private static float cellCenter(int index) {
+    return (index + 0.5f) * CELL_SIZE;
+  }
+
+  private static void setPoint(float[] points, int i, float x, float y, float z, float confidence) {
+    points[i * 4] = x;
+    points[i * 4 + 1] = y;
+    points[i * 4 + 2] = z;
+    points[i * 4 + 3] = confidence;
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.ar.core.codelab.cloudanchor.helpers.FrameProfiler.Snapshot;
+import com.google.ar.core.codelab.cloudanchor.helpers.FrameProfiler.Stage;
+import java.util.Locale;
+import org.junit.Test;
+
+/** Runs {@link FrameProfiler} on a fake clock, with known stage times. */
+public class FrameProfilerTest {
+  private static final long MS = 1_000_000;
+  private static final long BUDGET_NANOS = 16 * MS;
+  private static final int CAPACITY = 10;
+
+  private long nowNanos;
+  private final FrameProfiler profiler =
+      new FrameProfiler(CAPACITY, BUDGET_NANOS, () -> nowNanos);
+
+  @Test
+  public void framesPastCapacity_overwriteTheOldest() {
+    // Frame i takes i + 1 ms.
+    for (int i = 0; i < 25; i++) {
+      runFrame(Stage.SESSION_UPDATE, (i + 1) * MS);
+    }
+    Snapshot snapshot = profiler.snapshot();
+
+    assertEquals(25, snapshot.getTotalFrames());
+    // The oldest slot is the one the next frame writes, so it is left out: frames 16 to 24.
+    assertEquals(CAPACITY - 1, snapshot.getFrameCount());
+    assertEquals(21 * MS, snapshot.getFramePercentileNanos(50));
+    assertEquals(25 * MS, snapshot.getFramePercentileNanos(100));
+    assertEquals(21 * MS, snapshot.getStagePercentileNanos(Stage.SESSION_UPDATE, 50));
+    // Every frame of the window is over budget, and blamed on its only stage.
+    assertEquals(CAPACITY - 1, snapshot.getOverBudgetFrames());
+    assertEquals(CAPACITY - 1, snapshot.getOverBudgetFrames(Stage.SESSION_UPDATE));
+  }
+
+  @Test
+  public void framesBeforeWrapping_areAllKept() {
+    for (int i = 0; i < CAPACITY - 1; i++) {
+      runFrame(Stage.PLANES, (i + 1) * MS);
+    }
+    Snapshot snapshot = profiler.snapshot();
+
+    assertEquals(CAPACITY - 1, snapshot.getFrameCount());
+    assertEquals(5 * MS, snapshot.getFramePercentileNanos(50));
+    assertEquals(0, snapshot.getOverBudgetFrames());
+
+    // Once the buffer is full, the oldest slot is left out again.
+    runFrame(Stage.PLANES, CAPACITY * MS);
+    assertEquals(CAPACITY - 1, profiler.snapshot().getFrameCount());
+    assertEquals(0, new FrameProfiler(CAPACITY, BUDGET_NANOS).snapshot().getFrameCount());
+  }
+
+  @Test
+  public void percentiles_ignoreFramesWhereTheStageDidNotRun() {
+    // Room for every frame.
+    FrameProfiler allFrames = new FrameProfiler(200, BUDGET_NANOS, () -> nowNanos);
+    for (int i = 0; i < 100; i++) {
+      allFrames.beginFrame();
+      allFrames.beginStage();
+      nowNanos += MS;
+      allFrames.endStage(Stage.SESSION_UPDATE);
+      assertEquals(0, allFrames.getCurrentStageNanos(Stage.POINT_CLOUD));
+      // The point cloud is only drawn in even frames, and takes 1 to 50 us.
+      if (i % 2 == 0) {
+        allFrames.beginStage();
+        nowNanos += (i / 2 + 1) * 1_000;
+        allFrames.endStage(Stage.POINT_CLOUD);
+        assertEquals((i / 2 + 1) * 1_000, allFrames.getCurrentStageNanos(Stage.POINT_CLOUD));
+      }
+      allFrames.endFrame();
+    }
+    Snapshot snapshot = allFrames.snapshot();
+
+    assertEquals(100, snapshot.getFrameCount());
+    assertEquals(25_000, snapshot.getStagePercentileNanos(Stage.POINT_CLOUD, 50));
+    assertEquals(45_000, snapshot.getStagePercentileNanos(Stage.POINT_CLOUD, 90));
+    assertEquals(50_000, snapshot.getStagePercentileNanos(Stage.POINT_CLOUD, 99));
+    assertEquals(50_000, snapshot.getStagePercentileNanos(Stage.POINT_CLOUD, 100));
+    assertEquals(MS, snapshot.getStagePercentileNanos(Stage.SESSION_UPDATE, 99));
+    // Stages that never ran report zero.
+    assertEquals(0, snapshot.getStagePercentileNanos(Stage.OBJECTS, 100));
+    assertThrows(IllegalArgumentException.class, () -> snapshot.getFramePercentileNanos(95));
+  }
+
+  @Test
+  public void slowFrames_areBlamedOnTheirSlowestStage() {
+    // Within budget: not blamed on anything.
+    runFrame(10 * MS, 2 * MS, 0);
+    // The point cloud is the slowest stage.
+    runFrame(MS, 12 * MS, 6 * MS);
+    runFrame(2 * MS, 10 * MS, 9 * MS);
+    // The session update is.
+    runFrame(15 * MS, MS, MS);
+    Snapshot snapshot = profiler.snapshot();
+
+    assertEquals(4, snapshot.getFrameCount());
+    assertEquals(3, snapshot.getOverBudgetFrames());
+    assertEquals(2, snapshot.getOverBudgetFrames(Stage.POINT_CLOUD));
+    assertEquals(1, snapshot.getOverBudgetFrames(Stage.SESSION_UPDATE));
+    assertEquals(0, snapshot.getOverBudgetFrames(Stage.PLANES));
+  }
+
+  @Test
+  public void summary_usesDotsWhateverTheDefaultLocale() {
+    runFrame(Stage.OBJECTS, 16_500_000);
+    Locale defaultLocale = Locale.getDefault();
+    Locale.setDefault(Locale.GERMANY);
+    try {
+      String summary = profiler.snapshot().toString();
+      assertTrue(summary, summary.contains("frame p50/p90/p99/max=16.5/16.5/16.5/16.5ms"));
+      assertTrue(summary, summary.contains("OBJECTS p50/p90/p99/max=16.5/"));
+    } finally {
+      Locale.setDefault(defaultLocale);
+    }
+  }
+
+  /** Runs a frame with a single stage that takes {@code stageNanos}. */
+  private void runFrame(Stage stage, long stageNanos) {
+    profiler.beginFrame();
+    profiler.beginStage();
+    nowNanos += stageNanos;
+    profiler.endStage(stage);
+    profiler.endFrame();
+  }
+
+  /** Runs a frame with a session update, a point cloud and planes, taking the given times. */
+  private void runFrame(long sessionUpdateNanos, long pointCloudNanos, long planesNanos) {
+    profiler.beginFrame();
+    profiler.beginStage();
+    nowNanos += sessionUpdateNanos;
+    profiler.endStage(Stage.SESSION_UPDATE);
+    profiler.beginStage();
+    nowNanos += pointCloudNanos;
+    profiler.endStage(Stage.POINT_CLOUD);
+    profiler.beginStage();
+    nowNanos += planesNanos;
+    profiler.endStage(Stage.PLANES);
+    profiler.endFrame();
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a frame trace written by {@link FrameTraceRecorder}.
+ *
+ * <p>The whole trace is held in memory, so frames can be replayed repeatedly without I/O in the
+ * measured loop. Has no Android or ARCore dependencies. Only the replay tools read traces, so it is
+ * kept with them and the JVM tests.
+ */
+public class FrameTraceReader {
+  private final ByteBuffer data;
+  private final int firstFrame;
+
+  /** Wraps a trace that is already in memory. */
+  public FrameTraceReader(ByteBuffer data) throws IOException {
+    this.data = data.duplicate();
+    if (this.data.remaining() < 8 || this.data.getInt() != TraceFrame.MAGIC) {
+      throw new IOException("Not a frame trace");
+    }
+    int version = this.data.getInt();
+    if (version != TraceFrame.VERSION) {
+      throw new IOException("Unsupported frame trace version: " + version);
+    }
+    firstFrame = this.data.position();
+  }
+
+  /** Reads a trace file into memory. */
+  public static FrameTraceReader open(File file) throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      in.readFully(bytes);
+    }
+    return new FrameTraceReader(ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Reads the next frame into {@code out}.
+   *
+   * @return false at the end of the trace. A truncated last record, e.g. from a recording that
+   *     was not closed, is treated as the end.
+   */
+  public boolean next(TraceFrame out) {
+    if (data.remaining() < 4) {
+      return false;
+    }
+    int length = data.getInt(data.position());
+    if (length < 0 || data.remaining() - 4 < length) {
+      return false;
+    }
+    data.position(data.position() + 4);
+    int end = data.position() + length;
+    out.readFrom(data);
+    data.position(end);
+    return true;
+  }
+
+  /** Moves back to the first frame. */
+  public void rewind() {
+    data.position(firstFrame);
+  }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import com.google.ar.core.codelab.cloudanchor.rendering.PlaneSnapshot;
+import com.google.ar.core.codelab.cloudanchor.rendering.PlaneSorter;
+import com.google.ar.core.codelab.cloudanchor.rendering.PlaneTessellator;
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Replays a frame trace through the CPU paths of the render loop on the JVM, for benchmarking and
+ * regression testing without a device.
+ *
+ * <p>Each frame goes through the same code the app runs: viewpoint coverage, feature density,
+ * plane sorting and tessellation, and the per-anchor hosting readiness queries. Planes are run
+ * twice: {@link Stage#PLANES} sorts and tessellates every plane of every frame like the render loop
+ * used to, {@link Stage#PLANE_SNAPSHOT} only applies the planes that changed to a {@link
+ * PlaneSnapshot} like {@link TrackableSnapshot} does. Frames where both draw different planes are
+ * counted as snapshot mismatches. GL calls and
+ * ARCore's own work are not part of the replay. Every pass prints the time per stage and a
+ * checksum of the results; the checksum must be identical between passes and should only change
+ * when the output of one of the replayed paths changes.
+ *
+ * <p>A development tool, kept with the JVM tests so that it does not ship in the library. Only
+ * depends on classes without Android or ARCore dependencies, so it can be compiled together with
+ * the main sources and run with plain {@code javac} and {@code java}:
+ *
+ * <pre>
+ *   java com.google.ar.core.codelab.cloudanchor.helpers.FrameTraceReplay trace.bin [passes]
+ * </pre>
+ *
+ * <p>Traces are recorded on a device by {@link FrameTraceRecorder}, or generated by {@link
+ * SyntheticFrameTrace}.
+ */
+public class FrameTraceReplay {
+  // Same parameters as the app.
+  private static final float DENSITY_CELL_SIZE_METERS = 0.05f;
+  private static final int DENSITY_WINDOW_FRAMES = 90;
+  private static final float DENSITY_MIN_POINT_CONFIDENCE = 0.3f;
+  private static final int DENSITY_TARGET_CELLS = 30;
+  private static final int DENSITY_CAPACITY = 8192;
+  private static final float DENSITY_RADIUS_METERS = 0.25f;
+  private static final int COVERAGE_CAPACITY = 300;
+  private static final float COVERAGE_MIN_MOVE_METERS = 0.02f;
+  private static final float COVERAGE_MAX_DISTANCE_METERS = 4.0f;
+  private static final int COVERAGE_BINS = 36;
+
+  /** The replayed stages, in the order they run. */
+  public enum Stage {
+    COVERAGE,
+    POINT_CLOUD,
+    PLANES,
+    PLANE_SNAPSHOT,
+    ANCHORS
+  }
+
+  private static final Stage[] STAGES = Stage.values();
+
+  private final FeatureDensityEstimator densityEstimator =
+      new FeatureDensityEstimator(
+          DENSITY_CELL_SIZE_METERS,
+          DENSITY_WINDOW_FRAMES,
+          DENSITY_MIN_POINT_CONFIDENCE,
+          DENSITY_TARGET_CELLS,
+          DENSITY_CAPACITY);
+  private final ViewpointCoverageTracker coverageTracker =
+      new ViewpointCoverageTracker(
+          COVERAGE_CAPACITY, COVERAGE_MIN_MOVE_METERS, COVERAGE_MAX_DISTANCE_METERS, COVERAGE_BINS);
+  private final FeatureDensityEstimator.Estimate estimate = new FeatureDensityEstimator.Estimate();
+  private final PlaneSorter planeSorter = new PlaneSorter();
+  private final PlaneTessellator tessellator = new PlaneTessellator();
+  private final PlaneSnapshot planeSnapshot = new PlaneSnapshot();
+  private final float[] cameraPosition = new float[3];
+  private final float[] pose = new float[TraceFrame.FLOATS_PER_POSE];
+  private final long[] stageNanos = new long[STAGES.length];
+  private FloatBuffer polygonBuffer = FloatBuffer.allocate(0);
+  private long lastPointCloudTimestamp = -1;
+  private long checksum;
+  private int frames;
+  private int snapshotMismatches;
+
+  /** Forgets all state, so that the next pass produces the same results as the first. */
+  public void reset() {
+    densityEstimator.clear();
+    coverageTracker.clear();
+    planeSnapshot.clear();
+    Arrays.fill(stageNanos, 0);
+    lastPointCloudTimestamp = -1;
+    checksum = 17;
+    frames = 0;
+    snapshotMismatches = 0;
+  }
+
+  /** Runs one frame through every stage. */
+  public void process(TraceFrame frame) {
+    frames++;
+    long start = System.nanoTime();
+    frame.getCameraPosition(cameraPosition);
+    if (frame.getCameraTrackingState() == TraceFrame.TRACKING) {
+      coverageTracker.addCameraPosition(
+          cameraPosition[0], cameraPosition[1], cameraPosition[2], frame.getTimestamp());
+    }
+    long coverageEnd = System.nanoTime();
+
+    // Like FeatureDensityEstimator.addPoints(FloatBuffer, long), a point cloud is only added once.
+    if (frame.getPointCloudTimestamp() != lastPointCloudTimestamp) {
+      lastPointCloudTimestamp = frame.getPointCloudTimestamp();
+      densityEstimator.addPoints(frame.getPoints(), frame.getPointCount());
+    }
+    long pointCloudEnd = System.nanoTime();
+
+    long legacyPlaneHash = processPlanes(frame);
+    long planesEnd = System.nanoTime();
+
+    long snapshotPlaneHash = processPlaneSnapshot(frame);
+    long planeSnapshotEnd = System.nanoTime();
+    if (snapshotPlaneHash != legacyPlaneHash) {
+      snapshotMismatches++;
+    }
+
+    processAnchors(frame);
+    long anchorsEnd = System.nanoTime();
+
+    stageNanos[Stage.COVERAGE.ordinal()] += coverageEnd - start;
+    stageNanos[Stage.POINT_CLOUD.ordinal()] += pointCloudEnd - coverageEnd;
+    stageNanos[Stage.PLANES.ordinal()] += planesEnd - pointCloudEnd;
+    stageNanos[Stage.PLANE_SNAPSHOT.ordinal()] += planeSnapshotEnd - planesEnd;
+    stageNanos[Stage.ANCHORS.ordinal()] += anchorsEnd - planeSnapshotEnd;
+  }
+
+  /** Sorts and tessellates every plane of the frame, returning a hash of what would be drawn. */
+  private long processPlanes(TraceFrame frame) {
+    float[] poses = frame.getPlanePoses();
+    planeSorter.clear();
+    for (int i = 0; i < frame.getPlaneCount(); i++) {
+      if (frame.getPlaneTrackingState(i) != TraceFrame.TRACKING
+          || frame.getPlaneSubsumedBy(i) != TraceFrame.NO_PLANE) {
+        continue;
+      }
+      int p = i * TraceFrame.FLOATS_PER_POSE;
+      float distance =
+          PlaneSorter.distanceToPlane(
+              poses[p], poses[p + 1], poses[p + 2],
+              poses[p + 3], poses[p + 4], poses[p + 5], poses[p + 6],
+              cameraPosition[0], cameraPosition[1], cameraPosition[2]);
+      if (distance < 0) { // Plane is back-facing.
+        continue;
+      }
+      planeSorter.add(i, distance);
+    }
+    planeSorter.sort();
+
+    if (polygonBuffer.array() != frame.getPolygons()) {
+      polygonBuffer = FloatBuffer.wrap(frame.getPolygons());
+    }
+    long planeHash = 0;
+    for (int i = 0; i < planeSorter.size(); i++) {
+      int plane = planeSorter.getIndex(i);
+      int offset = frame.getPolygonOffset(plane);
+      polygonBuffer.limit(offset + frame.getPolygonLength(plane)).position(offset);
+      tessellator.tessellate(
+          frame.getPlaneExtentX(plane), frame.getPlaneExtentZ(plane), polygonBuffer);
+      planeHash +=
+          drawnPlaneHash(
+              frame.getPlaneId(plane),
+              planeSorter.getDistance(i),
+              tessellator.getVertexBuffer().limit(),
+              tessellator.getIndexBuffer().limit());
+    }
+    mix((int) (planeHash ^ (planeHash >>> 32)));
+    return planeHash;
+  }
+
+  /**
+   * Applies the planes that changed in the frame to the snapshot and sorts its planes, returning a
+   * hash of what would be drawn. Matches {@link #processPlanes} for a consistent trace.
+   */
+  private long processPlaneSnapshot(TraceFrame frame) {
+    float[] poses = frame.getPlanePoses();
+    for (int i = 0; i < frame.getPlaneCount(); i++) {
+      if (!frame.isPlaneUpdated(i)) {
+        continue;
+      }
+      int trackingState = frame.getPlaneTrackingState(i);
+      if (trackingState == TraceFrame.STOPPED) {
+        planeSnapshot.removePlane(frame.getPlaneId(i));
+        continue;
+      }
+      System.arraycopy(poses, i * TraceFrame.FLOATS_PER_POSE, pose, 0, TraceFrame.FLOATS_PER_POSE);
+      int offset = frame.getPolygonOffset(i);
+      polygonBuffer.limit(offset + frame.getPolygonLength(i)).position(offset);
+      planeSnapshot.updatePlane(
+          frame.getPlaneId(i),
+          trackingState == TraceFrame.TRACKING,
+          frame.getPlaneSubsumedBy(i) != TraceFrame.NO_PLANE,
+          pose,
+          frame.getPlaneExtentX(i),
+          frame.getPlaneExtentZ(i),
+          polygonBuffer);
+    }
+
+    float[] snapshotPoses = planeSnapshot.getPoses();
+    planeSorter.clear();
+    for (int slot = 0; slot < planeSnapshot.size(); slot++) {
+      if (!planeSnapshot.isDrawable(slot)) {
+        continue;
+      }
+      int p = slot * TraceFrame.FLOATS_PER_POSE;
+      float distance =
+          PlaneSorter.distanceToPlane(
+              snapshotPoses[p], snapshotPoses[p + 1], snapshotPoses[p + 2],
+              snapshotPoses[p + 3], snapshotPoses[p + 4], snapshotPoses[p + 5],
+              snapshotPoses[p + 6],
+              cameraPosition[0], cameraPosition[1], cameraPosition[2]);
+      if (distance < 0) { // Plane is back-facing.
+        continue;
+      }
+      planeSorter.add(slot, distance);
+    }
+    planeSorter.sort();
+
+    long planeHash = 0;
+    for (int i = 0; i < planeSorter.size(); i++) {
+      int slot = planeSorter.getIndex(i);
+      planeHash +=
+          drawnPlaneHash(
+              planeSnapshot.getId(slot),
+              planeSorter.getDistance(i),
+              planeSnapshot.getVertexBuffer(slot).limit(),
+              planeSnapshot.getIndexBuffer(slot).limit());
+    }
+    return planeHash;
+  }
+
+  private void processAnchors(TraceFrame frame) {
+    float[] poses = frame.getAnchorPoses();
+    for (int i = 0; i < frame.getAnchorCount(); i++) {
+      if (frame.getAnchorTrackingState(i) != TraceFrame.TRACKING) {
+        continue;
+      }
+      int p = i * TraceFrame.FLOATS_PER_POSE;
+      densityEstimator.query(poses[p], poses[p + 1], poses[p + 2], DENSITY_RADIUS_METERS, estimate);
+      mix(estimate.cells);
+      mix(Float.floatToIntBits(estimate.score));
+      mix(Float.floatToIntBits(
+          coverageTracker.getCoverageDegrees(poses[p], poses[p + 1], poses[p + 2])));
+    }
+  }
+
+  private void mix(int value) {
+    checksum = checksum * 31 + value;
+  }
+
+  /**
+   * Hash of one drawn plane. The per-frame plane hash is the sum of these, so that planes at the
+   * same distance, which the two plane stages may sort in either order, hash the same.
+   */
+  private static long drawnPlaneHash(int id, float distance, int vertexFloats, int indices) {
+    long hash = id;
+    hash = hash * 31 + Float.floatToIntBits(distance);
+    hash = hash * 31 + vertexFloats;
+    hash = hash * 31 + indices;
+    // Spread the bits, so that sums of similar planes do not collide.
+    return hash * 0x9E3779B97F4A7C15L;
+  }
+
+  public long getChecksum() {
+    return checksum;
+  }
+
+  public int getFrames() {
+    return frames;
+  }
+
+  /** Number of frames where the plane snapshot would draw differently from the full pass. */
+  public int getSnapshotMismatches() {
+    return snapshotMismatches;
+  }
+
+  /** Total time spent in {@code stage} since the last {@link #reset()}. */
+  public long getStageNanos(Stage stage) {
+    return stageNanos[stage.ordinal()];
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: FrameTraceReplay <trace file> [passes]");
+      System.exit(2);
+    }
+    FrameTraceReader reader = FrameTraceReader.open(new File(args[0]));
+    int passes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    FrameTraceReplay replay = new FrameTraceReplay();
+    TraceFrame frame = new TraceFrame();
+    long firstChecksum = 0;
+    for (int pass = 0; pass < passes; pass++) {
+      replay.reset();
+      reader.rewind();
+      while (reader.next(frame)) {
+        replay.process(frame);
+      }
+      StringBuilder line =
+          new StringBuilder(
+              String.format(
+                  Locale.US, "pass=%d frames=%d checksum=%016x snapshotMismatches=%d", pass,
+                  replay.getFrames(), replay.getChecksum(), replay.getSnapshotMismatches()));
+      for (Stage stage : STAGES) {
+        line.append(String.format(
+            Locale.US, " %s=%.2fus/frame", stage,
+            replay.getStageNanos(stage) / 1e3 / Math.max(1, replay.getFrames())));
+      }
+      System.out.println(line);
+      if (replay.getSnapshotMismatches() > 0) {
+        System.err.println("Plane snapshot does not match the full plane pass");
+        System.exit(1);
+      }
+      if (pass == 0) {
+        firstChecksum = replay.getChecksum();
+      } else if (replay.getChecksum() != firstChecksum) {
+        System.err.println("Checksum changed between passes; replay is not deterministic");
+        System.exit(1);
+      }
+    }
+  }
+}
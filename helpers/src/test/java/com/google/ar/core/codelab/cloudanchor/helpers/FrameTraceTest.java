@@ -0,0 +1,213 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Writes synthetic frames with {@link TraceFrame}, reads them back with {@link FrameTraceReader}
+ * and compares them field by field.
+ */
+public class FrameTraceTest {
+  private static final int FRAMES = 700;
+  private static final int PLANES = 16;
+  private static final int POINTS = 100;
+  private static final int ANCHORS = 3;
+  private static final long SEED = 7;
+
+  @Test
+  public void trace_roundTripsEveryField() throws IOException {
+    ByteBuffer trace = new SyntheticFrameTrace(PLANES, POINTS, ANCHORS, SEED).generate(FRAMES);
+    FrameTraceReader reader = new FrameTraceReader(trace);
+    // Generates the same frames again, to compare with.
+    SyntheticFrameTrace expectedFrames = new SyntheticFrameTrace(PLANES, POINTS, ANCHORS, SEED);
+    TraceFrame expected = new TraceFrame();
+    TraceFrame actual = new TraceFrame();
+
+    int frames = 0;
+    int maxPlanes = 0;
+    boolean[] sawStates = new boolean[3];
+    boolean sawSubsumed = false;
+    while (reader.next(actual)) {
+      expectedFrames.next(expected);
+      assertFrameEquals("frame " + frames, expected, actual);
+      maxPlanes = Math.max(maxPlanes, actual.getPlaneCount());
+      sawStates[actual.getCameraTrackingState()] = true;
+      for (int i = 0; i < actual.getPlaneCount(); i++) {
+        sawStates[actual.getPlaneTrackingState(i)] = true;
+        sawSubsumed |= actual.getPlaneSubsumedBy(i) != TraceFrame.NO_PLANE;
+      }
+      frames++;
+    }
+    assertEquals(FRAMES, frames);
+    // The trace covers every tracking state and subsumed planes.
+    assertEquals(PLANES, maxPlanes);
+    assertTrue(Arrays.toString(sawStates), sawStates[0] && sawStates[1] && sawStates[2]);
+    assertTrue(sawSubsumed);
+  }
+
+  @Test
+  public void replay_isDeterministicAndSnapshotMatchesFullPass() throws IOException {
+    FrameTraceReader reader =
+        new FrameTraceReader(
+            new SyntheticFrameTrace(PLANES, POINTS, ANCHORS, SEED).generate(FRAMES));
+    FrameTraceReplay replay = new FrameTraceReplay();
+    TraceFrame frame = new TraceFrame();
+    long firstChecksum = 0;
+    for (int pass = 0; pass < 2; pass++) {
+      replay.reset();
+      reader.rewind();
+      while (reader.next(frame)) {
+        replay.process(frame);
+      }
+      assertEquals(FRAMES, replay.getFrames());
+      assertEquals(0, replay.getSnapshotMismatches());
+      if (pass == 0) {
+        firstChecksum = replay.getChecksum();
+      } else {
+        assertEquals(firstChecksum, replay.getChecksum());
+      }
+    }
+  }
+
+  @Test
+  public void rewind_replaysTheSameFrames() throws IOException {
+    FrameTraceReader reader =
+        new FrameTraceReader(new SyntheticFrameTrace(PLANES, POINTS, ANCHORS, SEED).generate(3));
+    TraceFrame first = new TraceFrame();
+    TraceFrame again = new TraceFrame();
+    assertTrue(reader.next(first));
+    while (reader.next(again)) {}
+
+    reader.rewind();
+    assertTrue(reader.next(again));
+    assertFrameEquals("rewound", first, again);
+  }
+
+  @Test
+  public void truncatedLastRecord_endsTheTrace() throws IOException {
+    ByteBuffer trace = new SyntheticFrameTrace(PLANES, POINTS, ANCHORS, SEED).generate(3);
+    // A recording that was not closed, cut in the middle of the last frame.
+    trace.limit(trace.limit() - 10);
+    FrameTraceReader reader = new FrameTraceReader(trace);
+    TraceFrame frame = new TraceFrame();
+
+    assertTrue(reader.next(frame));
+    assertTrue(reader.next(frame));
+    assertFalse(reader.next(frame));
+  }
+
+  @Test
+  public void otherFiles_areRejected() {
+    ByteBuffer notATrace = ByteBuffer.allocate(8).putInt(0x12345678).putInt(TraceFrame.VERSION);
+    notATrace.flip();
+    assertThrows(IOException.class, () -> new FrameTraceReader(notATrace));
+
+    ByteBuffer otherVersion =
+        ByteBuffer.allocate(8).putInt(TraceFrame.MAGIC).putInt(TraceFrame.VERSION + 1);
+    otherVersion.flip();
+    assertThrows(IOException.class, () -> new FrameTraceReader(otherVersion));
+  }
+
+  @Test
+  public void reusedFrame_dropsThePreviousContent() {
+    TraceFrame frame = new TraceFrame();
+    float[] pose = {1, 2, 3, 0, 0, 0, 1};
+    for (int i = 0; i < 20; i++) {
+      frame.addPlane(
+          i, TraceFrame.VERTICAL, TraceFrame.TRACKING, TraceFrame.NO_PLANE, true, pose, 1, 2,
+          FloatBuffer.wrap(new float[] {0, 0, 1, 0, 1, 1}));
+      frame.addAnchor(TraceFrame.TRACKING, pose);
+    }
+    frame.setPoints(5, FloatBuffer.wrap(new float[1000 * TraceFrame.FLOATS_PER_POINT]));
+
+    frame.reset(42, TraceFrame.PAUSED);
+    ByteBuffer record = ByteBuffer.allocate(1 << 16);
+    frame.writeTo(record);
+    record.flip();
+    TraceFrame read = new TraceFrame();
+    read.readFrom(record);
+
+    assertEquals(42, read.getTimestamp());
+    assertEquals(TraceFrame.PAUSED, read.getCameraTrackingState());
+    assertEquals(0, read.getPointCount());
+    assertEquals(0, read.getPlaneCount());
+    assertEquals(0, read.getAnchorCount());
+    assertFalse(record.hasRemaining());
+  }
+
+  private static void assertFrameEquals(String where, TraceFrame expected, TraceFrame actual) {
+    assertEquals(where, expected.getTimestamp(), actual.getTimestamp());
+    assertEquals(where, expected.getCameraTrackingState(), actual.getCameraTrackingState());
+    assertArrayEquals(where, expected.getViewMatrix(), actual.getViewMatrix(), 0);
+    assertArrayEquals(where, expected.getProjectionMatrix(), actual.getProjectionMatrix(), 0);
+
+    assertEquals(where, expected.getPointCloudTimestamp(), actual.getPointCloudTimestamp());
+    assertEquals(where, expected.getPointCount(), actual.getPointCount());
+    int pointFloats = expected.getPointCount() * TraceFrame.FLOATS_PER_POINT;
+    assertArrayEquals(
+        where,
+        Arrays.copyOf(expected.getPoints(), pointFloats),
+        Arrays.copyOf(actual.getPoints(), pointFloats),
+        0);
+
+    assertEquals(where, expected.getPlaneCount(), actual.getPlaneCount());
+    for (int i = 0; i < expected.getPlaneCount(); i++) {
+      String plane = where + " plane " + i;
+      assertEquals(plane, expected.getPlaneId(i), actual.getPlaneId(i));
+      assertEquals(plane, expected.getPlaneType(i), actual.getPlaneType(i));
+      assertEquals(plane, expected.getPlaneTrackingState(i), actual.getPlaneTrackingState(i));
+      assertEquals(plane, expected.getPlaneSubsumedBy(i), actual.getPlaneSubsumedBy(i));
+      assertEquals(plane, expected.isPlaneUpdated(i), actual.isPlaneUpdated(i));
+      assertArrayEquals(
+          plane, pose(expected.getPlanePoses(), i), pose(actual.getPlanePoses(), i), 0);
+      assertEquals(plane, expected.getPlaneExtentX(i), actual.getPlaneExtentX(i), 0);
+      assertEquals(plane, expected.getPlaneExtentZ(i), actual.getPlaneExtentZ(i), 0);
+      assertEquals(plane, expected.getPolygonLength(i), actual.getPolygonLength(i));
+      assertArrayEquals(plane, polygon(expected, i), polygon(actual, i), 0);
+    }
+
+    assertEquals(where, expected.getAnchorCount(), actual.getAnchorCount());
+    for (int i = 0; i < expected.getAnchorCount(); i++) {
+      String anchor = where + " anchor " + i;
+      assertEquals(anchor, expected.getAnchorTrackingState(i), actual.getAnchorTrackingState(i));
+      assertArrayEquals(
+          anchor, pose(expected.getAnchorPoses(), i), pose(actual.getAnchorPoses(), i), 0);
+    }
+  }
+
+  private static float[] pose(float[] poses, int index) {
+    int offset = index * TraceFrame.FLOATS_PER_POSE;
+    return Arrays.copyOfRange(poses, offset, offset + TraceFrame.FLOATS_PER_POSE);
+  }
+
+  private static float[] polygon(TraceFrame frame, int plane) {
+    int offset = frame.getPolygonOffset(plane);
+    return Arrays.copyOfRange(
+        frame.getPolygons(), offset, offset + frame.getPolygonLength(plane));
+  }
+}
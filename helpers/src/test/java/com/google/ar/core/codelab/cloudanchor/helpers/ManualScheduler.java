@@ -0,0 +1,224 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ScheduledExecutorService} on a virtual clock, for deterministic tests.
+ *
+ * <p>Nothing runs until {@link #advanceBy} moves the clock; tasks then run on the calling thread in
+ * the order of their due time, and of scheduling on ties. {@link #execute} runs a task at the
+ * current time on the next advance. Periodic scheduling is not supported.
+ */
+final class ManualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+  private final PriorityQueue<Task<?>> tasks = new PriorityQueue<>();
+  private long nowMs;
+  private long nextSequence;
+  private boolean shutdown;
+
+  /** The virtual time in milliseconds, starting at 0. */
+  long nowMs() {
+    return nowMs;
+  }
+
+  /** Number of tasks waiting to run, not counting cancelled ones. */
+  int getPendingCount() {
+    int count = 0;
+    for (Task<?> task : tasks) {
+      if (!task.isCancelled()) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** Moves the clock forward by {@code ms}, running every task that becomes due. */
+  void advanceBy(long ms) {
+    long target = nowMs + ms;
+    while (!tasks.isEmpty() && tasks.peek().dueMs <= target) {
+      Task<?> task = tasks.poll();
+      nowMs = Math.max(nowMs, task.dueMs);
+      task.run();
+    }
+    nowMs = target;
+  }
+
+  /** Runs tasks until none are left, and returns the time at which the last one ran. */
+  long runAll() {
+    while (!tasks.isEmpty()) {
+      Task<?> task = tasks.poll();
+      nowMs = Math.max(nowMs, task.dueMs);
+      task.run();
+    }
+    return nowMs;
+  }
+
+  @Override
+  public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+    return schedule(
+        () -> {
+          command.run();
+          return null;
+        },
+        delay,
+        unit);
+  }
+
+  @Override
+  public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+    if (shutdown) {
+      throw new IllegalStateException("Scheduler is shut down");
+    }
+    Task<V> task = new Task<>(callable, nowMs + unit.toMillis(Math.max(0, delay)), nextSequence++);
+    tasks.add(task);
+    return task;
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleAtFixedRate(
+      Runnable command, long initialDelay, long period, TimeUnit unit) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleWithFixedDelay(
+      Runnable command, long initialDelay, long delay, TimeUnit unit) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    schedule(command, 0, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void shutdown() {
+    shutdown = true;
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    shutdown = true;
+    List<Runnable> pending = new ArrayList<>(tasks);
+    tasks.clear();
+    return pending;
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return shutdown && tasks.isEmpty();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) {
+    return isTerminated();
+  }
+
+  private final class Task<V> implements ScheduledFuture<V>, Runnable {
+    private final Callable<V> callable;
+    private final long dueMs;
+    private final long sequence;
+    private boolean cancelled;
+    private boolean done;
+    private V result;
+    private Exception failure;
+
+    Task(Callable<V> callable, long dueMs, long sequence) {
+      this.callable = callable;
+      this.dueMs = dueMs;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public void run() {
+      if (cancelled || done) {
+        return;
+      }
+      try {
+        result = callable.call();
+      } catch (Exception e) {
+        // Swallowed like a real executor does; visible through get().
+        failure = e;
+      }
+      done = true;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(dueMs - nowMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      Task<?> task = (Task<?>) other;
+      int byTime = Long.compare(dueMs, task.dueMs);
+      return byTime != 0 ? byTime : Long.compare(sequence, task.sequence);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (done || cancelled) {
+        return false;
+      }
+      cancelled = true;
+      tasks.removeAll(Collections.singleton(this));
+      return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+      return done || cancelled;
+    }
+
+    @Override
+    public V get() throws ExecutionException {
+      if (!done) {
+        throw new IllegalStateException("Task has not run");
+      }
+      if (failure != null) {
+        throw new ExecutionException(failure);
+      }
+      return result;
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws ExecutionException {
+      return get();
+    }
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Measures the error of {@link PosePredictor} on the camera poses of a frame trace.
+ *
+ * <p>For every tracked frame, the pose is predicted for a lead time and compared with the pose
+ * actually recorded at that time, interpolated between the two frames around it. The same is done
+ * for the unpredicted pose of the frame, which is what the render loop draws without prediction.
+ * Errors are reported as the camera position error in millimeters and rotation error in degrees.
+ *
+ * <p>A development tool, kept with the JVM tests so that it does not ship in the library. Only
+ * depends on classes without Android or ARCore dependencies, so it can be compiled together with
+ * the main sources and run with plain {@code javac} and {@code java}:
+ *
+ * <pre>
+ *   java com.google.ar.core.codelab.cloudanchor.helpers.PosePredictionReplay trace.bin \
+ *       [lead ms...]
+ * </pre>
+ *
+ * <p>Traces are recorded on a device by {@link FrameTraceRecorder}, or generated by {@link
+ * SyntheticFrameTrace}.
+ */
+public class PosePredictionReplay {
+  // Same parameters as the app.
+  private static final int CAPACITY = 16;
+  private static final long VELOCITY_WINDOW_NANOS = 50_000_000L;
+  private static final long MAX_PREDICTION_NANOS = 50_000_000L;
+  private static final long MAX_GAP_NANOS = 100_000_000L;
+  private static final float MAX_LINEAR_SPEED = 4.0f;
+  private static final float MAX_ANGULAR_SPEED = 10.0f;
+
+  private static final int FLOATS_PER_POSE = 7;
+
+  private final int frames;
+  private final long[] timestamps;
+  private final boolean[] tracking;
+  private final float[] viewMatrices;
+  private final float[] poses;
+
+  private final float[] view = new float[16];
+  private final float[] predictedPose = new float[FLOATS_PER_POSE];
+  private final float[] actualPose = new float[FLOATS_PER_POSE];
+
+  PosePredictionReplay(FrameTraceReader reader) {
+    TraceFrame frame = new TraceFrame();
+    int count = 0;
+    while (reader.next(frame)) {
+      count++;
+    }
+    frames = count;
+    timestamps = new long[frames];
+    tracking = new boolean[frames];
+    viewMatrices = new float[frames * 16];
+    poses = new float[frames * FLOATS_PER_POSE];
+    reader.rewind();
+    for (int i = 0; reader.next(frame); i++) {
+      timestamps[i] = frame.getTimestamp();
+      tracking[i] = frame.getCameraTrackingState() == TraceFrame.TRACKING;
+      System.arraycopy(frame.getViewMatrix(), 0, viewMatrices, i * 16, 16);
+      PosePredictor.viewToPose(frame.getViewMatrix(), poses, i * FLOATS_PER_POSE);
+    }
+  }
+
+  /** Errors of one lead time, for the unpredicted and the predicted poses. */
+  static final class Errors {
+    int samples;
+    final float[] unpredictedMillimeters;
+    final float[] unpredictedDegrees;
+    final float[] predictedMillimeters;
+    final float[] predictedDegrees;
+    long predictNanos;
+
+    Errors(int capacity) {
+      unpredictedMillimeters = new float[capacity];
+      unpredictedDegrees = new float[capacity];
+      predictedMillimeters = new float[capacity];
+      predictedDegrees = new float[capacity];
+    }
+  }
+
+  Errors run(long leadNanos) {
+    PosePredictor predictor =
+        new PosePredictor(
+            CAPACITY,
+            VELOCITY_WINDOW_NANOS,
+            MAX_PREDICTION_NANOS,
+            MAX_GAP_NANOS,
+            MAX_LINEAR_SPEED,
+            MAX_ANGULAR_SPEED);
+    Errors errors = new Errors(frames);
+    for (int i = 0; i < frames; i++) {
+      if (!tracking[i]) {
+        predictor.reset();
+        continue;
+      }
+      System.arraycopy(viewMatrices, i * 16, view, 0, 16);
+      predictor.addViewMatrix(timestamps[i], view);
+      long start = System.nanoTime();
+      predictor.predictViewMatrix(timestamps[i] + leadNanos, view);
+      errors.predictNanos += System.nanoTime() - start;
+      if (!interpolate(timestamps[i] + leadNanos, i, actualPose)) {
+        continue;
+      }
+      PosePredictor.viewToPose(view, predictedPose, 0);
+      int s = errors.samples++;
+      errors.unpredictedMillimeters[s] =
+          distance(poses, i * FLOATS_PER_POSE, actualPose, 0) * 1000;
+      errors.unpredictedDegrees[s] =
+          (float)
+              Math.toDegrees(PosePredictor.angle(poses, i * FLOATS_PER_POSE + 3, actualPose, 3));
+      errors.predictedMillimeters[s] = distance(predictedPose, 0, actualPose, 0) * 1000;
+      errors.predictedDegrees[s] =
+          (float) Math.toDegrees(PosePredictor.angle(predictedPose, 3, actualPose, 3));
+    }
+    return errors;
+  }
+
+  /**
+   * Interpolates the recorded pose at {@code time}, searching from frame {@code from}. Returns
+   * false if the frames around it are not both tracked.
+   */
+  private boolean interpolate(long time, int from, float[] out) {
+    int next = from;
+    while (next < frames && timestamps[next] < time) {
+      next++;
+    }
+    if (next >= frames || next == 0 || !tracking[next] || !tracking[next - 1]) {
+      return false;
+    }
+    int a = (next - 1) * FLOATS_PER_POSE;
+    int b = next * FLOATS_PER_POSE;
+    float t = (float) (time - timestamps[next - 1]) / (timestamps[next] - timestamps[next - 1]);
+    for (int i = 0; i < 3; i++) {
+      out[i] = poses[a + i] + (poses[b + i] - poses[a + i]) * t;
+    }
+    // Normalized linear interpolation, close enough to slerp between consecutive frames.
+    float dot = 0;
+    for (int i = 3; i < FLOATS_PER_POSE; i++) {
+      dot += poses[a + i] * poses[b + i];
+    }
+    float sign = dot < 0 ? -1 : 1;
+    float length = 0;
+    for (int i = 3; i < FLOATS_PER_POSE; i++) {
+      out[i] = poses[a + i] * (1 - t) + sign * poses[b + i] * t;
+      length += out[i] * out[i];
+    }
+    length = (float) Math.sqrt(length);
+    for (int i = 3; i < FLOATS_PER_POSE; i++) {
+      out[i] /= length;
+    }
+    return true;
+  }
+
+  private static float distance(float[] a, int aOffset, float[] b, int bOffset) {
+    float dx = a[aOffset] - b[bOffset];
+    float dy = a[aOffset + 1] - b[bOffset + 1];
+    float dz = a[aOffset + 2] - b[bOffset + 2];
+    return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+  }
+
+  /** Formats the mean, 95th percentile and maximum of the first {@code count} values. */
+  private static String summarize(float[] values, int count) {
+    if (count == 0) {
+      return "n/a";
+    }
+    float[] sorted = Arrays.copyOf(values, count);
+    Arrays.sort(sorted);
+    double sum = 0;
+    for (float value : sorted) {
+      sum += value;
+    }
+    return String.format(
+        Locale.US, "%.2f/%.2f/%.2f",
+        sum / count, sorted[(int) (0.95 * (count - 1))], sorted[count - 1]);
+  }
+
+  private static double mean(float[] values, int count) {
+    double sum = 0;
+    for (int i = 0; i < count; i++) {
+      sum += values[i];
+    }
+    return count == 0 ? 0 : sum / count;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: PosePredictionReplay <trace file> [lead ms...]");
+      System.exit(2);
+    }
+    PosePredictionReplay replay =
+        new PosePredictionReplay(FrameTraceReader.open(new File(args[0])));
+    long[] leadsMs = {16, 33, 50};
+    if (args.length > 1) {
+      leadsMs = new long[args.length - 1];
+      for (int i = 1; i < args.length; i++) {
+        leadsMs[i - 1] = Long.parseLong(args[i]);
+      }
+    }
+    System.out.println("frames=" + replay.frames + ", errors are mean/p95/max");
+    for (long leadMs : leadsMs) {
+      Errors errors = replay.run(leadMs * 1_000_000L);
+      int n = errors.samples;
+      System.out.println(String.format(
+          Locale.US,
+          "lead=%dms samples=%d unpredicted=%smm,%sdeg predicted=%smm,%sdeg"
+              + " reduction=%.0f%%,%.0f%% predict=%.2fus/frame",
+          leadMs, n,
+          summarize(errors.unpredictedMillimeters, n), summarize(errors.unpredictedDegrees, n),
+          summarize(errors.predictedMillimeters, n), summarize(errors.predictedDegrees, n),
+          100 * (1 - mean(errors.predictedMillimeters, n)
+              / Math.max(1e-9, mean(errors.unpredictedMillimeters, n))),
+          100 * (1 - mean(errors.predictedDegrees, n)
+              / Math.max(1e-9, mean(errors.unpredictedDegrees, n))),
+          errors.predictNanos / 1e3 / Math.max(1, replay.frames)));
+    }
+  }
+}
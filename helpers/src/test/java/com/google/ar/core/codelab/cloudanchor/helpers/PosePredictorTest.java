@@ -0,0 +1,250 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Replays generated pose traces with a known trajectory through {@link PosePredictor}: the camera
+ * moves and turns at constant speeds, with tracking jitter on top.
+ */
+public class PosePredictorTest {
+  private static final long FRAME_NANOS = 33_000_000L;
+  private static final long LEAD_NANOS = 33_000_000L;
+  private static final int FRAMES = 300;
+
+  // The app's parameters.
+  private static final int CAPACITY = 16;
+  private static final long VELOCITY_WINDOW_NANOS = 50_000_000L;
+  private static final long MAX_PREDICTION_NANOS = 50_000_000L;
+  private static final long MAX_GAP_NANOS = 100_000_000L;
+  private static final float MAX_LINEAR_SPEED = 4.0f;
+  private static final float MAX_ANGULAR_SPEED = 10.0f;
+
+  // Walking pace, while turning the phone slowly about a tilted axis.
+  private static final float[] VELOCITY = {0.4f, 0.05f, -0.3f};
+  private static final float[] AXIS = normalize(new float[] {0.2f, 1, 0.1f});
+  private static final float ANGULAR_SPEED = 1.0f;
+  private static final float POSITION_JITTER = 0.0005f;
+  private static final float ROTATION_JITTER = 0.001f;
+
+  private final PosePredictor predictor =
+      new PosePredictor(
+          CAPACITY,
+          VELOCITY_WINDOW_NANOS,
+          MAX_PREDICTION_NANOS,
+          MAX_GAP_NANOS,
+          MAX_LINEAR_SPEED,
+          MAX_ANGULAR_SPEED);
+  private final Random random = new Random(42);
+  private final float[] view = new float[16];
+  private final float[] predictedView = new float[16];
+  private final float[] pose = new float[7];
+  private final float[] truePose = new float[7];
+
+  @Test
+  public void prediction_isCloserToTheFutureThanTheNewestPose() {
+    double predictedPositionError = 0;
+    double predictedAngleError = 0;
+    double newestPositionError = 0;
+    double newestAngleError = 0;
+    int measured = 0;
+    for (int frame = 0; frame < FRAMES; frame++) {
+      long timestamp = frame * FRAME_NANOS;
+      trajectory(timestamp, pose);
+      addJitter(pose);
+      PosePredictor.poseToView(pose, 0, view);
+      predictor.addViewMatrix(timestamp, view);
+      assertTrue(predictor.predictViewMatrix(timestamp + LEAD_NANOS, predictedView));
+      if (frame < 10) {
+        // Past the warm-up.
+        continue;
+      }
+
+      trajectory(timestamp + LEAD_NANOS, truePose);
+      float[] predictedPose = new float[7];
+      PosePredictor.viewToPose(predictedView, predictedPose, 0);
+      predictedPositionError += distance(predictedPose, truePose);
+      predictedAngleError += PosePredictor.angle(predictedPose, 3, truePose, 3);
+      newestPositionError += distance(pose, truePose);
+      newestAngleError += PosePredictor.angle(pose, 3, truePose, 3);
+      measured++;
+    }
+    predictedPositionError /= measured;
+    predictedAngleError /= measured;
+    newestPositionError /= measured;
+    newestAngleError /= measured;
+
+    String errors =
+        "position " + predictedPositionError + " vs " + newestPositionError
+            + ", angle " + predictedAngleError + " vs " + newestAngleError;
+    // Without prediction, the error is the motion during the lead time: about 17 mm and 0.033
+    // radians. With prediction, only the jitter is left, amplified by the extrapolation.
+    assertTrue(errors, predictedPositionError < newestPositionError / 4);
+    assertTrue(errors, predictedAngleError < newestAngleError / 4);
+    assertTrue(predictor.getStats(), predictor.getStats().contains("jumps=0 "));
+  }
+
+  @Test
+  public void jump_dropsTheHistory() {
+    long timestamp = runFrames(20);
+
+    // ARCore relocalizes: the camera appears half a meter away from one frame to the next.
+    trajectory(timestamp, pose);
+    pose[0] += 0.5f;
+    PosePredictor.poseToView(pose, 0, view);
+    predictor.addViewMatrix(timestamp, view);
+
+    // Nothing to extrapolate from, so the newest pose is used as is.
+    assertTrue(predictor.predictViewMatrix(timestamp + LEAD_NANOS, predictedView));
+    assertArrayEquals(view, predictedView, 1e-5f);
+    assertTrue(predictor.getStats(), predictor.getStats().contains("jumps=1 history=1"));
+
+    // The history starts again from the new pose.
+    predictor.addViewMatrix(timestamp + FRAME_NANOS, view);
+    assertTrue(predictor.getStats(), predictor.getStats().contains("history=2"));
+  }
+
+  @Test
+  public void gap_dropsTheHistory() {
+    long timestamp = runFrames(20) + MAX_GAP_NANOS;
+    trajectory(timestamp, pose);
+    PosePredictor.poseToView(pose, 0, view);
+    predictor.addViewMatrix(timestamp, view);
+
+    assertTrue(predictor.predictViewMatrix(timestamp + LEAD_NANOS, predictedView));
+    assertArrayEquals(view, predictedView, 1e-5f);
+    assertTrue(predictor.getStats(), predictor.getStats().contains("resets=1 jumps=0 history=1"));
+  }
+
+  @Test
+  public void reset_leavesNothingToPredictFrom() {
+    long timestamp = runFrames(5);
+    predictor.reset();
+
+    predictedView[0] = 42;
+    assertFalse(predictor.predictViewMatrix(timestamp + LEAD_NANOS, predictedView));
+    assertEquals(42, predictedView[0], 0);
+  }
+
+  @Test
+  public void repeatedFrame_isAddedOnce() {
+    long timestamp = runFrames(3);
+    predictor.addViewMatrix(timestamp - FRAME_NANOS, view);
+
+    assertTrue(predictor.getStats(), predictor.getStats().contains("history=3"));
+  }
+
+  @Test
+  public void viewToPose_andPoseToView_roundTrip() {
+    float[] roundTripPose = new float[7];
+    float[] roundTripView = new float[16];
+    for (int i = 0; i < 1000; i++) {
+      // Random rotations, plus half turns about each axis, which have a negative trace.
+      float[] axis =
+          i < 3
+              ? new float[] {i == 0 ? 1 : 0, i == 1 ? 1 : 0, i == 2 ? 1 : 0}
+              : normalize(
+                  new float[] {
+                    random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f
+                  });
+      float angle = i < 3 ? (float) Math.PI : (float) (random.nextFloat() * 2 * Math.PI);
+      setAxisAngle(axis, angle, pose, 3);
+      for (int j = 0; j < 3; j++) {
+        pose[j] = 10 * (random.nextFloat() - 0.5f);
+      }
+
+      PosePredictor.poseToView(pose, 0, view);
+      PosePredictor.viewToPose(view, roundTripPose, 0);
+      for (int j = 0; j < 3; j++) {
+        assertEquals(pose[j], roundTripPose[j], 1e-4f);
+      }
+      // q and -q are the same rotation.
+      assertEquals(0, PosePredictor.angle(pose, 3, roundTripPose, 3), 1e-3f);
+
+      PosePredictor.poseToView(roundTripPose, 0, roundTripView);
+      assertArrayEquals(view, roundTripView, 1e-4f);
+    }
+  }
+
+  /** Adds {@code frames} frames of the trajectory, and returns the timestamp of the next one. */
+  private long runFrames(int frames) {
+    long timestamp = 0;
+    for (int frame = 0; frame < frames; frame++) {
+      timestamp = frame * FRAME_NANOS;
+      trajectory(timestamp, pose);
+      PosePredictor.poseToView(pose, 0, view);
+      predictor.addViewMatrix(timestamp, view);
+    }
+    return timestamp + FRAME_NANOS;
+  }
+
+  /** The camera pose at {@code timestampNanos}, as a position and a quaternion. */
+  private static void trajectory(long timestampNanos, float[] out) {
+    float seconds = timestampNanos / 1e9f;
+    out[0] = 1 + VELOCITY[0] * seconds;
+    out[1] = 1.5f + VELOCITY[1] * seconds;
+    out[2] = -2 + VELOCITY[2] * seconds;
+    setAxisAngle(AXIS, ANGULAR_SPEED * seconds, out, 3);
+  }
+
+  private void addJitter(float[] out) {
+    for (int i = 0; i < 3; i++) {
+      out[i] += POSITION_JITTER * (float) random.nextGaussian();
+    }
+    // A small rotation about a random axis, applied after the pose's.
+    float[] jitter = new float[4];
+    float[] axis = {
+      (float) random.nextGaussian(), (float) random.nextGaussian(), (float) random.nextGaussian()
+    };
+    setAxisAngle(normalize(axis), ROTATION_JITTER * (float) random.nextGaussian(), jitter, 0);
+    float x = out[3];
+    float y = out[4];
+    float z = out[5];
+    float w = out[6];
+    out[3] = jitter[3] * x + jitter[0] * w + jitter[1] * z - jitter[2] * y;
+    out[4] = jitter[3] * y - jitter[0] * z + jitter[1] * w + jitter[2] * x;
+    out[5] = jitter[3] * z + jitter[0] * y - jitter[1] * x + jitter[2] * w;
+    out[6] = jitter[3] * w - jitter[0] * x - jitter[1] * y - jitter[2] * z;
+  }
+
+  private static void setAxisAngle(float[] axis, float angle, float[] out, int offset) {
+    float sin = (float) Math.sin(angle / 2);
+    out[offset] = axis[0] * sin;
+    out[offset + 1] = axis[1] * sin;
+    out[offset + 2] = axis[2] * sin;
+    out[offset + 3] = (float) Math.cos(angle / 2);
+  }
+
+  private static float[] normalize(float[] v) {
+    float length = (float) Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+    return new float[] {v[0] / length, v[1] / length, v[2] / length};
+  }
+
+  private static float distance(float[] a, float[] b) {
+    float dx = a[0] - b[0];
+    float dy = a[1] - b[1];
+    float dz = a[2] - b[2];
+    return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import com.google.ar.core.codelab.cloudanchor.helpers.QualityGovernor.Level;
+import com.google.ar.core.codelab.cloudanchor.helpers.QualityGovernor.Reason;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Runs {@link QualityGovernor} on synthetic frame time sequences. */
+public class QualityGovernorTest {
+  private static final long BUDGET_NANOS = 16_000_000;
+  private static final int WINDOW_FRAMES = 10;
+  private static final float STEP_UP_RATIO = 0.7f;
+  private static final int STEP_UP_WINDOWS = 3;
+  private static final long FRAME_INTERVAL_NANOS = 33_000_000;
+
+  private static final long FAST_NANOS = 8_000_000;
+  // Under the budget, but not enough headroom to raise quality.
+  private static final long BARELY_FAST_NANOS = 14_000_000;
+  private static final long SLOW_NANOS = 24_000_000;
+
+  private QualityGovernor governor;
+  private long nowNanos;
+
+  @Before
+  public void setUp() {
+    governor = new QualityGovernor(BUDGET_NANOS, WINDOW_FRAMES, STEP_UP_RATIO, STEP_UP_WINDOWS);
+  }
+
+  @Test
+  public void framesWithinBudget_keepFullQuality() {
+    runWindows(10, FAST_NANOS);
+    runWindows(10, BARELY_FAST_NANOS);
+
+    assertEquals(Level.FULL, governor.getLevel());
+    assertEquals(Reason.NONE, governor.getLastReason());
+    assertEquals(0, governor.getStepDowns());
+  }
+
+  @Test
+  public void spikeWithinAWindow_isAveragedOut() {
+    governor.onFrame(4 * BUDGET_NANOS, nextFrame());
+    runFrames(WINDOW_FRAMES - 1, FAST_NANOS);
+
+    assertEquals(Level.FULL, governor.getLevel());
+  }
+
+  @Test
+  public void slowWindows_stepDownOneLevelEach() {
+    runWindows(1, SLOW_NANOS);
+    assertEquals(Level.NO_POINT_CLOUD, governor.getLevel());
+    assertEquals(Reason.FRAME_TIME, governor.getLastReason());
+
+    runWindows(1, SLOW_NANOS);
+    assertEquals(Level.REDUCED_PLANES, governor.getLevel());
+
+    // The cheapest level is kept however slow the frames are.
+    runWindows(5, SLOW_NANOS);
+    assertEquals(Level.REDUCED_RESOLUTION, governor.getLevel());
+    assertEquals(3, governor.getStepDowns());
+    assertEquals(0, governor.getThermalStepDowns());
+  }
+
+  @Test
+  public void recovery_needsConsecutiveWindowsWithHeadroom() {
+    runWindows(2, SLOW_NANOS);
+    assertEquals(Level.REDUCED_PLANES, governor.getLevel());
+
+    runWindows(STEP_UP_WINDOWS - 1, FAST_NANOS);
+    // A window without enough headroom starts the count again.
+    runWindows(1, BARELY_FAST_NANOS);
+    runWindows(STEP_UP_WINDOWS - 1, FAST_NANOS);
+    assertEquals(Level.REDUCED_PLANES, governor.getLevel());
+
+    runWindows(1, FAST_NANOS);
+    assertEquals(Level.NO_POINT_CLOUD, governor.getLevel());
+    assertEquals(Reason.RECOVERED, governor.getLastReason());
+
+    runWindows(STEP_UP_WINDOWS, FAST_NANOS);
+    assertEquals(Level.FULL, governor.getLevel());
+    assertEquals(2, governor.getStepUps());
+
+    // Already at the best level.
+    runWindows(10, FAST_NANOS);
+    assertEquals(Level.FULL, governor.getLevel());
+    assertEquals(2, governor.getStepUps());
+  }
+
+  @Test
+  public void levelChange_startsANewWindow() {
+    // Enough slow frames that, with the fast ones below, the window would be over the budget.
+    runFrames(6, SLOW_NANOS);
+    governor.setThermalStatus(QualityGovernor.THERMAL_STATUS_MODERATE);
+    runFrames(1, FAST_NANOS);
+    assertEquals(Level.NO_POINT_CLOUD, governor.getLevel());
+    governor.setThermalStatus(QualityGovernor.THERMAL_STATUS_NONE);
+
+    // The slow frames were dropped with the old level, so this does not complete a window.
+    runFrames(WINDOW_FRAMES - 6, FAST_NANOS);
+    assertEquals(Level.NO_POINT_CLOUD, governor.getLevel());
+    assertEquals(1, governor.getStepDowns());
+  }
+
+  @Test
+  public void thermalStatus_lowersQualityAtOnceAndSetsAFloor() {
+    runWindows(1, FAST_NANOS);
+    governor.setThermalStatus(QualityGovernor.THERMAL_STATUS_SEVERE);
+    runFrames(1, FAST_NANOS);
+    assertEquals(Level.REDUCED_PLANES, governor.getLevel());
+    assertEquals(Reason.THERMAL, governor.getLastReason());
+    assertEquals(1, governor.getStepDowns());
+    assertEquals(1, governor.getThermalStepDowns());
+
+    // Fast frames do not raise quality above the floor.
+    runWindows(5 * STEP_UP_WINDOWS, FAST_NANOS);
+    assertEquals(Level.REDUCED_PLANES, governor.getLevel());
+
+    // Once the device cools down, quality recovers one level at a time, down to the new floor.
+    governor.setThermalStatus(QualityGovernor.THERMAL_STATUS_MODERATE);
+    runWindows(STEP_UP_WINDOWS, FAST_NANOS);
+    assertEquals(Level.NO_POINT_CLOUD, governor.getLevel());
+    runWindows(5 * STEP_UP_WINDOWS, FAST_NANOS);
+    assertEquals(Level.NO_POINT_CLOUD, governor.getLevel());
+
+    governor.setThermalStatus(QualityGovernor.THERMAL_STATUS_NONE);
+    runWindows(STEP_UP_WINDOWS, FAST_NANOS);
+    assertEquals(Level.FULL, governor.getLevel());
+  }
+
+  @Test
+  public void criticalThermalStatus_goesToTheCheapestLevel() {
+    governor.setThermalStatus(QualityGovernor.THERMAL_STATUS_CRITICAL);
+    runFrames(1, FAST_NANOS);
+    assertEquals(Level.REDUCED_RESOLUTION, governor.getLevel());
+
+    // Slow frames cannot lower it further.
+    runWindows(3, SLOW_NANOS);
+    assertEquals(Level.REDUCED_RESOLUTION, governor.getLevel());
+    assertEquals(1, governor.getStepDowns());
+  }
+
+  @Test
+  public void timeAtLevel_isMeasuredUpToTheLastFrame() {
+    // The step down happens on the last frame of the first window.
+    runWindows(1, SLOW_NANOS);
+    long stepDownNanos = (WINDOW_FRAMES - 1) * FRAME_INTERVAL_NANOS;
+    runWindows(1, BARELY_FAST_NANOS);
+    long lastFrameNanos = (2 * WINDOW_FRAMES - 1) * FRAME_INTERVAL_NANOS;
+
+    assertEquals(stepDownNanos, governor.getNanosAtLevel(Level.FULL));
+    assertEquals(lastFrameNanos - stepDownNanos, governor.getNanosAtLevel(Level.NO_POINT_CLOUD));
+    assertEquals(0, governor.getNanosAtLevel(Level.REDUCED_PLANES));
+  }
+
+  @Test
+  public void invalidParameters_areRejected() {
+    assertThrows(
+        IllegalArgumentException.class, () -> new QualityGovernor(BUDGET_NANOS, 0, 0.7f, 3));
+    assertThrows(
+        IllegalArgumentException.class, () -> new QualityGovernor(BUDGET_NANOS, 10, 1f, 3));
+    assertThrows(
+        IllegalArgumentException.class, () -> new QualityGovernor(BUDGET_NANOS, 10, 0.7f, 0));
+  }
+
+  private void runWindows(int windows, long frameNanos) {
+    runFrames(windows * WINDOW_FRAMES, frameNanos);
+  }
+
+  private void runFrames(int frames, long frameNanos) {
+    for (int i = 0; i < frames; i++) {
+      governor.onFrame(frameNanos, nextFrame());
+    }
+  }
+
+  /** Returns the timestamp of the next frame, starting at 0. */
+  private long nextFrame() {
+    long frameNanos = nowNanos;
+    nowNanos += FRAME_INTERVAL_NANOS;
+    return frameNanos;
+  }
+}
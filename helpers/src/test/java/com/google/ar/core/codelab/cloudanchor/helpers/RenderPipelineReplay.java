@@ -0,0 +1,250 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import com.google.ar.core.codelab.cloudanchor.rendering.RenderCommandList;
+import com.google.ar.core.codelab.cloudanchor.rendering.SceneGraph;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the latency of frames with the simulation run inline and on a {@link SimulationStage}
+ * of its own, on the frames of a trace.
+ *
+ * <p>The simulation of a frame is what {@link FrameTraceReplay} replays, plus moving one scene
+ * node per anchor, with a model and a shadow below it like the app, and recording the draw
+ * commands. The GL thread's own work is not available on the JVM, so it is stood in for by
+ * replaying the commands, multiplying the matrices each draw call would upload, and by spinning
+ * for a fixed time per frame, the submission cost of the camera image, planes and point cloud.
+ * Frames arrive at a fixed interval, like camera images in {@code Session.update()}; a frame that
+ * arrives while the GL thread is still busy with the previous one waits, and one that is more than
+ * an interval late is missed. The reported latency is from the arrival of a frame to the end of
+ * its draw calls.
+ *
+ * <p>A development tool, kept with the JVM tests so that it does not ship in the library. Only
+ * depends on classes without Android or ARCore dependencies, so it can be compiled together with
+ * the main sources and run with plain {@code javac} and {@code java}:
+ *
+ * <pre>
+ *   java com.google.ar.core.codelab.cloudanchor.helpers.RenderPipelineReplay trace.bin \
+ *       [GL submission us per frame] [frame interval us] [passes]
+ * </pre>
+ *
+ * <p>A trace heavy enough to take 7 to 9 ms of simulation per frame on a desktop JVM can be
+ * generated with {@link SyntheticFrameTrace}:
+ *
+ * <pre>
+ *   java com.google.ar.core.codelab.cloudanchor.helpers.SyntheticFrameTrace heavy.bin 900 64 300 8
+ * </pre>
+ */
+public class RenderPipelineReplay {
+  private static final int MODEL_RENDERABLE = 0;
+  private static final int SHADOW_RENDERABLE = 1;
+
+  private final List<TraceFrame> frames;
+  private final long glNanos;
+  private final long frameIntervalNanos;
+  private final FrameTraceReplay replay = new FrameTraceReplay();
+  private final SceneGraph scene = new SceneGraph();
+  private final List<Integer> anchorNodes = new ArrayList<>();
+  private final float[] anchorMatrix = new float[16];
+  private final float[] viewProjection = new float[16];
+  private final float[] modelViewProjection = new float[16];
+  // Keeps the stand-in draw calls from being optimized away.
+  private float drawChecksum;
+  // The frame being simulated.
+  private TraceFrame simulatedFrame;
+
+  RenderPipelineReplay(List<TraceFrame> frames, long glNanos, long frameIntervalNanos) {
+    this.frames = frames;
+    this.glNanos = glNanos;
+    this.frameIntervalNanos = frameIntervalNanos;
+  }
+
+  /** Latencies of one pass, in nanoseconds per frame. */
+  static final class Result {
+    final long[] frameNanos;
+    int missedFrames;
+    String stageStats;
+
+    Result(int frameCount) {
+      frameNanos = new long[frameCount];
+    }
+  }
+
+  Result run(boolean threaded) {
+    replay.reset();
+    scene.clear();
+    anchorNodes.clear();
+    SimulationStage stage = new SimulationStage(this::simulate, threaded);
+    stage.start();
+    Result result = new Result(frames.size());
+    long arrival = System.nanoTime();
+    for (int i = 0; i < frames.size(); i++) {
+      stage.awaitIdle();
+      arrival += frameIntervalNanos;
+      long now = System.nanoTime();
+      while (now - arrival >= frameIntervalNanos) {
+        // Replaced by a newer camera image before the GL thread got to it.
+        arrival += frameIntervalNanos;
+        result.missedFrames++;
+      }
+      spinUntil(arrival);
+      simulatedFrame = frames.get(i);
+      RenderCommandList commands = stage.submit();
+      spinUntil(System.nanoTime() + glNanos);
+      draw(commands, simulatedFrame);
+      result.frameNanos[i] = System.nanoTime() - arrival;
+    }
+    stage.awaitIdle();
+    stage.stop();
+    result.stageStats = stage.getStats();
+    return result;
+  }
+
+  private void simulate(RenderCommandList commands) {
+    TraceFrame frame = simulatedFrame;
+    replay.process(frame);
+    while (anchorNodes.size() < frame.getAnchorCount()) {
+      int node = scene.createNode(SceneGraph.NO_NODE, SceneGraph.NO_RENDERABLE);
+      scene.createNode(node, MODEL_RENDERABLE);
+      scene.createNode(node, SHADOW_RENDERABLE);
+      anchorNodes.add(node);
+    }
+    float[] poses = frame.getAnchorPoses();
+    for (int i = 0; i < frame.getAnchorCount(); i++) {
+      int node = anchorNodes.get(i);
+      boolean tracking = frame.getAnchorTrackingState(i) == TraceFrame.TRACKING;
+      scene.setVisible(node, tracking);
+      if (tracking) {
+        poseToMatrix(poses, i * TraceFrame.FLOATS_PER_POSE, anchorMatrix);
+        scene.setLocalTransform(node, anchorMatrix, 0);
+      }
+    }
+    scene.update();
+    commands.record(scene);
+  }
+
+  /** Stands in for the draw calls: the model-view-projection matrix of every command. */
+  private void draw(RenderCommandList commands, TraceFrame frame) {
+    SceneGraph.multiplyMM(
+        viewProjection, 0, frame.getProjectionMatrix(), 0, frame.getViewMatrix(), 0);
+    float[] modelMatrices = commands.getModelMatrices();
+    for (int i = 0; i < commands.getCount(); i++) {
+      SceneGraph.multiplyMM(modelViewProjection, 0, viewProjection, 0, modelMatrices, i * 16);
+      drawChecksum += modelViewProjection[15];
+    }
+  }
+
+  private static void spinUntil(long time) {
+    while (System.nanoTime() - time < 0) {
+      // Busy, like a thread submitting GL calls or waiting in Session.update().
+    }
+  }
+
+  /** Writes the column-major matrix of a pose stored as tx, ty, tz, qx, qy, qz, qw. */
+  private static void poseToMatrix(float[] pose, int offset, float[] out) {
+    float x = pose[offset + 3];
+    float y = pose[offset + 4];
+    float z = pose[offset + 5];
+    float w = pose[offset + 6];
+    out[0] = 1 - 2 * (y * y + z * z);
+    out[1] = 2 * (x * y + z * w);
+    out[2] = 2 * (x * z - y * w);
+    out[3] = 0;
+    out[4] = 2 * (x * y - z * w);
+    out[5] = 1 - 2 * (x * x + z * z);
+    out[6] = 2 * (y * z + x * w);
+    out[7] = 0;
+    out[8] = 2 * (x * z + y * w);
+    out[9] = 2 * (y * z - x * w);
+    out[10] = 1 - 2 * (x * x + y * y);
+    out[11] = 0;
+    out[12] = pose[offset];
+    out[13] = pose[offset + 1];
+    out[14] = pose[offset + 2];
+    out[15] = 1;
+  }
+
+  /** Formats the mean, 95th percentile and maximum in milliseconds. */
+  private static String summarize(long[] nanos) {
+    long[] sorted = nanos.clone();
+    Arrays.sort(sorted);
+    double sum = 0;
+    for (long value : sorted) {
+      sum += value;
+    }
+    return String.format(
+        Locale.US, "%.2f/%.2f/%.2fms",
+        sum / sorted.length / 1e6,
+        sorted[(int) (0.95 * (sorted.length - 1))] / 1e6,
+        sorted[sorted.length - 1] / 1e6);
+  }
+
+  private static double mean(long[] nanos) {
+    double sum = 0;
+    for (long value : nanos) {
+      sum += value;
+    }
+    return sum / Math.max(1, nanos.length);
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println(
+          "Usage: RenderPipelineReplay <trace file> [GL submission us per frame]"
+              + " [frame interval us] [passes]");
+      System.exit(2);
+    }
+    FrameTraceReader reader = FrameTraceReader.open(new File(args[0]));
+    long glNanos = (args.length > 1 ? Long.parseLong(args[1]) : 4000) * 1000;
+    long frameIntervalNanos = (args.length > 2 ? Long.parseLong(args[2]) : 33_333) * 1000;
+    int passes = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+    // The stage hands frames to another thread, so they are kept in memory instead of reused.
+    List<TraceFrame> frames = new ArrayList<>();
+    TraceFrame frame = new TraceFrame();
+    while (reader.next(frame)) {
+      frames.add(frame);
+      frame = new TraceFrame();
+    }
+    if (frames.isEmpty()) {
+      System.err.println("Empty trace");
+      System.exit(1);
+    }
+
+    RenderPipelineReplay replay = new RenderPipelineReplay(frames, glNanos, frameIntervalNanos);
+    System.out.println(
+        "frames=" + frames.size() + " gl=" + glNanos / 1000 + "us interval="
+            + frameIntervalNanos / 1000 + "us, latency is mean/p95/max");
+    for (int pass = 0; pass < passes; pass++) {
+      Result inline = replay.run(false);
+      Result threaded = replay.run(true);
+      System.out.println(String.format(
+          Locale.US,
+          "pass=%d inline=%s missed=%d threaded=%s missed=%d reduction=%.0f%% [%s] [%s]",
+          pass, summarize(inline.frameNanos), inline.missedFrames,
+          summarize(threaded.frameNanos), threaded.missedFrames,
+          100 * (1 - mean(threaded.frameNanos) / mean(inline.frameNanos)),
+          inline.stageStats, threaded.stageStats));
+    }
+  }
+}
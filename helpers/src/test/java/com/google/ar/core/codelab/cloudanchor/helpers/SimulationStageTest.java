@@ -0,0 +1,156 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+import com.google.ar.core.codelab.cloudanchor.rendering.RenderCommandList;
+import com.google.ar.core.codelab.cloudanchor.rendering.SceneGraph;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks the hand-over of command lists between the GL thread and the simulation, and that a
+ * failing simulation never leaves the GL thread waiting.
+ */
+public class SimulationStageTest {
+  private static final int FRAMES = 20;
+
+  private final SceneGraph scene = new SceneGraph();
+  private final int node = scene.createNode(SceneGraph.NO_NODE, 0);
+  private final float[] transform = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+  private SimulationStage stage;
+
+  @After
+  public void tearDown() {
+    if (stage != null) {
+      stage.stop();
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void submit_returnsTheListRecordedTheFrameBefore() {
+    AtomicReference<RenderCommandList> recording = new AtomicReference<>();
+    Semaphore started = new Semaphore(0);
+    Semaphore proceed = new Semaphore(0);
+    AtomicInteger frames = new AtomicInteger();
+    stage =
+        new SimulationStage(
+            commands -> {
+              recording.set(commands);
+              started.release();
+              // Records only once the GL thread has checked the list it replays.
+              proceed.acquireUninterruptibly();
+              recordFrame(frames.getAndIncrement(), commands);
+            },
+            true);
+    stage.start();
+
+    RenderCommandList recordedBefore = null;
+    for (int frame = 0; frame < FRAMES; frame++) {
+      RenderCommandList replayed = stage.submit();
+      started.acquireUninterruptibly();
+      assertNotSame(recording.get(), replayed);
+      if (frame > 0) {
+        assertSame(recordedBefore, replayed);
+      }
+      assertRecorded(frame - 1, replayed);
+      proceed.release();
+
+      stage.awaitIdle();
+      // The simulation of this frame wrote to the other list.
+      assertRecorded(frame - 1, replayed);
+      assertRecorded(frame, recording.get());
+      recordedBefore = recording.get();
+    }
+  }
+
+  @Test
+  public void inline_returnsTheListJustRecorded() {
+    AtomicInteger frames = new AtomicInteger();
+    stage =
+        new SimulationStage(commands -> recordFrame(frames.getAndIncrement(), commands), false);
+    stage.start();
+
+    for (int frame = 0; frame < 3; frame++) {
+      assertRecorded(frame, stage.submit());
+      stage.awaitIdle();
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void runtimeException_dropsTheFrameAndKeepsTheThread() {
+    AtomicInteger frames = new AtomicInteger();
+    stage =
+        new SimulationStage(
+            commands -> {
+              if (frames.incrementAndGet() == 1) {
+                throw new IllegalStateException("First frame fails");
+              }
+            },
+            true);
+    stage.start();
+
+    stage.submit();
+    stage.awaitIdle();
+    stage.submit();
+    stage.awaitIdle();
+
+    assertEquals(2, frames.get());
+  }
+
+  @Test(timeout = 10_000)
+  public void error_endsTheThreadAndFailsTheNextSubmit() {
+    stage =
+        new SimulationStage(
+            commands -> {
+              throw new AssertionError("Simulation broke");
+            },
+            true);
+    stage.start();
+
+    stage.submit();
+    // Returns instead of waiting for a thread that is gone.
+    stage.awaitIdle();
+
+    assertThrows(IllegalStateException.class, stage::submit);
+  }
+
+  /** Records the scene's only node at {@code x = frame}. Simulation thread only. */
+  private void recordFrame(int frame, RenderCommandList commands) {
+    transform[12] = frame;
+    scene.setLocalTransform(node, transform, 0);
+    scene.update();
+    commands.record(scene);
+  }
+
+  /** Checks that {@code commands} holds what was recorded for {@code frame}, or nothing if -1. */
+  private static void assertRecorded(int frame, RenderCommandList commands) {
+    if (frame < 0) {
+      assertEquals(0, commands.getCount());
+      return;
+    }
+    assertEquals(1, commands.getCount());
+    assertEquals(frame, commands.getModelMatrices()[12], 0);
+  }
+}
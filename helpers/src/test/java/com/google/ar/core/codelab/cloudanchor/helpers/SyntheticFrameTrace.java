@@ -0,0 +1,307 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.core.codelab.cloudanchor.helpers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Generates frame traces of a made-up session, for the JVM tests and the replay tools when no
+ * recorded trace is at hand.
+ *
+ * <p>The camera sways and turns like a hand-held phone, with tracking jitter, and loses tracking
+ * for a second at {@link #PAUSE_FRAME}. ARCore relocalizes it half a meter away at {@link
+ * #JUMP_FRAME}. Plane {@code i} is detected at frame {@code 4 * i} and grows every 16 frames,
+ * so that about {@code planes / 16} planes are updated per frame once all of them are detected.
+ * Along the way one plane pauses tracking and resumes, one is subsumed by another and one stops
+ * tracking. Each point cloud lasts two frames. The anchors stay put.
+ *
+ * <p>The same arguments always generate the same trace. To write one for the replay tools:
+ *
+ * <pre>
+ *   java com.google.ar.core.codelab.cloudanchor.helpers.SyntheticFrameTrace trace.bin \
+ *       [frames] [planes] [points per frame] [anchors]
+ * </pre>
+ */
+public class SyntheticFrameTrace {
+  public static final long FRAME_NANOS = 33_333_333L;
+  public static final int PAUSE_FRAME = 300;
+  public static final int PAUSE_FRAMES = 30;
+  public static final int JUMP_FRAME = 450;
+  public static final float JUMP_METERS = 0.5f;
+
+  private static final int PLANE_DETECTION_INTERVAL_FRAMES = 4;
+  private static final int PLANE_UPDATE_INTERVAL_FRAMES = 16;
+  private static final int PLANE_PAUSE_FRAME = 200;
+  private static final int PLANE_RESUME_FRAME = 260;
+  private static final int PLANE_SUBSUMED_FRAME = 500;
+  private static final int PLANE_STOPPED_FRAME = 600;
+  private static final float POSITION_JITTER = 0.001f;
+
+  private final int planeCount;
+  private final int anchorCount;
+  private final Random random;
+
+  private final float[][] planePoses;
+  private final float[] planeGrowth;
+  private final int[] planeTrackingStates;
+  private final int[] planeSubsumedBy;
+  private final boolean[] planeUpdated;
+  // The planes that pause, are subsumed and stop, or -1 if there are too few planes.
+  private final int pausingPlane;
+  private final int subsumedPlane;
+  private final int stoppingPlane;
+  private final float[] points;
+  private final float[] anchorPose = new float[TraceFrame.FLOATS_PER_POSE];
+  private FloatBuffer polygon = FloatBuffer.allocate(0);
+  private int frame;
+
+  public SyntheticFrameTrace(int planes, int pointsPerFrame, int anchors, long seed) {
+    this.planeCount = planes;
+    this.anchorCount = anchors;
+    random = new Random(seed);
+    planePoses = new float[planes][];
+    planeGrowth = new float[planes];
+    planeTrackingStates = new int[planes];
+    planeSubsumedBy = new int[planes];
+    planeUpdated = new boolean[planes];
+    points = new float[pointsPerFrame * TraceFrame.FLOATS_PER_POINT];
+    float halfSqrt2 = (float) Math.sqrt(0.5);
+    for (int i = 0; i < planes; i++) {
+      float x = (i % 8) * 0.6f - 2;
+      // Every fourth plane is a wall, the others are floor and table tops in a grid.
+      planePoses[i] =
+          i % 4 == 3
+              ? new float[] {x, 0, -2 - (i / 8) * 0.5f, halfSqrt2, 0, 0, halfSqrt2}
+              : new float[] {x, -1.2f + (i % 3) * 0.01f, -(i / 8) * 0.6f, 0, 0, 0, 1};
+      planeTrackingStates[i] = -1;
+      planeSubsumedBy[i] = TraceFrame.NO_PLANE;
+    }
+    pausingPlane = planes >= 4 ? planes / 2 : -1;
+    subsumedPlane = planes >= 4 ? planes * 5 / 8 : -1;
+    stoppingPlane = planes >= 4 ? planes * 25 / 32 : -1;
+  }
+
+  /** Writes the next frame of the trace into {@code out}. */
+  public void next(TraceFrame out) {
+    boolean tracking = frame < PAUSE_FRAME || frame >= PAUSE_FRAME + PAUSE_FRAMES;
+    out.reset(frame * FRAME_NANOS, tracking ? TraceFrame.TRACKING : TraceFrame.PAUSED);
+    getViewMatrix(frame, out.getViewMatrix());
+    addJitter(out.getViewMatrix());
+    getProjectionMatrix(out.getProjectionMatrix());
+
+    if (frame % 2 == 0) {
+      for (int i = 0; i < points.length; i += TraceFrame.FLOATS_PER_POINT) {
+        points[i] = random.nextFloat() * 4 - 2;
+        points[i + 1] = random.nextFloat() - 1.2f;
+        points[i + 2] = -random.nextFloat() * 4;
+        points[i + 3] = random.nextFloat();
+      }
+    }
+    out.setPoints(frame / 2 * 2 * FRAME_NANOS, FloatBuffer.wrap(points));
+
+    updatePlanes();
+    for (int i = 0; i < planeCount; i++) {
+      if (planeTrackingStates[i] == -1
+          || (planeTrackingStates[i] == TraceFrame.STOPPED && !planeUpdated[i])) {
+        // Not detected yet, or stopped in an earlier frame.
+        continue;
+      }
+      float extent = getPlaneExtent(i);
+      out.addPlane(
+          i,
+          i % 4 == 3 ? TraceFrame.VERTICAL : TraceFrame.HORIZONTAL_UPWARD_FACING,
+          planeTrackingStates[i],
+          planeSubsumedBy[i],
+          planeUpdated[i],
+          planePoses[i],
+          extent,
+          extent,
+          createPolygon(i, extent));
+    }
+
+    for (int i = 0; i < anchorCount; i++) {
+      anchorPose[0] = (i % 8) * 0.5f - 2;
+      anchorPose[1] = -1.2f;
+      anchorPose[2] = -1 - (i / 8) * 0.5f;
+      anchorPose[6] = 1;
+      out.addAnchor(tracking ? TraceFrame.TRACKING : TraceFrame.PAUSED, anchorPose);
+    }
+    frame++;
+  }
+
+  /** Generates {@code frames} frames as a trace file held in memory. */
+  public ByteBuffer generate(int frames) {
+    ByteBuffer trace = ByteBuffer.allocate(1 << 16);
+    trace.putInt(TraceFrame.MAGIC).putInt(TraceFrame.VERSION);
+    ByteBuffer record = ByteBuffer.allocate(1 << 16);
+    TraceFrame traceFrame = new TraceFrame();
+    for (int i = 0; i < frames; i++) {
+      next(traceFrame);
+      while (true) {
+        record.clear();
+        try {
+          traceFrame.writeTo(record);
+          break;
+        } catch (BufferOverflowException e) {
+          record = ByteBuffer.allocate(record.capacity() * 2);
+        }
+      }
+      record.flip();
+      if (trace.remaining() < 4 + record.remaining()) {
+        int capacity = Math.max(trace.capacity() * 2, trace.position() + 2 * (4 + record.limit()));
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        trace.flip();
+        grown.put(trace);
+        trace = grown;
+      }
+      trace.putInt(record.remaining()).put(record);
+    }
+    trace.flip();
+    return trace;
+  }
+
+  /**
+   * The camera's view matrix at {@code frame}, without jitter: a phone swaying a little over a
+   * meter above the floor planes, turning left and right and tilting up and down.
+   */
+  public static void getViewMatrix(int frame, float[] out) {
+    double seconds = frame * FRAME_NANOS / 1e9;
+    double yaw = Math.sin(2 * Math.PI * seconds / 2.5);
+    double pitch = 0.3 * Math.sin(2 * Math.PI * seconds / 3.7);
+    double x = 0.3 * Math.sin(2 * Math.PI * seconds / 3) + (frame >= JUMP_FRAME ? JUMP_METERS : 0);
+    double y = 0.05 * Math.sin(2 * Math.PI * seconds / 1.3);
+    double z = 0.2 * Math.cos(2 * Math.PI * seconds / 4);
+    // The camera rotation is R = Ry(yaw) * Rx(pitch); the view matrix is [R^T -R^T * position].
+    double cy = Math.cos(yaw);
+    double sy = Math.sin(yaw);
+    double cp = Math.cos(pitch);
+    double sp = Math.sin(pitch);
+    double[][] r = {{cy, sy * sp, sy * cp}, {0, cp, -sp}, {-sy, cy * sp, cy * cp}};
+    double[] position = {x, y, z};
+    for (int row = 0; row < 3; row++) {
+      double translation = 0;
+      for (int column = 0; column < 3; column++) {
+        // Element (row, column) of R^T.
+        out[column * 4 + row] = (float) r[column][row];
+        translation += r[column][row] * position[column];
+      }
+      out[row * 4 + 3] = 0;
+      out[12 + row] = (float) -translation;
+    }
+    out[15] = 1;
+  }
+
+  private static void getProjectionMatrix(float[] out) {
+    // A 60 degree vertical field of view at 16:9, from 0.1 to 100 meters.
+    float f = (float) (1 / Math.tan(Math.toRadians(30)));
+    float near = 0.1f;
+    float far = 100;
+    for (int i = 0; i < 16; i++) {
+      out[i] = 0;
+    }
+    out[0] = f * 9 / 16;
+    out[5] = f;
+    out[10] = (far + near) / (near - far);
+    out[11] = -1;
+    out[14] = 2 * far * near / (near - far);
+  }
+
+  private void addJitter(float[] view) {
+    for (int i = 12; i < 15; i++) {
+      view[i] += POSITION_JITTER * (float) random.nextGaussian();
+    }
+  }
+
+  private void updatePlanes() {
+    for (int i = 0; i < planeCount; i++) {
+      planeUpdated[i] = false;
+      int state = planeTrackingStates[i];
+      if (state == -1) {
+        if (frame >= i * PLANE_DETECTION_INTERVAL_FRAMES) {
+          planeTrackingStates[i] = TraceFrame.TRACKING;
+          planeUpdated[i] = true;
+        }
+        continue;
+      }
+      if (state == TraceFrame.STOPPED) {
+        continue;
+      }
+      if (i == pausingPlane && frame == PLANE_PAUSE_FRAME) {
+        planeTrackingStates[i] = TraceFrame.PAUSED;
+        planeUpdated[i] = true;
+      } else if (i == pausingPlane && frame == PLANE_RESUME_FRAME) {
+        planeTrackingStates[i] = TraceFrame.TRACKING;
+        planeUpdated[i] = true;
+      } else if (i == subsumedPlane && frame == PLANE_SUBSUMED_FRAME) {
+        planeSubsumedBy[i] = subsumedPlane + 1;
+        planeUpdated[i] = true;
+      } else if (i == stoppingPlane && frame == PLANE_STOPPED_FRAME) {
+        planeTrackingStates[i] = TraceFrame.STOPPED;
+        planeUpdated[i] = true;
+      } else if ((frame + i) % PLANE_UPDATE_INTERVAL_FRAMES == 0) {
+        planePoses[i][0] += 0.001f;
+        planeGrowth[i] += 0.01f;
+        planeUpdated[i] = true;
+      }
+    }
+  }
+
+  private float getPlaneExtent(int plane) {
+    return 1 + 2 * planeGrowth[plane] + (plane % 5) * 0.2f;
+  }
+
+  /** A regular polygon inscribed in the plane's extents, with 16 to 31 vertices. */
+  private FloatBuffer createPolygon(int plane, float extent) {
+    int vertices = 16 + plane % 16;
+    if (polygon.capacity() < vertices * 2) {
+      polygon = FloatBuffer.allocate(vertices * 2);
+    }
+    polygon.clear();
+    for (int i = 0; i < vertices; i++) {
+      double angle = 2 * Math.PI * i / vertices;
+      polygon.put((float) (extent / 2 * Math.cos(angle)));
+      polygon.put((float) (extent / 2 * Math.sin(angle)));
+    }
+    polygon.flip();
+    return polygon;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println(
+          "Usage: SyntheticFrameTrace <trace file> [frames] [planes] [points per frame] [anchors]");
+      System.exit(2);
+    }
+    int frames = args.length > 1 ? Integer.parseInt(args[1]) : 900;
+    int planes = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+    int points = args.length > 3 ? Integer.parseInt(args[3]) : 400;
+    int anchors = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+    ByteBuffer trace = new SyntheticFrameTrace(planes, points, anchors, 1).generate(frames);
+    try (FileOutputStream out = new FileOutputStream(new File(args[0]))) {
+      out.getChannel().write(trace);
+    }
+    System.out.println(
+        "Wrote " + frames + " frames, " + planes + " planes, " + points + " points per frame and "
+            + anchors + " anchors to " + args[0]);
+  }
+}
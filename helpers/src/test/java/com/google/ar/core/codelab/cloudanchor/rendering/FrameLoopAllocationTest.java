@@ -0,0 +1,259 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.FloatBuffer;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Replays frames through the per-frame paths of {@link FrameContext} and the renderers, and checks
+ * with the allocation counter of {@link ThreadMXBean} that they allocate nothing once warmed up.
+ *
+ * <p>Only the Java side of a frame runs here: GL calls and {@code android.opengl.Matrix} are no-ops
+ * in JVM tests, and the ARCore accessors, which allocate on their own, are not called. The test
+ * runs in a JVM of its own that only compiles with C1, see {@code build.gradle}: C2 removes
+ * allocations whose result is never read, such as a scratch matrix passed to the no-op {@code
+ * Matrix} methods, which ART would make. The allocation counter is a HotSpot extension; on other
+ * JVMs the test is skipped.
+ */
+public class FrameLoopAllocationTest {
+  private static final int WARMUP_FRAMES = 2_000;
+  private static final int FRAMES = 1_000;
+  private static final int MEASURED_ROUNDS = 3;
+  private static final int PLANES = 20;
+  private static final int UPDATED_PLANES_PER_FRAME = 3;
+  private static final int ANCHORS = 20;
+  private static final int POLYGON_VERTICES = 12;
+
+  /** One frame of work, given the frame number. */
+  private interface FrameWork {
+    void run(int frame);
+  }
+
+  private ThreadMXBean threads;
+  private final FrameContext frameContext = new FrameContext();
+  private final float[] viewProjection = new float[16];
+  // Keeps allocations in the sanity check from being optimized away.
+  private Object sink;
+
+  @Before
+  public void setUp() {
+    java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    assumeTrue(threadBean instanceof ThreadMXBean);
+    threads = (ThreadMXBean) threadBean;
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+  }
+
+  @Test
+  public void allocationCounter_seesAllocations() {
+    long bytes =
+        measureAllocatedBytes(
+            frame -> {
+              sink = new float[16];
+            });
+    assertTrue("allocated " + bytes, bytes >= FRAMES * 16 * 4);
+  }
+
+  @Test
+  public void frameContext_doesNotAllocate() {
+    FrameWork work =
+        frame -> {
+          setViewMatrix(frameContext.getViewMatrix(), frame);
+          frameContext.update(frame * 33_000_000L, frame % 2 == 0);
+        };
+    assertEquals(0, measureAllocatedBytes(work));
+
+    // The camera position is derived from the view matrix.
+    int frame = WARMUP_FRAMES + MEASURED_ROUNDS * FRAMES - 1;
+    float[] cameraPosition = frameContext.getCameraPosition();
+    assertEquals(cameraX(frame), cameraPosition[0], 1e-4f);
+    assertEquals(1.5f, cameraPosition[1], 1e-4f);
+    assertEquals(cameraZ(frame), cameraPosition[2], 1e-4f);
+  }
+
+  @Test
+  public void planes_doNotAllocate() {
+    PlaneSnapshot planes = new PlaneSnapshot();
+    PlaneRenderer planeRenderer = new PlaneRenderer();
+    FloatBuffer polygon = createPolygon();
+    float[] pose = {0, 0, 0, 0, 0, 0, 1};
+    for (int id = 0; id < PLANES; id++) {
+      updatePlane(planes, id, 0, pose, polygon);
+    }
+
+    FrameWork work =
+        frame -> {
+          setViewMatrix(frameContext.getViewMatrix(), frame);
+          frameContext.update(frame, true);
+          // A few planes grow every frame, like ARCore refining them.
+          for (int i = 0; i < UPDATED_PLANES_PER_FRAME; i++) {
+            int id = (frame * UPDATED_PLANES_PER_FRAME + i) % PLANES;
+            updatePlane(planes, id, frame, pose, polygon);
+          }
+          planeRenderer.drawPlanes(
+              planes,
+              frameContext.getCameraPosition(),
+              frameContext.getViewMatrix(),
+              frameContext.getProjectionMatrix());
+        };
+    assertEquals(0, measureAllocatedBytes(work));
+  }
+
+  @Test
+  public void pointCloud_doesNotAllocate() {
+    PointCloudRenderer pointCloudRenderer = new PointCloudRenderer();
+    FrameWork work =
+        frame -> {
+          setViewMatrix(frameContext.getViewMatrix(), frame);
+          pointCloudRenderer.draw(frameContext.getViewMatrix(), frameContext.getProjectionMatrix());
+        };
+    assertEquals(0, measureAllocatedBytes(work));
+  }
+
+  @Test
+  public void objects_doNotAllocate() {
+    ObjectRenderer objectRenderer = new ObjectRenderer();
+    ObjectRenderer shadowRenderer = new ObjectRenderer();
+    shadowRenderer.setBlendMode(ObjectRenderer.BlendMode.Shadow);
+    float[] anchorMatrices = new float[ANCHORS * 16];
+    for (int i = 0; i < ANCHORS; i++) {
+      int m = i * 16;
+      anchorMatrices[m] = 1;
+      anchorMatrices[m + 5] = 1;
+      anchorMatrices[m + 10] = 1;
+      anchorMatrices[m + 12] = 0.25f * i;
+      anchorMatrices[m + 15] = 1;
+    }
+    float[] objectColor = {0.5f, 0.5f, 0.5f, 1};
+
+    FrameWork work =
+        frame -> {
+          setViewMatrix(frameContext.getViewMatrix(), frame);
+          frameContext.update(frame, false);
+          float[] view = frameContext.getViewMatrix();
+          float[] projection = frameContext.getProjectionMatrix();
+          float[] colorCorrection = frameContext.getColorCorrectionRgba();
+          // One draw per anchor, like the codelab's single placement.
+          for (int i = 0; i < ANCHORS; i++) {
+            objectRenderer.updateModelMatrix(anchorMatrices, 1);
+            objectRenderer.draw(view, projection, colorCorrection, objectColor);
+            shadowRenderer.updateModelMatrix(anchorMatrices, 1);
+            shadowRenderer.draw(view, projection, colorCorrection);
+          }
+          // And the batched path, one setup for every placement.
+          objectRenderer.beginDraw(colorCorrection, objectColor);
+          for (int i = 0; i < ANCHORS; i++) {
+            objectRenderer.drawModel(anchorMatrices, i * 16, view, viewProjection);
+          }
+          objectRenderer.endDraw();
+        };
+    assertEquals(0, measureAllocatedBytes(work));
+  }
+
+  /**
+   * Runs {@code work} for {@link #WARMUP_FRAMES} frames, so that buffers reach their steady size
+   * and classes are loaded, then returns the bytes allocated by {@link #FRAMES} frames.
+   *
+   * <p>The JIT occasionally allocates a few hundred bytes on the test thread, e.g. when compiled
+   * code is deoptimized, so the fewest bytes of several rounds is returned. An allocation in the
+   * frame shows up in every round.
+   */
+  private long measureAllocatedBytes(FrameWork work) {
+    int frame = 0;
+    while (frame < WARMUP_FRAMES) {
+      work.run(frame++);
+    }
+    // Reading the counter may itself allocate, e.g. the array of thread IDs on older JDKs.
+    long first = allocatedBytes();
+    long overhead = allocatedBytes() - first;
+
+    long fewestBytes = Long.MAX_VALUE;
+    for (int round = 0; round < MEASURED_ROUNDS; round++) {
+      long start = allocatedBytes();
+      for (int i = 0; i < FRAMES; i++) {
+        work.run(frame++);
+      }
+      fewestBytes = Math.min(fewestBytes, allocatedBytes() - start - overhead);
+    }
+    return fewestBytes;
+  }
+
+  private long allocatedBytes() {
+    return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static void updatePlane(
+      PlaneSnapshot planes, int id, int frame, float[] pose, FloatBuffer polygon) {
+    pose[0] = 0.5f * id;
+    pose[2] = -1;
+    float extent = 0.5f + 0.01f * (frame % 10);
+    polygon.rewind();
+    planes.updatePlane(id, true, false, pose, extent, extent, polygon);
+  }
+
+  private static FloatBuffer createPolygon() {
+    FloatBuffer polygon = FloatBuffer.allocate(POLYGON_VERTICES * 2);
+    for (int i = 0; i < POLYGON_VERTICES; i++) {
+      double angle = 2 * Math.PI * i / POLYGON_VERTICES;
+      polygon.put((float) (0.25 * Math.cos(angle)));
+      polygon.put((float) (0.25 * Math.sin(angle)));
+    }
+    polygon.flip();
+    return polygon;
+  }
+
+  /** A camera at 1.5 m, moving along X and turning about Y as the frames go by. */
+  private static void setViewMatrix(float[] view, int frame) {
+    float angle = 0.01f * frame;
+    float c = (float) Math.cos(angle);
+    float s = (float) Math.sin(angle);
+    float x = cameraX(frame);
+    float y = 1.5f;
+    float z = cameraZ(frame);
+    // The view matrix is [R^T -R^T*position] for a camera rotated by R about Y.
+    view[0] = c;
+    view[1] = 0;
+    view[2] = s;
+    view[3] = 0;
+    view[4] = 0;
+    view[5] = 1;
+    view[6] = 0;
+    view[7] = 0;
+    view[8] = -s;
+    view[9] = 0;
+    view[10] = c;
+    view[11] = 0;
+    view[12] = -(c * x - s * z);
+    view[13] = -y;
+    view[14] = -(s * x + c * z);
+    view[15] = 1;
+  }
+
+  private static float cameraX(int frame) {
+    return 0.001f * (frame % 1000);
+  }
+
+  private static float cameraZ(int frame) {
+    return 2 - 0.0005f * (frame % 1000);
+  }
+}
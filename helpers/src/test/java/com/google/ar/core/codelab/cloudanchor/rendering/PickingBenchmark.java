@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmark of picking placed objects with {@link ScenePicker}, against testing every triangle
+ * of every instance, on a {@link PickingScene}.
+ *
+ * <p>The rays are generated once per trial, so only the picks are measured. {@link #update}
+ * measures moving a few anchors and refitting the picker, like a frame of tracking updates. That
+ * both picks find the same hits is checked by {@link ScenePickerTest}, not here.
+ *
+ * <p>A development tool, kept with the JVM tests so that it does not ship in the library. Run it
+ * with the JMH runner on the unit test classpath:
+ *
+ * <pre>
+ *   java -cp &lt;test classpath&gt; org.openjdk.jmh.Main PickingBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PickingBenchmark {
+  private static final int RAYS = 1024;
+
+  @Param({"1000"})
+  public int instances;
+
+  private PickingScene scene;
+  private final float[] rays = new float[RAYS * PickingScene.RAY_FLOATS];
+  private final ScenePicker.Hit hit = new ScenePicker.Hit();
+  private int nextRay;
+  private int frame;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    scene = new PickingScene(instances, 42);
+    for (int i = 0; i < RAYS; i++) {
+      scene.nextRay(rays, i * PickingScene.RAY_FLOATS);
+    }
+  }
+
+  @Benchmark
+  public float bvh() {
+    scene.pick(rays, nextRayOffset(), hit);
+    return hit.distance;
+  }
+
+  @Benchmark
+  public float linear() {
+    return scene.pickLinear(rays, nextRayOffset());
+  }
+
+  @Benchmark
+  public void update(Blackhole blackhole) {
+    scene.moveAnchors(++frame);
+    blackhole.consume(scene.getPicker().getInstanceCount());
+  }
+
+  private int nextRayOffset() {
+    int offset = nextRay * PickingScene.RAY_FLOATS;
+    nextRay = (nextRay + 1) % RAYS;
+    return offset;
+  }
+}
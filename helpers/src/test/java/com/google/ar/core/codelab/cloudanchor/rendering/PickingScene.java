@@ -0,0 +1,240 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A synthetic scene of placed objects, shared by {@link PickingBenchmark} and {@link
+ * ScenePickerTest}.
+ *
+ * <p>Each instance is a sphere of about as many triangles as the Andy model, hanging off its own
+ * anchor node with a random rotation and scale. {@link #moveAnchors} moves a few anchors like a
+ * frame of tracking updates, and {@link #nextRay} casts rays from a camera in front of the scene,
+ * most of them towards an instance. {@link #pickLinear} finds the closest hit by testing every
+ * triangle of every instance, as the reference for {@link ScenePicker}.
+ */
+final class PickingScene {
+  /** Floats per ray: the origin followed by the direction. */
+  static final int RAY_FLOATS = 6;
+
+  private static final int SPHERE_RINGS = 24;
+  private static final int SPHERE_SEGMENTS = 26;
+  private static final int MOVING_PERCENT = 5;
+
+  private final SceneGraph scene = new SceneGraph();
+  private final ScenePicker picker = new ScenePicker();
+  private final MeshBvh mesh;
+  private final int[] anchorNodes;
+  private final int[] modelNodes;
+  private final float[] matrix = new float[16];
+  private final float[] inverse = new float[16];
+  private final float[] cofactors = new float[9];
+  private final Random random;
+
+  PickingScene(int instances, long seed) {
+    random = new Random(seed);
+    mesh = createSphere();
+    picker.setMesh(0, mesh);
+    anchorNodes = new int[instances];
+    modelNodes = new int[instances];
+    for (int i = 0; i < instances; i++) {
+      anchorNodes[i] = scene.createNode(SceneGraph.NO_NODE, SceneGraph.NO_RENDERABLE);
+      modelNodes[i] = scene.createNode(anchorNodes[i], 0);
+      setAnchorTransform(i, 0);
+      float scale = 0.05f + 0.1f * random.nextFloat();
+      scene.setLocalScale(modelNodes[i], scale);
+    }
+    update();
+  }
+
+  SceneGraph getScene() {
+    return scene;
+  }
+
+  ScenePicker getPicker() {
+    return picker;
+  }
+
+  int getTriangleCount() {
+    return mesh.getTriangleCount();
+  }
+
+  /** Moves a few anchors to where they are at {@code frame}, and updates the scene and picker. */
+  void moveAnchors(int frame) {
+    for (int i = 0; i < anchorNodes.length; i++) {
+      if ((i + frame) % 100 < MOVING_PERCENT) {
+        setAnchorTransform(i, frame);
+      }
+    }
+    update();
+  }
+
+  private void update() {
+    scene.update();
+    picker.update(scene);
+  }
+
+  /**
+   * Writes a ray from a camera 2 m in front of the scene, towards a random instance and slightly
+   * off its center, to {@code out} at {@code offset}.
+   */
+  void nextRay(float[] out, int offset) {
+    float[] worldTransforms = scene.getWorldTransforms();
+    float originX = 8 * random.nextFloat();
+    float originY = 1.5f;
+    float originZ = 2;
+    int target = modelNodes[random.nextInt(modelNodes.length)] * 16;
+    out[offset] = originX;
+    out[offset + 1] = originY;
+    out[offset + 2] = originZ;
+    out[offset + 3] = worldTransforms[target + 12] + 0.1f * (random.nextFloat() - 0.5f) - originX;
+    out[offset + 4] = worldTransforms[target + 13] + 0.1f * (random.nextFloat() - 0.5f) - originY;
+    out[offset + 5] = worldTransforms[target + 14] - originZ;
+  }
+
+  /** Picks with {@link ScenePicker} the ray at {@code offset} in {@code rays}. */
+  boolean pick(float[] rays, int offset, ScenePicker.Hit hit) {
+    return picker.pick(
+        scene,
+        rays[offset], rays[offset + 1], rays[offset + 2],
+        rays[offset + 3], rays[offset + 4], rays[offset + 5],
+        hit);
+  }
+
+  /**
+   * Returns the distance to the closest instance hit by the ray at {@code offset} in {@code rays},
+   * or {@link MeshBvh#NO_HIT}, testing every triangle of every instance.
+   */
+  float pickLinear(float[] rays, int offset) {
+    float originX = rays[offset];
+    float originY = rays[offset + 1];
+    float originZ = rays[offset + 2];
+    float directionX = rays[offset + 3];
+    float directionY = rays[offset + 4];
+    float directionZ = rays[offset + 5];
+    float[] worldTransforms = scene.getWorldTransforms();
+    float closest = MeshBvh.NO_HIT;
+    for (int node : modelNodes) {
+      invert(worldTransforms, node * 16, inverse);
+      float distance =
+          mesh.raycastLinear(
+              transformX(inverse, originX, originY, originZ, 1),
+              transformY(inverse, originX, originY, originZ, 1),
+              transformZ(inverse, originX, originY, originZ, 1),
+              transformX(inverse, directionX, directionY, directionZ, 0),
+              transformY(inverse, directionX, directionY, directionZ, 0),
+              transformZ(inverse, directionX, directionY, directionZ, 0),
+              closest);
+      closest = Math.min(closest, distance);
+    }
+    return closest;
+  }
+
+  private void setAnchorTransform(int instance, int frame) {
+    // A grid of 32 columns, 0.25 m apart, rotated about Y.
+    double angle = instance * 0.7 + frame * 0.01;
+    float c = (float) Math.cos(angle);
+    float s = (float) Math.sin(angle);
+    Arrays.fill(matrix, 0);
+    matrix[0] = c;
+    matrix[2] = -s;
+    matrix[5] = 1;
+    matrix[8] = s;
+    matrix[10] = c;
+    matrix[12] = (instance % 32) * 0.25f + 0.0005f * frame;
+    matrix[13] = 1 + 0.25f * ((instance / 32) % 8);
+    matrix[14] = -0.25f * (instance / 256);
+    matrix[15] = 1;
+    scene.setLocalTransform(anchorNodes[instance], matrix, 0);
+  }
+
+  private static MeshBvh createSphere() {
+    float[] positions = new float[(SPHERE_RINGS + 1) * (SPHERE_SEGMENTS + 1) * 3];
+    int vertex = 0;
+    for (int ring = 0; ring <= SPHERE_RINGS; ring++) {
+      double polar = Math.PI * ring / SPHERE_RINGS;
+      for (int segment = 0; segment <= SPHERE_SEGMENTS; segment++) {
+        double azimuth = 2 * Math.PI * segment / SPHERE_SEGMENTS;
+        positions[vertex++] = (float) (Math.sin(polar) * Math.cos(azimuth));
+        positions[vertex++] = (float) Math.cos(polar);
+        positions[vertex++] = (float) (Math.sin(polar) * Math.sin(azimuth));
+      }
+    }
+    int[] indices = new int[SPHERE_RINGS * SPHERE_SEGMENTS * 6];
+    int index = 0;
+    for (int ring = 0; ring < SPHERE_RINGS; ring++) {
+      for (int segment = 0; segment < SPHERE_SEGMENTS; segment++) {
+        int a = ring * (SPHERE_SEGMENTS + 1) + segment;
+        int b = a + SPHERE_SEGMENTS + 1;
+        indices[index++] = a;
+        indices[index++] = b;
+        indices[index++] = a + 1;
+        indices[index++] = a + 1;
+        indices[index++] = b;
+        indices[index++] = b + 1;
+      }
+    }
+    return new MeshBvh(positions, indices);
+  }
+
+  /**
+   * Inverse of an affine matrix from the cofactors of its 3x3 part, written independently of
+   * {@link ScenePicker} so that the two can be checked against each other.
+   */
+  private void invert(float[] m, int offset, float[] out) {
+    float[] r = cofactors;
+    float det =
+        m[offset] * (m[offset + 5] * m[offset + 10] - m[offset + 6] * m[offset + 9])
+            - m[offset + 4] * (m[offset + 1] * m[offset + 10] - m[offset + 2] * m[offset + 9])
+            + m[offset + 8] * (m[offset + 1] * m[offset + 6] - m[offset + 2] * m[offset + 5]);
+    for (int row = 0; row < 3; row++) {
+      for (int column = 0; column < 3; column++) {
+        // Cofactor of (column, row), transposed into (row, column).
+        int r0 = (column + 1) % 3;
+        int r1 = (column + 2) % 3;
+        int c0 = (row + 1) % 3;
+        int c1 = (row + 2) % 3;
+        r[row * 3 + column] =
+            (m[offset + c0 * 4 + r0] * m[offset + c1 * 4 + r1]
+                    - m[offset + c1 * 4 + r0] * m[offset + c0 * 4 + r1])
+                / det;
+      }
+    }
+    for (int row = 0; row < 3; row++) {
+      for (int column = 0; column < 3; column++) {
+        out[column * 4 + row] = r[row * 3 + column];
+      }
+      out[12 + row] =
+          -(r[row * 3] * m[offset + 12] + r[row * 3 + 1] * m[offset + 13]
+              + r[row * 3 + 2] * m[offset + 14]);
+      out[row * 4 + 3] = 0;
+    }
+    out[15] = 1;
+  }
+
+  private static float transformX(float[] m, float x, float y, float z, float w) {
+    return m[0] * x + m[4] * y + m[8] * z + m[12] * w;
+  }
+
+  private static float transformY(float[] m, float x, float y, float z, float w) {
+    return m[1] * x + m[5] * y + m[9] * z + m[13] * w;
+  }
+
+  private static float transformZ(float[] m, float x, float y, float z, float w) {
+    return m[2] * x + m[6] * y + m[10] * z + m[14] * w;
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.ar.core.codelab.cloudanchor.helpers.SyntheticFrameTrace;
+import com.google.ar.core.codelab.cloudanchor.helpers.TraceFrame;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import org.junit.Test;
+
+/**
+ * Applies plane update sequences to {@link PlaneSnapshot} and checks it against a snapshot rebuilt
+ * from every plane of the frame.
+ */
+public class PlaneSnapshotTest {
+  // The trace the PLANE_SNAPSHOT replay numbers were measured on.
+  private static final int FRAMES = 900;
+  private static final int PLANES = 64;
+
+  private final PlaneSnapshot snapshot = new PlaneSnapshot();
+  private final float[] pose = new float[TraceFrame.FLOATS_PER_POSE];
+  private FloatBuffer polygonBuffer = FloatBuffer.allocate(0);
+
+  @Test
+  public void updatedPlanes_matchAFullRebuildEveryFrame() {
+    SyntheticFrameTrace trace = new SyntheticFrameTrace(PLANES, 0, 0, 1);
+    TraceFrame frame = new TraceFrame();
+    PlaneSnapshot rebuilt = new PlaneSnapshot();
+    int swapRemoves = 0;
+    int subsumed = 0;
+    int trackingChanges = 0;
+    boolean[] wasTracking = new boolean[PLANES];
+    long updatesOnceDetected = 0;
+
+    for (int i = 0; i < FRAMES; i++) {
+      trace.next(frame);
+      if (i == PLANES * 4) {
+        updatesOnceDetected = snapshot.getUpdateCount();
+      }
+      for (int plane = 0; plane < frame.getPlaneCount(); plane++) {
+        if (!frame.isPlaneUpdated(plane)) {
+          continue;
+        }
+        int id = frame.getPlaneId(plane);
+        int slot = findSlot(snapshot, id);
+        if (frame.getPlaneTrackingState(plane) == TraceFrame.STOPPED) {
+          if (slot != snapshot.size() - 1) {
+            swapRemoves++;
+          }
+          snapshot.removePlane(id);
+          continue;
+        }
+        boolean tracking = frame.getPlaneTrackingState(plane) == TraceFrame.TRACKING;
+        if (slot != -1 && tracking != wasTracking[id]) {
+          trackingChanges++;
+        }
+        wasTracking[id] = tracking;
+        if (frame.getPlaneSubsumedBy(plane) != TraceFrame.NO_PLANE) {
+          subsumed++;
+        }
+        updatePlane(snapshot, frame, plane);
+      }
+
+      rebuilt.clear();
+      for (int plane = 0; plane < frame.getPlaneCount(); plane++) {
+        if (frame.getPlaneTrackingState(plane) != TraceFrame.STOPPED) {
+          updatePlane(rebuilt, frame, plane);
+        }
+      }
+      assertSameContent("frame " + i, rebuilt, snapshot);
+    }
+
+    // Pause and resume, a subsumption and a stopped plane that was not in the last slot.
+    assertEquals(2, trackingChanges);
+    assertTrue(subsumed > 0);
+    assertEquals(1, swapRemoves);
+    assertEquals(PLANES - 1, snapshot.size());
+    // About PLANES / 16 planes are updated per frame once all of them are detected.
+    float updatesPerFrame =
+        (snapshot.getUpdateCount() - updatesOnceDetected) / (float) (FRAMES - PLANES * 4);
+    assertEquals(PLANES / 16f, updatesPerFrame, 0.5f);
+  }
+
+  @Test
+  public void removePlane_movesTheLastSlotIntoTheGap() {
+    for (int id = 0; id < 3; id++) {
+      updatePlane(snapshot, id, true, false, 1 + id, 8 + id);
+    }
+    FloatBuffer lastVertices = snapshot.getVertexBuffer(2);
+
+    snapshot.removePlane(0);
+    assertEquals(2, snapshot.size());
+    assertEquals(2, snapshot.getId(0));
+    assertEquals(1, snapshot.getId(1));
+    assertEquals(3, snapshot.getPoses()[0], 0);
+    assertEquals(3, snapshot.getModelMatrices()[12], 0);
+    // The moved plane keeps its tessellation, and the removed one's buffers are not shared.
+    assertSame(lastVertices, snapshot.getVertexBuffer(0));
+    assertNotSame(snapshot.getVertexBuffer(0), snapshot.getVertexBuffer(1));
+    assertEquals(10 * 2 * PlaneTessellator.COORDS_PER_VERTEX, lastVertices.limit());
+
+    // Unknown and already removed IDs are ignored.
+    snapshot.removePlane(0);
+    snapshot.removePlane(100);
+    assertEquals(2, snapshot.size());
+
+    // The removed ID gets a new slot at the end, and the other planes are still found.
+    updatePlane(snapshot, 0, true, false, 7, 8);
+    assertEquals(0, snapshot.getId(2));
+    updatePlane(snapshot, 1, true, false, 5, 8);
+    assertEquals(1, snapshot.getId(1));
+    assertEquals(5, snapshot.getPoses()[TraceFrame.FLOATS_PER_POSE], 0);
+    assertEquals(3, snapshot.size());
+  }
+
+  @Test
+  public void trackingTransitions_updateHasTrackingPlane() {
+    updatePlane(snapshot, 0, false, false, 0, 8);
+    assertFalse(snapshot.hasTrackingPlane());
+    assertFalse(snapshot.isDrawable(0));
+
+    updatePlane(snapshot, 0, true, false, 0, 8);
+    updatePlane(snapshot, 1, true, false, 1, 8);
+    assertTrue(snapshot.hasTrackingPlane());
+    assertTrue(snapshot.isDrawable(0));
+
+    // Subsumed planes are not drawn, but still count as tracking.
+    updatePlane(snapshot, 0, true, true, 0, 8);
+    updatePlane(snapshot, 1, false, false, 1, 8);
+    assertTrue(snapshot.hasTrackingPlane());
+    assertFalse(snapshot.isDrawable(0));
+    assertFalse(snapshot.isDrawable(1));
+
+    snapshot.removePlane(0);
+    assertFalse(snapshot.hasTrackingPlane());
+    updatePlane(snapshot, 1, true, false, 1, 8);
+    assertTrue(snapshot.hasTrackingPlane());
+    snapshot.removePlane(1);
+    assertFalse(snapshot.hasTrackingPlane());
+    assertEquals(0, snapshot.size());
+  }
+
+  @Test
+  public void clear_removesEveryPlane() {
+    for (int id = 0; id < 20; id++) {
+      updatePlane(snapshot, id, true, false, id, 8);
+    }
+    long updates = snapshot.getUpdateCount();
+
+    snapshot.clear();
+    assertEquals(0, snapshot.size());
+    assertFalse(snapshot.hasTrackingPlane());
+    assertEquals(updates, snapshot.getUpdateCount());
+    snapshot.removePlane(5);
+    assertEquals(0, snapshot.size());
+
+    // IDs of a new session start again from the first slot.
+    updatePlane(snapshot, 5, true, false, 1, 8);
+    updatePlane(snapshot, 5, true, false, 2, 8);
+    assertEquals(1, snapshot.size());
+    assertEquals(5, snapshot.getId(0));
+    assertEquals(2, snapshot.getPoses()[0], 0);
+    assertTrue(snapshot.hasTrackingPlane());
+  }
+
+  private void updatePlane(PlaneSnapshot target, TraceFrame frame, int plane) {
+    System.arraycopy(
+        frame.getPlanePoses(),
+        plane * TraceFrame.FLOATS_PER_POSE,
+        pose,
+        0,
+        TraceFrame.FLOATS_PER_POSE);
+    if (polygonBuffer.array() != frame.getPolygons()) {
+      polygonBuffer = FloatBuffer.wrap(frame.getPolygons());
+    }
+    int offset = frame.getPolygonOffset(plane);
+    polygonBuffer.limit(offset + frame.getPolygonLength(plane)).position(offset);
+    target.updatePlane(
+        frame.getPlaneId(plane),
+        frame.getPlaneTrackingState(plane) == TraceFrame.TRACKING,
+        frame.getPlaneSubsumedBy(plane) != TraceFrame.NO_PLANE,
+        pose,
+        frame.getPlaneExtentX(plane),
+        frame.getPlaneExtentZ(plane),
+        polygonBuffer);
+  }
+
+  /** A horizontal plane at {@code x}, with a polygon of {@code vertices} vertices. */
+  private void updatePlane(
+      PlaneSnapshot target, int id, boolean tracking, boolean subsumed, float x, int vertices) {
+    float[] polygon = new float[vertices * 2];
+    for (int i = 0; i < vertices; i++) {
+      polygon[i * 2] = (float) Math.cos(2 * Math.PI * i / vertices);
+      polygon[i * 2 + 1] = (float) Math.sin(2 * Math.PI * i / vertices);
+    }
+    float[] planePose = {x, 0, 0, 0, 0, 0, 1};
+    target.updatePlane(id, tracking, subsumed, planePose, 2, 2, FloatBuffer.wrap(polygon));
+  }
+
+  private static int findSlot(PlaneSnapshot snapshot, int id) {
+    for (int slot = 0; slot < snapshot.size(); slot++) {
+      if (snapshot.getId(slot) == id) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /** Checks that both snapshots hold the same planes, whatever their slots. */
+  private static void assertSameContent(
+      String where, PlaneSnapshot expected, PlaneSnapshot actual) {
+    assertEquals(where, expected.size(), actual.size());
+    assertEquals(where, expected.hasTrackingPlane(), actual.hasTrackingPlane());
+    for (int expectedSlot = 0; expectedSlot < expected.size(); expectedSlot++) {
+      int id = expected.getId(expectedSlot);
+      String plane = where + " plane " + id;
+      int slot = findSlot(actual, id);
+      assertTrue(plane, slot != -1);
+      assertEquals(plane, expected.isDrawable(expectedSlot), actual.isDrawable(slot));
+      assertRangeEquals(
+          plane, expected.getPoses(), expectedSlot, actual.getPoses(), slot,
+          TraceFrame.FLOATS_PER_POSE);
+      assertRangeEquals(
+          plane, expected.getModelMatrices(), expectedSlot, actual.getModelMatrices(), slot, 16);
+      assertRangeEquals(plane, expected.getNormals(), expectedSlot, actual.getNormals(), slot, 3);
+
+      FloatBuffer expectedVertices = expected.getVertexBuffer(expectedSlot);
+      FloatBuffer vertices = actual.getVertexBuffer(slot);
+      assertEquals(plane, expectedVertices.limit(), vertices.limit());
+      for (int i = 0; i < vertices.limit(); i++) {
+        assertEquals(plane, expectedVertices.get(i), vertices.get(i), 0);
+      }
+      ShortBuffer expectedIndices = expected.getIndexBuffer(expectedSlot);
+      ShortBuffer indices = actual.getIndexBuffer(slot);
+      assertEquals(plane, expectedIndices.limit(), indices.limit());
+      for (int i = 0; i < indices.limit(); i++) {
+        assertEquals(plane, expectedIndices.get(i), indices.get(i));
+      }
+    }
+  }
+
+  private static void assertRangeEquals(
+      String where, float[] expected, int expectedSlot, float[] actual, int slot, int length) {
+    for (int i = 0; i < length; i++) {
+      assertEquals(where, expected[expectedSlot * length + i], actual[slot * length + i], 0);
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+import java.util.Locale;
+
+/**
+ * Compares the per-frame matrix work of a {@link SceneGraph} with recomputing every matrix from
+ * scratch, on a synthetic scene of thousands of nodes.
+ *
+ * <p>The scene has one root per anchor and several models below each. Every frame a few anchors
+ * move and the camera moves. {@link Pass#FROM_SCRATCH} computes the model, model-view and
+ * model-view-projection matrices of every model like the render loop used to, {@link
+ * Pass#SCENE_GRAPH} only recomputes the moved subtrees and walks the draw list. GL calls are not
+ * part of the benchmark. {@link SceneGraphTest} checks that both compute the same transforms.
+ *
+ * <p>A development tool, kept with the JVM tests so that it does not ship in the library. Only
+ * depends on {@link SceneGraph}, so it can be compiled together with the main sources and run with
+ * plain {@code java}:
+ *
+ * <pre>
+ *   java com.google.ar.core.codelab.cloudanchor.rendering.SceneGraphBenchmark \
+ *       [anchors] [models per anchor] [moving percent] [frames]
+ * </pre>
+ */
+public class SceneGraphBenchmark {
+  /** The benchmarked ways of computing the matrices. */
+  public enum Pass {
+    FROM_SCRATCH,
+    SCENE_GRAPH
+  }
+
+  private static final int PASSES = 5;
+
+  private final int anchors;
+  private final int modelsPerAnchor;
+  private final int movingPercent;
+
+  private final float[] anchorMatrices;
+  private final float[] modelLocalMatrices;
+  private final float[] modelMatrices;
+  private final float[] viewMatrix = new float[16];
+  private final float[] projectionMatrix = new float[16];
+  private final float[] viewProjectionMatrix = new float[16];
+  private final float[] modelViewMatrix = new float[16];
+  private final float[] modelViewProjectionMatrix = new float[16];
+
+  private final SceneGraph scene = new SceneGraph();
+  private final int[] anchorNodes;
+
+  // Sum of every model-view-projection matrix, so that the work cannot be optimized away.
+  private double checksum;
+
+  SceneGraphBenchmark(int anchors, int modelsPerAnchor, int movingPercent) {
+    this.anchors = anchors;
+    this.modelsPerAnchor = modelsPerAnchor;
+    this.movingPercent = movingPercent;
+    anchorMatrices = new float[anchors * 16];
+    modelLocalMatrices = new float[modelsPerAnchor * 16];
+    modelMatrices = new float[anchors * modelsPerAnchor * 16];
+    anchorNodes = new int[anchors];
+
+    for (int m = 0; m < modelsPerAnchor; m++) {
+      // Models side by side around the anchor, at decreasing scales.
+      float scale = 1f / (m + 1);
+      int base = m * 16;
+      modelLocalMatrices[base] = scale;
+      modelLocalMatrices[base + 5] = scale;
+      modelLocalMatrices[base + 10] = scale;
+      modelLocalMatrices[base + 12] = 0.1f * m;
+      modelLocalMatrices[base + 15] = 1;
+    }
+    for (int a = 0; a < anchors; a++) {
+      setAnchorMatrix(a, 0);
+      anchorNodes[a] = scene.createNode(SceneGraph.NO_NODE, SceneGraph.NO_RENDERABLE);
+      for (int m = 0; m < modelsPerAnchor; m++) {
+        int node = scene.createNode(anchorNodes[a], m);
+        scene.setLocalTransform(node, modelLocalMatrices, m * 16);
+      }
+    }
+    // A symmetric perspective projection, 60 degrees vertical, 0.1 to 100 m.
+    float f = (float) (1 / Math.tan(Math.toRadians(30)));
+    projectionMatrix[0] = f / 0.5625f;
+    projectionMatrix[5] = f;
+    projectionMatrix[10] = -100.1f / 99.9f;
+    projectionMatrix[11] = -1;
+    projectionMatrix[14] = -20f / 99.9f;
+  }
+
+  /** Runs one frame of {@code pass} and returns its duration in nanoseconds. */
+  long runFrame(Pass pass, int frame) {
+    for (int a = 0; a < anchors; a++) {
+      if (isMoving(a, frame)) {
+        setAnchorMatrix(a, frame);
+      }
+    }
+    // The camera slides sideways.
+    viewMatrix[0] = 1;
+    viewMatrix[5] = 1;
+    viewMatrix[10] = 1;
+    viewMatrix[12] = -0.001f * frame;
+    viewMatrix[14] = -2;
+    viewMatrix[15] = 1;
+
+    long start = System.nanoTime();
+    if (pass == Pass.FROM_SCRATCH) {
+      for (int a = 0; a < anchors; a++) {
+        for (int m = 0; m < modelsPerAnchor; m++) {
+          int model = (a * modelsPerAnchor + m) * 16;
+          SceneGraph.multiplyMM(modelMatrices, model, anchorMatrices, a * 16,
+              modelLocalMatrices, m * 16);
+          SceneGraph.multiplyMM(modelViewMatrix, 0, viewMatrix, 0, modelMatrices, model);
+          SceneGraph.multiplyMM(
+              modelViewProjectionMatrix, 0, projectionMatrix, 0, modelViewMatrix, 0);
+          accumulate();
+        }
+      }
+    } else {
+      for (int a = 0; a < anchors; a++) {
+        // Unchanged transforms do not mark the node dirty, like anchors that did not move.
+        scene.setLocalTransform(anchorNodes[a], anchorMatrices, a * 16);
+      }
+      scene.update();
+      SceneGraph.multiplyMM(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+      float[] worldTransforms = scene.getWorldTransforms();
+      for (int i = 0; i < scene.getDrawCount(); i++) {
+        int world = scene.getDrawNode(i) * 16;
+        SceneGraph.multiplyMM(modelViewMatrix, 0, viewMatrix, 0, worldTransforms, world);
+        SceneGraph.multiplyMM(
+            modelViewProjectionMatrix, 0, viewProjectionMatrix, 0, worldTransforms, world);
+        accumulate();
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  private boolean isMoving(int anchor, int frame) {
+    return (anchor + frame) % 100 < movingPercent;
+  }
+
+  /** A rotation about Y by an angle that depends on the anchor, and a frame-dependent position. */
+  private void setAnchorMatrix(int anchor, int frame) {
+    double angle = anchor * 0.1;
+    float c = (float) Math.cos(angle);
+    float s = (float) Math.sin(angle);
+    int base = anchor * 16;
+    anchorMatrices[base] = c;
+    anchorMatrices[base + 2] = -s;
+    anchorMatrices[base + 5] = 1;
+    anchorMatrices[base + 8] = s;
+    anchorMatrices[base + 10] = c;
+    anchorMatrices[base + 12] = (anchor % 32) * 0.5f + 0.0001f * frame;
+    anchorMatrices[base + 13] = 0;
+    anchorMatrices[base + 14] = -(anchor / 32) * 0.5f;
+    anchorMatrices[base + 15] = 1;
+  }
+
+  private void accumulate() {
+    checksum += modelViewProjectionMatrix[12] + modelViewProjectionMatrix[13];
+  }
+
+  public static void main(String[] args) {
+    int anchors = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int modelsPerAnchor = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    int movingPercent = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    int frames = args.length > 3 ? Integer.parseInt(args[3]) : 600;
+
+    for (int pass = 0; pass < PASSES; pass++) {
+      SceneGraphBenchmark benchmark =
+          new SceneGraphBenchmark(anchors, modelsPerAnchor, movingPercent);
+      long fromScratchNanos = 0;
+      long sceneGraphNanos = 0;
+      for (int frame = 0; frame < frames; frame++) {
+        fromScratchNanos += benchmark.runFrame(Pass.FROM_SCRATCH, frame);
+        sceneGraphNanos += benchmark.runFrame(Pass.SCENE_GRAPH, frame);
+      }
+      System.out.println(String.format(
+          Locale.US,
+          "pass=%d nodes=%d moving=%d%% %s=%.1fus/frame %s=%.1fus/frame"
+              + " recomputed=%.0f/frame checksum=%.3e",
+          pass, benchmark.scene.getNodeCount(), movingPercent,
+          Pass.FROM_SCRATCH, fromScratchNanos / 1e3 / frames,
+          Pass.SCENE_GRAPH, sceneGraphNanos / 1e3 / frames,
+          (double) benchmark.scene.getRecomputedTransforms() / frames, benchmark.checksum));
+    }
+  }
+}
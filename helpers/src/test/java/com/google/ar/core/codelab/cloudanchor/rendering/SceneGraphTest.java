@@ -0,0 +1,260 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the world transforms and draw list of a small {@link SceneGraph} against computing them
+ * from scratch, while nodes move, change parents and are hidden.
+ */
+public class SceneGraphTest {
+  private static final int MODEL = 0;
+  private static final int SHADOW = 1;
+  private static final int MAX_NODES = 64;
+
+  private final SceneGraph scene = new SceneGraph();
+  // What the scene was told, indexed by node.
+  private final float[][] localTransforms = new float[MAX_NODES][];
+  private final boolean[] visible = new boolean[MAX_NODES];
+  private final int[] renderables = new int[MAX_NODES];
+  private final Random random = new Random(42);
+
+  // Like the app: a root per anchor, with a model and its shadow below it.
+  private final int[] anchors = new int[4];
+  private final int[] models = new int[4];
+  private final int[] shadows = new int[4];
+  // A part of the first model, to have a subtree three levels deep.
+  private int part;
+
+  @Before
+  public void setUp() {
+    for (int i = 0; i < anchors.length; i++) {
+      anchors[i] = createNode(SceneGraph.NO_NODE, SceneGraph.NO_RENDERABLE);
+      models[i] = createNode(anchors[i], MODEL);
+      shadows[i] = createNode(anchors[i], SHADOW);
+      setLocalTransform(anchors[i], randomTransform());
+      setLocalTransform(models[i], randomTransform());
+    }
+    part = createNode(models[0], MODEL);
+    setLocalTransform(part, randomTransform());
+    scene.update();
+    assertMatchesFromScratch();
+  }
+
+  @Test
+  public void movedSubtrees_matchTransformsFromScratch() {
+    for (int frame = 0; frame < 50; frame++) {
+      // Any node may move: anchors move their whole subtree, models only theirs.
+      for (int i = 0; i < 3; i++) {
+        int node = random.nextInt(scene.getNodeCount());
+        setLocalTransform(node, randomTransform());
+      }
+      scene.update();
+      assertMatchesFromScratch();
+    }
+  }
+
+  @Test
+  public void movedSubtree_onlyRecomputesItsNodes() {
+    long recomputed = scene.getRecomputedTransforms();
+    setLocalTransform(anchors[0], randomTransform());
+    scene.update();
+    // The anchor, its model and shadow, and the model's part.
+    assertEquals(4, scene.getRecomputedTransforms() - recomputed);
+
+    // A node moved along with its ancestor is recomputed once.
+    recomputed = scene.getRecomputedTransforms();
+    setLocalTransform(part, randomTransform());
+    setLocalTransform(models[0], randomTransform());
+    setLocalTransform(shadows[1], randomTransform());
+    scene.update();
+    assertEquals(3, scene.getRecomputedTransforms() - recomputed);
+    assertMatchesFromScratch();
+
+    // Setting the same transform again does not mark the node dirty.
+    recomputed = scene.getRecomputedTransforms();
+    setLocalTransform(anchors[2], localTransforms[anchors[2]].clone());
+    scene.update();
+    assertEquals(0, scene.getRecomputedTransforms() - recomputed);
+  }
+
+  @Test
+  public void reparentedModel_followsItsNewAnchor() {
+    // A model changes anchors by being removed and created again below the other one.
+    float[] partTransform = localTransforms[part];
+    scene.removeNode(part);
+    int movedPart = createNode(models[3], MODEL);
+    setLocalTransform(movedPart, partTransform);
+    // Moves in the same frame as the hierarchy change are not lost.
+    setLocalTransform(anchors[3], randomTransform());
+    scene.update();
+    assertEquals(models[3], scene.getParent(movedPart));
+    assertMatchesFromScratch();
+
+    // Moving the old anchor leaves the part alone, moving the new one takes it along.
+    long recomputed = scene.getRecomputedTransforms();
+    setLocalTransform(anchors[0], randomTransform());
+    scene.update();
+    assertEquals(3, scene.getRecomputedTransforms() - recomputed);
+    setLocalTransform(anchors[3], randomTransform());
+    scene.update();
+    assertMatchesFromScratch();
+
+    // Removing an anchor removes its subtree, and the handles are reused.
+    int nodeCount = scene.getNodeCount();
+    scene.removeNode(anchors[3]);
+    assertFalse(scene.isAlive(movedPart));
+    assertEquals(nodeCount - 4, scene.getNodeCount());
+    int anchor = createNode(SceneGraph.NO_NODE, SceneGraph.NO_RENDERABLE);
+    int model = createNode(anchor, MODEL);
+    setLocalTransform(anchor, randomTransform());
+    setLocalTransform(model, randomTransform());
+    assertTrue(anchor < nodeCount && model < nodeCount);
+    scene.update();
+    assertMatchesFromScratch();
+  }
+
+  @Test
+  public void hiddenNodes_leaveTheDrawListWithTheirSubtrees() {
+    int version = scene.getDrawListVersion();
+    setVisible(anchors[0], false);
+    setVisible(shadows[1], false);
+    scene.update();
+    assertEquals(version + 1, scene.getDrawListVersion());
+    // The three draws below the first anchor, and a shadow, are gone.
+    assertEquals(9 - 4, scene.getDrawCount());
+    assertMatchesFromScratch();
+
+    // Hidden nodes still move, so they show up in the right place.
+    setLocalTransform(anchors[0], randomTransform());
+    scene.update();
+    assertEquals(version + 1, scene.getDrawListVersion());
+    setVisible(anchors[0], true);
+    setVisible(part, false);
+    scene.update();
+    assertMatchesFromScratch();
+
+    // Setting the same visibility, or moving nodes, keeps the draw list.
+    version = scene.getDrawListVersion();
+    setVisible(anchors[0], true);
+    setLocalTransform(models[2], randomTransform());
+    scene.update();
+    assertEquals(version, scene.getDrawListVersion());
+    assertMatchesFromScratch();
+  }
+
+  @Test
+  public void clear_removesEveryNode() {
+    scene.clear();
+    scene.update();
+    assertEquals(0, scene.getNodeCount());
+    assertEquals(0, scene.getDrawCount());
+
+    int anchor = createNode(SceneGraph.NO_NODE, SceneGraph.NO_RENDERABLE);
+    createNode(anchor, SHADOW);
+    setLocalTransform(anchor, randomTransform());
+    scene.update();
+    assertMatchesFromScratch();
+  }
+
+  private int createNode(int parent, int renderable) {
+    int node = scene.createNode(parent, renderable);
+    localTransforms[node] = new float[] {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+    visible[node] = true;
+    renderables[node] = renderable;
+    return node;
+  }
+
+  private void setLocalTransform(int node, float[] transform) {
+    localTransforms[node] = transform;
+    scene.setLocalTransform(node, transform, 0);
+  }
+
+  private void setVisible(int node, boolean isVisible) {
+    visible[node] = isVisible;
+    scene.setVisible(node, isVisible);
+  }
+
+  /** A rotation about Y and a translation. */
+  private float[] randomTransform() {
+    double angle = random.nextDouble() * 2 * Math.PI;
+    float c = (float) Math.cos(angle);
+    float s = (float) Math.sin(angle);
+    return new float[] {
+      c, 0, -s, 0,
+      0, 1, 0, 0,
+      s, 0, c, 0,
+      random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, 1
+    };
+  }
+
+  private float[] worldTransformFromScratch(int node) {
+    int parent = scene.getParent(node);
+    if (parent == SceneGraph.NO_NODE) {
+      return localTransforms[node];
+    }
+    float[] world = new float[16];
+    SceneGraph.multiplyMM(world, 0, worldTransformFromScratch(parent), 0, localTransforms[node], 0);
+    return world;
+  }
+
+  private boolean isVisibleFromScratch(int node) {
+    for (int n = node; n != SceneGraph.NO_NODE; n = scene.getParent(n)) {
+      if (!visible[n]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void assertMatchesFromScratch() {
+    float[] worldTransforms = scene.getWorldTransforms();
+    List<Integer> expectedDraws = new ArrayList<>();
+    for (int node = 0; node < MAX_NODES; node++) {
+      if (!scene.isAlive(node)) {
+        continue;
+      }
+      float[] world = new float[16];
+      System.arraycopy(worldTransforms, node * 16, world, 0, 16);
+      // The same products in the same order, so the transforms are identical.
+      assertArrayEquals("node " + node, worldTransformFromScratch(node), world, 0);
+      if (renderables[node] != SceneGraph.NO_RENDERABLE && isVisibleFromScratch(node)) {
+        expectedDraws.add(node);
+      }
+    }
+
+    List<Integer> draws = new ArrayList<>();
+    for (int i = 0; i < scene.getDrawCount(); i++) {
+      int node = scene.getDrawNode(i);
+      assertEquals(renderables[node], scene.getDrawRenderable(i));
+      // Grouped by renderable.
+      assertTrue(i == 0 || scene.getDrawRenderable(i - 1) <= scene.getDrawRenderable(i));
+      draws.add(node);
+    }
+    Collections.sort(draws);
+    assertEquals(expectedDraws, draws);
+  }
+}
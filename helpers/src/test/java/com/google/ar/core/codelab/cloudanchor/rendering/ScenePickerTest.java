@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.codelab.cloudanchor.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Checks the picks of {@link ScenePicker} against testing every triangle of the scene. */
+public class ScenePickerTest {
+  private static final int INSTANCES = 300;
+  private static final int FRAMES = 10;
+  private static final int RAYS_PER_FRAME = 10;
+
+  private final float[] ray = new float[PickingScene.RAY_FLOATS];
+  private final ScenePicker.Hit hit = new ScenePicker.Hit();
+
+  @Test
+  public void pick_matchesLinearScanWhileAnchorsMove() {
+    PickingScene scene = new PickingScene(INSTANCES, 42);
+    assertEquals(INSTANCES, scene.getPicker().getInstanceCount());
+
+    int hits = 0;
+    for (int frame = 0; frame < FRAMES; frame++) {
+      scene.moveAnchors(frame);
+      for (int r = 0; r < RAYS_PER_FRAME; r++) {
+        scene.nextRay(ray, 0);
+        float linearDistance = scene.pickLinear(ray, 0);
+        boolean picked = scene.pick(ray, 0, hit);
+
+        String where = "frame " + frame + " ray " + r;
+        assertEquals(where, linearDistance != MeshBvh.NO_HIT, picked);
+        // Ties may pick either instance, so only the distances are compared.
+        assertEquals(where, linearDistance, hit.distance, 1e-4f * Math.max(1, linearDistance));
+        if (picked) {
+          hits++;
+        }
+      }
+    }
+    // Most rays are aimed at an instance.
+    assertTrue("hits " + hits, hits > FRAMES * RAYS_PER_FRAME / 2);
+  }
+
+  @Test
+  public void pick_missesWhenAimedAwayFromTheScene() {
+    PickingScene scene = new PickingScene(INSTANCES, 42);
+    scene.nextRay(ray, 0);
+    // Turn the ray around, towards the empty space behind the camera.
+    ray[3] = -ray[3];
+    ray[4] = -ray[4];
+    ray[5] = -ray[5];
+
+    assertEquals(MeshBvh.NO_HIT, scene.pickLinear(ray, 0), 0);
+    assertFalse(scene.pick(ray, 0, hit));
+    assertEquals(SceneGraph.NO_NODE, hit.node);
+  }
+}
@@ -16,10 +16,17 @@
 
 package com.google.ar.core.codelab.cloudanchor;
 
+import android.app.Activity;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
+import android.os.BatteryManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
@@ -34,30 +41,68 @@ import com.google.ar.core.Anchor;
 import com.google.ar.core.Anchor.CloudAnchorState;
 import com.google.ar.core.ArCoreApk;
 import com.google.ar.core.Camera;
+import com.google.ar.core.CameraConfig;
 import com.google.ar.core.Config;
 import com.google.ar.core.Config.CloudAnchorMode;
 import com.google.ar.core.Frame;
-import com.google.ar.core.Future;
 import com.google.ar.core.HitResult;
 import com.google.ar.core.Plane;
 import com.google.ar.core.Point;
 import com.google.ar.core.Point.OrientationMode;
 import com.google.ar.core.PointCloud;
+import com.google.ar.core.Pose;
 import com.google.ar.core.Session;
 import com.google.ar.core.Trackable;
 import com.google.ar.core.TrackingState;
+import com.google.ar.core.codelab.cloudanchor.helpers.AnchorBudget;
+import com.google.ar.core.codelab.cloudanchor.helpers.BatchResolver;
+import com.google.ar.core.codelab.cloudanchor.helpers.BatchResolver.BatchReport;
+import com.google.ar.core.codelab.cloudanchor.helpers.CameraConfigSelector;
 import com.google.ar.core.codelab.cloudanchor.helpers.CameraPermissionHelper;
+import com.google.ar.core.codelab.cloudanchor.helpers.CloudAnchorRetrier;
+import com.google.ar.core.codelab.cloudanchor.helpers.CloudAnchorSession;
+import com.google.ar.core.codelab.cloudanchor.helpers.FakeCloudAnchorSession;
+import com.google.ar.core.codelab.cloudanchor.helpers.FeatureDensityEstimator;
 import com.google.ar.core.codelab.cloudanchor.helpers.FirebaseManager;
+import com.google.ar.core.codelab.cloudanchor.helpers.FrameProfiler;
+import com.google.ar.core.codelab.cloudanchor.helpers.FrameTraceRecorder;
+import com.google.ar.core.codelab.cloudanchor.helpers.FrameProfiler.Stage;
+import com.google.ar.core.codelab.cloudanchor.helpers.HostingPipeline;
+import com.google.ar.core.codelab.cloudanchor.helpers.HostingPipeline.HostOperation;
+import com.google.ar.core.codelab.cloudanchor.helpers.InMemoryShortCodeStore;
+import com.google.ar.core.codelab.cloudanchor.helpers.PosePredictor;
+import com.google.ar.core.codelab.cloudanchor.helpers.QualityGovernor;
+import com.google.ar.core.codelab.cloudanchor.helpers.QualityGovernor.Level;
+import com.google.ar.core.codelab.cloudanchor.helpers.RenderScheduler;
+import com.google.ar.core.codelab.cloudanchor.helpers.ResolveAhead;
 import com.google.ar.core.codelab.cloudanchor.helpers.ResolveDialogFragment;
+import com.google.ar.core.codelab.cloudanchor.helpers.ResolvePlaceholders;
+import com.google.ar.core.codelab.cloudanchor.helpers.RetainedSession;
+import com.google.ar.core.codelab.cloudanchor.helpers.SceneSnapshot;
+import com.google.ar.core.codelab.cloudanchor.helpers.SceneStateHandoff;
+import com.google.ar.core.codelab.cloudanchor.helpers.SessionConfigController;
+import com.google.ar.core.codelab.cloudanchor.helpers.ShortCodeHistory;
+import com.google.ar.core.codelab.cloudanchor.helpers.ShortCodeStore;
+import com.google.ar.core.codelab.cloudanchor.helpers.SimulationStage;
 import com.google.ar.core.codelab.cloudanchor.helpers.SnackbarHelper;
+import com.google.ar.core.codelab.cloudanchor.helpers.StartupTimeline;
+import com.google.ar.core.codelab.cloudanchor.helpers.StartupTimeline.Phase;
 import com.google.ar.core.codelab.cloudanchor.helpers.StorageManager;
 import com.google.ar.core.codelab.cloudanchor.helpers.TapHelper;
+import com.google.ar.core.codelab.cloudanchor.helpers.TrackableSnapshot;
 import com.google.ar.core.codelab.cloudanchor.helpers.TrackingStateHelper;
+import com.google.ar.core.codelab.cloudanchor.helpers.ViewpointCoverageTracker;
 import com.google.ar.core.codelab.cloudanchor.rendering.BackgroundRenderer;
+import com.google.ar.core.codelab.cloudanchor.rendering.FrameContext;
+import com.google.ar.core.codelab.cloudanchor.rendering.Frustum;
 import com.google.ar.core.codelab.cloudanchor.rendering.ObjectRenderer;
 import com.google.ar.core.codelab.cloudanchor.rendering.ObjectRenderer.BlendMode;
 import com.google.ar.core.codelab.cloudanchor.rendering.PlaneRenderer;
 import com.google.ar.core.codelab.cloudanchor.rendering.PointCloudRenderer;
+import com.google.ar.core.codelab.cloudanchor.rendering.RenderCommandList;
+import com.google.ar.core.codelab.cloudanchor.rendering.SceneGraph;
+import com.google.ar.core.codelab.cloudanchor.rendering.ScenePicker;
+import com.google.ar.core.codelab.cloudanchor.rendering.SceneRenderer;
 import com.google.ar.core.codelab.cloudanchor.helpers.DisplayRotationHelper;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
 import com.google.ar.core.exceptions.UnavailableApkTooOldException;
@@ -65,7 +110,17 @@ import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
 import com.google.ar.core.exceptions.UnavailableDeviceNotCompatibleException;
 import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
 import com.google.ar.core.exceptions.UnavailableUserDeclinedInstallationException;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -82,13 +137,27 @@ public class CloudAnchorFragment extends Fragment implements GLSurfaceView.Rende
   private GLSurfaceView surfaceView;
 
   private boolean installRequested;
+  // Main thread only. True while the session is created on a background thread.
+  private boolean creatingSession;
+  private boolean renderingStarted;
+  // Set once the session is resumed. The GL thread only uses the session while this is true.
+  private volatile boolean sessionRunning;
 
+  // The fragment is retained across configuration changes, so that the session, the scene and the
+  // host and resolve operations in flight outlive the activity and the view, and the session keeps
+  // running meanwhile. Set RETAIN_SESSION to false to recreate everything like before and compare
+  // the time to tracking after a configuration change.
+  private static final boolean RETAIN_SESSION = true;
+  private final RetainedSession retainedSession = new RetainedSession(RETAIN_SESSION);
   private Session session;
+  // Created with the session, see SessionConfigController for which methods run on which thread.
+  @Nullable private SessionConfigController sessionConfigController;
   private final SnackbarHelper messageSnackbarHelper = new SnackbarHelper();
   private DisplayRotationHelper displayRotationHelper;
   private TrackingStateHelper trackingStateHelper;
   private TapHelper tapHelper;
-  private FirebaseManager firebaseManager;
+  private RenderScheduler renderScheduler;
+  private ShortCodeStore shortCodeStore;
 
   private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer();
   private final ObjectRenderer virtualObject = new ObjectRenderer();
@@ -96,24 +165,295 @@ public class CloudAnchorFragment extends Fragment implements GLSurfaceView.Rende
   private final PlaneRenderer planeRenderer = new PlaneRenderer();
   private final PointCloudRenderer pointCloudRenderer = new PointCloudRenderer();
 
-  // Temporary matrix allocated here to reduce number of allocations for each frame.
+  // Temporary matrix and per-frame state allocated here to reduce number of allocations for each
+  // frame.
   private final float[] anchorMatrix = new float[16];
+  private final FrameContext frameContext = new FrameContext();
+  // Planes of the latest frame, updated incrementally from the trackables that changed. GL thread
+  // only; other threads set clearTrackableSnapshot to have it cleared before the next update.
+  private final TrackableSnapshot trackableSnapshot = new TrackableSnapshot();
+  private volatile boolean clearTrackableSnapshot;
   private static final String SEARCHING_PLANE_MESSAGE = "Searching for surfaces...";
   private final float[] andyColor = {139.0f, 195.0f, 74.0f, 255.0f};
+  private final float[] selectedAndyColor = {66.0f, 133.0f, 244.0f, 255.0f};
+  private final float[] placeholderAndyColor = {158.0f, 158.0f, 158.0f, 255.0f};
 
+  // The models hang off one scene node per anchor. Only accessed by the simulation, see
+  // simulateFrame(), or on the GL thread while the simulation is idle.
+  private final SceneGraph scene = new SceneGraph();
+  private final SceneRenderer sceneRenderer = new SceneRenderer();
+  private final int andyRenderable = sceneRenderer.addRenderable(virtualObject, andyColor);
+  private final int andyShadowRenderable =
+      sceneRenderer.addRenderable(virtualObjectShadow, andyColor);
+  private final Map<Anchor, Integer> anchorNodes = new HashMap<>();
+  // Taps are tested against the placed models before the planes. The selected model is drawn
+  // with its own renderable. Only accessed by the simulation.
+  private final int selectedAndyRenderable =
+      sceneRenderer.addRenderable(virtualObject, selectedAndyColor);
+  private final ScenePicker scenePicker = new ScenePicker();
+  private final ScenePicker.Hit pickHit = new ScenePicker.Hit();
+  private int selectedNode = SceneGraph.NO_NODE;
+  private int surfaceWidth;
+  private int surfaceHeight;
+
+  // At most MAX_LIVE_ANCHORS anchors stay attached. Hosted anchors out of view the longest are
+  // detached first and resolved again once in view within RERESOLVE_DISTANCE_METERS.
+  private static final int MAX_LIVE_ANCHORS = 8;
+  private static final float ANCHOR_VISIBILITY_RADIUS_METERS = 0.2f;
+  private static final float RERESOLVE_DISTANCE_METERS = 3.0f;
+  private final Frustum frustum = new Frustum();
+
+  // Set PREDICT_POSE to true to draw the virtual content with the camera pose extrapolated by
+  // POSE_PREDICTION_LEAD_NANOS, the expected time from camera capture to display. It is off
+  // because the camera image in the background cannot be predicted, so during fast motion the
+  // content would lead the image instead of lagging with it. PosePredictionReplay measures the
+  // prediction error on a frame trace for these parameters.
+  private static final boolean PREDICT_POSE = false;
+  private static final long POSE_PREDICTION_LEAD_NANOS = 33_000_000L;
+  private static final int POSE_HISTORY = 16;
+  private static final long POSE_VELOCITY_WINDOW_NANOS = 50_000_000L;
+  private static final long POSE_MAX_PREDICTION_NANOS = 50_000_000L;
+  private static final long POSE_MAX_GAP_NANOS = 100_000_000L;
+  private static final float POSE_MAX_LINEAR_SPEED = 4.0f;
+  private static final float POSE_MAX_ANGULAR_SPEED = 10.0f;
+  private final PosePredictor posePredictor =
+      new PosePredictor(
+          POSE_HISTORY,
+          POSE_VELOCITY_WINDOW_NANOS,
+          POSE_MAX_PREDICTION_NANOS,
+          POSE_MAX_GAP_NANOS,
+          POSE_MAX_LINEAR_SPEED,
+          POSE_MAX_ANGULAR_SPEED);
+  private final float[] predictedViewMatrix = new float[16];
+
+  // Maximum number of anchors that are hosted at the same time. Further anchors wait in a queue.
+  private static final int MAX_CONCURRENT_HOSTS = 3;
+  // Maximum number of anchors that are resolved at the same time.
+  private static final int MAX_CONCURRENT_RESOLVES = 4;
+  // Short codes entered by the user are resolved closest to the camera first, by the last known
+  // pose of their anchors, and are cancelled once the camera is RESOLVE_STALE_DISTANCE_METERS away
+  // from where the resolve started.
+  private static final float RESOLVE_STALE_DISTANCE_METERS = 5.0f;
+  // Cloud Anchor ID of each short code hosted or resolved in this session. Only accessed by the
+  // simulation.
+  private final Map<Integer, String> shortCodeCloudAnchorIds = new HashMap<>();
+  // The short codes resolved most often lately are resolved ahead once the session first tracks,
+  // RESOLVE_AHEAD_COUNT at most and one at a time, so that their content appears as soon as it is
+  // asked for. Nothing is resolved ahead in battery saver mode, or below
+  // RESOLVE_AHEAD_MIN_BATTERY_PERCENT unless charging. Anchors resolved ahead that were not asked
+  // for within RESOLVE_AHEAD_TTL_MS are detached, since ARCore keeps tracking them.
+  private static final int RESOLVE_AHEAD_COUNT = 3;
+  private static final int MAX_CONCURRENT_RESOLVES_AHEAD = 1;
+  private static final int RESOLVE_AHEAD_MIN_BATTERY_PERCENT = 30;
+  private static final long RESOLVE_AHEAD_TTL_MS = 120_000L;
+  private static final int SHORT_CODE_HISTORY_SIZE = 20;
+  private static final long SHORT_CODE_HISTORY_HALF_LIFE_MS = 7 * 24 * 60 * 60 * 1000L;
+  // Transient host and resolve failures are retried with jittered exponential backoff, within an
+  // overall deadline per operation.
+  private static final long RETRY_INITIAL_BACKOFF_MS = 1_000L;
+  private static final long RETRY_MAX_BACKOFF_MS = 16_000L;
+  private static final long RETRY_DEADLINE_MS = 60_000L;
+
+  // While a Cloud Anchor seen earlier in the session is being resolved, a grey model is drawn at
+  // its last known pose. The resolved model moves from there over PLACEHOLDER_BLEND_NANOS, or
+  // snaps if it is more than PLACEHOLDER_SNAP_DISTANCE_METERS away. Placeholders outlive the
+  // retries by a few seconds at most.
+  private static final int PLACEHOLDER_POSES = 64;
+  private static final long PLACEHOLDER_BLEND_NANOS = 300_000_000L;
+  private static final float PLACEHOLDER_SNAP_DISTANCE_METERS = 0.5f;
+  private static final long PLACEHOLDER_TIMEOUT_NANOS = (RETRY_DEADLINE_MS + 5_000L) * 1_000_000L;
+  private final int placeholderAndyRenderable =
+      sceneRenderer.addRenderable(virtualObject, placeholderAndyColor);
+  private final ResolvePlaceholders resolvePlaceholders =
+      new ResolvePlaceholders(
+          placeholderAndyRenderable,
+          PLACEHOLDER_POSES,
+          PLACEHOLDER_BLEND_NANOS,
+          PLACEHOLDER_SNAP_DISTANCE_METERS,
+          PLACEHOLDER_TIMEOUT_NANOS);
+  // Set to true to host, share and resolve against an in-memory stand-in for the Cloud Anchor
+  // service and Firebase, e.g. to try the flow without a network.
+  private static final boolean USE_FAKE_CLOUD_ANCHORS = false;
+  private static final long FAKE_MIN_LATENCY_MS = 1_000L;
+  private static final long FAKE_MAX_LATENCY_MS = 4_000L;
+  // Redraw only on new camera images or scene changes. Use CONTINUOUS to compare against the
+  // original always-on render loop.
+  private static final RenderScheduler.Mode RENDER_MODE = RenderScheduler.Mode.ON_DEMAND;
+
+  // Startup work runs in parallel: the session is created on one background thread while the
+  // models and textures are decoded on ASSET_DECODE_THREADS others and the GL thread compiles
+  // the shaders. The timeline is logged on the first camera frame.
+  private static final int ASSET_DECODE_THREADS = 3;
+  private final StartupTimeline startupTimeline = new StartupTimeline();
+  @Nullable private volatile Future<ObjectRenderer.Assets> andyAssets;
+  @Nullable private volatile Future<ObjectRenderer.Assets> andyShadowAssets;
+  @Nullable private volatile Future<Bitmap> gridTexture;
+  // GL thread only. If an asset cannot be decoded, the 3D stages stay off for good and only the
+  // camera image is drawn.
+  private boolean rendererAssetsUploaded;
+  private boolean rendererAssetsFailed;
+
+  // Plane finding and light estimation are switched off in the phases that do not need them. A
+  // phase must last CONFIG_SETTLE_NANOS before the session is reconfigured, and the session is
+  // reconfigured at most once per CONFIG_MIN_INTERVAL_NANOS. Set ADAPT_SESSION_CONFIG to false to
+  // keep every feature on and compare the CPU use per phase.
+  private static final boolean ADAPT_SESSION_CONFIG = true;
+  // The camera runs at 30 fps with a 1080p texture for the background. The CPU image is never
+  // read, so the smallest one is preferred, and the depth sensor is not used.
+  private static final int CAMERA_TARGET_FPS = 30;
+  private static final int CAMERA_TEXTURE_LONG_EDGE = 1920;
+  private static final int CAMERA_CPU_IMAGE_LONG_EDGE = 640;
+  private static final CameraConfigSelector.Policy CAMERA_CONFIG_POLICY =
+      new CameraConfigSelector.Policy(
+          CAMERA_TARGET_FPS, CAMERA_TEXTURE_LONG_EDGE, CAMERA_CPU_IMAGE_LONG_EDGE, false);
+  private static final long CONFIG_SETTLE_NANOS = 500_000_000L;
+  private static final long CONFIG_MIN_INTERVAL_NANOS = 2_000_000_000L;
+
+  // Per-stage frame timings for the last few seconds, summarized off the GL thread.
+  private static final int PROFILED_FRAMES = 300;
+  private static final long FRAME_BUDGET_NANOS = 33_333_333L;
+  private static final long PROFILE_SUMMARY_INTERVAL_MS = 10_000L;
+  private final FrameProfiler frameProfiler =
+      new FrameProfiler(PROFILED_FRAMES, FRAME_BUDGET_NANOS);
+
+  // Quality is lowered when the render work of a frame, i.e. everything but Session.update(),
+  // averages more than QUALITY_BUDGET_NANOS over a second, or when the device gets hot. It is
+  // raised again after five seconds below 60% of the budget.
+  private static final long QUALITY_BUDGET_NANOS = 16_000_000L;
+  private static final int QUALITY_WINDOW_FRAMES = 30;
+  private static final float QUALITY_STEP_UP_RATIO = 0.6f;
+  private static final int QUALITY_STEP_UP_WINDOWS = 5;
+  private static final int REDUCED_MAX_PLANES = 4;
+  private static final float REDUCED_RENDER_SCALE = 0.6f;
+  private final QualityGovernor qualityGovernor =
+      new QualityGovernor(
+          QUALITY_BUDGET_NANOS,
+          QUALITY_WINDOW_FRAMES,
+          QUALITY_STEP_UP_RATIO,
+          QUALITY_STEP_UP_WINDOWS);
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final Runnable applyRenderScaleRunnable = this::applyRenderScale;
+  private final PowerManager.OnThermalStatusChangedListener thermalStatusListener =
+      qualityGovernor::setThermalStatus;
+  // GL thread only.
+  private Level appliedQualityLevel = Level.FULL;
+  // Ratio of the surface size to the view size, used to map taps into the scaled surface.
+  private volatile float renderScale = 1f;
+
+  // Hosting is delayed until enough feature points have been seen around the anchor and the
+  // anchor has been viewed from enough directions, or until MAX_HOST_DELAY_NANOS has passed, so
+  // that fewer host attempts fail on poorly mapped areas.
+  private static final float DENSITY_RADIUS_METERS = 0.25f;
+  private static final float MIN_DENSITY_SCORE = 0.5f;
+  private static final float MIN_COVERAGE_DEGREES = 60f;
+  private static final long HOST_PROGRESS_INTERVAL_NANOS = 500_000_000L;
+  private static final long MAX_HOST_DELAY_NANOS = 10_000_000_000L;
+  // Taps, hosting and the anchors are simulated on a thread of their own while the GL thread draws
+  // the frame, and the models are drawn from the commands the previous simulation recorded. Set
+  // SIMULATE_ON_OWN_THREAD to false to run the simulation inline and compare the frame times;
+  // RenderPipelineReplay does the same on a frame trace.
+  private static final boolean SIMULATE_ON_OWN_THREAD = true;
+  private final SimulationStage simulationStage =
+      new SimulationStage(this::simulateFrame, SIMULATE_ON_OWN_THREAD);
+  // Set by the GL thread before each simulation, for the simulation.
+  private Frame simulatedFrame;
+  private Camera simulatedCamera;
+  private float[] simulatedViewMatrix;
+  // Set to true to stream every frame to a trace file that FrameTraceReplay can replay on the JVM.
+  private static final boolean RECORD_FRAME_TRACE = false;
+  private static final String FRAME_TRACE_FILE_NAME = "frame_trace.bin";
+  private static final int FRAME_TRACE_BUFFERS = 8;
+  private static final int FRAME_TRACE_BUFFER_BYTES = 512 * 1024;
+  // 5 cm cells that stay live for 90 frames, ignoring points below 0.3 confidence. 30 live cells
+  // within the radius give a full density score.
+  private final FeatureDensityEstimator featureDensityEstimator =
+      new FeatureDensityEstimator(0.05f, 90, 0.3f, 30, 8192);
+  private final FeatureDensityEstimator.Estimate densityEstimate =
+      new FeatureDensityEstimator.Estimate();
+  // 300 camera positions at least 2 cm apart, within 4 m of the anchor, in 10 degree sectors.
+  private final ViewpointCoverageTracker viewpointCoverageTracker =
+      new ViewpointCoverageTracker(300, 0.02f, 4.0f, 36);
+  private long lastHostProgressNanos;
+
+  /** An anchor placed by the user that is waiting to be hosted. Only used by the simulation. */
+  private static final class PendingHost {
+    final Anchor anchor;
+    final long placedTimeNanos;
+    // The frame the anchor was placed in, on the clock of the viewpoint coverage samples.
+    final long placedFrameTimestampNanos;
+
+    PendingHost(Anchor anchor, long placedTimeNanos, long placedFrameTimestampNanos) {
+      this.anchor = anchor;
+      this.placedTimeNanos = placedTimeNanos;
+      this.placedFrameTimestampNanos = placedFrameTimestampNanos;
+    }
+  }
+
+  private final List<PendingHost> pendingHosts = new ArrayList<>();
+  // Only set while RECORD_FRAME_TRACE is enabled and the fragment is resumed.
+  @Nullable
+  private FrameTraceRecorder frameTraceRecorder = null;
+
+  // Anchors in the scene and their Cloud Anchor IDs once hosted. Only accessed by the simulation,
+  // or on the GL thread while the simulation is idle.
+  private final List<Anchor> anchors = new ArrayList<>();
+  private final Map<Anchor, String> cloudAnchorIds = new HashMap<>();
+  // Other threads post their changes to the scene here and read it through the snapshot, which is
+  // republished whenever sceneVersion changes. The versions are only accessed by the simulation.
+  private final SceneStateHandoff<SceneSnapshot> sceneHandoff =
+      new SceneStateHandoff<>(SceneSnapshot.EMPTY);
+  private int sceneVersion;
+  private int publishedSceneVersion;
+  // The phase of the scene as of the last simulated frame, or null while there is no anchor. Set
+  // by the simulation, read by the GL thread while the simulation is idle.
+  @Nullable private SessionConfigController.Phase scenePhase;
+
+  private final CloudAnchorRetrier retrier =
+      new CloudAnchorRetrier(RETRY_INITIAL_BACKOFF_MS, RETRY_MAX_BACKOFF_MS, RETRY_DEADLINE_MS);
+  // Only set while USE_FAKE_CLOUD_ANCHORS is enabled.
   @Nullable
-  private Anchor currentAnchor = null;
+  private FakeCloudAnchorSession fakeCloudAnchorSession = null;
   @Nullable
-  private Future future = null;
+  private HostingPipeline hostingPipeline = null;
+  @Nullable
+  private BatchResolver batchResolver = null;
+  @Nullable
+  private AnchorBudget anchorBudget = null;
+  @Nullable
+  private ResolveAhead resolveAhead = null;
+  private ShortCodeHistory shortCodeHistory;
+  private final Runnable releaseResolveAheadRunnable = this::releaseResolveAhead;
+  // GL thread only.
+  private boolean resolveAheadRequested;
 
   private Button resolveButton;
+  // Shows the number of anchors in the latest scene snapshot. Main thread only.
+  @Nullable private Button clearButton;
+  private final Runnable showSceneStateRunnable = this::showSceneState;
+
+  @Override
+  public void onCreate(@Nullable Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+    setRetainInstance(RETAIN_SESSION);
+  }
 
   @Override
   public void onAttach(@NonNull Context context) {
     super.onAttach(context);
-    tapHelper = new TapHelper(context);
-    trackingStateHelper = new TrackingStateHelper(requireActivity());
-    firebaseManager = new FirebaseManager(context);
+    // A retained fragment is attached again after a configuration change. The resolvers of the
+    // retained session keep using the same store, the simulation thread keeps polling the same tap
+    // helper and the tracking telemetry carries on; only the activity is rebound.
+    if (shortCodeStore == null) {
+      tapHelper = new TapHelper(context.getApplicationContext());
+      trackingStateHelper = new TrackingStateHelper(requireActivity());
+      shortCodeStore =
+          USE_FAKE_CLOUD_ANCHORS ? new InMemoryShortCodeStore() : new FirebaseManager(context);
+      shortCodeHistory =
+          ShortCodeHistory.load(
+              context, SHORT_CODE_HISTORY_SIZE, SHORT_CODE_HISTORY_HALF_LIFE_MS);
+    } else {
+      trackingStateHelper.setActivity(requireActivity());
+    }
   }
 
   @Override
@@ -124,107 +464,384 @@ public class CloudAnchorFragment extends Fragment implements GLSurfaceView.Rende
     GLSurfaceView surfaceView = rootView.findViewById(R.id.surfaceView);
     this.surfaceView = surfaceView;
     displayRotationHelper = new DisplayRotationHelper(requireContext());
-    surfaceView.setOnTouchListener(tapHelper);
+    surfaceView.setOnTouchListener((v, event) -> {
+      // A tap may place an anchor, so make sure the next frame is drawn.
+      renderScheduler.requestRedraw();
+      return tapHelper.onTouch(v, event);
+    });
 
     surfaceView.setPreserveEGLContextOnPause(true);
     surfaceView.setEGLContextClientVersion(2);
     surfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0); // Alpha used for plane blending.
     surfaceView.setRenderer(this);
-    surfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+    renderScheduler = new RenderScheduler(surfaceView, RENDER_MODE);
     surfaceView.setWillNotDraw(false);
 
-    Button clearButton = rootView.findViewById(R.id.clear_button);
+    clearButton = rootView.findViewById(R.id.clear_button);
     clearButton.setOnClickListener(v -> onClearButtonPressed());
+    // A recreated view shows the scene retained with the session.
+    showSceneState();
 
     resolveButton = rootView.findViewById(R.id.resolve_button);
     resolveButton.setOnClickListener(v -> onResolveButtonPressed());
 
+    retainedSession.markViewCreated(savedInstanceState != null);
     return rootView;
   }
 
+  @Override
+  public void onDestroyView() {
+    super.onDestroyView();
+    mainHandler.removeCallbacks(showSceneStateRunnable);
+    clearButton = null;
+    // The snackbar belongs to the old view, and would keep the same message from being shown on
+    // the new one.
+    messageSnackbarHelper.hide(requireActivity());
+  }
+
   @Override
   public void onResume() {
     super.onResume();
 
     if (session == null) {
-      Exception exception = null;
-      String message = null;
-      try {
-        switch (ArCoreApk.getInstance().requestInstall(requireActivity(), !installRequested)) {
-          case INSTALL_REQUESTED:
-            installRequested = true;
-            return;
-          case INSTALLED:
-            break;
-        }
+      if (!creatingSession && !startSessionCreation()) {
+        return;
+      }
+      // The session is resumed by onSessionCreated() once it exists. Rendering starts right away
+      // so that the shaders compile while the session is being created.
+    } else if (!resumeSession()) {
+      return;
+    }
+    startRendering();
+  }
 
-        // ARCore requires camera permissions to operate. If we did not yet obtain runtime
-        // permission on Android M and above, now is a good time to ask the user for it.
-        if (!CameraPermissionHelper.hasCameraPermission(requireActivity())) {
-          CameraPermissionHelper.requestCameraPermission(requireActivity());
-          return;
-        }
+  /**
+   * Checks that ARCore is installed and the camera permission is granted, then starts decoding
+   * the renderer assets and creating the session in parallel on background threads. Returns false
+   * if the session cannot be created yet.
+   */
+  private boolean startSessionCreation() {
+    try {
+      switch (ArCoreApk.getInstance().requestInstall(requireActivity(), !installRequested)) {
+        case INSTALL_REQUESTED:
+          installRequested = true;
+          return false;
+        case INSTALLED:
+          break;
+      }
+    } catch (Exception e) {
+      showSessionError(e);
+      return false;
+    }
 
-        // Create the session.
-        session = new Session(requireActivity());
+    // ARCore requires camera permissions to operate. If we did not yet obtain runtime
+    // permission on Android M and above, now is a good time to ask the user for it.
+    if (!CameraPermissionHelper.hasCameraPermission(requireActivity())) {
+      CameraPermissionHelper.requestCameraPermission(requireActivity());
+      return false;
+    }
 
-        // Configure the session.
-        Config config = new Config(session);
-        config.setCloudAnchorMode(CloudAnchorMode.ENABLED);
-        session.configure(config);
+    startupTimeline.start();
+    if (andyAssets == null) {
+      loadRendererAssets();
+    }
 
-      } catch (UnavailableArcoreNotInstalledException
-          | UnavailableUserDeclinedInstallationException e) {
-        message = "Please install ARCore";
-        exception = e;
-      } catch (UnavailableApkTooOldException e) {
-        message = "Please update ARCore";
-        exception = e;
-      } catch (UnavailableSdkTooOldException e) {
-        message = "Please update this app";
-        exception = e;
-      } catch (UnavailableDeviceNotCompatibleException e) {
-        message = "This device does not support AR";
-        exception = e;
+    creatingSession = true;
+    Activity activity = requireActivity();
+    Config.UpdateMode updateMode = renderScheduler.getUpdateMode();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.execute(() -> {
+      Session createdSession = null;
+      SessionConfigController configController = null;
+      Exception exception = null;
+      startupTimeline.begin(Phase.SESSION_CREATE);
+      try {
+        createdSession = new Session(activity);
+        // The camera config must be set while the session is paused, i.e. before it is resumed.
+        CameraConfig cameraConfig =
+            new CameraConfigSelector(CAMERA_CONFIG_POLICY).apply(createdSession);
+        if (cameraConfig != null) {
+          Log.i(TAG, "Camera config: " + CameraConfigSelector.describe(cameraConfig));
+        }
+        Config config = new Config(createdSession);
+        config.setCloudAnchorMode(CloudAnchorMode.ENABLED);
+        config.setUpdateMode(updateMode);
+        // Configures the session for the scanning phase.
+        configController =
+            new SessionConfigController(
+                createdSession,
+                config,
+                CONFIG_SETTLE_NANOS,
+                CONFIG_MIN_INTERVAL_NANOS,
+                ADAPT_SESSION_CONFIG);
       } catch (Exception e) {
-        message = "Failed to create AR session";
         exception = e;
       }
+      startupTimeline.end(Phase.SESSION_CREATE);
+      Session result = createdSession;
+      SessionConfigController resultController = configController;
+      Exception failure = exception;
+      mainHandler.post(() -> onSessionCreated(result, resultController, failure));
+    });
+    executor.shutdown();
+    return true;
+  }
 
-      if (message != null) {
-        messageSnackbarHelper.showError(requireActivity(), message);
-        Log.e(TAG, "Exception creating session", exception);
-        return;
+  /** Called on the main thread once the background session creation finished. */
+  private void onSessionCreated(
+      @Nullable Session createdSession,
+      @Nullable SessionConfigController configController,
+      @Nullable Exception exception) {
+    creatingSession = false;
+    if (configController == null) {
+      if (createdSession != null) {
+        createdSession.close();
       }
+      showSessionError(exception);
+      return;
+    }
+    if (!isAdded()) {
+      createdSession.close();
+      return;
+    }
+    retainedSession.setSession(createdSession);
+    session = createdSession;
+    sessionConfigController = configController;
+    // Drop the planes of a previous session before the GL thread updates them from the first
+    // frame.
+    clearTrackableSnapshot = true;
+
+    CloudAnchorSession cloudAnchorSession;
+    if (USE_FAKE_CLOUD_ANCHORS) {
+      fakeCloudAnchorSession =
+          new FakeCloudAnchorSession(mainHandler::post, session::createAnchor)
+              .setLatencyMs(FAKE_MIN_LATENCY_MS, FAKE_MAX_LATENCY_MS);
+      cloudAnchorSession = fakeCloudAnchorSession;
+    } else {
+      cloudAnchorSession = CloudAnchorSession.forSession(session);
     }
+    hostingPipeline = new HostingPipeline(
+        retrier.wrapHost(cloudAnchorSession::hostCloudAnchorAsync),
+        MAX_CONCURRENT_HOSTS,
+        this::onHostComplete);
+    batchResolver = new BatchResolver(
+        shortCodeStore::getCloudAnchorId,
+        resolvePlaceholders.wrapResolve(
+            retrier.wrapResolve(cloudAnchorSession::resolveCloudAnchorAsync)),
+        MAX_CONCURRENT_RESOLVES);
+    resolveAhead = new ResolveAhead(new BatchResolver(
+        shortCodeStore::getCloudAnchorId,
+        retrier.wrapResolve(cloudAnchorSession::resolveCloudAnchorAsync),
+        MAX_CONCURRENT_RESOLVES_AHEAD));
+    anchorBudget = new AnchorBudget(
+        MAX_LIVE_ANCHORS,
+        ANCHOR_VISIBILITY_RADIUS_METERS,
+        RERESOLVE_DISTANCE_METERS,
+        resolvePlaceholders.wrapResolve(
+            retrier.wrapResolve(cloudAnchorSession::resolveCloudAnchorAsync)),
+        new AnchorBudget.Listener() {
+          @Override
+          public void onAnchorDetached(Anchor anchor) {
+            removeAnchor(anchor);
+          }
 
-    // Note that order matters - see the note in onPause(), the reverse applies here.
+          @Override
+          public void onAnchorReresolved(Anchor anchor, String cloudAnchorId) {
+            addResolvedAnchor(anchor, cloudAnchorId);
+          }
+        });
+
+    if (isResumed()) {
+      resumeSession();
+    }
+  }
+
+  private void showSessionError(Exception exception) {
+    String message;
+    if (exception instanceof UnavailableArcoreNotInstalledException
+        || exception instanceof UnavailableUserDeclinedInstallationException) {
+      message = "Please install ARCore";
+    } else if (exception instanceof UnavailableApkTooOldException) {
+      message = "Please update ARCore";
+    } else if (exception instanceof UnavailableSdkTooOldException) {
+      message = "Please update this app";
+    } else if (exception instanceof UnavailableDeviceNotCompatibleException) {
+      message = "This device does not support AR";
+    } else {
+      message = "Failed to create AR session";
+    }
+    messageSnackbarHelper.showError(requireActivity(), message);
+    Log.e(TAG, "Exception creating session", exception);
+  }
+
+  private boolean resumeSession() {
+    startupTimeline.begin(Phase.SESSION_RESUME);
+    boolean resumed;
     try {
-      session.resume();
+      resumed = retainedSession.resume();
     } catch (CameraNotAvailableException e) {
       messageSnackbarHelper
           .showError(requireActivity(), "Camera not available. Try restarting the app.");
+      retainedSession.close();
       session = null;
-      return;
+      return false;
     }
+    startupTimeline.end(Phase.SESSION_RESUME);
+    // Not resumed if it kept running across a configuration change.
+    if (resumed) {
+      sessionConfigController.onResume();
+    }
+    sessionRunning = true;
+    return true;
+  }
 
+  private void startRendering() {
+    if (RECORD_FRAME_TRACE) {
+      startFrameTrace();
+    }
+    simulationStage.start();
     surfaceView.onResume();
+    renderScheduler.onResume();
+    frameProfiler.startPeriodicSummary(PROFILE_SUMMARY_INTERVAL_MS);
     displayRotationHelper.onResume();
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      PowerManager powerManager = requireContext().getSystemService(PowerManager.class);
+      qualityGovernor.setThermalStatus(powerManager.getCurrentThermalStatus());
+      powerManager.addThermalStatusListener(thermalStatusListener);
+    }
+    renderingStarted = true;
   }
 
   @Override
   public void onPause() {
     super.onPause();
-    if (session != null) {
+    if (renderingStarted) {
+      renderingStarted = false;
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+        requireContext()
+            .getSystemService(PowerManager.class)
+            .removeThermalStatusListener(thermalStatusListener);
+      }
       // Note that the order matters - GLSurfaceView is paused first so that it does not try
       // to query the session. If Session is paused before GLSurfaceView, GLSurfaceView may
       // still call session.update() and get a SessionPausedException.
       displayRotationHelper.onPause();
+      renderScheduler.onPause();
+      frameProfiler.stopPeriodicSummary();
       surfaceView.onPause();
-      session.pause();
+      // Waits for the simulation of the last frame, which may still be using the session.
+      simulationStage.stop();
+      Log.i(TAG, "Simulation: " + simulationStage.getStats());
+      // The GL thread is paused now, so the recorder can be closed here.
+      if (frameTraceRecorder != null) {
+        frameTraceRecorder.close();
+        frameTraceRecorder = null;
+      }
+    }
+    if (sessionRunning) {
+      sessionRunning = false;
+      if (retainedSession.pause(requireActivity().isChangingConfigurations())) {
+        sessionConfigController.onPause();
+      }
+      Log.i(TAG, "Session config: " + sessionConfigController.getStats());
+      Log.i(TAG, "Scene: " + sceneHandoff.getSnapshot());
+      Log.i(TAG, "Resolve placeholders: " + resolvePlaceholders.getStats());
+      Log.i(TAG, "Tracking: " + trackingStateHelper.getTelemetrySnapshot());
+      if (PREDICT_POSE) {
+        Log.i(TAG, "Pose prediction: " + posePredictor.getStats());
+      }
+    }
+  }
+
+  /**
+   * Decodes the models and textures on background threads. The GL thread uploads them in one step
+   * once they are all ready, see {@link #uploadRendererAssetsIfReady()}.
+   */
+  private void loadRendererAssets() {
+    Context context = requireContext().getApplicationContext();
+    ExecutorService executor = Executors.newFixedThreadPool(ASSET_DECODE_THREADS);
+    andyAssets = decodeAsset(executor,
+        () -> ObjectRenderer.loadAssets(context, "models/andy.obj", "models/andy.png"));
+    andyShadowAssets = decodeAsset(executor,
+        () -> ObjectRenderer.loadAssets(
+            context, "models/andy_shadow.obj", "models/andy_shadow.png"));
+    gridTexture = decodeAsset(executor,
+        () -> PlaneRenderer.loadGridTexture(context, "models/trigrid.png"));
+    executor.shutdown();
+  }
+
+  private <T> Future<T> decodeAsset(ExecutorService executor, Callable<T> decoder) {
+    return executor.submit(() -> {
+      startupTimeline.begin(Phase.ASSET_DECODE);
+      try {
+        return decoder.call();
+      } finally {
+        startupTimeline.end(Phase.ASSET_DECODE);
+      }
+    });
+  }
+
+  /**
+   * Uploads every decoded asset to the GPU in one step, once they are all ready. Returns whether
+   * the renderers can draw, which is never the case once an asset failed to decode. Called on the
+   * GL thread.
+   */
+  private boolean uploadRendererAssetsIfReady() {
+    if (rendererAssetsUploaded) {
+      return true;
+    }
+    if (rendererAssetsFailed
+        || !andyAssets.isDone()
+        || !andyShadowAssets.isDone()
+        || !gridTexture.isDone()) {
+      return false;
+    }
+    startupTimeline.begin(Phase.GPU_UPLOAD);
+    try {
+      // The decoded assets are kept, so that they can be uploaded again if the context is lost.
+      planeRenderer.uploadOnGlThread(gridTexture.get());
+      virtualObject.uploadOnGlThread(andyAssets.get());
+      virtualObjectShadow.uploadOnGlThread(andyShadowAssets.get());
+      // The shadows are not pickable.
+      scenePicker.setMesh(andyRenderable, andyAssets.get().getBvh());
+      scenePicker.setMesh(selectedAndyRenderable, andyAssets.get().getBvh());
+    } catch (ExecutionException | InterruptedException e) {
+      Log.e(TAG, "Failed to read an asset file", e);
+      rendererAssetsFailed = true;
+      messageSnackbarHelper.showError(getActivity(), "Failed to load the 3D models.");
+      return false;
+    } finally {
+      startupTimeline.end(Phase.GPU_UPLOAD);
+    }
+    rendererAssetsUploaded = true;
+    return true;
+  }
+
+  private void startFrameTrace() {
+    File file = new File(requireContext().getExternalFilesDir(null), FRAME_TRACE_FILE_NAME);
+    try {
+      frameTraceRecorder =
+          new FrameTraceRecorder(file, FRAME_TRACE_BUFFERS, FRAME_TRACE_BUFFER_BYTES);
+      Log.i(TAG, "Recording frame trace to " + file);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to start frame trace", e);
     }
   }
 
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+    mainHandler.removeCallbacks(releaseResolveAheadRunnable);
+    releaseResolveAhead();
+    retrier.shutdown();
+    if (fakeCloudAnchorSession != null) {
+      fakeCloudAnchorSession.shutdown();
+    }
+    // While the fragment is retained, this is not called for configuration changes.
+    retainedSession.close();
+    session = null;
+  }
+
   @Override
   public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] results) {
     if (!CameraPermissionHelper.hasCameraPermission(requireActivity())) {
@@ -244,29 +861,38 @@ public class CloudAnchorFragment extends Fragment implements GLSurfaceView.Rende
     GLES20.glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
 
     // Prepare the rendering objects. This involves reading shaders, so may throw an IOException.
+    // The models and textures are decoded in the background and uploaded by the first frame that
+    // finds them ready.
+    startupTimeline.begin(Phase.SHADER_COMPILE);
     try {
       // Create the texture and pass it to ARCore session to be filled during update().
       backgroundRenderer.createOnGlThread(getContext());
-      planeRenderer.createOnGlThread(getContext(), "models/trigrid.png");
+      planeRenderer.createProgramOnGlThread(getContext());
       pointCloudRenderer.createOnGlThread(getContext());
 
-      virtualObject.createOnGlThread(getContext(), "models/andy.obj", "models/andy.png");
+      virtualObject.createProgramOnGlThread(getContext());
       virtualObject.setMaterialProperties(0.0f, 2.0f, 0.5f, 6.0f);
 
-      virtualObjectShadow
-          .createOnGlThread(getContext(), "models/andy_shadow.obj", "models/andy_shadow.png");
+      virtualObjectShadow.createProgramOnGlThread(getContext());
       virtualObjectShadow.setBlendMode(BlendMode.Shadow);
       virtualObjectShadow.setMaterialProperties(1.0f, 0.0f, 0.0f, 1.0f);
 
     } catch (IOException e) {
       Log.e(TAG, "Failed to read an asset file", e);
     }
+    startupTimeline.end(Phase.SHADER_COMPILE);
+    // A new GL context has none of the previous textures and buffers.
+    rendererAssetsUploaded = false;
   }
 
   @Override
   public void onSurfaceChanged(GL10 gl, int width, int height) {
+    // The surface size is used to pick objects.
+    simulationStage.awaitIdle();
     displayRotationHelper.onSurfaceChanged(width, height);
     GLES20.glViewport(0, 0, width, height);
+    surfaceWidth = width;
+    surfaceHeight = height;
   }
 
   @Override
@@ -274,58 +900,123 @@ public class CloudAnchorFragment extends Fragment implements GLSurfaceView.Rende
     // Clear screen to notify driver it should not load any pixels from previous frame.
     GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
-    if (session == null) {
+    if (!sessionRunning) {
       return;
     }
-    // Notify ARCore session that the view size changed so that the perspective matrix and
-    // the video background can be properly adjusted.
-    displayRotationHelper.updateSessionIfNeeded(session);
 
+    frameProfiler.beginFrame();
+    boolean simulating = false;
     try {
+      // The simulation of the previous frame may still be using the session and the scene. A
+      // simulation that overruns shows up as a wait in this frame.
+      frameProfiler.beginStage();
+      simulationStage.awaitIdle();
+      frameProfiler.endStage(Stage.SIMULATION_WAIT);
+
+      frameProfiler.beginStage();
+      // Notify ARCore session that the view size changed so that the perspective matrix and
+      // the video background can be properly adjusted.
+      displayRotationHelper.updateSessionIfNeeded(session);
+      // Reconfigure the session if the app settled in a new phase during the previous frames.
+      if (sessionConfigController.update(currentPhase(), System.nanoTime())) {
+        Log.i(TAG, "Session config: " + sessionConfigController.getStats());
+      }
       session.setCameraTextureName(backgroundRenderer.getTextureId());
 
       // Obtain the current frame from ARSession. When the configuration is set to
       // UpdateMode.BLOCKING (it is by default), this will throttle the rendering to the
-      // camera framerate.
+      // camera framerate. With UpdateMode.LATEST_CAMERA_IMAGE the render scheduler paces the
+      // frames instead.
       Frame frame = session.update();
       Camera camera = frame.getCamera();
-
-      // Handle one tap per frame.
-      handleTap(frame, camera);
+      frameProfiler.endStage(Stage.SESSION_UPDATE);
+      renderScheduler.onFrameRendered(frame.getTimestamp(), camera.getTrackingState());
+      if (clearTrackableSnapshot) {
+        clearTrackableSnapshot = false;
+        trackableSnapshot.clear();
+      }
+      trackableSnapshot.update(frame);
 
       // If frame is ready, render camera preview image to the GL surface.
+      frameProfiler.beginStage();
       backgroundRenderer.draw(frame);
+      frameProfiler.endStage(Stage.BACKGROUND);
+
+      if (frame.getTimestamp() != 0 && startupTimeline.markFirstCameraFrame()) {
+        Log.i(TAG, "Startup timeline: " + startupTimeline);
+      }
 
       // Keep the screen unlocked while tracking, but allow it to lock when tracking stops.
       trackingStateHelper.updateKeepScreenOnFlag(camera.getTrackingState());
+      trackingStateHelper.recordFrame(
+          camera.getTrackingState(), camera.getTrackingFailureReason(), frame.getTimestamp());
+      if (retainedSession.recordFrame(camera.getTrackingState(), System.nanoTime())) {
+        Log.i(TAG, "Time to tracking: " + retainedSession.getStats());
+      }
+      if (!resolveAheadRequested && camera.getTrackingState() == TrackingState.TRACKING) {
+        resolveAheadRequested = true;
+        mainHandler.post(this::startResolveAhead);
+      }
+
+      // Until the decoded assets are uploaded, only the camera image is drawn.
+      if (!uploadRendererAssetsIfReady()) {
+        return;
+      }
 
       // If not tracking, don't draw 3D objects, show tracking failure reason instead.
       if (camera.getTrackingState() == TrackingState.PAUSED) {
+        posePredictor.reset();
         messageSnackbarHelper.showMessage(
             getActivity(), TrackingStateHelper.getTrackingFailureReasonString(camera));
         return;
       }
 
-      // Get projection matrix.
-      float[] projmtx = new float[16];
-      camera.getProjectionMatrix(projmtx, 0, 0.1f, 100.0f);
+      // Get projection matrix, camera matrix and color correction for this frame.
+      frameContext.update(frame, camera);
+      float[] projmtx = frameContext.getProjectionMatrix();
+      float[] viewmtx = frameContext.getViewMatrix();
+      if (PREDICT_POSE) {
+        posePredictor.addViewMatrix(frame.getTimestamp(), viewmtx);
+        if (posePredictor.predictViewMatrix(
+            frame.getTimestamp() + POSE_PREDICTION_LEAD_NANOS, predictedViewMatrix)) {
+          viewmtx = predictedViewMatrix;
+        }
+      }
+      float[] colorCorrectionRgba = frameContext.getColorCorrectionRgba();
+      float[] cameraPosition = frameContext.getCameraPosition();
+      viewpointCoverageTracker.addCameraPosition(
+          cameraPosition[0], cameraPosition[1], cameraPosition[2], frameContext.getTimestamp());
 
-      // Get camera matrix and draw.
-      float[] viewmtx = new float[16];
-      camera.getViewMatrix(viewmtx, 0);
+      // Upload the tracked points, and feed them to the density estimator before the simulation
+      // queries it. Use try-with-resources to automatically release the point cloud.
+      frameProfiler.beginStage();
+      boolean drawPointCloud = !qualityGovernor.isAtLeast(Level.NO_POINT_CLOUD);
+      try (PointCloud pointCloud = frame.acquirePointCloud()) {
+        if (drawPointCloud) {
+          pointCloudRenderer.update(pointCloud);
+        }
+        featureDensityEstimator.addPoints(pointCloud.getPoints(), pointCloud.getTimestamp());
+        if (frameTraceRecorder != null) {
+          // Counted as part of the point cloud stage, which is fine while recording.
+          frameTraceRecorder.record(
+              frame, camera, viewmtx, projmtx, pointCloud, session.getAllTrackables(Plane.class),
+              anchors);
+        }
+      }
 
-      // Compute lighting from average intensity of the image.
-      // The first three components are color scaling factors.
-      // The last one is the average pixel intensity in gamma space.
-      final float[] colorCorrectionRgba = new float[4];
-      frame.getLightEstimate().getColorCorrection(colorCorrectionRgba, 0);
+      // Hand the frame to the simulation, which handles taps, hosting and anchors and records the
+      // draw commands of the scene while this thread draws. No ARCore calls and no scene state
+      // from here on, until the simulation is idle again.
+      simulatedFrame = frame;
+      simulatedCamera = camera;
+      simulatedViewMatrix = viewmtx;
+      RenderCommandList commands = simulationStage.submit();
+      simulating = true;
 
-      // Visualize tracked points.
-      // Use try-with-resources to automatically release the point cloud.
-      try (PointCloud pointCloud = frame.acquirePointCloud()) {
-        pointCloudRenderer.update(pointCloud);
+      if (drawPointCloud) {
         pointCloudRenderer.draw(viewmtx, projmtx);
       }
+      frameProfiler.endStage(Stage.POINT_CLOUD);
 
       // No tracking error at this point. If we didn't detect any plane, show searchingPlane message.
       if (!hasTrackingPlane()) {
@@ -333,32 +1024,178 @@ public class CloudAnchorFragment extends Fragment implements GLSurfaceView.Rende
       }
 
       // Visualize planes.
-      planeRenderer.drawPlanes(
-          session.getAllTrackables(Plane.class), camera.getDisplayOrientedPose(), projmtx);
+      frameProfiler.beginStage();
+      planeRenderer.drawPlanes(trackableSnapshot.getPlanes(), cameraPosition, viewmtx, projmtx);
+      frameProfiler.endStage(Stage.PLANES);
 
-      if (currentAnchor != null && currentAnchor.getTrackingState() == TrackingState.TRACKING) {
-        currentAnchor.getPose().toMatrix(anchorMatrix, 0);
-        // Update and draw the model and its shadow.
-        virtualObject.updateModelMatrix(anchorMatrix, 1f);
-        virtualObjectShadow.updateModelMatrix(anchorMatrix, 1f);
+      // Draw the models recorded by the simulation from this frame's camera.
+      frameProfiler.beginStage();
+      sceneRenderer.draw(commands, viewmtx, projmtx, colorCorrectionRgba);
+      frameProfiler.endStage(Stage.OBJECTS);
 
-        virtualObject.draw(viewmtx, projmtx, colorCorrectionRgba, andyColor);
-        virtualObjectShadow.draw(viewmtx, projmtx, colorCorrectionRgba, andyColor);
-      }
+      qualityGovernor.onFrame(renderWorkNanos(), System.nanoTime());
+      applyQualityLevel();
     } catch (Throwable t) {
       // Avoid crashing the application due to unhandled exceptions.
       Log.e(TAG, "Exception on the OpenGL thread", t);
+    } finally {
+      if (!simulating) {
+        // Still apply the changes other threads made to the scene.
+        sceneHandoff.drain();
+        publishSceneSnapshotIfChanged();
+      }
+      frameProfiler.endFrame();
     }
   }
 
-  // Handle only one tap per frame, as taps are usually low frequency compared to frame rate.
-  private void handleTap(Frame frame, Camera camera) {
-    if (currentAnchor != null) {
-      return; // Do nothing if there was already an anchor.
+  /**
+   * The simulation of a frame: applies the changes other threads made to the scene, handles a tap,
+   * starts and records hosting, moves the anchors and records the draw commands of the scene.
+   * Called by the simulation stage between {@code submit()} and {@code awaitIdle()}, during which
+   * it owns the session and the scene state, and the GL thread only draws.
+   */
+  private void simulateFrame(RenderCommandList commands) {
+    try {
+      // Apply the changes other threads made to the scene since the last frame.
+      sceneHandoff.drain();
+
+      // Handle one tap per frame.
+      handleTap(simulatedFrame, simulatedCamera);
+
+      // Record the results of any host operations that finished since the last frame.
+      drainCompletedHostOperations();
+
+      // Start hosting the anchors whose surroundings are now mapped well enough.
+      updatePendingHosts();
+
+      // Keep the number of attached anchors within budget and show placeholders for the anchors
+      // being resolved, then move the anchor nodes and record the models below them. Anchors that
+      // did not move do not cause any matrix to be recomputed. Index the list directly to avoid
+      // allocating an iterator every frame.
+      long now = System.nanoTime();
+      frustum.set(simulatedViewMatrix, frameContext.getProjectionMatrix());
+      // Anchors resolved ahead are attached too, and take room from the budget until claimed.
+      anchorBudget.setReservedCount(resolveAhead.getHeldAnchorCount());
+      anchorBudget.update(frustum, frameContext.getCameraPosition(), now);
+      // Give up on the resolves the user walked away from.
+      batchResolver.onCameraMoved(frameContext.getCameraPosition(), RESOLVE_STALE_DISTANCE_METERS);
+      resolvePlaceholders.update(scene, now);
+      for (int i = 0; i < anchors.size(); i++) {
+        Anchor anchor = anchors.get(i);
+        int node = anchorNodes.get(anchor);
+        boolean tracking = anchor.getTrackingState() == TrackingState.TRACKING;
+        scene.setVisible(node, tracking);
+        if (tracking) {
+          Pose pose = anchor.getPose();
+          String cloudAnchorId = cloudAnchorIds.get(anchor);
+          if (cloudAnchorId != null) {
+            resolvePlaceholders.remember(cloudAnchorId, pose);
+          }
+          resolvePlaceholders.getDisplayMatrix(node, pose, now, anchorMatrix);
+          scene.setLocalTransform(node, anchorMatrix, 0);
+          anchorBudget.setPose(anchor, anchorMatrix);
+        }
+      }
+      scene.update();
+      scenePicker.update(scene);
+      commands.record(scene);
+      // Here rather than on the GL thread, which would otherwise take the hosting and resolving
+      // locks every frame.
+      scenePhase = simulateScenePhase();
+    } catch (Throwable t) {
+      // Avoid crashing the application due to unhandled exceptions.
+      Log.e(TAG, "Exception on the simulation thread", t);
+    } finally {
+      publishSceneSnapshotIfChanged();
+    }
+  }
+
+  /** Publishes the anchors for the other threads, if they changed. Called by the simulation. */
+  private void publishSceneSnapshotIfChanged() {
+    if (sceneVersion == publishedSceneVersion) {
+      return;
     }
+    publishedSceneVersion = sceneVersion;
+    sceneHandoff.publish(
+        SceneSnapshot.create(
+            sceneVersion, anchors.size(), pendingHosts.size(), cloudAnchorIds.values()));
+    // Coalesced, so that a burst of changes updates the buttons once.
+    mainHandler.removeCallbacks(showSceneStateRunnable);
+    mainHandler.post(showSceneStateRunnable);
+  }
+
+  /** Shows the number of anchors of the latest scene snapshot. Called on the main thread. */
+  private void showSceneState() {
+    if (clearButton == null) {
+      return;
+    }
+    int anchorCount = sceneHandoff.getSnapshot().getAnchorCount();
+    clearButton.setText(anchorCount == 0 ? "CLEAR" : "CLEAR (" + anchorCount + ")");
+  }
+
+  /**
+   * Time spent rendering the current frame, not counting the wait in Session.update(). The wait for
+   * the simulation counts, so that the quality governor also reacts to simulation overruns.
+   */
+  private long renderWorkNanos() {
+    return frameProfiler.getCurrentStageNanos(Stage.SIMULATION_WAIT)
+        + frameProfiler.getCurrentStageNanos(Stage.BACKGROUND)
+        + frameProfiler.getCurrentStageNanos(Stage.POINT_CLOUD)
+        + frameProfiler.getCurrentStageNanos(Stage.PLANES)
+        + frameProfiler.getCurrentStageNanos(Stage.OBJECTS);
+  }
 
+  /**
+   * Applies a new quality level decided by the governor. Point cloud rendering is checked every
+   * frame; the plane limit and render scale are only changed here. Called on the GL thread.
+   */
+  private void applyQualityLevel() {
+    Level level = qualityGovernor.getLevel();
+    if (level == appliedQualityLevel) {
+      return;
+    }
+    boolean wasReducedResolution = appliedQualityLevel == Level.REDUCED_RESOLUTION;
+    appliedQualityLevel = level;
+    planeRenderer.setMaxPlanes(
+        qualityGovernor.isAtLeast(Level.REDUCED_PLANES) ? REDUCED_MAX_PLANES : Integer.MAX_VALUE);
+    if (wasReducedResolution != (level == Level.REDUCED_RESOLUTION)) {
+      mainHandler.post(applyRenderScaleRunnable);
+    }
+    Log.i(TAG, "Quality changed: " + qualityGovernor.getStats());
+  }
+
+  /**
+   * Renders into a smaller surface while the governor asks for reduced resolution. The surface is
+   * scaled up to the view by the display hardware. Called on the main thread.
+   */
+  private void applyRenderScale() {
+    if (surfaceView == null || surfaceView.getWidth() == 0) {
+      return;
+    }
+    if (qualityGovernor.getLevel() == Level.REDUCED_RESOLUTION) {
+      renderScale = REDUCED_RENDER_SCALE;
+      surfaceView
+          .getHolder()
+          .setFixedSize(
+              (int) (surfaceView.getWidth() * REDUCED_RENDER_SCALE),
+              (int) (surfaceView.getHeight() * REDUCED_RENDER_SCALE));
+    } else {
+      renderScale = 1f;
+      surfaceView.getHolder().setSizeFromLayout();
+    }
+  }
+
+  // Handle only one tap per frame, as taps are usually low frequency compared to frame rate.
+  private void handleTap(Frame frame, Camera camera) {
     MotionEvent tap = tapHelper.poll();
+    if (tap != null && renderScale != 1f) {
+      // Taps are in view coordinates, hit tests expect surface coordinates.
+      tap.setLocation(tap.getX() * renderScale, tap.getY() * renderScale);
+    }
     if (tap != null && camera.getTrackingState() == TrackingState.TRACKING) {
+      if (pickObject(tap)) {
+        return;
+      }
       for (HitResult hit : frame.hitTest(tap)) {
         // Check if any plane was hit, and if it was hit inside the plane polygon
         Trackable trackable = hit.getTrackable();
@@ -374,49 +1211,233 @@ public class CloudAnchorFragment extends Fragment implements GLSurfaceView.Rende
           // Adding an Anchor tells ARCore that it should track this position in
           // space. This anchor is created on the Plane to place the 3D model
           // in the correct position relative both to the world and to the plane.
-          currentAnchor = hit.createAnchor();
-          getActivity().runOnUiThread(() -> resolveButton.setEnabled(false));
-          messageSnackbarHelper.showMessage(getActivity(), "Now hosting anchor...");
-          future = session.hostCloudAnchorAsync(currentAnchor, 300, this::onHostComplete);
+          Anchor anchor = hit.createAnchor();
+          addAnchor(anchor);
+          pendingHosts.add(new PendingHost(anchor, System.nanoTime(), frame.getTimestamp()));
+          messageSnackbarHelper.showMessage(
+              getActivity(), "Scanning the area around the anchor. Move around it slowly...");
           break;
         }
       }
     }
   }
 
+  /**
+   * Selects the placed model under the tap, if any, and shows its Cloud Anchor ID. The scene is
+   * the one recorded by the previous simulation, seen from the camera of this frame, i.e. close to
+   * what the user tapped on. Called by the simulation.
+   */
+  private boolean pickObject(MotionEvent tap) {
+    if (scene.getDrawCount() == 0
+        || !scenePicker.pickScreen(
+            scene, tap.getX(), tap.getY(), surfaceWidth, surfaceHeight,
+            frameContext.getViewMatrix(), frameContext.getProjectionMatrix(), pickHit)) {
+      return false;
+    }
+    if (selectedNode != SceneGraph.NO_NODE && scene.isAlive(selectedNode)) {
+      scene.setRenderable(selectedNode, andyRenderable);
+    }
+    selectedNode = pickHit.node;
+    scene.setRenderable(selectedNode, selectedAndyRenderable);
+    int anchorNode = scene.getParent(selectedNode);
+    for (Map.Entry<Anchor, Integer> entry : anchorNodes.entrySet()) {
+      if (entry.getValue() == anchorNode) {
+        String cloudAnchorId = cloudAnchorIds.get(entry.getKey());
+        messageSnackbarHelper.showMessage(
+            getActivity(),
+            cloudAnchorId != null ? "Cloud Anchor ID: " + cloudAnchorId : "Not hosted yet.");
+        break;
+      }
+    }
+    renderScheduler.requestRedraw();
+    return true;
+  }
+
+  /** Adds an anchor to the scene, with the model and its shadow. Called by the simulation. */
+  private void addAnchor(Anchor anchor) {
+    anchors.add(anchor);
+    int node = scene.createNode(SceneGraph.NO_NODE, SceneGraph.NO_RENDERABLE);
+    scene.createNode(node, andyRenderable);
+    scene.createNode(node, andyShadowRenderable);
+    anchorNodes.put(anchor, node);
+    anchorBudget.add(anchor, System.nanoTime());
+    sceneVersion++;
+  }
+
+  /**
+   * Adds a resolved anchor to the scene, in place of its placeholder if one is shown. Called by
+   * the simulation.
+   */
+  private void addResolvedAnchor(Anchor anchor, String cloudAnchorId) {
+    addAnchor(anchor);
+    cloudAnchorIds.put(anchor, cloudAnchorId);
+    resolvePlaceholders.adopt(scene, cloudAnchorId, anchorNodes.get(anchor));
+  }
+
+  /**
+   * Removes an anchor that is about to be detached from the scene. Its Cloud Anchor ID is kept by
+   * the anchor budget. Called by the simulation.
+   */
+  private void removeAnchor(Anchor anchor) {
+    anchors.remove(anchor);
+    cloudAnchorIds.remove(anchor);
+    int node = anchorNodes.remove(anchor);
+    if (selectedNode != SceneGraph.NO_NODE && scene.getParent(selectedNode) == node) {
+      selectedNode = SceneGraph.NO_NODE;
+    }
+    resolvePlaceholders.forget(node);
+    scene.removeNode(node);
+    sceneVersion++;
+    Log.d(TAG, "Anchor budget: " + anchorBudget.getStats());
+  }
+
+  /**
+   * The phase the app is in, as of the previous frame. The planes are only known to the GL thread,
+   * the rest of the scene to the simulation, see {@link #simulateScenePhase()}. Called on the GL
+   * thread while the simulation is idle.
+   */
+  private SessionConfigController.Phase currentPhase() {
+    if (scenePhase != null) {
+      return scenePhase;
+    } else if (hasTrackingPlane()) {
+      return SessionConfigController.Phase.PLACING;
+    }
+    return SessionConfigController.Phase.SCANNING;
+  }
+
+  /**
+   * The phase of the anchors in the scene, or null if there are none. Hosting takes precedence,
+   * since the user may place more anchors while hosting. Called by the simulation.
+   */
+  @Nullable
+  private SessionConfigController.Phase simulateScenePhase() {
+    if (!pendingHosts.isEmpty()
+        || (hostingPipeline != null
+            && hostingPipeline.getQueuedCount() + hostingPipeline.getInFlightCount() > 0)) {
+      return SessionConfigController.Phase.HOSTING;
+    } else if ((batchResolver != null && batchResolver.getActiveBatchCount() > 0)
+        || (anchorBudget != null && anchorBudget.getResolvingCount() > 0)) {
+      return SessionConfigController.Phase.RESOLVING;
+    } else if (!anchors.isEmpty()) {
+      return SessionConfigController.Phase.VIEWING;
+    }
+    return null;
+  }
+
   /**
    * Checks if we detected at least one plane.
    */
   private boolean hasTrackingPlane() {
-    for (Plane plane : session.getAllTrackables(Plane.class)) {
-      if (plane.getTrackingState() == TrackingState.TRACKING) {
-        return true;
+    return trackableSnapshot.hasTrackingPlane();
+  }
+
+  /**
+   * Hands pending anchors to the hosting pipeline once the area around them is dense enough in
+   * feature points and has been seen from enough directions, or once they have waited too long.
+   * Called by the simulation.
+   */
+  private void updatePendingHosts() {
+    if (pendingHosts.isEmpty()) {
+      return;
+    }
+    long now = System.nanoTime();
+    float lowestProgress = 1f;
+    for (int i = pendingHosts.size() - 1; i >= 0; i--) {
+      PendingHost pendingHost = pendingHosts.get(i);
+      Anchor anchor = pendingHost.anchor;
+      if (anchor.getTrackingState() != TrackingState.TRACKING) {
+        continue;
       }
+      Pose pose = anchor.getPose();
+      featureDensityEstimator.query(
+          pose.tx(), pose.ty(), pose.tz(), DENSITY_RADIUS_METERS, densityEstimate);
+      // Only viewpoints from after the placement count, earlier ones did not look at this anchor.
+      float coverageDegrees =
+          viewpointCoverageTracker.getCoverageDegrees(
+              pose.tx(), pose.ty(), pose.tz(), pendingHost.placedFrameTimestampNanos);
+      float progress =
+          Math.min(
+              Math.min(1f, densityEstimate.score / MIN_DENSITY_SCORE),
+              Math.min(1f, coverageDegrees / MIN_COVERAGE_DEGREES));
+      boolean timedOut = now - pendingHost.placedTimeNanos > MAX_HOST_DELAY_NANOS;
+      if (progress >= 1f || timedOut) {
+        Log.d(TAG, "Hosting after " + (now - pendingHost.placedTimeNanos) / 1_000_000
+            + " ms, density score " + densityEstimate.score
+            + ", coverage " + coverageDegrees + " degrees");
+        pendingHosts.remove(i);
+        sceneVersion++;
+        hostingPipeline.enqueue(anchor);
+        messageSnackbarHelper.showMessage(getActivity(), "Now hosting anchor...");
+      } else {
+        lowestProgress = Math.min(lowestProgress, progress);
+      }
+    }
+
+    // Show scanning progress, throttled so the snackbar is not rebuilt every frame.
+    if (!pendingHosts.isEmpty() && now - lastHostProgressNanos > HOST_PROGRESS_INTERVAL_NANOS) {
+      lastHostProgressNanos = now;
+      messageSnackbarHelper.showMessage(
+          getActivity(),
+          "Scanning the area around the anchor: " + (int) (lowestProgress * 100)
+              + "%. Move around it slowly...");
     }
-    return false;
   }
 
-  private void onClearButtonPressed() {
-    // Clear the anchor from the scene.
-    if (currentAnchor != null) {
-      currentAnchor.detach();
-      currentAnchor = null;
+  /** Moves finished host operations into the anchor registry. Called by the simulation. */
+  private void drainCompletedHostOperations() {
+    if (hostingPipeline == null) {
+      return;
+    }
+    HostOperation operation;
+    while ((operation = hostingPipeline.pollCompleted()) != null) {
+      if (operation.getState() == HostingPipeline.State.SUCCESS
+          && anchors.contains(operation.getAnchor())) {
+        cloudAnchorIds.put(operation.getAnchor(), operation.getCloudAnchorId());
+        anchorBudget.setCloudAnchorId(operation.getAnchor(), operation.getCloudAnchorId());
+        sceneVersion++;
+      }
+      Log.d(TAG, "Hosting: " + hostingPipeline.getStats());
+      Log.d(TAG, "Retries: " + retrier.getStats());
     }
+  }
 
+  private void onClearButtonPressed() {
     // Cancel any ongoing async operations.
-    if (future != null) {
-      future.cancel();
-      future = null;
+    if (hostingPipeline != null) {
+      hostingPipeline.cancelAll();
+    }
+    if (batchResolver != null) {
+      batchResolver.cancelAll();
     }
 
-    resolveButton.setEnabled(true);
+    // Clear the anchors from the scene. The anchor list belongs to the simulation.
+    sceneHandoff.post(() -> {
+      for (Anchor anchor : anchors) {
+        anchor.detach();
+      }
+      anchors.clear();
+      anchorNodes.clear();
+      resolvePlaceholders.clear(scene);
+      scene.clear();
+      selectedNode = SceneGraph.NO_NODE;
+      if (anchorBudget != null) {
+        anchorBudget.clear();
+      }
+      cloudAnchorIds.clear();
+      pendingHosts.clear();
+      sceneVersion++;
+    });
+    renderScheduler.requestRedraw();
   }
 
-  private void onHostComplete(String cloudAnchorId, CloudAnchorState cloudState) {
+  private void onHostComplete(HostOperation operation) {
+    String cloudAnchorId = operation.getCloudAnchorId();
+    CloudAnchorState cloudState = operation.getCloudAnchorState();
     if (cloudState == CloudAnchorState.SUCCESS) {
-      firebaseManager.nextShortCode(shortCode -> {
+      shortCodeStore.nextShortCode(shortCode -> {
         if (shortCode != null) {
-          firebaseManager.storeUsingShortCode(shortCode, cloudAnchorId);
+          shortCodeStore.storeUsingShortCode(shortCode, cloudAnchorId);
+          sceneHandoff.post(() -> shortCodeCloudAnchorIds.put(shortCode, cloudAnchorId));
           messageSnackbarHelper.showMessage(getActivity(), "Cloud Anchor Hosted. Short code: " + shortCode);
         } else {
           // Firebase could not provide a short code.
@@ -430,37 +1451,144 @@ public class CloudAnchorFragment extends Fragment implements GLSurfaceView.Rende
   }
 
   private void onResolveButtonPressed() {
-    ResolveDialogFragment dialog = ResolveDialogFragment.createWithOkListener(
-        this::onShortCodeEntered);
+    ResolveDialogFragment dialog = ResolveDialogFragment.createWithBatchOkListener(
+        this::onShortCodesEntered);
     dialog.show(getActivity().getSupportFragmentManager(), "Resolve");
   }
 
-  private void onShortCodeEntered(int shortCode) {
-    firebaseManager.getCloudAnchorId(shortCode, cloudAnchorId -> {
-      if (cloudAnchorId == null || cloudAnchorId.isEmpty()) {
-        messageSnackbarHelper.showMessage(
-            getActivity(),
-            "A Cloud Anchor ID for the short code " + shortCode + " was not found.");
-        return;
+  private void onShortCodesEntered(List<Integer> shortCodes) {
+    if (batchResolver == null) {
+      return;
+    }
+    messageSnackbarHelper.showMessage(
+        getActivity(), "Resolving " + shortCodes.size() + " Cloud Anchor(s)...");
+    // Short codes resolved ahead appear right away, the others are resolved now.
+    List<Integer> remaining =
+        resolveAhead.claim(shortCodes, new ResolveAhead.Listener() {
+          @Override
+          public void onAnchorResolved(int shortCode, String cloudAnchorId, Anchor anchor) {
+            onCloudAnchorResolved(shortCode, cloudAnchorId, anchor);
+          }
+
+          @Override
+          public void onResolveFailed(int shortCode, CloudAnchorState cloudState) {
+            onCloudAnchorResolveFailed(shortCode, cloudState);
+          }
+        });
+    if (remaining.isEmpty()) {
+      Log.i(TAG, "Resolve ahead: " + resolveAhead.getStats());
+      return;
+    }
+    BatchResolver resolver = batchResolver;
+    BatchResolver.BatchListener listener = new BatchResolver.BatchListener() {
+          @Override
+          public void onAnchorResolved(int shortCode, String cloudAnchorId, Anchor anchor) {
+            onCloudAnchorResolved(shortCode, cloudAnchorId, anchor);
+          }
+
+          @Override
+          public void onResolveFailed(int shortCode, CloudAnchorState cloudState) {
+            onCloudAnchorResolveFailed(shortCode, cloudState);
+          }
+
+          @Override
+          public void onBatchComplete(BatchReport report) {
+            Log.i(TAG, "Batch resolve finished: " + report);
+            if (report.requested > 1) {
+              messageSnackbarHelper.showMessage(
+                  getActivity(),
+                  "Resolved " + report.resolved + " of " + report.requested + " anchors in "
+                      + report.timeToAllAnchorsMs + " ms (first after "
+                      + report.timeToFirstAnchorMs + " ms).");
+            }
+          }
+        };
+    // The remembered poses and the camera position belong to the simulation.
+    sceneHandoff.post(() -> resolveClosestFirst(resolver, remaining, listener));
+    renderScheduler.requestRedraw();
+  }
+
+  /**
+   * Starts resolving {@code shortCodes}, those last seen closest to the camera first, as a batch
+   * that goes stale once the camera moves away. Called by the simulation.
+   */
+  private void resolveClosestFirst(
+      BatchResolver resolver, List<Integer> shortCodes, BatchResolver.BatchListener listener) {
+    float[] cameraPosition = frameContext.getCameraPosition();
+    Map<Integer, Float> distanceHints = new HashMap<>();
+    for (Integer shortCode : shortCodes) {
+      String cloudAnchorId = shortCodeCloudAnchorIds.get(shortCode);
+      Pose pose =
+          cloudAnchorId == null ? null : resolvePlaceholders.getLastKnownPose(cloudAnchorId);
+      if (pose != null) {
+        float dx = pose.tx() - cameraPosition[0];
+        float dy = pose.ty() - cameraPosition[1];
+        float dz = pose.tz() - cameraPosition[2];
+        distanceHints.put(shortCode, (float) Math.sqrt(dx * dx + dy * dy + dz * dz));
       }
-      resolveButton.setEnabled(false);
-      future = session.resolveCloudAnchorAsync(
-          cloudAnchorId, (anchor, cloudState) -> onResolveComplete(anchor, cloudState, shortCode));
+    }
+    resolver.resolve(
+        shortCodes, BatchResolver.byExpectedDistance(distanceHints), cameraPosition, listener);
+  }
+
+  private void onCloudAnchorResolved(int shortCode, String cloudAnchorId, Anchor anchor) {
+    messageSnackbarHelper.showMessage(
+        getActivity(), "Cloud Anchor Resolved. Short code: " + shortCode);
+    shortCodeHistory.recordUse(shortCode, System.currentTimeMillis());
+    // Stream each anchor into the scene as soon as it is available.
+    sceneHandoff.post(() -> {
+      addResolvedAnchor(anchor, cloudAnchorId);
+      anchorBudget.setCloudAnchorId(anchor, cloudAnchorId);
+      shortCodeCloudAnchorIds.put(shortCode, cloudAnchorId);
     });
+    renderScheduler.requestRedraw();
   }
 
-  private void onResolveComplete(Anchor anchor, CloudAnchorState cloudState, int shortCode) {
-    if (cloudState == CloudAnchorState.SUCCESS) {
-      messageSnackbarHelper.showMessage(getActivity(), "Cloud Anchor Resolved. Short code: " + shortCode);
-      currentAnchor = anchor;
-    } else {
-      messageSnackbarHelper.showMessage(
-          getActivity(),
-          "Error while resolving anchor with short code "
-              + shortCode
-              + ". Error: "
-              + cloudState.toString());
-      resolveButton.setEnabled(true);
+  private void onCloudAnchorResolveFailed(int shortCode, CloudAnchorState cloudState) {
+    messageSnackbarHelper.showMessage(
+        getActivity(),
+        cloudState == null
+            ? "A Cloud Anchor ID for the short code " + shortCode + " was not found."
+            : "Error while resolving anchor with short code "
+                + shortCode
+                + ". Error: "
+                + cloudState.toString());
+  }
+
+  /**
+   * Starts resolving the short codes the user is likely to ask for, unless the battery is low.
+   * Called on the main thread once the session first tracks.
+   */
+  private void startResolveAhead() {
+    if (resolveAhead == null || !isAdded() || !hasBatteryForResolveAhead()) {
+      return;
+    }
+    List<Integer> shortCodes =
+        shortCodeHistory.getTopShortCodes(RESOLVE_AHEAD_COUNT, System.currentTimeMillis());
+    if (shortCodes.isEmpty()) {
+      return;
+    }
+    Log.i(TAG, "Resolving ahead: " + shortCodes);
+    resolveAhead.start(shortCodes);
+    mainHandler.postDelayed(releaseResolveAheadRunnable, RESOLVE_AHEAD_TTL_MS);
+  }
+
+  private boolean hasBatteryForResolveAhead() {
+    Context context = requireContext();
+    if (context.getSystemService(PowerManager.class).isPowerSaveMode()) {
+      return false;
+    }
+    BatteryManager batteryManager = context.getSystemService(BatteryManager.class);
+    return batteryManager.isCharging()
+        || batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY)
+            >= RESOLVE_AHEAD_MIN_BATTERY_PERCENT;
+  }
+
+  /** Detaches the anchors resolved ahead that nobody asked for. Called on the main thread. */
+  private void releaseResolveAhead() {
+    if (resolveAhead != null) {
+      resolveAhead.release();
+      Log.i(TAG, "Resolve ahead: " + resolveAhead.getStats());
     }
   }
 }